@@ -0,0 +1,54 @@
+package com.actelion.research.spirit.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.actelion.research.spiritcore.adapter.DBAdapter;
+import com.actelion.research.spiritcore.adapter.HSQLMemoryAdapter;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.services.dao.JPAUtil;
+
+/**
+ * Initializes an in-memory DB (HSQLMemoryAdapter), filled with a synthetic study.
+ * The size of the study is given by the JMH parameters (groups x phases x animals x samples x results).
+ * The defaults correspond to a typical study: 8 groups of 10 animals, 10 phases, 12 samples per animal and 10 results per sample
+ * (80 animals, 960 samples, 9600 results). Other sizes can be run with the JMH launcher (ex: org.openjdk.jmh.Main -p animals=50).
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractSpiritBenchmark {
+
+	@Param({"8"})
+	public int groups;
+
+	@Param({"10"})
+	public int phases;
+
+	@Param({"10"})
+	public int animals;
+
+	@Param({"12"})
+	public int samples;
+
+	@Param({"10"})
+	public int results;
+
+	protected SpiritUser user;
+	protected SyntheticData data;
+
+	@Setup
+	public void initDB() throws Exception {
+		user = SpiritUser.getFakeAdmin();
+		JPAUtil.setSpiritUser(user);
+		DBAdapter.setAdapter(new HSQLMemoryAdapter());
+		data = new SyntheticData(groups, phases, animals, samples, results).create(user);
+	}
+
+	@TearDown
+	public void closeDB() {
+		JPAUtil.closeFactory();
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.actelion.research.spirit.benchmark;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.biosample.BiosampleLinker;
+import com.actelion.research.spiritcore.business.biosample.BiosampleQuery;
+import com.actelion.research.spiritcore.business.result.Result;
+import com.actelion.research.spiritcore.business.result.ResultQuery;
+import com.actelion.research.spiritcore.services.dao.DAOBiosample;
+import com.actelion.research.spiritcore.services.dao.DAOResult;
+import com.actelion.research.spiritcore.services.dao.JPAUtil;
+
+/**
+ * Benchmarks of the main queries: biosamples by keywords, by linker, by containers and results by study.
+ * The session is cleared before each invocation, so that the queries always hit the DB.
+ */
+public class DAOBenchmark extends AbstractSpiritBenchmark {
+
+	@Setup(Level.Invocation)
+	public void clearSession() {
+		JPAUtil.clearAll();
+	}
+
+	@Benchmark
+	public List<Biosample> queryBiosamplesByKeywords() throws Exception {
+		BiosampleQuery q = new BiosampleQuery();
+		q.setKeywords("Liver " + data.getStudy().getStudyId());
+		return DAOBiosample.queryBiosamples(q, user);
+	}
+
+	@Benchmark
+	public List<Biosample> queryBiosamplesByLinker() throws Exception {
+		BiosampleQuery q = new BiosampleQuery();
+		q.setBiotype(data.getSampleType());
+		q.getLinker2values().put(new BiosampleLinker(data.getSampleType().getMetadata("Organ")), "Heart");
+		return DAOBiosample.queryBiosamples(q, user);
+	}
+
+	@Benchmark
+	public List<Biosample> queryBiosamplesByContainers() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < data.getSamples().size(); i+=10) {
+			sb.append(data.getSamples().get(i).getContainerId()).append(" ");
+		}
+		BiosampleQuery q = BiosampleQuery.createQueryForSampleIdOrContainerIds(sb.toString());
+		return DAOBiosample.queryBiosamples(q, user);
+	}
+
+	@Benchmark
+	public List<Result> queryResultsByStudy() throws Exception {
+		ResultQuery q = new ResultQuery();
+		q.setSid(data.getStudy().getId());
+		return DAOResult.queryResults(q, user);
+	}
+
+}
@@ -0,0 +1,45 @@
+package com.actelion.research.spirit.benchmark;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+import com.actelion.research.spiritcore.business.pivot.ColumnPivotTemplate;
+import com.actelion.research.spiritcore.business.pivot.PerInputPivotTemplate;
+import com.actelion.research.spiritcore.business.pivot.PivotDataTable;
+import com.actelion.research.spiritcore.business.pivot.PivotTemplate;
+import com.actelion.research.spiritcore.business.result.Result;
+import com.actelion.research.spiritcore.business.result.ResultQuery;
+import com.actelion.research.spiritcore.services.dao.DAOResult;
+
+/**
+ * Benchmarks of the construction of the PivotDataTable, from results already loaded.
+ */
+public class PivotBenchmark extends AbstractSpiritBenchmark {
+
+	private List<Result> loaded;
+
+	@Setup
+	public void loadResults() throws Exception {
+		ResultQuery q = new ResultQuery();
+		q.setSid(data.getStudy().getId());
+		loaded = DAOResult.queryResults(q, user);
+	}
+
+	@Benchmark
+	public PivotDataTable pivotColumn() {
+		PivotTemplate template = new ColumnPivotTemplate();
+		template.init(loaded);
+		return new PivotDataTable(loaded, template);
+	}
+
+	@Benchmark
+	public PivotDataTable pivotPerInput() {
+		PivotTemplate template = new PerInputPivotTemplate();
+		template.init(loaded);
+		template.expand(loaded, user);
+		return new PivotDataTable(loaded, template);
+	}
+
+}
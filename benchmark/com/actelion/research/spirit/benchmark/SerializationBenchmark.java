@@ -0,0 +1,81 @@
+package com.actelion.research.spirit.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+
+import com.actelion.research.spiritcore.business.Exchange;
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.services.exchange.Exporter;
+import com.actelion.research.spiritcore.services.exchange.Importer;
+import com.actelion.research.spiritcore.util.MiscUtils;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+
+/**
+ * Benchmarks of the serialization hot paths: biosample metadata, exchange files and the expansion of IN clauses.
+ */
+public class SerializationBenchmark extends AbstractSpiritBenchmark {
+
+	private Exchange exchange;
+	private byte[] exchangeBytes;
+	private Map<Integer, String> metadata;
+	private String serializedMetadata;
+	private List<Integer> ids;
+
+	@Setup
+	public void prepare() throws Exception {
+		exchange = new Exchange("benchmark");
+		exchange.addStudies(MiscUtils.listOf(data.getStudy()));
+		exchange.addBiosamples(data.getAnimals());
+		exchange.addBiosamples(data.getSamples());
+		exchange.addResults(data.getResults());
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		Exporter.write(exchange, os, false);
+		exchangeBytes = os.toByteArray();
+
+		metadata = new LinkedHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			metadata.put(i, "value " + i + "; with separators, = and \"quotes\"");
+		}
+		serializedMetadata = MiscUtils.serializeIntegerMap(metadata);
+
+		ids = new ArrayList<>();
+		for (Biosample b : data.getSamples()) {
+			ids.add(b.getId());
+		}
+	}
+
+	@Benchmark
+	public String serializeMetadata() {
+		return MiscUtils.serializeIntegerMap(metadata);
+	}
+
+	@Benchmark
+	public Map<Integer, String> deserializeMetadata() {
+		return MiscUtils.deserializeIntegerMap(serializedMetadata);
+	}
+
+	@Benchmark
+	public int exportExchange() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(exchangeBytes.length);
+		Exporter.write(exchange, os, false);
+		return os.size();
+	}
+
+	@Benchmark
+	public Exchange importExchange() throws Exception {
+		return Importer.read(new ByteArrayInputStream(exchangeBytes));
+	}
+
+	@Benchmark
+	public String expandForIn() {
+		return QueryTokenizer.expandForIn("b.id", ids);
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.actelion.research.spirit.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs all the benchmarks, publishes the results as JSON, and compares them to the baseline.
+ * <br>
+ * Usage: SpiritBenchmarks [output.json] [baseline.properties] [include regexp]
+ * (by default: benchmark-results.json, no baseline and all benchmarks of this package)
+ * <br>
+ * The scores are the average times in us/op. The baseline maps each benchmark (Class.method) to its recorded score,
+ * and gives the threshold: the run fails (exit code 1) if a score is above baseline*threshold.
+ * A benchmark can have its own threshold (Class.method.threshold), when its error is larger than the default threshold.
+ */
+public class SpiritBenchmarks {
+
+	public static final String THRESHOLD = "threshold";
+
+	public static void main(String[] args) throws Exception {
+		String output = args.length>0? args[0]: "benchmark-results.json";
+		String baseline = args.length>1? args[1]: null;
+		String include = args.length>2? args[2]: SpiritBenchmarks.class.getPackage().getName() + ".*Benchmark";
+
+		Options options = new OptionsBuilder()
+				.include(include)
+				.mode(Mode.AverageTime)
+				.timeUnit(TimeUnit.MICROSECONDS)
+				.warmupIterations(3)
+				.warmupTime(TimeValue.seconds(2))
+				.measurementIterations(5)
+				.measurementTime(TimeValue.seconds(2))
+				.forks(1)
+				.resultFormat(ResultFormatType.JSON)
+				.result(output)
+				.build();
+		Collection<RunResult> results = new Runner(options).run();
+
+		if(baseline!=null && !compare(results, new File(baseline))) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compares the scores to the baseline, and returns false if one of them is above baseline*threshold
+	 */
+	private static boolean compare(Collection<RunResult> results, File file) throws Exception {
+		Properties baseline = new Properties();
+		try(InputStream is = new FileInputStream(file)) {
+			baseline.load(is);
+		}
+		double threshold = Double.parseDouble(baseline.getProperty(THRESHOLD, "1.5"));
+
+		boolean ok = true;
+		System.out.println();
+		System.out.println(String.format("%-50s %12s %12s %8s", "Benchmark", "Baseline", "Score", "Ratio"));
+		for (RunResult result : results) {
+			String name = result.getParams().getBenchmark();
+			name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.')-1)+1);
+			double score = result.getPrimaryResult().getScore();
+			String value = baseline.getProperty(name);
+			if(value==null) {
+				System.out.println(String.format("%-50s %12s %12.1f %8s", name, "-", score, "NEW"));
+				continue;
+			}
+			double ratio = score / Double.parseDouble(value);
+			boolean regression = ratio>Double.parseDouble(baseline.getProperty(name + "." + THRESHOLD, ""+threshold));
+			System.out.println(String.format("%-50s %12s %12.1f %8.2f%s", name, value, score, ratio, regression? " REGRESSION": ""));
+			if(regression) ok = false;
+		}
+		return ok;
+	}
+
+}
@@ -0,0 +1,194 @@
+package com.actelion.research.spirit.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.actelion.research.spiritcore.business.DataType;
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.biosample.BiotypeCategory;
+import com.actelion.research.spiritcore.business.biosample.Biotype;
+import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
+import com.actelion.research.spiritcore.business.biosample.Container;
+import com.actelion.research.spiritcore.business.biosample.ContainerType;
+import com.actelion.research.spiritcore.business.result.Result;
+import com.actelion.research.spiritcore.business.result.Test;
+import com.actelion.research.spiritcore.business.result.TestAttribute;
+import com.actelion.research.spiritcore.business.result.TestAttribute.OutputType;
+import com.actelion.research.spiritcore.business.study.Group;
+import com.actelion.research.spiritcore.business.study.Phase;
+import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.services.dao.DAOBiosample;
+import com.actelion.research.spiritcore.services.dao.DAOBiotype;
+import com.actelion.research.spiritcore.services.dao.DAOResult;
+import com.actelion.research.spiritcore.services.dao.DAOStudy;
+import com.actelion.research.spiritcore.services.dao.DAOTest;
+import com.actelion.research.spiritcore.services.dao.JPAUtil;
+
+/**
+ * Generates a synthetic study: nGroups groups x nPhases phases, nAnimals animals per group,
+ * nSamples samples (in a container) per animal and nResults results per sample.
+ * The data is deterministic (fixed seed), so that successive benchmark runs can be compared.
+ */
+public class SyntheticData {
+
+	private static final int CHUNK_SIZE = 1000;
+	private static final String[] ORGANS = {"Liver", "Heart", "Lung", "Kidney", "Brain", "Blood"};
+
+	private final int nGroups;
+	private final int nPhases;
+	private final int nAnimals;
+	private final int nSamples;
+	private final int nResults;
+
+	private Biotype animalType;
+	private Biotype sampleType;
+	private Test test;
+	private Study study;
+	private List<Biosample> animals = new ArrayList<>();
+	private List<Biosample> samples = new ArrayList<>();
+	private List<Result> results = new ArrayList<>();
+
+	public SyntheticData(int nGroups, int nPhases, int nAnimals, int nSamples, int nResults) {
+		this.nGroups = nGroups;
+		this.nPhases = nPhases;
+		this.nAnimals = nAnimals;
+		this.nSamples = nSamples;
+		this.nResults = nResults;
+	}
+
+	/**
+	 * Creates and persists the types, the study, the biosamples and the results
+	 * @param user
+	 * @return this
+	 * @throws Exception
+	 */
+	public SyntheticData create(SpiritUser user) throws Exception {
+		Random rand = new Random(42);
+		String suffix = nGroups + "x" + nPhases + "x" + nAnimals + "x" + nSamples + "x" + nResults;
+
+		//Types
+		animalType = new Biotype("BenchAnimal" + suffix);
+		animalType.setCategory(BiotypeCategory.LIVING);
+		animalType.setPrefix("BA" + suffix + "-");
+		animalType.getMetadata().add(new BiotypeMetadata("Sex", DataType.ALPHA));
+		DAOBiotype.persistBiotype(animalType, user);
+
+		sampleType = new Biotype("BenchSample" + suffix);
+		sampleType.setCategory(BiotypeCategory.SOLID);
+		sampleType.setPrefix("BS" + suffix + "-");
+		sampleType.setParent(animalType);
+		sampleType.getMetadata().add(new BiotypeMetadata("Organ", DataType.ALPHA));
+		DAOBiotype.persistBiotype(sampleType, user);
+
+		test = new Test("BenchTest" + suffix);
+		test.setCategory("BENCH");
+		TestAttribute ta1 = new TestAttribute(test, "Parameter");
+		ta1.setOutputType(OutputType.INPUT);
+		ta1.setDataType(DataType.ALPHA);
+		TestAttribute ta2 = new TestAttribute(test, "Value");
+		ta2.setOutputType(OutputType.OUTPUT);
+		ta2.setDataType(DataType.NUMBER);
+		test.getAttributes().add(ta1);
+		test.getAttributes().add(ta2);
+		DAOTest.persistTests(Collections.singleton(test), user);
+
+		//Study
+		study = new Study();
+		study.setTitle("Benchmark " + suffix);
+		List<Group> groups = new ArrayList<>();
+		List<Phase> phases = new ArrayList<>();
+		for (int i = 0; i < nGroups; i++) {
+			Group g = new Group(Integer.toString(i+1));
+			g.setStudy(study);
+			groups.add(g);
+		}
+		for (int i = 0; i < nPhases; i++) {
+			Phase p = new Phase("d" + i);
+			p.setStudy(study);
+			phases.add(p);
+		}
+		DAOStudy.persistStudies(Collections.singleton(study), user);
+
+		//Biosamples
+		int n = 0;
+		for (Group group : groups) {
+			for (int i = 0; i < nAnimals; i++) {
+				Biosample animal = new Biosample(animalType);
+				animal.setAttached(study, group, 0);
+				animal.setSampleName("A" + (++n));
+				animal.setMetadataValue("Sex", rand.nextBoolean()? "M": "F");
+				animals.add(animal);
+				for (int j = 0; j < nSamples; j++) {
+					Biosample sample = new Biosample(sampleType);
+					sample.setParent(animal);
+					sample.setInheritedStudy(study);
+					sample.setInheritedGroup(group);
+					sample.setInheritedPhase(phases.get(j % phases.size()));
+					sample.setMetadataValue("Organ", ORGANS[j % ORGANS.length]);
+					sample.setContainer(new Container(ContainerType.CRYOTUBE, "BC" + suffix + "-" + samples.size()));
+					samples.add(sample);
+				}
+			}
+		}
+		persist(animals, user);
+		persist(samples, user);
+
+		//Results
+		for (Biosample sample : samples) {
+			for (int k = 0; k < nResults; k++) {
+				Result r = new Result(test);
+				r.setBiosample(sample);
+				r.setPhase(phases.get(k % phases.size()));
+				r.setElb("BENCH" + suffix);
+				r.setValue("Parameter", "P" + (k % 5));
+				r.setValue("Value", Double.toString(Math.round(rand.nextGaussian() * 1000) / 100.0));
+				results.add(r);
+			}
+		}
+		for (int offset = 0; offset < results.size(); offset += CHUNK_SIZE) {
+			DAOResult.persistResults(results.subList(offset, Math.min(results.size(), offset + CHUNK_SIZE)), user);
+		}
+		JPAUtil.clearAll();
+		return this;
+	}
+
+	private static void persist(List<Biosample> biosamples, SpiritUser user) throws Exception {
+		for (int offset = 0; offset < biosamples.size(); offset += CHUNK_SIZE) {
+			Collection<Biosample> chunk = biosamples.subList(offset, Math.min(biosamples.size(), offset + CHUNK_SIZE));
+			DAOBiosample.persistBiosamples(chunk, user);
+		}
+	}
+
+	public Biotype getAnimalType() {
+		return animalType;
+	}
+
+	public Biotype getSampleType() {
+		return sampleType;
+	}
+
+	public Test getTest() {
+		return test;
+	}
+
+	public Study getStudy() {
+		return study;
+	}
+
+	public List<Biosample> getAnimals() {
+		return animals;
+	}
+
+	public List<Biosample> getSamples() {
+		return samples;
+	}
+
+	public List<Result> getResults() {
+		return results;
+	}
+
+}
@@ -0,0 +1,57 @@
+#!/bin/sh
+#
+# Compiles and runs the JMH benchmarks of Spirit, and compares the scores to benchmark/baseline.properties.
+#
+# Usage: benchmark/run.sh [include regexp]
+#
+# The dependencies, which are not part of the repository (JMH and hibernate-core), are declared below (Maven coordinates)
+# and downloaded from Maven Central into the local Maven repository (~/.m2/repository), if they are not there yet.
+# The other dependencies are the jars of lib/.
+#
+# Environment:
+#  JAVA_HOME - the JDK 8 to use, with JavaFX as for Spirit (default: the javac/java of the PATH)
+#  BUILD     - the build directory (default: /tmp/spirit-benchmark)
+#  M2_REPO   - the local Maven repository (default: ~/.m2/repository)
+#  MAVEN_URL - the remote Maven repository (default: https://repo1.maven.org/maven2)
+#
+set -e
+
+DEPENDENCIES="
+org.openjdk.jmh:jmh-core:1.21
+org.openjdk.jmh:jmh-generator-annprocess:1.21
+net.sf.jopt-simple:jopt-simple:4.6
+org.hibernate:hibernate-core:5.1.0.Final
+"
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+BUILD=${BUILD:-${TMPDIR:-/tmp}/spirit-benchmark}
+M2_REPO=${M2_REPO:-$HOME/.m2/repository}
+MAVEN_URL=${MAVEN_URL:-https://repo1.maven.org/maven2}
+JAVAC=${JAVA_HOME:+$JAVA_HOME/bin/}javac
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+#Resolve the dependencies
+CP="$ROOT/lib/*"
+for dep in $DEPENDENCIES; do
+	group=$(echo "$dep" | cut -d: -f1)
+	artifact=$(echo "$dep" | cut -d: -f2)
+	version=$(echo "$dep" | cut -d: -f3)
+	path=$(echo "$group" | tr . /)/$artifact/$version/$artifact-$version.jar
+	if [ ! -f "$M2_REPO/$path" ]; then
+		echo "Download $dep"
+		mkdir -p "$(dirname "$M2_REPO/$path")"
+		curl -sSfL -o "$M2_REPO/$path" "$MAVEN_URL/$path"
+	fi
+	CP="$CP:$M2_REPO/$path"
+done
+
+#Compile the benchmarks, the entities (detected by Hibernate) and the classes of src they need.
+#The JMH annotation processor generates the benchmark classes
+rm -rf "$BUILD"
+mkdir -p "$BUILD/classes"
+find "$ROOT/benchmark" "$ROOT/src/com/actelion/research/spiritcore/business" -name '*.java' > "$BUILD/sources.txt"
+"$JAVAC" -nowarn -encoding UTF-8 -cp "$CP" -sourcepath "$ROOT/src" -d "$BUILD/classes" @"$BUILD/sources.txt"
+(cd "$ROOT/src" && find . -type f ! -name '*.java' | tar -cf - -T -) | (cd "$BUILD/classes" && tar -xf -)
+
+#Run
+"$JAVA" -cp "$BUILD/classes:$CP" com.actelion.research.spirit.benchmark.SpiritBenchmarks "$BUILD/benchmark-results.json" "$ROOT/benchmark/baseline.properties" "$@"
@@ -165,6 +165,9 @@ public class Spirit extends SpiritFrame {
 		}
 
 
+		//Each background task runs in its own JPA scope
+		SwingWorkerExtended.setScopeFactory(JPAUtil::openScope);
+
 		new SwingWorkerExtended("Starting Spirit", null, SwingWorkerExtended.FLAG_ASYNCHRONOUS) {
 			private Throwable throwable = null;
 
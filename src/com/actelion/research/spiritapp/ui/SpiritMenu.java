@@ -102,6 +102,7 @@ public class SpiritMenu {
 
 			adminMenu.add(new JSeparator());
 			adminMenu.add(new AdminActions.Action_RenameElb());
+			adminMenu.add(new AdminActions.Action_RebuildIndexes());
 			adminMenu.add(new JSeparator());
 			adminMenu.add(new ExchangeActions.Action_ExportExchange(SpiritFrame.getInstance()));
 			adminMenu.add(new ExchangeActions.Action_ImportExchange());
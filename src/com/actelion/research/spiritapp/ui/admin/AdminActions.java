@@ -46,7 +46,13 @@ import com.actelion.research.spiritcore.business.property.PropertyKey;
 import com.actelion.research.spiritcore.business.result.Result;
 import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.services.SpiritRights;
+import com.actelion.research.spiritcore.services.dao.DAOBiosampleLineage;
+import com.actelion.research.spiritcore.services.dao.DAOKeyword;
+import com.actelion.research.spiritcore.services.dao.DAOLocationClosure;
+import com.actelion.research.spiritcore.services.dao.DAOMetadataValue;
+import com.actelion.research.spiritcore.services.dao.DAOResult;
 import com.actelion.research.spiritcore.services.dao.DAORevision;
+import com.actelion.research.spiritcore.services.dao.DAOStudySummary;
 import com.actelion.research.spiritcore.services.dao.SpiritProperties;
 import com.actelion.research.util.ui.JExceptionDialog;
 import com.actelion.research.util.ui.SwingWorkerExtended;
@@ -165,6 +171,37 @@ public class AdminActions {
 		}
 	}
 
+	public static class Action_RebuildIndexes extends AbstractAction {
+		private static final long serialVersionUID = 1L;
+
+		public Action_RebuildIndexes() {
+			super("Rebuild Search Indexes");
+			putValue(AbstractAction.SMALL_ICON, IconType.ADMIN.getIcon());
+			setEnabled(SpiritRights.isSuperAdmin(SpiritFrame.getUser()));
+		}
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			int res = JOptionPane.showConfirmDialog(UIUtils.getMainFrame(), "Rebuilding the search indexes can take several minutes. Are you sure?", "Search Indexes", JOptionPane.YES_NO_OPTION);
+			if(res!=JOptionPane.YES_OPTION) return;
+			new SwingWorkerExtended("Rebuild Search Indexes", UIUtils.getMainFrame()) {
+				@Override
+				protected void doInBackground() throws Exception {
+					DAOKeyword.rebuildIndex(SpiritFrame.getUser());
+					DAOMetadataValue.rebuildIndex(SpiritFrame.getUser());
+					DAOResult.rebuildNumValues(SpiritFrame.getUser());
+					DAOStudySummary.rebuild(SpiritFrame.getUser());
+					DAOLocationClosure.rebuild(SpiritFrame.getUser());
+					DAOBiosampleLineage.rebuild(SpiritFrame.getUser());
+					DAORevision.rebuildIndex(SpiritFrame.getUser());
+				}
+				@Override
+				protected void done() {
+					JExceptionDialog.showInfo(UIUtils.getMainFrame(), "The search indexes have been rebuilt");
+				}
+			};
+		}
+	}
+
 	public static class Action_LastLogins extends AbstractAction {
 		public Action_LastLogins() {
 			super("Recent Connections...");
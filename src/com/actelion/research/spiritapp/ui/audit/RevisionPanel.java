@@ -86,9 +86,12 @@ public class RevisionPanel extends JPanel {
 				@Override
 				protected void showPopup(MouseEvent e) {
 					List<Revision> s = revisionTable.getSelection();
-					if(s.size()==1 && s.get(0).getStudies().size()==1) {
+					if(s.size()!=1) return;
+					//Revisions loaded from the audit index do not contain the changed entities
+					Revision rev = s.get(0).getAuditables().isEmpty()? DAORevision.getRevision(s.get(0).getRevId()): s.get(0);
+					if(rev!=null && rev.getStudies().size()==1) {
 						JPopupMenu menu = new JPopupMenu();
-						menu.add(new AdminActions.Action_Restore(s.get(0).getStudies()));
+						menu.add(new AdminActions.Action_Restore(rev.getStudies()));
 						menu.show(revisionTable, e.getX(), e.getY());
 					}
 				}
@@ -21,9 +21,11 @@
 
 package com.actelion.research.spiritapp.ui.audit;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.Box;
+import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JPanel;
 
@@ -47,14 +49,18 @@ import com.actelion.research.util.ui.iconbutton.JIconButton;
  */
 public class StudyHistoryDlg extends JEscapeDialog {
 
+	/** Number of revisions loaded at once: older revisions are loaded on demand */
+	private static final int PAGE_SIZE = 500;
 
 	private Study study;
+	private List<Revision> revisions = new ArrayList<>();
 	private RevisionPanel revisionPanel = new RevisionPanel();
 	//	private JCheckBox studyCheckbox = new JCheckBox("Study", true);
 	//	private JCheckBox samplesCheckbox = new JCheckBox("Samples", true);
 	//	private JCheckBox locationsCheckbox = new JCheckBox("Locations", true);
 	//	private JCheckBox resultsCheckbox = new JCheckBox("Results");
 	private JCheckBox byFieldCheckbox = new JCheckBox("Changes per field", true);
+	private JButton olderButton = new JButton("Load older changes");
 
 	private Action_ExportStudyEvents exportStudyEventsAction = new Action_ExportStudyEvents();
 
@@ -75,26 +81,37 @@ public class StudyHistoryDlg extends JEscapeDialog {
 		exportStudyEventsAction.setParentDlg(this);
 		exportStudyEventsAction.setFilters(null, null, study.getId());
 		JIconButton exportStudyEventsButton = new JIconButton(IconType.PDF, "Export Study Events...", exportStudyEventsAction);
-		JPanel actionPanel = UIUtils.createHorizontalBox(Box.createHorizontalGlue(), exportStudyEventsButton);
+		olderButton.addActionListener(e->loadInThread(true));
+		olderButton.setEnabled(false);
+		JPanel actionPanel = UIUtils.createHorizontalBox(olderButton, Box.createHorizontalGlue(), exportStudyEventsButton);
 
 		JPanel topPanel = UIUtils.createTitleBox(UIUtils.createHorizontalBox(Box.createHorizontalGlue(), byFieldCheckbox));
 		topPanel.setVisible(SpiritProperties.getInstance().isAdvancedMode());
 		setContentPane(UIUtils.createBox(revisionPanel, topPanel, actionPanel));
 
 		//Load revisions in background
-		refreshInThread();
+		loadInThread(false);
 
 		//show dialog
 		UIUtils.adaptSize(this, 1200, 800);
 		setVisible(true);
 	}
 
-	private void refreshInThread() {
-		revisionPanel.clear();
+	/**
+	 * Loads the most recent revisions, or the next page of older revisions if older is true
+	 * @param older
+	 */
+	private void loadInThread(boolean older) {
+		if(!older) {
+			revisions.clear();
+			revisionPanel.clear();
+		}
 		revisionPanel.setSingular(byFieldCheckbox.isSelected());
 		revisionPanel.setFilters(null, null, study.getId());
+		olderButton.setEnabled(false);
+		final int beforeRevId = older && revisions.size()>0? revisions.get(revisions.size()-1).getRevId(): 0;
 		new SwingWorkerExtended(getContentPane(), SwingWorkerExtended.FLAG_ASYNCHRONOUS20MS) {
-			private List<Revision> revisions;
+			private List<Revision> page;
 			@Override
 			protected void doInBackground() throws Exception {
 
@@ -105,12 +122,16 @@ public class StudyHistoryDlg extends JEscapeDialog {
 				query.setLocations(true);
 				query.setResults(false);
 				query.setAdmin(false);
+				query.setBeforeRevId(beforeRevId);
+				query.setMaxRevisions(PAGE_SIZE);
 
-				revisions = DAORevision.queryRevisions(query);
+				page = DAORevision.queryRevisions(query);
 			}
 
 			@Override
 			protected void done() {
+				revisions.addAll(page);
+				olderButton.setEnabled(page.size()>=PAGE_SIZE);
 				revisionPanel.setRows(revisions);
 				exportStudyEventsAction.setRevisions(revisions);
 				exportStudyEventsAction.setStudy(study);
@@ -35,6 +35,7 @@ import java.awt.dnd.DragSourceListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -42,6 +43,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
+import javax.persistence.EntityManager;
 import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JPopupMenu;
@@ -70,6 +72,8 @@ import com.actelion.research.spiritcore.business.biosample.BiosampleLinker.Linke
 import com.actelion.research.spiritcore.business.biosample.Biotype;
 import com.actelion.research.spiritcore.business.biosample.Container;
 import com.actelion.research.spiritcore.business.pivot.PivotRow;
+import com.actelion.research.spiritcore.services.dao.DAOBiosampleLineage;
+import com.actelion.research.spiritcore.services.dao.JPAUtil;
 import com.actelion.research.spiritcore.services.dao.SpiritProperties;
 import com.actelion.research.spiritcore.util.ListHashMap;
 import com.actelion.research.spiritcore.util.MiscUtils;
@@ -218,6 +222,17 @@ public class BiosampleTable extends SpiritExtendTable<Biosample> {
 		final int[] sRows = getSelectedRows();
 		final int[] sCols = getSelectedColumns();
 
+		//Load the whole subtree at once, instead of initializing the children one level at a time.
+		//This is only possible if the biosample belongs to the session of this thread, and the expansion can then stop at the deepest descendant
+		EntityManager session = JPAUtil.getManager();
+		if(expand && maxDepth>1 && obj!=null && obj.getId()>0 && session.contains(obj)) {
+			int depth = 0;
+			for (int d : DAOBiosampleLineage.loadDescendants(session, Collections.singleton(obj)).values()) {
+				depth = Math.max(depth, d);
+			}
+			maxDepth = Math.min(maxDepth, depth+1);
+		}
+
 		super.expandRow(obj, expand, maxDepth, false);
 		if(fireEvents) {
 			if(smartColumns) {
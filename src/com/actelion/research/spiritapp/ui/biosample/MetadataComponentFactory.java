@@ -38,6 +38,7 @@ import com.actelion.research.spiritcore.business.DataType;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
 import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
+import com.actelion.research.spiritcore.services.dao.DAOAutoCompletion;
 import com.actelion.research.spiritcore.services.dao.DAOBiotype;
 import com.actelion.research.spiritcore.util.MiscUtils;
 import com.actelion.research.util.ui.DateTextField;
@@ -62,6 +63,11 @@ public class MetadataComponentFactory {
 				public Collection<String> getChoices() {
 					return DAOBiotype.getAutoCompletionFields(metadataType, null);
 				}
+
+				@Override
+				public Collection<String> getChoices(String prefix) {
+					return DAOAutoCompletion.complete(metadataType, null, prefix, DAOAutoCompletion.MAX_POPUP_VALUES);
+				}
 			};
 			if(metadataType.isRequired()) {
 				res.setBackground(LF.BGCOLOR_REQUIRED);
@@ -32,6 +32,8 @@ import javax.swing.table.TableCellEditor;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
 import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
 import com.actelion.research.spiritcore.business.result.TestAttribute;
+import com.actelion.research.spiritcore.services.dao.DAOAutoCompletion;
+import com.actelion.research.spiritcore.services.dao.DAOAutoCompletion.Field;
 import com.actelion.research.spiritcore.services.dao.DAOBiotype;
 import com.actelion.research.spiritcore.services.dao.DAOTest;
 import com.actelion.research.util.ui.JTextComboBox;
@@ -63,6 +65,19 @@ public class AutoCompletionCellEditor extends AbstractCellEditor implements Tabl
 			}
 			return choices;
 		}
+
+		@Override
+		public Collection<String> getChoices(String prefix) {
+			if(att!=null) {
+				return DAOAutoCompletion.complete(att, prefix, DAOAutoCompletion.MAX_POPUP_VALUES);
+			} else if(mt!=null) {
+				return DAOAutoCompletion.complete(mt, null, prefix, DAOAutoCompletion.MAX_POPUP_VALUES);
+			} else if(biotype!=null) {
+				return DAOAutoCompletion.complete(Field.NAME, biotype, null, prefix, DAOAutoCompletion.MAX_POPUP_VALUES);
+			} else {
+				throw new IllegalArgumentException("Invalid choices");
+			}
+		}
 	};
 
 
@@ -81,7 +81,7 @@ public class ExchangeActions {
 				}
 				@Override
 				public boolean accept(File f) {
-					return f.isDirectory() || f.getName().endsWith(".spirit");
+					return f.isDirectory() || f.getName().endsWith(".spirit") || f.getName().endsWith(".spirit.gz");
 				}
 			});
 			int res = fileChooser.showOpenDialog(UIUtils.getMainFrame());
@@ -23,10 +23,7 @@ package com.actelion.research.spiritapp.ui.exchange;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.Writer;
 import java.util.List;
 
 import javax.swing.Box;
@@ -202,8 +199,6 @@ public class ExporterDlg extends JEscapeDialog {
 		if(exchange.isEmpty()) throw new Exception("The exchange file is empty");
 
 		if(fileBrowser.getFile().length()==0) throw new Exception("You must enter a file");
-		Writer writer = new BufferedWriter(new FileWriter(fileBrowser.getFile()));
-		Exporter.write(exchange, writer);
-		writer.close();
+		Exporter.write(exchange, new File(fileBrowser.getFile()));
 	}
 }
@@ -25,7 +25,6 @@ import java.awt.Component;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -52,6 +51,7 @@ import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.services.dao.DAOExchange;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
+import com.actelion.research.spiritcore.services.exchange.BulkCheckpoint;
 import com.actelion.research.spiritcore.services.exchange.ExchangeMapping;
 import com.actelion.research.spiritcore.services.exchange.ExchangeMapping.EntityAction;
 import com.actelion.research.spiritcore.services.exchange.Importer;
@@ -66,8 +66,19 @@ import com.actelion.research.util.ui.exceltable.JSplitPaneWithZeroSizeDivider;
 
 public class ImporterDlg extends JEscapeDialog {
 
+	/**
+	 * Above this number of biosamples and results, the import is done in bulk mode (see DAOExchange.persistBulk)
+	 */
+	private static final int BULK_THRESHOLD = 5000;
+	private static final int BULK_CHUNK_SIZE = 1000;
+
 	private Exchange exchange;
 
+	/**
+	 * File where the checkpoint of a bulk import is saved, to resume it if it is interrupted
+	 */
+	private File checkpointFile;
+
 	private ExchangeMapping mapping;
 
 	private List<IMappingPanel> mappingPanels = new ArrayList<>();
@@ -86,8 +97,9 @@ public class ImporterDlg extends JEscapeDialog {
 		JTabbedPane tabbedPane = new JCustomTabbedPane();
 
 		//Read exchange file
-		try(FileReader reader = new FileReader(file)) {
-			exchange = Importer.read(reader);
+		checkpointFile = BulkCheckpoint.getFile(file);
+		try {
+			exchange = Importer.read(file);
 		} catch (Exception e) {
 			JExceptionDialog.showError(e);
 			return;
@@ -149,6 +161,10 @@ public class ImporterDlg extends JEscapeDialog {
 			@Override
 			protected void doInBackground() throws Exception {
 				mapping = new ExchangeMapping(exchange, EntityAction.SKIP, EntityAction.SKIP);
+				if(checkpointFile.exists()) {
+					//A previous bulk import of this file was interrupted: resume it
+					mapping.resumeBulk(BulkCheckpoint.load(checkpointFile));
+				}
 				System.out.println("ImporterDlg.ImporterDlg() Inital Mapping= "+mapping.getStudyId2mappedStudy());
 
 			}
@@ -292,7 +308,12 @@ public class ImporterDlg extends JEscapeDialog {
 					try {
 						JPAUtil.pushEditableContext(SpiritFrame.getUser());
 
-						DAOExchange.persist(mapping, user);
+						if(exchange.getBiosamples().size() + exchange.getResults().size() > BULK_THRESHOLD) {
+							//Large import: commit by chunks. If it fails, clicking again on import (or reopening the file) resumes from the last committed chunk
+							DAOExchange.persistBulk(mapping, user, BULK_CHUNK_SIZE, null, checkpointFile);
+						} else {
+							DAOExchange.persist(mapping, user);
+						}
 
 						SpiritChangeListener.fireModelChanged(SpiritChangeType.LOGIN);
 						dispose();
@@ -58,9 +58,8 @@ import com.actelion.research.spiritcore.business.pivot.datawarrior.DataWarriorCo
 import com.actelion.research.spiritcore.business.pivot.datawarrior.DataWarriorConfig.ChartType;
 import com.actelion.research.spiritcore.business.pivot.datawarrior.DataWarriorExporter;
 import com.actelion.research.spiritcore.business.result.Result;
-import com.actelion.research.spiritcore.business.result.ResultQuery;
 import com.actelion.research.spiritcore.business.study.Study;
-import com.actelion.research.spiritcore.services.dao.DAOResult;
+import com.actelion.research.spiritcore.services.dao.DAOResultSnapshot;
 import com.actelion.research.spiritcore.util.MiscUtils;
 import com.actelion.research.util.IOUtils;
 import com.actelion.research.util.UsageLog;
@@ -121,9 +120,7 @@ public class PivotAnalyzerDlg extends JEscapeDialog {
 			protected void doInBackground() throws Exception {
 
 				if(results==null && study!=null) {
-					ResultQuery q = new ResultQuery();
-					q.setSid(study.getId());
-					results = DAOResult.queryResults(q, SpiritFrame.getUser());
+					results = DAOResultSnapshot.queryResults(study, SpiritFrame.getUser());
 				}
 				if(results==null) throw new Exception("There are no results");
 
@@ -32,8 +32,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.swing.AbstractButton;
@@ -446,6 +448,33 @@ public class PivotPanel extends JPanel {
 		return results;
 	}
 
+	/**
+	 * Updates the displayed pivot table with the given modifications, without pivoting all the results again.
+	 * If the table is not displayed yet, the results are simply reloaded.
+	 * @param added
+	 * @param removed
+	 * @param changed
+	 */
+	public void updateResults(Collection<Result> added, Collection<Result> removed, Collection<Result> changed) {
+		PivotDataTable data = pivotTable.getPivotDataTable();
+		if(data==null || data.getResults()!=results || results==null || results.size()==0) {
+			List<Result> newResults = new ArrayList<>(results==null? new ArrayList<>(): results);
+			if(removed!=null) newResults.removeAll(new HashSet<>(removed));
+			if(changed!=null) {
+				Map<Result, Result> map = new HashMap<>();
+				for (Result r : changed) {
+					map.put(r, r);
+				}
+				newResults.replaceAll(r -> map.containsKey(r)? map.get(r): r);
+			}
+			if(added!=null) newResults.addAll(added);
+			setResults(newResults);
+		} else {
+			data.update(added, removed, changed);
+			SpiritContextListener.setStatus(results.size() + " Results - " + data.getPivotRows().size() + " rows, " + data.getPivotColumns().size() + " columns");
+		}
+	}
+
 	private void refresh() {
 		if (results == null || results.size() == 0) {
 			pivotTable.setPivotDataTable(new PivotDataTable(results, pivotTemplate));
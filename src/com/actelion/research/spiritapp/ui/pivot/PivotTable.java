@@ -44,6 +44,7 @@ import com.actelion.research.spiritcore.business.pivot.PivotCell;
 import com.actelion.research.spiritcore.business.pivot.PivotCellKey;
 import com.actelion.research.spiritcore.business.pivot.PivotColumn;
 import com.actelion.research.spiritcore.business.pivot.PivotDataTable;
+import com.actelion.research.spiritcore.business.pivot.PivotDataTable.PivotDataTableListener;
 import com.actelion.research.spiritcore.business.pivot.PivotItem;
 import com.actelion.research.spiritcore.business.pivot.PivotItemFactory;
 import com.actelion.research.spiritcore.business.pivot.PivotRow;
@@ -64,6 +65,17 @@ public class PivotTable extends ExtendTable<PivotRow> {
 
 	private PivotDataTable data;
 
+	/**
+	 * Refresh the table after an incremental update of the data: the columns are only recreated if they changed
+	 */
+	private final PivotDataTableListener dataListener = change -> {
+		if(change.isStructureChanged()) {
+			setPivotDataTable(data);
+		} else {
+			getModel().setRows(data.getPivotRows());
+		}
+	};
+
 	public PivotTable() {
 		super(new PivotTableModel());
 
@@ -79,6 +91,8 @@ public class PivotTable extends ExtendTable<PivotRow> {
 
 
 	public void setPivotDataTable(PivotDataTable data) {
+		if(this.data!=null && this.data!=data) this.data.removePivotDataTableListener(dataListener);
+		if(data!=null && this.data!=data) data.addPivotDataTableListener(dataListener);
 		this.data = data;
 
 		PivotTableModel model = getModel();
@@ -24,7 +24,11 @@ package com.actelion.research.spiritapp.ui.result;
 import java.awt.BorderLayout;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.swing.JPanel;
 import javax.swing.JSplitPane;
@@ -84,6 +88,34 @@ public class ResultTab extends SpiritTab {
 			searchPane.getSearchTree().repopulate();
 		}
 		if(what==Result.class) {
+			@SuppressWarnings("unchecked")
+			Collection<Result> modified = (Collection<Result>) details;
+			updateResults(action, modified);
+		}
+	}
+
+	/**
+	 * Updates the displayed results after a modification.
+	 * Deleted and edited results are updated in the pivot table without querying and pivoting all the results again.
+	 * New results are not known to match the current query, so the query is executed again.
+	 */
+	private void updateResults(SpiritChangeType action, Collection<Result> modified) {
+		if(modified==null || modified.isEmpty() || results==null) {
+			searchPane.query(searchPane.getSearchTree().getQuery());
+			return;
+		}
+		Set<Result> displayed = new HashSet<>(results);
+		if(action==SpiritChangeType.MODEL_DELETED) {
+			results.removeAll(new HashSet<>(modified));
+			getPivotPanel().updateResults(null, modified, null);
+		} else if(displayed.containsAll(modified)) {
+			Map<Result, Result> map = new HashMap<>();
+			for (Result r : modified) {
+				map.put(r, r);
+			}
+			results.replaceAll(r -> map.containsKey(r)? map.get(r): r);
+			getPivotPanel().updateResults(null, null, modified);
+		} else {
 			searchPane.query(searchPane.getSearchTree().getQuery());
 		}
 	}
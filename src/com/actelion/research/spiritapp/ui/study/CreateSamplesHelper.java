@@ -129,11 +129,7 @@ public class CreateSamplesHelper {
 			}
 
 			//Create Barcodes
-			for (Biosample b : toAdd) {
-				if(b.getSampleId()==null || b.getSampleId().length()==0) {
-					b.setSampleId(DAOBarcode.getNextId(b));
-				}
-			}
+			DAOBarcode.generateSampleIds(toAdd);
 
 			////////////////////////////////////////
 			//Check samples to be deleted
@@ -23,6 +23,7 @@ package com.actelion.research.spiritapp.ui.study;
 
 import java.awt.Desktop;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
@@ -270,7 +271,7 @@ public class StudyEditorPane extends ImageEditorPane {
 
 				if(DBAdapter.getInstance().isInActelionDomain()) {
 					//Find related ELBs
-					List<ElbLink> elbs = DAOResult.getNiobeLinksForStudy(study);
+					List<ElbLink> elbs = new ArrayList<>(DAOResult.getNiobeLinksForStudy(study));
 					if(elbs.size()>0) {
 
 						sb.append("<b>Niobe:</b>");
@@ -53,6 +53,7 @@ import com.actelion.research.spiritcore.business.property.PropertyDescriptor;
 import com.actelion.research.spiritcore.business.property.PropertyKey;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.services.StringEncrypter;
+import com.actelion.research.spiritcore.services.dao.ConnectionPool;
 import com.actelion.research.spiritcore.services.dao.DAOEmployee;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
 import com.actelion.research.spiritcore.services.dao.SpiritProperties;
@@ -286,6 +287,22 @@ public abstract class DBAdapter {
 		}
 	}
 
+	/**
+	 * Returns the transaction isolation of the connections used by JPA (Connection.TRANSACTION_*), or -1 to keep the default of the driver.
+	 * By default, READ_COMMITTED, as given to Hibernate in persistence.xml. Adapters can override it if their DB needs an other level.
+	 */
+	public int getTransactionIsolation() {
+		return Connection.TRANSACTION_READ_COMMITTED;
+	}
+
+	/**
+	 * Returns the configuration of the connection pool used by JPA (see ConnectionPool).
+	 * Adapters can override it to adapt the pool to their DB (size, timeouts)
+	 */
+	public ConnectionPool.Config getPoolConfig() {
+		return new ConnectionPool.Config().setIsolation(getTransactionIsolation());
+	}
+
 	public String getTestQuery() {
 		return getCurrentDateQuery();
 	}
@@ -22,7 +22,6 @@
 package com.actelion.research.spiritcore.adapter;
 
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.Statement;
@@ -36,6 +35,7 @@ import org.slf4j.LoggerFactory;
 import com.actelion.research.spiritcore.business.Exchange;
 import com.actelion.research.spiritcore.business.employee.Employee;
 import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
 import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.business.study.StudyQuery;
 import com.actelion.research.spiritcore.services.SpiritUser;
@@ -88,6 +88,14 @@ public class SchemaCreator {
 			//The version is now the latest: update the version
 			String version = MigrationScript.getExpectedDBVersion();
 			SpiritProperties.getInstance().setDBVersion(version);
+			//The DB is new, so the indexes are complete
+			SpiritProperties.getInstance().setValue(PropertyKey.DB_KEYWORDINDEX, "true");
+			SpiritProperties.getInstance().setValue(PropertyKey.DB_METADATAINDEX, "true");
+			SpiritProperties.getInstance().setValue(PropertyKey.DB_NUMVALUEINDEX, "true");
+			SpiritProperties.getInstance().setValue(PropertyKey.DB_STUDYSUMMARY, "true");
+			SpiritProperties.getInstance().setValue(PropertyKey.DB_LOCATIONCLOSURE, "true");
+			SpiritProperties.getInstance().setValue(PropertyKey.DB_BIOSAMPLELINEAGE, "true");
+			SpiritProperties.getInstance().setValue(PropertyKey.DB_AUDITINDEX, "true");
 			SpiritProperties.getInstance().saveValues();
 			adapter.executeScripts(CREATE_AFTER, true);
 			LoggerFactory.getLogger(SchemaCreator.class).debug("DB UPDATED");
@@ -176,7 +184,7 @@ public class SchemaCreator {
 			if(is==null) {
 				throw new Exception("The system could not find the default configuration. The system is therefore empty");
 			}
-			Exchange exchange = Importer.read(new InputStreamReader(is));
+			Exchange exchange = Importer.read(is);
 			ExchangeMapping mapping = new ExchangeMapping(exchange, EntityAction.CREATE, EntityAction.SKIP);
 			DAOExchange.persist(mapping, user);
 			LoggerFactory.getLogger(SchemaCreator.class).info("examples persisted");
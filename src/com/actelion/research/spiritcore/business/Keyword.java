@@ -0,0 +1,105 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.business;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * A Keyword is one row of the keyword index used to speed up the keyword search of biosamples and results.
+ * Each indexed word is stored with all its suffixes (truncated, see DAOKeyword), so that a substring search '%kw%'
+ * can be replaced by a prefix search 'kw%', which is able to use the token index.
+ * The rows are maintained by DAOKeyword.
+ */
+@Entity
+@Table(name="keyword_index", indexes = {
+		@Index(name="keyword_token_index", columnList = "token, kind"),
+		@Index(name="keyword_entity_index", columnList = "entity_id")})
+public class Keyword implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**Own fields of a biosample (sampleId, containerId, comments, users, elb)*/
+	public static final String KIND_BIOSAMPLE = "B";
+	/**Fields of a biosample, which are also searched through its children (name, metadata)*/
+	public static final String KIND_BIOSAMPLE_INFO = "M";
+	/**Fields of a result (values, elb)*/
+	public static final String KIND_RESULT = "R";
+
+	public static final int MAX_LENGTH = 32;
+
+	@Id
+	@Column(name="kind", length=1, nullable=false)
+	private String kind;
+
+	@Id
+	@Column(name="entity_id", nullable=false)
+	private int entityId;
+
+	@Id
+	@Column(name="token", length=MAX_LENGTH, nullable=false)
+	private String token;
+
+	public Keyword() {
+	}
+
+	public Keyword(String kind, int entityId, String token) {
+		this.kind = kind;
+		this.entityId = entityId;
+		this.token = token;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	public int getEntityId() {
+		return entityId;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	@Override
+	public int hashCode() {
+		return entityId*31 + token.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(obj==this) return true;
+		if(!(obj instanceof Keyword)) return false;
+		Keyword k = (Keyword) obj;
+		return entityId==k.getEntityId() && kind.equals(k.getKind()) && token.equals(k.getToken());
+	}
+
+	@Override
+	public String toString() {
+		return kind + entityId + ":" + token;
+	}
+}
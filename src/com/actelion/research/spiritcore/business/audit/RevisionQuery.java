@@ -35,6 +35,8 @@ public class RevisionQuery {
 	private boolean results = true;
 	private boolean locations = true;
 	private boolean admin = true;
+	private int beforeRevId;
+	private int maxRevisions;
 
 	public RevisionQuery() {
 	}
@@ -125,4 +127,25 @@ public class RevisionQuery {
 	public void setAdmin(boolean admin) {
 		this.admin = admin;
 	}
+	public int getBeforeRevId() {
+		return beforeRevId;
+	}
+	/**
+	 * Returns only the revisions older than the given revId (exclusive, 0 for no limit).
+	 * Used to page through the revisions, from the newest to the oldest
+	 * @param beforeRevId
+	 */
+	public void setBeforeRevId(int beforeRevId) {
+		this.beforeRevId = beforeRevId;
+	}
+	public int getMaxRevisions() {
+		return maxRevisions;
+	}
+	/**
+	 * Sets the max number of revisions to be returned (0 for no limit).
+	 * @param maxRevisions
+	 */
+	public void setMaxRevisions(int maxRevisions) {
+		this.maxRevisions = maxRevisions;
+	}
 }
\ No newline at end of file
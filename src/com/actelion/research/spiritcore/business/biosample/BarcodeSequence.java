@@ -27,15 +27,17 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 /**
  * This utility class is used to store the last barcode used for a given prefix.
- * This is used to avoid that 2 users generate the same barcode at the same time
+ * This is used to avoid that 2 users generate the same barcode at the same time.
+ * There is only one sequence per type and category (unique constraint), so that 2 clients cannot create the same sequence concurrently
  *
  * @author Joel Freyss
  */
 @Entity
-@Table(name="barcode")
+@Table(name="barcode", uniqueConstraints = {@UniqueConstraint(name="barcode_type_index", columnNames = {"type", "category"})})
 @SequenceGenerator(name="barcode_sequence", sequenceName="barcode_sequence", allocationSize=1)
 public class BarcodeSequence {
 
@@ -0,0 +1,106 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.business.biosample;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * Normalized copy of one metadata value of a biosample.
+ * The metadata are stored serialized in the biosample (see Biosample.preSave), which does not allow to query a specific field.
+ * This table is a side-index, maintained by DAOMetadataValue, used to filter biosamples on exact, wildcard or numeric values of a metadata.
+ *
+ * Values of LargeText metadata are not indexed
+ */
+@Entity
+@Table(name="biosample_metadata", indexes = {
+		@Index(name="biosample_metadata_value_index", columnList = "metadata_id, value"),
+		@Index(name="biosample_metadata_num_index", columnList = "metadata_id, numvalue")})
+public class BiosampleMetadataValue implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int MAX_LENGTH = 255;
+
+	@Id
+	@Column(name="biosample_id", nullable=false)
+	private int biosampleId;
+
+	@Id
+	@Column(name="metadata_id", nullable=false)
+	private int metadataId;
+
+	@Column(name="value", length=MAX_LENGTH, nullable=false)
+	private String value;
+
+	@Column(name="numvalue")
+	private Double numValue;
+
+	public BiosampleMetadataValue() {
+	}
+
+	public BiosampleMetadataValue(int biosampleId, int metadataId, String value, Double numValue) {
+		this.biosampleId = biosampleId;
+		this.metadataId = metadataId;
+		this.value = value;
+		this.numValue = numValue;
+	}
+
+	public int getBiosampleId() {
+		return biosampleId;
+	}
+
+	public int getMetadataId() {
+		return metadataId;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public Double getNumValue() {
+		return numValue;
+	}
+
+	@Override
+	public int hashCode() {
+		return biosampleId*31 + metadataId;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(obj==this) return true;
+		if(!(obj instanceof BiosampleMetadataValue)) return false;
+		BiosampleMetadataValue v = (BiosampleMetadataValue) obj;
+		return biosampleId==v.getBiosampleId() && metadataId==v.getMetadataId();
+	}
+
+	@Override
+	public String toString() {
+		return biosampleId + "." + metadataId + "=" + value;
+	}
+}
@@ -22,6 +22,7 @@
 package com.actelion.research.spiritcore.business.location;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -34,6 +35,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
@@ -156,6 +158,33 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 
 	private transient boolean wasUpdated = false;
 
+	/**
+	 * Version of the location tree, incremented each time a name, a parent, a privacy or a group is changed.
+	 * The cached paths are recomputed if their version does not match.
+	 */
+	private static final AtomicInteger treeVersion = new AtomicInteger();
+
+	/**
+	 * Paths and inherited privacy, computed once per version of the location tree
+	 */
+	private static class CachedPath {
+		private final int version;
+		private final String hierarchyFull;
+		private final Location[] hierarchy;
+		private final Privacy inheritedPrivacy;
+		private final EmployeeGroup inheritedEmployeeGroup;
+
+		private CachedPath(int version, String hierarchyFull, Location[] hierarchy, Privacy inheritedPrivacy, EmployeeGroup inheritedEmployeeGroup) {
+			this.version = version;
+			this.hierarchyFull = hierarchyFull;
+			this.hierarchy = hierarchy;
+			this.inheritedPrivacy = inheritedPrivacy;
+			this.inheritedEmployeeGroup = inheritedEmployeeGroup;
+		}
+	}
+
+	private transient CachedPath cachedPath;
+
 	public Location() {}
 
 	public Location(Location parent, String name) {
@@ -185,6 +214,29 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 		return name==null?"":name;
 	}
 	public String getHierarchyFull() {
+		return getCachedPath().hierarchyFull;
+	}
+
+	/**
+	 * Invalidates the cached paths and inherited privacy of all locations.
+	 * This function must be called when the locations are changed without their setters (ex: merge, refresh)
+	 */
+	public static void invalidateCaches() {
+		treeVersion.incrementAndGet();
+	}
+
+	private CachedPath getCachedPath() {
+		CachedPath c = cachedPath;
+		int version = treeVersion.get();
+		if(c==null || c.version!=version) {
+			List<Location> hierarchy = computeHierarchy();
+			c = new CachedPath(version, computeHierarchyFull(), hierarchy.toArray(new Location[hierarchy.size()]), computeInheritedPrivacy(), computeInheritedEmployeeGroup());
+			cachedPath = c;
+		}
+		return c;
+	}
+
+	private String computeHierarchyFull() {
 		StringBuilder res = new StringBuilder();
 		Location loc = this;
 		int depth = 0;
@@ -219,6 +271,10 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 	 * @return
 	 */
 	public List<Location> getHierarchy() {
+		return new ArrayList<>(Arrays.asList(getCachedPath().hierarchy));
+	}
+
+	private List<Location> computeHierarchy() {
 		LinkedList<Location> res = new LinkedList<>();
 		Location l = this;
 		int depth = 0;
@@ -238,6 +294,7 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 		assert name==null || (name.indexOf('/')<0 && name.indexOf(':')<0);
 		name = name==null? null: name.replace('/', '_').replace(':', '_');
 		this.name = name;
+		invalidateCaches();
 	}
 
 	public LocationFlag getLocationFlag() {
@@ -339,7 +396,7 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 		if(parent!=null) {
 			parent.getChildren().add(this);
 		}
-
+		invalidateCaches();
 	}
 	public Location getParent() {
 		return parent;
@@ -382,6 +439,7 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 	 */
 	public void setPrivacy(Privacy privacy) {
 		this.privacy = privacy;
+		invalidateCaches();
 	}
 	/**
 	 * @return the privacy
@@ -391,6 +449,10 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 	}
 
 	public Privacy getInheritedPrivacy() {
+		return getCachedPath().inheritedPrivacy;
+	}
+
+	private Privacy computeInheritedPrivacy() {
 		Location l = this;
 		int depth=0;
 		while(l!=null && (++depth)<10) {
@@ -401,12 +463,16 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 			}
 		}
 		if(depth==10) {
-			System.err.println("Cycle in "+this+":"+getHierarchy());
+			System.err.println("Cycle in "+getName()+":"+computeHierarchyFull());
 		}
 		return Privacy.PUBLIC;
 	}
 
 	public EmployeeGroup getInheritedEmployeeGroup() {
+		return getCachedPath().inheritedEmployeeGroup;
+	}
+
+	private EmployeeGroup computeInheritedEmployeeGroup() {
 		Location l = this;
 		int depth=0;
 		while(l!=null && (++depth)<10) {
@@ -417,7 +483,7 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 			}
 		}
 		if(depth==10) {
-			System.err.println("Cycle in "+this+":"+getHierarchy());
+			System.err.println("Cycle in "+getName()+":"+computeHierarchyFull());
 		}
 		return null;
 	}
@@ -427,6 +493,7 @@ public class Location implements Comparable<Location>, Cloneable, IObject, IAudi
 	 */
 	public void setEmployeeGroup(EmployeeGroup employeeGroup) {
 		this.employeeGroup = employeeGroup;
+		invalidateCaches();
 	}
 	/**
 	 * @return the department
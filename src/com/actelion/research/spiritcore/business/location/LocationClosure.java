@@ -0,0 +1,93 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.business.location;
+
+import java.io.Serializable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * A LocationClosure is one row of the ancestor/descendant closure of the location hierarchy.
+ * Each location has a row to itself (depth=0), and a row to each of its ancestors (depth=1 for the parent, ...),
+ * so that the locations under a given location can be queried with one indexed join.
+ * The rows are maintained by DAOLocationClosure.
+ */
+@Entity
+@Table(name="biolocation_closure", indexes = {
+		@Index(name="biolocation_closure_desc_index", columnList = "descendant_id")})
+public class LocationClosure implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name="ancestor_id", nullable=false)
+	private int ancestorId;
+
+	@Id
+	@Column(name="descendant_id", nullable=false)
+	private int descendantId;
+
+	@Column(name="depth", nullable=false)
+	private int depth;
+
+	public LocationClosure() {
+	}
+
+	public LocationClosure(int ancestorId, int descendantId, int depth) {
+		this.ancestorId = ancestorId;
+		this.descendantId = descendantId;
+		this.depth = depth;
+	}
+
+	public int getAncestorId() {
+		return ancestorId;
+	}
+
+	public int getDescendantId() {
+		return descendantId;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31*ancestorId + descendantId;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof LocationClosure)) return false;
+		LocationClosure c = (LocationClosure) obj;
+		return ancestorId==c.ancestorId && descendantId==c.descendantId;
+	}
+
+	@Override
+	public String toString() {
+		return "[LocationClosure:" + ancestorId + ">" + descendantId + ":" + depth + "]";
+	}
+}
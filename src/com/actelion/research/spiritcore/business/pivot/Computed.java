@@ -114,11 +114,11 @@ public enum Computed {
 				if(sel==null) continue;
 				for(TestAttribute att : r.getTest().getOutputAttributes()) {
 					if(att.getDataType()!=DataType.NUMBER) continue;
-					Double v1 = r.getResultValue(att).getDoubleValue();
-					if(v1==null) continue;
+					double v1 = r.getResultValue(att).getNumValue();
+					if(Double.isNaN(v1)) continue;
 
-					Double v2 = sel.getResultValue(att).getDoubleValue();
-					if(v2==null) continue;
+					double v2 = sel.getResultValue(att).getNumValue();
+					if(Double.isNaN(v2)) continue;
 					double val = (v1 - v2) / (r.getPhase().getDays() - sel.getPhase().getDays());
 					val = (int)(Math.round(val*100))/100.0; //Round to 2 decimals
 					r.getResultValue(att).setCalculatedValue(val);
@@ -148,12 +148,12 @@ public enum Computed {
 
 				for(TestAttribute att : r.getTest().getOutputAttributes()) {
 					if(att.getDataType()!=DataType.NUMBER) continue;
-					Double v1 = r.getResultValue(att).getDoubleValue();
-					if(v1==null) continue;
+					double v1 = r.getResultValue(att).getNumValue();
+					if(Double.isNaN(v1)) continue;
 
 
-					Double v2 = sel.getResultValue(att).getDoubleValue();
-					if(v2==null) continue;
+					double v2 = sel.getResultValue(att).getNumValue();
+					if(Double.isNaN(v2)) continue;
 					Double val;
 					if(/*this==INC_REF_PERCENT ||*/ this==INC_START_PERCENT) {
 						val = v1>0 && v2>0? 100*(v1-v2)/v2: null;
@@ -38,6 +38,7 @@ import com.actelion.research.spiritcore.business.result.Result;
 import com.actelion.research.spiritcore.business.result.ResultValue;
 import com.actelion.research.spiritcore.business.study.Group;
 import com.actelion.research.spiritcore.business.study.Phase;
+import com.actelion.research.spiritcore.util.StatAccumulator;
 import com.actelion.research.util.CompareUtils;
 
 
@@ -152,63 +153,62 @@ public class PivotCell implements Comparable<PivotCell> {
 			aggregated = sb.toString();
 		} else if(values.size()==1) {
 			//One value-> don't compute but display
-			aggregated = values.get(0).getDoubleValue()==null? values.get(0).getValue(): values.get(0).getDoubleValue();
+			Double v = values.get(0).getDoubleValue();
+			aggregated = v==null? values.get(0).getValue(): v;
 		} else {
 			//Calculate Display1, Display2
 			boolean hasNonDoubles = false;
-			List<Double> doubles = new ArrayList<>();
-			List<String> texts = new ArrayList<>();
+			StatAccumulator doubles = new StatAccumulator();
+			String text = null;
+			boolean allTextsEqual = true;
 			for (ResultValue value: values) {
 				if(value.getAttribute().getDataType()==DataType.NUMBER || value.getAttribute().getDataType()==DataType.FORMULA) {
-					Double v = value.getDoubleValue();
-					if(v!=null) doubles.add(v);
+					double v = value.getNumValue();
+					if(!Double.isNaN(v)) doubles.add(v);
 					else if(value.getValue()!=null) hasNonDoubles = true;
 				} else {
 					String t = value.getValue();
-					if(t!=null) texts.add(t);
+					if(t!=null) {
+						if(text==null) text = t;
+						else if(!text.equals(t)) allTextsEqual = false;
+					}
 				}
 			}
 
-			if(texts.size()>0) {
-				if(doubles.size()>0) {
+			if(text!=null) {
+				if(doubles.getCount()>0) {
 					//If we have a mix of doubles and texts, there is nothing to display
 					aggregated = "?";
 				} else {
 					//If we have texts, display it, if all values are the same
-					boolean allEquals = true;
-					for (int i = 1; i < texts.size(); i++) {
-						if(!texts.get(i).equals(texts.get(0))) {
-							allEquals = false; break;
-						}
-					}
-					if(allEquals) {
-						aggregated = texts.get(0);
+					if(allTextsEqual) {
+						aggregated = text;
 					} else {
 						aggregated = "?";
 					}
 
 				}
-			} else if(doubles.size()>0) {
+			} else if(doubles.getCount()>0) {
 				if(tpl.getAggregation()==Aggregation.AVERAGE) {
-					aggregated = getAverage(doubles);
+					aggregated = doubles.getMean();
 				} else if(tpl.getAggregation()==Aggregation.MEDIAN) {
-					aggregated = getMedian(doubles);
+					aggregated = doubles.getMedian();
 				} else if(tpl.getAggregation()==Aggregation.GEOMETRIC_MEAN) {
-					aggregated = getGeometricMean(doubles);
+					aggregated = doubles.getGeometricMean();
 				} else if(tpl.getAggregation()==Aggregation.MINIMUM) {
-					aggregated = getMin(doubles);
+					aggregated = doubles.getMin();
 				} else if(tpl.getAggregation()==Aggregation.MAXIMUM) {
-					aggregated = getMax(doubles);
+					aggregated = doubles.getMax();
 				} else if(tpl.getAggregation()==Aggregation.RANGE) {
-					double min = getMin(doubles);
-					double max = getMax(doubles);
+					double min = doubles.getMin();
+					double max = doubles.getMax();
 					if(min<max) {
 						aggregated = min + " - " + max;
 					} else {
 						aggregated = min;
 					}
 				} else if(tpl.getAggregation()==Aggregation.SUM) {
-					aggregated = getSum(doubles);
+					aggregated = doubles.getSum();
 				} else if(hasNonDoubles) {
 					aggregated = "?";
 				} else {
@@ -216,12 +216,12 @@ public class PivotCell implements Comparable<PivotCell> {
 				}
 
 
-				Double s  = getStd(doubles, getAverage(doubles));
-				if(s==null) {
+				double s = doubles.getStandardDeviation();
+				if(Double.isNaN(s)) {
 					std = null;
 					coeff = null;
 				} else {
-					int c = (int) (s / getAverage(doubles) * 100);
+					int c = (int) (s / doubles.getMean() * 100);
 					coeff = c;
 					if(tpl.getDeviation()==Deviation.COEFF_VAR) {
 						std = (double) c;
@@ -238,13 +238,11 @@ public class PivotCell implements Comparable<PivotCell> {
 
 		//Calculate ComputedValue
 		if(tpl.getComputed()!=null) {
-			List<Double> doubles = new ArrayList<>();
+			StatAccumulator computed = new StatAccumulator();
 			for (ResultValue value: values) {
-				Double v = value.getCalculatedValue();
-				if(v!=null) doubles.add(v);
+				computed.add(value.getCalculatedValue());
 			}
-
-			calculatedValue = getAverage(doubles);
+			calculatedValue = computed.getCount()==0? null: computed.getMean();
 		} else {
 			calculatedValue = null;
 		}
@@ -405,82 +403,6 @@ public class PivotCell implements Comparable<PivotCell> {
 		return table;
 	}
 
-	private static final Double getMedian(List<Double> doubles) {
-		if(doubles.size()==0) return null;
-		Collections.sort(doubles);
-		Double median;
-		if(doubles.size()%2==0) {
-			median = (doubles.get(doubles.size()/2-1) + doubles.get(doubles.size()/2)) / 2;
-		} else {
-			median = doubles.get(doubles.size()/2);
-		}
-		return median;
-	}
-
-	private static final Double getMin(List<Double> doubles) {
-		if(doubles.size()==0) return null;
-		double min = Double.MAX_VALUE;
-		for (Double d : doubles) {
-			if(d<min) min = d;
-		}
-		return min;
-	}
-	private static final Double getMax(List<Double> doubles) {
-		if(doubles.size()==0) return null;
-		double max = -Double.MAX_VALUE;
-		for (Double d : doubles) {
-			if(d>max) max = d;
-		}
-		return max;
-	}
-
-	private static final Double getSum(List<Double> doubles) {
-		if(doubles.size()==0) return null;
-		double sum = 0;
-		for (Double d : doubles) {
-			sum+=d;
-		}
-		return sum;
-	}
-
-	private static final Double getAverage(List<Double> doubles) {
-		if(doubles.size()==0) return null;
-		double avg = 0;
-		for (Double d : doubles) {
-			avg += d;
-		}
-		avg/=doubles.size();
-		return avg;
-	}
-	private static final Double getGeometricMean(List<Double> doubles) {
-		if(doubles.size()==0) return null;
-		double product = 1;
-		boolean hasNeg = false;
-		for (Double d : doubles) {
-			product *=d ;
-			if(d<0) hasNeg = true;
-		}
-		if(hasNeg) {
-			return Double.NaN;
-		} else {
-			return Math.pow(product, 1.0/doubles.size());
-		}
-	}
-
-	private static Double getStd(List<Double> doubles, Double average) {
-		Double stdAverage;
-
-		if(average==null || doubles.size()<=1) {
-			stdAverage = null;
-		} else {
-			double s = 0;
-			for (Double d : doubles) s += (d-average) * (d-average);
-			s = Math.sqrt(s / (doubles.size()-1));
-			stdAverage = s;
-		}
-		return stdAverage;
-	}
-
 	public Margins getMargins() {
 		return margin;
 	}
@@ -493,4 +415,14 @@ public class PivotCell implements Comparable<PivotCell> {
 		values.add(value);
 	}
 
+	/**
+	 * Replaces the values of this cell, and resets the aggregated values
+	 * @param values
+	 */
+	protected void setValues(List<ResultValue> values) {
+		this.values = new ArrayList<>(values);
+		this.nestedMap = null;
+		this.calculated = false;
+	}
+
 }
@@ -22,12 +22,17 @@
 package com.actelion.research.spiritcore.business.pivot;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.pivot.PivotTemplate.Where;
@@ -36,7 +41,9 @@ import com.actelion.research.spiritcore.business.result.ResultValue;
 import com.actelion.research.spiritcore.business.result.Test;
 import com.actelion.research.spiritcore.business.result.TestAttribute;
 import com.actelion.research.spiritcore.business.result.TestAttribute.OutputType;
+import com.actelion.research.spiritcore.services.dao.SpiritMetrics;
 import com.actelion.research.spiritcore.util.MiscUtils;
+import com.actelion.research.util.CompareUtils;
 
 /**
  * The PivotDataTable class is responsible for pivot each datapoint, according to the given template.
@@ -46,19 +53,79 @@ import com.actelion.research.spiritcore.util.MiscUtils;
  *
  * This result has 3 datapoints: Output1, Output2, Output3
  *
- *
- *
+ * The table can be updated incrementally (see update), in which case only the rows, columns and cells of the modified tests and samples are recalculated,
+ * and the listeners are notified of the modified rows and columns.
  *
  * @author freyssj
  *
  */
 public class PivotDataTable {
+
+	/**
+	 * Listener notified after an incremental update of the table
+	 */
+	public static interface PivotDataTableListener {
+		public void pivotChanged(PivotChange change);
+	}
+
+	/**
+	 * Describes the rows and columns modified by an incremental update
+	 */
+	public static class PivotChange {
+		private final List<PivotRow> addedRows = new ArrayList<>();
+		private final List<PivotRow> removedRows = new ArrayList<>();
+		private final List<PivotRow> updatedRows = new ArrayList<>();
+		private final List<PivotColumn> addedColumns = new ArrayList<>();
+		private final List<PivotColumn> removedColumns = new ArrayList<>();
+
+		public List<PivotRow> getAddedRows() {
+			return addedRows;
+		}
+		public List<PivotRow> getRemovedRows() {
+			return removedRows;
+		}
+		public List<PivotRow> getUpdatedRows() {
+			return updatedRows;
+		}
+		public List<PivotColumn> getAddedColumns() {
+			return addedColumns;
+		}
+		public List<PivotColumn> getRemovedColumns() {
+			return removedColumns;
+		}
+		/**
+		 * @return true if columns were added or removed
+		 */
+		public boolean isStructureChanged() {
+			return addedColumns.size()>0 || removedColumns.size()>0;
+		}
+	}
+
 	private PivotTemplate template;
 	//	private Set<TestAttribute> skippedAttributes;
 	private List<PivotRow> pivotRows = new ArrayList<>();
 	private List<PivotColumn> pivotColumns = new ArrayList<>();
 	private List<Result> results;
 
+	//State kept for the incremental updates
+	private boolean hasPhaseInColumn;
+	private boolean hasAttributeInColumn;
+	/** Test and sample of each result, when it was added to the table */
+	private final Map<Result, IndexedResult> result2index = new HashMap<>();
+	/** Results per test and sample, sorted */
+	private final Map<Test, Map<Biosample, List<Result>>> groups = new HashMap<>();
+	private final Map<Biosample, Set<Test>> sample2tests = new HashMap<>();
+	/** Number of results having a non-empty output, per test and per sample */
+	private final Map<Test, Integer> nonEmptyTests = new HashMap<>();
+	private final Map<Biosample, Integer> nonEmptySamples = new HashMap<>();
+	/** Values shown per test and sample */
+	private final Map<Test, Map<Biosample, List<ResolvedValue>>> contributions = new HashMap<>();
+	/** Values shown per row and column, sorted like in a new table */
+	private Partial merged = new Partial();
+	private final Map<PivotKey, PivotRow> key2pivotRow = new HashMap<>();
+	private final Map<PivotKey, PivotColumn> key2pivotColumn = new HashMap<>();
+	private final List<PivotDataTableListener> listeners = new ArrayList<>();
+
 	/**
 	 * Creates and populate a PivotTable from the given results and using the given template
 	 * @param results
@@ -68,8 +135,11 @@ public class PivotDataTable {
 	public PivotDataTable(List<Result> results, PivotTemplate template) {
 		if(template==null) throw new IllegalArgumentException("Template cannot be null");
 
+		SpiritMetrics metrics = SpiritMetrics.getInstance();
+		long time = System.nanoTime();
 		if(template.getComputed()!=null) {
 			template.getComputed().calculateComputedValues(results);
+			time = metrics.lap("PivotDataTable.computed", time);
 		}
 
 		this.template = template;
@@ -83,7 +153,7 @@ public class PivotDataTable {
 		//Make sure results are sorted, to keep nested keys in the appropriate order
 		Collections.sort(results);
 
-		boolean hasPhaseInColumn = false;
+		hasPhaseInColumn = false;
 		for(PivotItem item: template.getPivotItems(Where.ASCOL)) {
 			if(item==PivotItemFactory.STUDY_PHASE_DATE || item==PivotItemFactory.STUDY_PHASE_DAYS) {
 				hasPhaseInColumn = true; //caution: don't sort by Phase if we specifies reference or labels!!!
@@ -91,7 +161,7 @@ public class PivotDataTable {
 			}
 		}
 
-		boolean hasAttributeInColumn = false;
+		hasAttributeInColumn = false;
 		for(PivotItem item: template.getPivotItems(Where.ASCOL)) {
 			if(item==PivotItemFactory.RESULT_OUTPUT) {
 				hasAttributeInColumn = true;
@@ -99,99 +169,614 @@ public class PivotDataTable {
 			}
 		}
 
+		for (Result r : results) {
+			index(r);
+		}
+		time = metrics.lap("PivotDataTable.prepare", time);
 
-		Map<String, PivotRow> key2pivotRow = new HashMap<>();
-		Map<String, PivotColumn> key2pivotColumn = new HashMap<>();
-		Set<Test> skippableTests = new HashSet<>();
-		Set<Biosample> skippableSamples = new HashSet<>();
-		Set<String> skippable = new HashSet<>();
+		//
+		//Put each result in the row and column defined by the template.
+		//The keys are resolved on the calling thread, as the pivot items navigate the lazy associations of the results.
+		//The resolved values are then grouped per test, and merged in the order of the tests (on the fork/join pool if the template allows it)
 		Map<Test, List<Result>> mapTest = Result.mapTest(results);
+		List<PivotItem> rowItems = template.getPivotItems(Where.ASROW);
+		List<PivotItem> colItems = template.getPivotItems(Where.ASCOL);
+		List<Test> tests = new ArrayList<>(mapTest.keySet());
+		Collections.sort(tests, PivotDataTable::compareTests);
+		List<List<ResolvedValue>> resolved = new ArrayList<>();
+		for (Test test : tests) {
+			resolved.add(resolve(test, mapTest.get(test), rowItems, colItems));
+		}
+		time = metrics.lap("PivotDataTable.resolve", time);
+
+		boolean parallel = template.isParallel() && tests.size()>1;
+		List<Partial> partials = (parallel? resolved.parallelStream(): resolved.stream())
+				.map(PivotDataTable::createPartial)
+				.collect(Collectors.toList());
+		for (int i = 0; i < tests.size(); i++) {
+			contributions.put(tests.get(i), partials.get(i).groups);
+		}
+		time = metrics.lap("PivotDataTable.partials", time);
+
+		merged = (parallel? partials.parallelStream(): partials.stream())
+				.collect(Partial::new, Partial::addPartial, Partial::addPartial);
+		for(Map.Entry<PivotKey, Map<PivotKey, List<ResolvedValue>>> e: merged.cells.entrySet()) {
+			//Create the row
+			PivotRow row = createRow(merged.rowRepresentatives.get(e.getKey()).rv);
+			key2pivotRow.put(e.getKey(), row);
+
+			for(Map.Entry<PivotKey, List<ResolvedValue>> e2: e.getValue().entrySet()) {
+				//Create the column if needed
+				PivotColumn column = key2pivotColumn.get(e2.getKey());
+				if(column==null) {
+					column = createColumn(merged.colRepresentatives.get(e2.getKey()).rv);
+					key2pivotColumn.put(e2.getKey(), column);
+				}
+
+				//Add the values at the cell defined by the pivotrow and pivot column
+				for (ResolvedValue v : e2.getValue()) {
+					row.addValue(column, v.rv);
+				}
+			}
+		}
+
+
+		time = metrics.lap("PivotDataTable.merge", time);
+
+		pivotRows.addAll(key2pivotRow.values());
+		pivotColumns.addAll(key2pivotColumn.values());
+
+		Collections.sort(pivotColumns);
+		Collections.sort(pivotRows);
+		metrics.lap("PivotDataTable.sort", time);
+	}
+
+	/**
+	 * Sorts the tests like the results, and then by id
+	 */
+	private static int compareTests(Test t1, Test t2) {
+		int c = CompareUtils.compare(t1, t2);
+		return c!=0? c: Integer.compare(t1.getId(), t2.getId());
+	}
+
+	private PivotRow createRow(ResultValue rv) {
+		return new PivotRow(this, rv, template.getRowKey(rv));
+	}
+
+	private PivotColumn createColumn(ResultValue rv) {
+		return new PivotColumn(this,
+				hasPhaseInColumn? rv.getResult().getInheritedPhase(): null,
+						hasAttributeInColumn? rv.getAttribute(): null,
+								template.getColKey(rv));
+	}
+
+	/**
+	 * Test and sample of a result, and whether it has at least one non-empty output, as they were when the result was added to the table
+	 */
+	private static class IndexedResult {
+		private final Test test;
+		private final Biosample biosample;
+		private final boolean nonEmpty;
+
+		public IndexedResult(Test test, Biosample biosample, boolean nonEmpty) {
+			this.test = test;
+			this.biosample = biosample;
+			this.nonEmpty = nonEmpty;
+		}
+	}
+
+	/**
+	 * Adds the result to the groups and to the counts of non-empty outputs.
+	 * The tests and the samples having at least one non-empty output are skippable: their empty outputs can be skipped, as long as the result is shown
+	 */
+	private IndexedResult index(Result r) {
+		boolean nonEmpty = false;
+		for(ResultValue rv: r.getResultValues()) {
+			if(rv.getAttribute().getOutputType()!=OutputType.OUTPUT) continue;
+			if(rv.getValue()!=null && rv.getValue().length()>0) {
+				nonEmpty = true;
+				break;
+			}
+		}
+		IndexedResult idx = new IndexedResult(r.getTest(), r.getBiosample(), nonEmpty);
+		result2index.put(r, idx);
+
+		Map<Biosample, List<Result>> sample2results = groups.get(idx.test);
+		if(sample2results==null) {
+			groups.put(idx.test, sample2results = new HashMap<>());
+		}
+		List<Result> group = sample2results.get(idx.biosample);
+		if(group==null) {
+			sample2results.put(idx.biosample, group = new ArrayList<>());
+		}
+		int index = Collections.binarySearch(group, r);
+		group.add(index<0? -index-1: index, r);
+
+		Set<Test> tests = sample2tests.get(idx.biosample);
+		if(tests==null) {
+			sample2tests.put(idx.biosample, tests = new HashSet<>());
+		}
+		tests.add(idx.test);
+
+		if(nonEmpty) {
+			nonEmptyTests.merge(idx.test, 1, Integer::sum);
+			nonEmptySamples.merge(idx.biosample, 1, Integer::sum);
+		}
+		return idx;
+	}
+
+	/**
+	 * Removes the result from the groups and from the counts of non-empty outputs
+	 * @return the test and sample of the result, when it was added
+	 */
+	private IndexedResult unindex(Result r) {
+		IndexedResult idx = result2index.remove(r);
+		if(idx==null) return null;
+
+		Map<Biosample, List<Result>> sample2results = groups.get(idx.test);
+		List<Result> group = sample2results.get(idx.biosample);
+		group.remove(r);
+		if(group.isEmpty()) {
+			sample2results.remove(idx.biosample);
+			if(sample2results.isEmpty()) groups.remove(idx.test);
+			Set<Test> tests = sample2tests.get(idx.biosample);
+			tests.remove(idx.test);
+			if(tests.isEmpty()) sample2tests.remove(idx.biosample);
+		}
+
+		if(idx.nonEmpty) {
+			nonEmptyTests.merge(idx.test, -1, (a, b) -> a+b==0? null: a+b);
+			nonEmptySamples.merge(idx.biosample, -1, (a, b) -> a+b==0? null: a+b);
+		}
+		return idx;
+	}
+
+	private static <K, V> void add(Map<K, Set<V>> map, K key, V value) {
+		Set<V> set = map.get(key);
+		if(set==null) {
+			map.put(key, set = new LinkedHashSet<>());
+		}
+		set.add(value);
+	}
+
+	/**
+	 * Updates the table with the given modifications, without recalculating the whole table:
+	 * only the values of the modified tests and samples are recalculated, and only the affected rows, columns and cells are updated.
+	 * The listeners are then notified.
+	 * The result is the same as creating a new PivotDataTable on the updated results.
+	 *
+	 * @param added - the new results
+	 * @param removed - the results to be removed
+	 * @param changed - the modified results (replacing the results having the same id)
+	 * @return the modified rows and columns
+	 */
+	public PivotChange update(Collection<Result> added, Collection<Result> removed, Collection<Result> changed) {
+		PivotChange change = new PivotChange();
+		if(results==null) return change;
+
+		//Find the results to be removed and added (a changed result is removed and then added back)
+		Set<Result> leaving = new HashSet<>();
+		List<Result> entering = new ArrayList<>();
+		if(removed!=null) {
+			for (Result r : removed) {
+				if(result2index.containsKey(r)) leaving.add(r);
+			}
+		}
+		if(changed!=null) {
+			for (Result r : changed) {
+				if(!result2index.containsKey(r)) continue;
+				leaving.add(r);
+				entering.add(r);
+			}
+		}
+		if(added!=null) {
+			for (Result r : added) {
+				if(result2index.containsKey(r)) leaving.add(r);
+				entering.add(r);
+			}
+		}
+		if(leaving.isEmpty() && entering.isEmpty()) return change;
+
+		//Update the groups and the counts, and find the groups (test, sample) to be recalculated
+		Set<Test> oldNonEmptyTests = new HashSet<>(nonEmptyTests.keySet());
+		Set<Biosample> oldNonEmptySamples = new HashSet<>(nonEmptySamples.keySet());
+		Map<Test, Set<Biosample>> affectedGroups = new HashMap<>();
+		for (Result r : leaving) {
+			IndexedResult idx = unindex(r);
+			add(affectedGroups, idx.test, idx.biosample);
+		}
+		for (Result r : entering) {
+			IndexedResult idx = index(r);
+			add(affectedGroups, idx.test, idx.biosample);
+		}
+
+		//Update the sorted list of results, by merging the sorted new results
+		Collections.sort(entering);
+		List<Result> newResults = new ArrayList<>(results.size() + entering.size());
+		int i = 0;
+		for (Result r : results) {
+			if(leaving.contains(r)) continue;
+			while(i<entering.size() && entering.get(i).compareTo(r)<0) {
+				newResults.add(entering.get(i++));
+			}
+			newResults.add(r);
+		}
+		newResults.addAll(entering.subList(i, entering.size()));
+		results.clear();
+		results.addAll(newResults);
 
-		for(Map.Entry<Test, List<Result>> e: mapTest.entrySet()) {
+		//Update the computed values of the affected groups (the computed values only depend on the results of the same test and sample)
+		if(template.getComputed()!=null) {
+			List<Result> related = new ArrayList<>();
+			for (Map.Entry<Test, Set<Biosample>> e : affectedGroups.entrySet()) {
+				Map<Biosample, List<Result>> sample2results = groups.get(e.getKey());
+				if(sample2results==null) continue;
+				for (Biosample b : e.getValue()) {
+					List<Result> group = sample2results.get(b);
+					if(group!=null) related.addAll(group);
+				}
+			}
+			Collections.sort(related);
+			template.getComputed().calculateComputedValues(related);
+		}
+
+		//If a test or a sample has now (or no more) non-empty outputs, the empty values of the test or sample have to be reconsidered
+		Set<Test> changedTests = new HashSet<>(oldNonEmptyTests);
+		changedTests.removeAll(nonEmptyTests.keySet());
+		for (Test t : nonEmptyTests.keySet()) {
+			if(!oldNonEmptyTests.contains(t)) changedTests.add(t);
+		}
+		for (Test t : changedTests) {
+			Map<Biosample, List<Result>> sample2results = groups.get(t);
+			if(sample2results==null) continue;
+			for (Biosample b : sample2results.keySet()) {
+				add(affectedGroups, t, b);
+			}
+		}
+		Set<Biosample> changedSamples = new HashSet<>(oldNonEmptySamples);
+		changedSamples.removeAll(nonEmptySamples.keySet());
+		for (Biosample b : nonEmptySamples.keySet()) {
+			if(!oldNonEmptySamples.contains(b)) changedSamples.add(b);
+		}
+		for (Biosample b : changedSamples) {
+			Set<Test> tests = sample2tests.get(b);
+			if(tests==null) continue;
+			for (Test t : tests) {
+				add(affectedGroups, t, b);
+			}
+		}
+
+		//Recalculate the values of the affected groups, and update the affected cells
+		List<PivotItem> rowItems = template.getPivotItems(Where.ASROW);
+		List<PivotItem> colItems = template.getPivotItems(Where.ASCOL);
+		Map<PivotKey, Set<PivotKey>> affectedCells = new LinkedHashMap<>();
+		Set<PivotKey> affectedColumns = new LinkedHashSet<>();
+		for (Map.Entry<Test, Set<Biosample>> e : affectedGroups.entrySet()) {
 			Test test = e.getKey();
-			//Each result needs to be displayed,
-			//but we canSkip empty output when there exists an other non-empty output
-			canSkip: for(TestAttribute att: test.getAttributes()) {
-				if(att.getOutputType()!=OutputType.OUTPUT) continue;
-				for (Result r : results) {
-					if(!r.getTest().equals(test)) continue;
-					ResultValue value = r.getResultValue(att);
-					if(value.getValue()!=null && value.getValue().length()>0) {
-						skippableTests.add(test);
-						break canSkip;
+			Map<Biosample, List<ResolvedValue>> testContributions = contributions.get(test);
+			if(testContributions==null) {
+				contributions.put(test, testContributions = new HashMap<>());
+			}
+			Map<Biosample, List<Result>> sample2results = groups.get(test);
+			for (Biosample b : e.getValue()) {
+				List<Result> group = sample2results==null? null: sample2results.get(b);
+				List<ResolvedValue> oldValues = testContributions.remove(b);
+				List<ResolvedValue> newValues = group==null? null: createPartial(resolve(test, group, rowItems, colItems)).groups.get(b);
+				if(newValues!=null) {
+					testContributions.put(b, newValues);
+				}
+
+				if(oldValues!=null) {
+					Set<ResolvedValue> toRemove = Collections.newSetFromMap(new IdentityHashMap<>());
+					toRemove.addAll(oldValues);
+					for (ResolvedValue v : oldValues) {
+						if(merged.remove(v.rowKey, v.colKey, toRemove)) {
+							add(affectedCells, v.rowKey, v.colKey);
+							affectedColumns.add(v.colKey);
+						}
+					}
+				}
+				if(newValues!=null) {
+					for (ResolvedValue v : newValues) {
+						merged.insert(v);
+						add(affectedCells, v.rowKey, v.colKey);
+						affectedColumns.add(v.colKey);
 					}
 				}
 			}
+			if(testContributions.isEmpty()) contributions.remove(test);
 		}
 
-		Map<Biosample, List<Result>> map = Result.mapBiosample(results);
-		for(Map.Entry<Biosample, List<Result>> e: map.entrySet()) {
-			Biosample b = e.getKey();
-			canSkip: for (Result r : e.getValue()) {
-				for(ResultValue rv: r.getResultValues()) {
-					if(rv.getAttribute().getOutputType()!=OutputType.OUTPUT) continue;
-					if(rv.getValue()!=null && rv.getValue().length()>0) {
-						skippableSamples.add(b);
-						break canSkip;
+		//Update the columns
+		Map<PivotKey, PivotColumn> removedColumns = new HashMap<>();
+		for (PivotKey colKey : affectedColumns) {
+			ResolvedValue representative = merged.updateColRepresentative(colKey);
+			PivotColumn column = key2pivotColumn.get(colKey);
+			if(representative==null) {
+				if(column!=null) {
+					key2pivotColumn.remove(colKey);
+					removedColumns.put(colKey, column);
+					change.removedColumns.add(column);
+				}
+			} else if(column==null) {
+				column = createColumn(representative.rv);
+				key2pivotColumn.put(colKey, column);
+				change.addedColumns.add(column);
+			} else {
+				//The column is recreated if its sort order is changed by the new representative
+				PivotColumn newColumn = createColumn(representative.rv);
+				if(newColumn.compareTo(column)!=0) {
+					key2pivotColumn.put(colKey, newColumn);
+					change.removedColumns.add(column);
+					change.addedColumns.add(newColumn);
+				}
+			}
+		}
+
+		//Update the rows and their cells
+		Set<PivotRow> movedRows = new LinkedHashSet<>();
+		for (Map.Entry<PivotKey, Set<PivotKey>> e : affectedCells.entrySet()) {
+			PivotKey rowKey = e.getKey();
+			ResolvedValue representative = merged.updateRowRepresentative(rowKey);
+			PivotRow row = key2pivotRow.get(rowKey);
+			if(representative==null) {
+				if(row!=null) {
+					key2pivotRow.remove(rowKey);
+					change.removedRows.add(row);
+				}
+				continue;
+			} else if(row==null) {
+				row = createRow(representative.rv);
+				key2pivotRow.put(rowKey, row);
+				change.addedRows.add(row);
+			} else {
+				if(row.setRepresentative(representative.rv)) {
+					movedRows.add(row);
+				}
+				change.updatedRows.add(row);
+			}
+
+			Map<PivotKey, List<ResolvedValue>> rowCells = merged.cells.get(rowKey);
+			for (PivotKey colKey : e.getValue()) {
+				List<ResolvedValue> cell = rowCells.get(colKey);
+				List<ResultValue> values = new ArrayList<>();
+				if(cell!=null) {
+					for (ResolvedValue v : cell) {
+						values.add(v.rv);
 					}
 				}
+				PivotColumn column = key2pivotColumn.get(colKey);
+				if(column==null) column = removedColumns.get(colKey);
+				if(column!=null) {
+					row.setValues(column, values);
+				}
 			}
 		}
 
-		//
-		//Put each result in the row and column defined by the template
-		for(Map.Entry<Test, List<Result>> e: mapTest.entrySet()) {
-			Test test = e.getKey();
+		//Update the sorted lists
+		//The rows, whose sort order is changed by their new representative, are removed and reinserted
+		Set<PivotRow> toRemove = new HashSet<>(change.removedRows);
+		toRemove.addAll(movedRows);
+		pivotRows.removeAll(toRemove);
+		pivotColumns.removeAll(new HashSet<>(change.removedColumns));
+		List<PivotRow> toInsert = new ArrayList<>(change.addedRows);
+		toInsert.addAll(movedRows);
+		for (PivotRow row : toInsert) {
+			int index = Collections.binarySearch(pivotRows, row);
+			pivotRows.add(index<0? -index-1: index, row);
+		}
+		for (PivotColumn column : change.addedColumns) {
+			int index = Collections.binarySearch(pivotColumns, column);
+			pivotColumns.add(index<0? -index-1: index, column);
+		}
 
-			//Put each ResulValue in the appropriate cell
-			for(TestAttribute att: test.getAttributes()) {
-				if(att.getOutputType()!=OutputType.OUTPUT) continue;
+		for (PivotDataTableListener listener : listeners) {
+			listener.pivotChanged(change);
+		}
+		return change;
+	}
 
-				for (Result r : e.getValue()) {
-					ResultValue rv = r.getResultValue(att);
+	public void addPivotDataTableListener(PivotDataTableListener listener) {
+		listeners.add(listener);
+	}
 
-					//Skip null values, only if there is an other non-null values (so the result is always shown)
-					if(rv.getValue()==null || rv.getValue().length()==0){
-						if(skippableTests.contains(test) && skippableSamples.contains(r.getBiosample()) ) continue;
-						if(skippable.contains(test.getId()+"_"+r.getBiosample().getId())) continue;
-					}
-					skippable.add(test.getId()+"_"+r.getBiosample().getId());
-
-					//Create the row if needed
-					String rowKey = template.getRowKey(rv);
-					PivotRow row = key2pivotRow.get(rowKey);
-					if(row==null) {
-						row = new PivotRow(this, rv, rowKey);
-						key2pivotRow.put(rowKey, row);
-					}
+	public void removePivotDataTableListener(PivotDataTableListener listener) {
+		listeners.remove(listener);
+	}
 
-					//Create the column if needed
-					String colKey = template.getColKey(rv);
-					PivotColumn column = key2pivotColumn.get(colKey);
-					if(column==null) {
-						column = new PivotColumn(this,
-								hasPhaseInColumn? r.getInheritedPhase(): null,
-										hasAttributeInColumn? att: null,
-												colKey);
-						key2pivotColumn.put(colKey, column);
-					}
+	/**
+	 * Output value of a result, with the row and column keys resolved by the template
+	 */
+	private static class ResolvedValue {
+		private final ResultValue rv;
+		private final Result result;
+		private final Test test;
+		private final int attributeIndex;
+		private final Biosample biosample;
+		private final boolean empty;
+		private final PivotKey rowKey;
+		private final PivotKey colKey;
+
+		public ResolvedValue(ResultValue rv, Result result, Test test, int attributeIndex, Biosample biosample, PivotKey rowKey, PivotKey colKey) {
+			this.rv = rv;
+			this.result = result;
+			this.test = test;
+			this.attributeIndex = attributeIndex;
+			this.biosample = biosample;
+			this.empty = rv.getValue()==null || rv.getValue().length()==0;
+			this.rowKey = rowKey;
+			this.colKey = colKey;
+		}
+
+		/**
+		 * Order in which the values are added in a new table: by test, attribute and result
+		 */
+		private static int compare(ResolvedValue v1, ResolvedValue v2) {
+			int c = compareTests(v1.test, v2.test);
+			if(c!=0) return c;
+			c = Integer.compare(v1.attributeIndex, v2.attributeIndex);
+			if(c!=0) return c;
+			return v1.result.compareTo(v2.result);
+		}
+	}
 
-					//Add the value at the cell defined by the pivotrow and pivot column
-					row.addValue(column, rv);
+	/**
+	 * Values grouped by row and column keys, before they are merged in the table
+	 */
+	private static class Partial {
+		/** rowKey -> colKey -> values, in the order of insertion */
+		private final Map<PivotKey, Map<PivotKey, List<ResolvedValue>>> cells = new LinkedHashMap<>();
+		/** First value of each row, used to create the PivotRow */
+		private final Map<PivotKey, ResolvedValue> rowRepresentatives = new HashMap<>();
+		/** First value of each column, used to create the PivotColumn */
+		private final Map<PivotKey, ResolvedValue> colRepresentatives = new HashMap<>();
+		/** Values per sample (only used for the partial of one test) */
+		private final Map<Biosample, List<ResolvedValue>> groups = new HashMap<>();
+
+		private void addAll(PivotKey rowKey, PivotKey colKey, List<ResolvedValue> values, ResolvedValue rowRepresentative, ResolvedValue colRepresentative) {
+			Map<PivotKey, List<ResolvedValue>> row = cells.get(rowKey);
+			if(row==null) {
+				cells.put(rowKey, row = new LinkedHashMap<>());
+				rowRepresentatives.put(rowKey, rowRepresentative);
+			}
+			List<ResolvedValue> cell = row.get(colKey);
+			if(cell==null) {
+				row.put(colKey, cell = new ArrayList<>());
+			}
+			if(!colRepresentatives.containsKey(colKey)) {
+				colRepresentatives.put(colKey, colRepresentative);
+			}
+			cell.addAll(values);
+		}
+
+		/**
+		 * Appends the values of the given partial, after the values of this one (the representatives of this one are kept first).
+		 * Appending is associative, so that the partials can be merged in parallel while keeping the sequential output.
+		 */
+		private void addPartial(Partial p) {
+			for(Map.Entry<PivotKey, Map<PivotKey, List<ResolvedValue>>> e: p.cells.entrySet()) {
+				for(Map.Entry<PivotKey, List<ResolvedValue>> e2: e.getValue().entrySet()) {
+					addAll(e.getKey(), e2.getKey(), e2.getValue(), p.rowRepresentatives.get(e.getKey()), p.colRepresentatives.get(e2.getKey()));
 				}
 			}
 		}
 
+		/**
+		 * Inserts the value in its cell, at the position it would have in a new table.
+		 * The representatives are updated by updateRowRepresentative and updateColRepresentative
+		 */
+		private void insert(ResolvedValue v) {
+			Map<PivotKey, List<ResolvedValue>> row = cells.get(v.rowKey);
+			if(row==null) {
+				cells.put(v.rowKey, row = new HashMap<>());
+			}
+			List<ResolvedValue> cell = row.get(v.colKey);
+			if(cell==null) {
+				row.put(v.colKey, cell = new ArrayList<>());
+			}
+			int index = Collections.binarySearch(cell, v, ResolvedValue::compare);
+			cell.add(index<0? -index-1: index, v);
+		}
 
-		pivotRows.addAll(key2pivotRow.values());
-		pivotColumns.addAll(key2pivotColumn.values());
+		/**
+		 * Removes the given values from the cell
+		 * @return true if the cell was found
+		 */
+		private boolean remove(PivotKey rowKey, PivotKey colKey, Set<ResolvedValue> values) {
+			Map<PivotKey, List<ResolvedValue>> row = cells.get(rowKey);
+			List<ResolvedValue> cell = row==null? null: row.get(colKey);
+			if(cell==null) return false;
+			cell.removeIf(values::contains);
+			if(cell.isEmpty()) {
+				row.remove(colKey);
+				if(row.isEmpty()) cells.remove(rowKey);
+			}
+			return true;
+		}
 
-		Collections.sort(pivotColumns);
-		Collections.sort(pivotRows);
-	}
+		/**
+		 * Recalculates the representative of the row, ie. its first value in a new table
+		 * @return the representative or null if the row is empty
+		 */
+		private ResolvedValue updateRowRepresentative(PivotKey rowKey) {
+			ResolvedValue representative = null;
+			Map<PivotKey, List<ResolvedValue>> row = cells.get(rowKey);
+			if(row!=null) {
+				for (List<ResolvedValue> cell : row.values()) {
+					if(representative==null || ResolvedValue.compare(cell.get(0), representative)<0) representative = cell.get(0);
+				}
+			}
+			if(representative==null) {
+				rowRepresentatives.remove(rowKey);
+			} else {
+				rowRepresentatives.put(rowKey, representative);
+			}
+			return representative;
+		}
 
+		/**
+		 * Recalculates the representative of the column, ie. its first value in a new table
+		 * @return the representative or null if the column is empty
+		 */
+		private ResolvedValue updateColRepresentative(PivotKey colKey) {
+			ResolvedValue representative = null;
+			for (Map<PivotKey, List<ResolvedValue>> row : cells.values()) {
+				List<ResolvedValue> cell = row.get(colKey);
+				if(cell==null) continue;
+				if(representative==null || ResolvedValue.compare(cell.get(0), representative)<0) representative = cell.get(0);
+			}
+			if(representative==null) {
+				colRepresentatives.remove(colKey);
+			} else {
+				colRepresentatives.put(colKey, representative);
+			}
+			return representative;
+		}
+	}
 
+	/**
+	 * Resolves the row and column keys of the output values of the given results (of the same test).
+	 * This function navigates the results and must be called from the thread of their EntityManager.
+	 * The empty values of skippable tests and samples are already skipped here.
+	 */
+	private List<ResolvedValue> resolve(Test test, List<Result> results, List<PivotItem> rowItems, List<PivotItem> colItems) {
+		List<ResolvedValue> res = new ArrayList<>();
+		boolean skippableTest = nonEmptyTests.containsKey(test);
+		int attributeIndex = 0;
+		for(TestAttribute att: test.getAttributes()) {
+			int i = attributeIndex++;
+			if(att.getOutputType()!=OutputType.OUTPUT) continue;
+
+			for (Result r : results) {
+				ResultValue rv = r.getResultValue(att);
+				Biosample biosample = r.getBiosample();
+				if((rv.getValue()==null || rv.getValue().length()==0) && skippableTest && nonEmptySamples.containsKey(biosample)) continue;
+				res.add(new ResolvedValue(rv, r, test, i, biosample, PivotTemplate.getPivotKey(rowItems, rv), PivotTemplate.getPivotKey(colItems, rv)));
+			}
+		}
+		return res;
+	}
 
+	/**
+	 * Groups the resolved values of one test.
+	 * This function does not navigate the results and does not modify the state of the table, so that it can be called from any thread
+	 */
+	private static Partial createPartial(List<ResolvedValue> values) {
+		Partial partial = new Partial();
+
+		//Put each ResulValue in the appropriate cell
+		for (ResolvedValue v : values) {
+			//Skip null values, only if there is an other non-null values (so the result is always shown)
+			List<ResolvedValue> shown = partial.groups.get(v.biosample);
+			if(v.empty && shown!=null) continue;
+			if(shown==null) {
+				partial.groups.put(v.biosample, shown = new ArrayList<>());
+			}
+			shown.add(v);
+			partial.addAll(v.rowKey, v.colKey, Collections.singletonList(v), v, v);
+		}
+		return partial;
+	}
 
 	public List<Result> getResults() {
 		return results;
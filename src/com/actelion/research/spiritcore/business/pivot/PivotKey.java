@@ -0,0 +1,59 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.business.pivot;
+
+import java.util.Arrays;
+
+/**
+ * Composite key, used to group the ResultValues in rows, columns or cells of a PivotDataTable.
+ * The parts (usually the titles of the PivotItems) are compared one by one, so that the key does not have to be concatenated to a String.
+ *
+ * @author Joel Freyss
+ */
+public class PivotKey {
+
+	private final Object[] parts;
+	private final int hash;
+
+	public PivotKey(Object... parts) {
+		this.parts = parts;
+		this.hash = Arrays.hashCode(parts);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this==obj) return true;
+		if(!(obj instanceof PivotKey)) return false;
+		PivotKey k = (PivotKey) obj;
+		return hash==k.hash && Arrays.equals(parts, k.parts);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(parts);
+	}
+}
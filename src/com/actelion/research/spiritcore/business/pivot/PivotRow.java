@@ -22,6 +22,7 @@
 package com.actelion.research.spiritcore.business.pivot;
 
 import java.util.HashMap;
+import java.util.List;
 
 import com.actelion.research.spiritcore.business.pivot.PivotTemplate.Where;
 import com.actelion.research.spiritcore.business.result.ResultValue;
@@ -39,7 +40,7 @@ public class PivotRow implements Comparable<PivotRow> {
 	
 	private final PivotDataTable table;
 //	private final Group group;
-	private final Phase phase;
+	private Phase phase;
 //	private final Test test;
 	private String key;
 	private ResultValue rv;
@@ -51,7 +52,7 @@ public class PivotRow implements Comparable<PivotRow> {
 //		Result r = rv.getResult();
 		this.table = table;
 //		this.group = template.getWhere(PivotItemFactory.STUDY_GROUP)==Where.ASROW? r.getGroup(): null;
-		this.phase = table.getTemplate().getWhere(PivotItemFactory.STUDY_PHASE_DATE)==Where.ASROW? rv.getResult().getInheritedPhase(): null;
+		this.phase = getSortPhase(rv);
 //		this.test = template.getWhere(PivotItemFactory.RESULT_TEST)==Where.ASROW? r.getTest(): null;
 		this.rv = rv;
 		this.key = key;
@@ -66,6 +67,33 @@ public class PivotRow implements Comparable<PivotRow> {
 		getPivotCell(pivotColumn).addValue(value);
 	}
 	
+	/**
+	 * Replaces the values of the cell at the given column (used by the incremental updates)
+	 */
+	protected void setValues(PivotColumn pivotColumn, List<ResultValue> values) {
+		if(values.isEmpty()) {
+			column2cell.remove(pivotColumn);
+		} else {
+			getPivotCell(pivotColumn).setValues(values);
+		}
+	}
+
+	/**
+	 * Changes the representative value (used by the incremental updates)
+	 * @return true if the sort order of the row is changed, in which case the row must be moved in the sorted rows
+	 */
+	protected boolean setRepresentative(ResultValue rv) {
+		Phase newPhase = getSortPhase(rv);
+		boolean moved = CompareUtils.compare(phase, newPhase)!=0;
+		this.rv = rv;
+		this.phase = newPhase;
+		return moved;
+	}
+
+	private Phase getSortPhase(ResultValue rv) {
+		return table.getTemplate().getWhere(PivotItemFactory.STUDY_PHASE_DATE)==Where.ASROW? rv.getResult().getInheritedPhase(): null;
+	}
+
 	public PivotCell getPivotCell(PivotColumn pivotColumn) {
 		PivotCell cell = column2cell.get(pivotColumn);
 		if(cell==null) {
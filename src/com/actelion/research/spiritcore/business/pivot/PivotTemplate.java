@@ -101,6 +101,7 @@ public class PivotTemplate implements Serializable {
 	private Computed computed = Computed.NONE;
 
 	private boolean showN = true;
+	private boolean parallel = false;
 
 	private String name;
 	private String thumbnailName;
@@ -115,6 +116,7 @@ public class PivotTemplate implements Serializable {
 		aggregation = toClone.aggregation;
 		deviation = toClone.deviation;
 		showN = toClone.showN;
+		parallel = toClone.parallel;
 	}
 
 
@@ -252,6 +254,20 @@ public class PivotTemplate implements Serializable {
 		this.showN = showN;
 	}
 
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * If true, the PivotDataTable groups and merges the values of each test on the common fork/join pool.
+	 * The keys are still resolved on the calling thread, so that the lazy associations are fetched in its EntityManager.
+	 * The output is the same as the sequential one.
+	 * @param parallel
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
 	/**
 	 * @return the name
 	 */
@@ -377,6 +393,26 @@ public class PivotTemplate implements Serializable {
 	}
 
 
+	/**
+	 * Returns the composite key of the given value, made of the titles of the items at the given position.
+	 * Two values have the same PivotKey when they have the same getRowKey (resp. getColKey), but the PivotKey is cheaper to build and to hash.
+	 * @param where
+	 * @param rv
+	 * @return
+	 */
+	public PivotKey getPivotKey(Where where, ResultValue rv) {
+		return getPivotKey(getPivotItems(where), rv);
+	}
+
+	static PivotKey getPivotKey(List<PivotItem> items, ResultValue rv) {
+		Object[] titles = new Object[items.size()];
+		for (int i = 0; i < titles.length; i++) {
+			String s = items.get(i).getTitle(rv);
+			titles[i] = s==null? "": s;
+		}
+		return new PivotKey(titles);
+	}
+
 	public String getRowKey(ResultValue rv) {
 		StringBuilder key = new StringBuilder();
 		for(PivotItem item: getPivotItems(Where.ASROW)) {
@@ -401,20 +437,6 @@ public class PivotTemplate implements Serializable {
 		return key.toString();
 	}
 
-	private String getCellKey(ResultValue rv) {
-		StringBuilder key = new StringBuilder();
-		for(PivotItem item: getPivotItems(Where.ASCELL)) {
-			String s = item.getTitle(rv);
-			if(s!=null) key.append(s);
-			key.append("\n");
-		}
-		if(key.length()==0) {
-			key.append(getAggregation().getName()); //Generic name
-		}
-
-		return key.toString();
-	}
-
 	public static boolean hasMoreOrEqualThanNValues(PivotItem discrimator, List<Result> results, int n) {
 		Set<String> values = new HashSet<>();
 		for(Result result: results) {
@@ -444,8 +466,8 @@ public class PivotTemplate implements Serializable {
 	 * @return
 	 */
 	public boolean isDiscriminating(PivotItem item, List<Result> results, double percentage) {
-		Set<String> keysWithout = new HashSet<>();
-		Set<String> keysWith = new HashSet<>();
+		Set<PivotKey> keysWithout = new HashSet<>();
+		Set<PivotKey> keysWith = new HashSet<>();
 
 		int count = 0;
 		for(int i=0; i<results.size(); i++) {
@@ -454,8 +476,8 @@ public class PivotTemplate implements Serializable {
 
 				if(rv.getValue()==null || rv.getValue().length()==0) continue;
 
-				String key = getRowKey(rv) + "|" + getColKey(rv) + "|" + getCellKey(rv);
-				String key2 = key + "|" + item.getTitle(rv);
+				PivotKey key = new PivotKey(getPivotKey(Where.ASROW, rv), getPivotKey(Where.ASCOL, rv), getPivotKey(Where.ASCELL, rv));
+				PivotKey key2 = new PivotKey(key, item.getTitle(rv));
 				if(keysWithout.contains(key)) {
 					if(!keysWith.contains(key2)) {
 						//The item will led to more than 2 new keys, and it is threrefore discriminating
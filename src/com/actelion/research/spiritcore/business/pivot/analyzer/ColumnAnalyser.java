@@ -22,11 +22,10 @@
 package com.actelion.research.spiritcore.business.pivot.analyzer;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
-import com.actelion.research.spiritcore.business.study.Group;
+import com.actelion.research.spiritcore.util.StatAccumulator;
 import com.actelion.research.spiritcore.util.StatUtils;
 
 public class ColumnAnalyser {
@@ -50,7 +49,8 @@ public class ColumnAnalyser {
 	private final int index;
 
 	private List<SimpleResult> simpleResults;
-	private final List<Double> doubles;
+	private final double[] doubles;
+	private final StatAccumulator stats = new StatAccumulator();
 	private int[] norBins;
 	private int[] logBins;
 	private Distribution distribution;
@@ -67,8 +67,11 @@ public class ColumnAnalyser {
 		this.simpleResults = simpleResults;
 
 		//Extract doubles and sort them
-		doubles = SimpleResult.getValues(simpleResults);
-		Collections.sort(this.doubles);
+		doubles = SimpleResult.getDoubles(simpleResults);
+		Arrays.sort(doubles);
+		for (double d : doubles) {
+			stats.add(d);
+		}
 
 		//Calculate Bins and distribution
 		norBins = getBins(false, 5, 10);
@@ -96,17 +99,12 @@ public class ColumnAnalyser {
 			distribution = null;
 		}
 
-		//Calculate KW. Group all values with the same key into a map
-		Map<Group, List<Double>> map = SimpleResult.groupingValuesPerGroup(simpleResults);
-
-		//Transform the map->list<Double> to a List<double[]> to calculate KW
+		//Calculate KW. Group all values with the same key
 		int maxSize = 0;
 		List<double[]> doublesList = new ArrayList<>();
-		for (Group key : map.keySet()) {
-			List<Double> doubles = map.get(key);
-			if(doubles.size()==0) continue;
-			double[] a = new double[doubles.size()];
-			for (int i = 0; i < a.length; i++) a[i] = doubles.get(i);
+		for (List<SimpleResult> list : SimpleResult.groupingPerGroup(simpleResults).values()) {
+			double[] a = SimpleResult.getDoubles(list);
+			if(a.length==0) continue;
 			doublesList.add(a);
 			maxSize = Math.max(maxSize, a.length);
 		}
@@ -131,22 +129,23 @@ public class ColumnAnalyser {
 	}
 
 	public int getN() {
-		return doubles.size();
+		return stats.getCount();
 	}
 
 	public Double getMin() {
-		return doubles.get(0);
+		return stats.getMin();
 	}
 	public Double getMax() {
-		return doubles.get(doubles.size()-1);
+		return stats.getMax();
 	}
 
 	public Double getMed() {
-		return doubles.size()==0? null: doubles.size()%2==0? (doubles.get(doubles.size()/2-1) + doubles.get(doubles.size()/2)) / 2 : doubles.get((doubles.size()-1)/2);
+		//The values are all sorted: use the exact median, not the approximation of the accumulator
+		return StatUtils.getMedianOfSorted(doubles);
 	}
 
 	public Double getAvg() {
-		return StatUtils.getMean(doubles);
+		return stats.getCount()==0? null: stats.getMean();
 	}
 
 	public String getBinsHisto(boolean log) {
@@ -166,7 +165,7 @@ public class ColumnAnalyser {
 	 */
 	private int[] getBins(boolean log, int nBins, int maxRange) {
 		int[] bins = new int[nBins];
-		if(doubles.size()==0) return bins;
+		if(doubles.length==0) return bins;
 		if(Math.abs(getMax()-getMin())<.00001) return bins;
 		double min = getMin();
 		double max = getMax();
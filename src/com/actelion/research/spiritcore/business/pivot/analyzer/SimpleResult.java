@@ -22,6 +22,7 @@
 package com.actelion.research.spiritcore.business.pivot.analyzer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
@@ -153,6 +154,22 @@ public class SimpleResult implements Comparable<SimpleResult> {
 		return values;
 	}
 	
+	/**
+	 * Returns the non-null double values, without boxing
+	 * @param simpleResults
+	 * @return
+	 */
+	public static double[] getDoubles(Collection<SimpleResult> simpleResults) {
+		double[] res = new double[simpleResults.size()];
+		int n = 0;
+		for (SimpleResult r : simpleResults) {
+			if(r.getDoubleValue()!=null) {
+				res[n++] = r.getDoubleValue();
+			}
+		}
+		return n==res.length? res: Arrays.copyOf(res, n);
+	}
+
 	public static Map<Group, List<Double>> groupingValuesPerGroup(Collection<SimpleResult> simpleResults) {
 		Map<Group, List<Double>> map = new HashMap<>();
 		for (SimpleResult r: simpleResults) {
@@ -53,6 +53,20 @@ public class PropertyKey {
 	///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	/** Contains the DB version. This property is required, otherwise it assumed to be the latest */
 	public static final PropertyKey DB_VERSION = new PropertyKey(Tab.INTERNAL, "DB Version", "", "db.version", null);
+	/** Set to true, once the keyword index has been built. Until then, the keyword search does not use the index */
+	public static final PropertyKey DB_KEYWORDINDEX = new PropertyKey(Tab.INTERNAL, "Keyword Index", "", "db.keywordindex", "false", "true,false");
+	/** Set to true, once the normalized metadata values have been built. Until then, the metadata filters use the serialized metadata */
+	public static final PropertyKey DB_METADATAINDEX = new PropertyKey(Tab.INTERNAL, "Metadata Index", "", "db.metadataindex", "false", "true,false");
+	/** Set to true, once the numeric values of the existing results have been filled. Until then, the range filters are not done in SQL */
+	public static final PropertyKey DB_NUMVALUEINDEX = new PropertyKey(Tab.INTERNAL, "Numeric Values", "", "db.numvalueindex", "false", "true,false");
+	/** Set to true, once the study summary has been built. Until then, the counts per study are done on the biosamples and results */
+	public static final PropertyKey DB_STUDYSUMMARY = new PropertyKey(Tab.INTERNAL, "Study Summary", "", "db.studysummary", "false", "true,false");
+	/** Set to true, once the location closure has been built. Until then, the subtree queries walk the location children */
+	public static final PropertyKey DB_LOCATIONCLOSURE = new PropertyKey(Tab.INTERNAL, "Location Closure", "", "db.locationclosure", "false", "true,false");
+	/** Set to true, once the biosample lineage has been built. Until then, the subtrees are loaded one level at a time */
+	public static final PropertyKey DB_BIOSAMPLELINEAGE = new PropertyKey(Tab.INTERNAL, "Biosample Lineage", "", "db.biosamplelineage", "false", "true,false");
+	/** Set to true, once the audit index has been built. Until then, the audit trail is queried in the Envers tables */
+	public static final PropertyKey DB_AUDITINDEX = new PropertyKey(Tab.INTERNAL, "Audit Index", "", "db.auditindex", "false", "true,false");
 
 	///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	// SYSTEM PROPERTIES
@@ -23,12 +23,15 @@ package com.actelion.research.spiritcore.business.result;
 
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 import com.actelion.research.spiritcore.business.Quality;
 import com.actelion.research.spiritcore.business.study.Phase;
+import com.actelion.research.spiritcore.util.Pair;
 import com.actelion.research.spiritcore.util.SetHashMap;
 
 public class ResultQuery implements Serializable {
@@ -54,6 +57,7 @@ public class ResultQuery implements Serializable {
 	private Quality minQuality = null;
 	private Set<Integer> testIds = new TreeSet<>();
 	private SetHashMap<TestAttribute, String> attribute2values = new SetHashMap<>();
+	private Map<TestAttribute, Pair<Double, Double>> attribute2range = new HashMap<>();
 	private Set<String> inputs = new TreeSet<>();
 	private Set<String> biotypes = new TreeSet<>();
 
@@ -120,6 +124,7 @@ public class ResultQuery implements Serializable {
 		this.setQuality(query.minQuality);
 		this.setTestIds(new HashSet<>(query.testIds));
 		this.setAttribute2Values(new SetHashMap<>(query.attribute2values));
+		this.attribute2range = new HashMap<>(query.attribute2range);
 	}
 
 	public String getSampleIds() {
@@ -169,6 +174,24 @@ public class ResultQuery implements Serializable {
 	public SetHashMap<TestAttribute, String> getAttribute2Values() {
 		return attribute2values;
 	}
+
+	/**
+	 * Filters the results, whose numeric value for the given attribute is between min and max (inclusive).
+	 * The filter is removed if both min and max are null
+	 * @param att - a NUMBER or FORMULA attribute
+	 * @param min - the lower bound or null
+	 * @param max - the upper bound or null
+	 */
+	public void setAttributeRange(TestAttribute att, Double min, Double max) {
+		if(min==null && max==null) {
+			attribute2range.remove(att);
+		} else {
+			attribute2range.put(att, new Pair<>(min, max));
+		}
+	}
+	public Map<TestAttribute, Pair<Double, Double>> getAttribute2Range() {
+		return attribute2range;
+	}
 	public Set<String> getInputs() {
 		return inputs;
 	}
@@ -270,6 +293,9 @@ public class ResultQuery implements Serializable {
 				sb.append(" "+id);
 			}
 		}
+		for (Map.Entry<TestAttribute, Pair<Double, Double>> e : attribute2range.entrySet()) {
+			sb.append(" " + e.getKey().getId() + ":" + (e.getValue().getFirst()==null?"": e.getValue().getFirst()) + "-" + (e.getValue().getSecond()==null?"": e.getValue().getSecond()));
+		}
 		if(inputs.size()>0) {
 			for (String s : inputs) {
 				sb.append(" "+s);
@@ -59,7 +59,8 @@ import com.actelion.research.util.CompareUtils;
 @Table(name="assay_result_value", indexes = {
 		@Index(name="value_attribute_idx", columnList = "assay_attribute_id"),
 		@Index(name="value_result_idx", columnList = "assay_result_id"),
-		@Index(name="value_detail_idx", columnList = "document_id")})
+		@Index(name="value_detail_idx", columnList = "document_id"),
+		@Index(name="value_num_idx", columnList = "assay_attribute_id, num_value")})
 @SequenceGenerator(name="assay_result_value_seq", sequenceName="assay_result_value_seq", allocationSize=1)
 @Audited
 public class ResultValue implements Comparable<ResultValue> {
@@ -74,6 +75,12 @@ public class ResultValue implements Comparable<ResultValue> {
 	@Column(name="text_value")
 	private String value = "";
 
+	/**
+	 * The parsed value of NUMBER/FORMULA attributes, set by setValue (null if the value is not numeric)
+	 */
+	@Column(name="num_value", nullable=true)
+	private Double numValue;
+
 	@ManyToOne(cascade={}, fetch=FetchType.LAZY, optional=false)
 	@JoinColumn(name="assay_attribute_id", nullable=false)
 	@Audited(targetAuditMode = RelationTargetAuditMode.NOT_AUDITED)
@@ -102,11 +109,13 @@ public class ResultValue implements Comparable<ResultValue> {
 		this.result = r;
 		this.attribute = att;
 		this.value = value;
+		this.numValue = parseNumValue();
 	}
 
 
 	public void setAttribute(TestAttribute attribute) {
 		this.attribute = attribute;
+		this.numValue = parseNumValue();
 	}
 
 	public TestAttribute getAttribute() {
@@ -141,30 +150,66 @@ public class ResultValue implements Comparable<ResultValue> {
 		} else {
 			this.value = value==null? null: value.trim();
 		}
+		this.numValue = parseNumValue();
 	}
 
+	/**
+	 * Sets the value and its already parsed numeric value, without parsing it again (not for LARGE attributes)
+	 * @param value
+	 * @param numValue
+	 */
+	public void setValue(String value, Double numValue) {
+		assert getAttribute().getDataType()!=DataType.LARGE;
+		this.value = value;
+		this.numValue = isNumeric()? numValue: null;
+	}
+
+	/**
+	 * Returns the numeric value of NUMBER/FORMULA attributes, or null if the value is not numeric.
+	 * The value is the one persisted in num_value. It is only parsed, if the column has not been filled yet.
+	 * @return
+	 */
 	public Double getDoubleValue() {
-		//For numeric value, add the double value
-		if(attribute.getDataType()==DataType.NUMBER || attribute.getDataType()==DataType.FORMULA) {
-			if(this.value==null || this.value.length()==0) {
-				return null;
-			} else {
-				try {
-					int offset = 0;
-					while(offset<this.value.length() && "<>= ".indexOf(this.value.charAt(offset))>=0) {
-						offset++;
-					}
-					int index2 = this.value.length()-1;
-					while(index2>=offset && "% ".indexOf(this.value.charAt(index2))>=0) {
-						index2--;
-					}
-
-					return Double.parseDouble(this.value.substring(offset, index2+1));
-				} catch (NumberFormatException e) {
-					return null;
-				}
+		if(!isNumeric()) return null;
+		return numValue!=null? numValue: parseDouble(value);
+	}
+
+	/**
+	 * Same as getDoubleValue, without boxing: returns Double.NaN if the value is not numeric
+	 * @return
+	 */
+	public double getNumValue() {
+		Double v = getDoubleValue();
+		return v==null? Double.NaN: v;
+	}
+
+	private boolean isNumeric() {
+		return attribute!=null && (attribute.getDataType()==DataType.NUMBER || attribute.getDataType()==DataType.FORMULA);
+	}
+
+	private Double parseNumValue() {
+		return isNumeric()? parseDouble(value): null;
+	}
+
+	/**
+	 * Parses a numeric value, ignoring the modifiers ("<", ">=", ...) and the trailing '%'
+	 * @param value
+	 * @return the parsed value or null if the value is not numeric
+	 */
+	public static Double parseDouble(String value) {
+		if(value==null || value.length()==0) return null;
+		try {
+			int offset = 0;
+			while(offset<value.length() && "<>= ".indexOf(value.charAt(offset))>=0) {
+				offset++;
 			}
-		} else {
+			int index2 = value.length()-1;
+			while(index2>=offset && "% ".indexOf(value.charAt(index2))>=0) {
+				index2--;
+			}
+
+			return Double.parseDouble(value.substring(offset, index2+1));
+		} catch (NumberFormatException e) {
 			return null;
 		}
 	}
@@ -0,0 +1,140 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.business.study;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A StudySummary is one row of the materialized counts of biosamples and results, per study, used by the dashboards.
+ * Each row counts the biosamples (or results) of a given study, biotype (or test) and updUser, with their last update date.
+ * The biosamples and results without study are counted with studyId=0.
+ * The rows are maintained by DAOStudySummary.
+ */
+@Entity
+@Table(name="study_summary", indexes = {
+		@Index(name="study_summary_study_index", columnList = "study_id")})
+public class StudySummary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**Counts of biosamples: typeId is the biotype id*/
+	public static final String KIND_BIOSAMPLE = "B";
+	/**Counts of results: typeId is the test id, biotypeId is the biotype of the result's biosample*/
+	public static final String KIND_RESULT = "R";
+
+	public static final int MAX_USER_LENGTH = 64;
+
+	@Id
+	@Column(name="kind", length=1, nullable=false)
+	private String kind;
+
+	@Id
+	@Column(name="study_id", nullable=false)
+	private int studyId;
+
+	@Id
+	@Column(name="type_id", nullable=false)
+	private int typeId;
+
+	@Id
+	@Column(name="biotype_id", nullable=false)
+	private int biotypeId;
+
+	@Id
+	@Column(name="upd_user", length=MAX_USER_LENGTH, nullable=false)
+	private String updUser;
+
+	@Column(name="n", nullable=false)
+	private int count;
+
+	@Column(name="max_upd_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date maxUpdDate;
+
+	public StudySummary() {
+	}
+
+	public StudySummary(String kind, int studyId, int typeId, int biotypeId, String updUser, int count, Date maxUpdDate) {
+		this.kind = kind;
+		this.studyId = studyId;
+		this.typeId = typeId;
+		this.biotypeId = biotypeId;
+		this.updUser = updUser;
+		this.count = count;
+		this.maxUpdDate = maxUpdDate;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	public int getStudyId() {
+		return studyId;
+	}
+
+	public int getTypeId() {
+		return typeId;
+	}
+
+	public int getBiotypeId() {
+		return biotypeId;
+	}
+
+	public String getUpdUser() {
+		return updUser;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public Date getMaxUpdDate() {
+		return maxUpdDate;
+	}
+
+	@Override
+	public int hashCode() {
+		return (studyId*31 + typeId)*31 + updUser.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(obj==this) return true;
+		if(!(obj instanceof StudySummary)) return false;
+		StudySummary s = (StudySummary) obj;
+		return kind.equals(s.kind) && studyId==s.studyId && typeId==s.typeId && biotypeId==s.biotypeId && updUser.equals(s.updUser);
+	}
+
+	@Override
+	public String toString() {
+		return kind + studyId + ":" + typeId + ":" + biotypeId + ":" + updUser + "=" + count;
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.services.SpiritRights.ActionType;
+import com.actelion.research.spiritcore.services.SpiritRights.UserType;
+import com.actelion.research.spiritcore.services.dao.SpiritProperties;
+
+/**
+ * Rights of one user, precomputed from the SpiritProperties: the actions allowed by the roles of the user,
+ * the actions allowed to the creator/updater, and the system flags (groups, open system).
+ * <br>
+ * The evaluator also memoizes the decisions of SpiritRights, per tuple of the fields on which they depend (see SpiritRights).
+ * It is kept in the SpiritUser, and replaced when the properties or the employee groups are changed (see SpiritRights.invalidate).
+ *
+ * @author Joel Freyss
+ */
+class RightsEvaluator {
+
+	private static final int MAX_DECISIONS = 20000;
+
+	private final int version;
+	private final Set<String> managedUsers;
+	private final Set<ActionType> roleActions = EnumSet.noneOf(ActionType.class);
+	private final Set<ActionType> creatorActions = EnumSet.noneOf(ActionType.class);
+	private final Set<ActionType> updaterActions = EnumSet.noneOf(ActionType.class);
+	private final boolean useGroups;
+	private final boolean noRoles;
+	private final boolean open;
+	private final Map<Object, Boolean> decisions = new ConcurrentHashMap<>();
+
+	public RightsEvaluator(SpiritUser user, int version) {
+		SpiritProperties props = SpiritProperties.getInstance();
+		this.version = version;
+		this.managedUsers = user.getManagedUsers();
+		for (ActionType action : ActionType.values()) {
+			for (String role : user.getRoles()) {
+				if(props.isChecked(action, role)) {
+					roleActions.add(action);
+					break;
+				}
+			}
+			if(props.isChecked(action, UserType.CREATOR)) creatorActions.add(action);
+			if(props.isChecked(action, UserType.UPDATER)) updaterActions.add(action);
+		}
+		this.useGroups = props.isChecked(PropertyKey.USER_USEGROUPS);
+		this.noRoles = props.getUserRoles().length<=1;
+		this.open = props.isOpen();
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * True if one of the user's roles is allowed to do the action
+	 */
+	public boolean hasRole(ActionType action) {
+		return roleActions.contains(action);
+	}
+
+	/**
+	 * True if the creator/updater is allowed to do the action
+	 */
+	public boolean isChecked(ActionType action, UserType userType) {
+		return userType==UserType.CREATOR? creatorActions.contains(action): updaterActions.contains(action);
+	}
+
+	/**
+	 * True if the given username is the user or one of the users managed by the user
+	 */
+	public boolean isManaged(String username) {
+		return username!=null && managedUsers.contains(username);
+	}
+
+	public boolean isUseGroups() {
+		return useGroups;
+	}
+
+	/**
+	 * True if no roles have been defined (except admin)
+	 */
+	public boolean isNoRoles() {
+		return noRoles;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Returns the memoized decision for the given key (a tuple of the fields the decision depends on), or null
+	 */
+	public Boolean getDecision(Object... key) {
+		return decisions.get(Arrays.asList(key));
+	}
+
+	public boolean putDecision(boolean decision, Object... key) {
+		if(decisions.size()>=MAX_DECISIONS) decisions.clear();
+		decisions.put(Arrays.asList(key), decision);
+		return decision;
+	}
+}
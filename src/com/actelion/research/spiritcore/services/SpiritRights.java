@@ -22,6 +22,7 @@
 package com.actelion.research.spiritcore.services;
 
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
@@ -43,6 +44,8 @@ import com.actelion.research.spiritcore.util.MiscUtils;
  */
 public class SpiritRights {
 
+	private static final AtomicInteger version = new AtomicInteger();
+
 	public enum ActionType {
 		READ_STUDY("Read Study", "Who is allowed to read a study (its samples and results are not necessarily readable)"),
 		WORK_STUDY("Work Study", "Who is allowed to change the status of a study"),
@@ -120,6 +123,29 @@ public class SpiritRights {
 	}
 
 
+	/**
+	 * Increments the version of the rights, so that the precomputed rights of the users are recomputed on the next check.
+	 * This function must be called when the properties or the employees/groups are updated.
+	 */
+	public static void invalidateCache() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Returns the precomputed rights of the user (roles, creator/updater rights, managed users), and the memoized decisions
+	 * @param user (not null)
+	 * @return
+	 */
+	static RightsEvaluator getEvaluator(SpiritUser user) {
+		RightsEvaluator evaluator = user.rightsEvaluator;
+		int v = version.get();
+		if(evaluator==null || evaluator.getVersion()!=v) {
+			evaluator = new RightsEvaluator(user, v);
+			user.rightsEvaluator = evaluator;
+		}
+		return evaluator;
+	}
+
 	/**
 	 * Is the user allowed to read the study?
 	 *
@@ -131,6 +157,7 @@ public class SpiritRights {
 		if(user==null) return false;
 		if(study==null) return true;
 		if(study.getId()<=0) return true;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check states specific roles
 		String[] roles = SpiritProperties.getInstance().getValues(PropertyKey.STUDY_STATES_READ, study.getState());
@@ -142,18 +169,16 @@ public class SpiritRights {
 		}
 
 		//Otherwise, check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.READ_STUDY, role)) return true;
-		}
+		if(ev.hasRole(ActionType.READ_STUDY)) return true;
 
 		//Check groups
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			if(user.getUsername().equals(study.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.READ_STUDY, UserType.CREATOR)) return true;
-			if(user.getUsername().equals(study.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.READ_STUDY, UserType.UPDATER)) return true;
+		if(ev.isUseGroups()) {
+			if(user.getUsername().equals(study.getCreUser()) && ev.isChecked(ActionType.READ_STUDY, UserType.CREATOR)) return true;
+			if(user.getUsername().equals(study.getUpdUser()) && ev.isChecked(ActionType.READ_STUDY, UserType.UPDATER)) return true;
 		}
 
 		//Return true by default if roles have not been defined and the system is open
-		return SpiritProperties.getInstance().getUserRoles().length<=1 && SpiritProperties.getInstance().isOpen();
+		return ev.isNoRoles() && ev.isOpen();
 	}
 
 	/**
@@ -166,6 +191,7 @@ public class SpiritRights {
 		if(user==null) return false;
 		if(study==null) return false;
 		if(study.getId()<=0) return true;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check if the study is sealed: then no rights
 		if("true".equals(SpiritProperties.getInstance().getValue(PropertyKey.STUDY_STATES_SEALED, study.getState()))) {
@@ -173,15 +199,15 @@ public class SpiritRights {
 		}
 
 		//Check generic roles
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
+		if(ev.isUseGroups()) {
 			for(EmployeeGroup eg: study.getEmployeeGroups()) {
 				if(user.isMember(eg)) return true;
 			}
 
-			if(study.getCreUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.WORK_STUDY, UserType.CREATOR)) return true;
-			if(study.getUpdUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.WORK_STUDY, UserType.UPDATER)) return true;
-			for(String uid: user.getManagedUsers()) {
-				if(study.getExpertUsersAsSet().contains(uid)) return true;
+			if(study.getCreUser().equals(user.getUsername()) && ev.isChecked(ActionType.WORK_STUDY, UserType.CREATOR)) return true;
+			if(study.getUpdUser().equals(user.getUsername()) && ev.isChecked(ActionType.WORK_STUDY, UserType.UPDATER)) return true;
+			for(String uid: study.getExpertUsersAsSet()) {
+				if(ev.isManaged(uid)) return true;
 			}
 			return canEdit(study, user);
 		} else {
@@ -191,11 +217,7 @@ public class SpiritRights {
 			if(MiscUtils.contains(roles, "ALL")) return true;
 			if(MiscUtils.contains(roles, user.getRoles())) return true;
 
-
-			for (String role : user.getRoles()) {
-				if(SpiritProperties.getInstance().isChecked(ActionType.WORK_STUDY, role)) return true;
-			}
-			return false;
+			return ev.hasRole(ActionType.WORK_STUDY);
 		}
 
 	}
@@ -210,6 +232,7 @@ public class SpiritRights {
 	public static boolean canEdit(Study study, SpiritUser user) {
 		if(study==null) return true;
 		if(user==null) return false;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check if the study is sealed: then no rights
 		if("true".equals(SpiritProperties.getInstance().getValue(PropertyKey.STUDY_STATES_SEALED, study.getState()))) {
@@ -223,23 +246,19 @@ public class SpiritRights {
 		if(MiscUtils.contains(roles, user.getRoles())) return true;
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.EDIT_STUDY, null, role)) return true;
-		}
+		if(ev.hasRole(ActionType.EDIT_STUDY)) return true;
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			if(study.getCreUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_STUDY, UserType.CREATOR)) return true;
-			if(study.getUpdUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_STUDY, UserType.UPDATER)) return true;
-			for(String uid: user.getManagedUsers()) {
-				if(study.getAdminUsersAsSet().contains(uid)) {
-					return true;
-				}
+		if(ev.isUseGroups()) {
+			if(study.getCreUser().equals(user.getUsername()) && ev.isChecked(ActionType.EDIT_STUDY, UserType.CREATOR)) return true;
+			if(study.getUpdUser().equals(user.getUsername()) && ev.isChecked(ActionType.EDIT_STUDY, UserType.UPDATER)) return true;
+			for(String uid: study.getAdminUsersAsSet()) {
+				if(ev.isManaged(uid)) return true;
 			}
 		}
 
 		//Return true by default if roles have not been defined
-		return SpiritProperties.getInstance().getUserRoles().length<=1;
+		return ev.isNoRoles();
 	}
 
 	/**
@@ -251,21 +270,18 @@ public class SpiritRights {
 	public static boolean canDelete(Study study, SpiritUser user) {
 		if(user==null) return false;
 		if(study==null) return false;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check if the study is sealed: then no rights
 		if("true".equals(SpiritProperties.getInstance().getValue(PropertyKey.STUDY_STATES_SEALED, study.getState()))) {
 			return false;
 		}
 		//Check generic roles
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			if(study.getCreUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_STUDY, UserType.CREATOR)) return true;
-			if(study.getUpdUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_STUDY, UserType.UPDATER)) return true;
+		if(ev.isUseGroups()) {
+			if(study.getCreUser().equals(user.getUsername()) && ev.isChecked(ActionType.DELETE_STUDY, UserType.CREATOR)) return true;
+			if(study.getUpdUser().equals(user.getUsername()) && ev.isChecked(ActionType.DELETE_STUDY, UserType.UPDATER)) return true;
 		}
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.DELETE_STUDY, role)) return true;
-		}
-
-		return false;
+		return ev.hasRole(ActionType.DELETE_STUDY);
 	}
 
 
@@ -281,10 +297,7 @@ public class SpiritRights {
 		if(ns.getStudy()!=null) {
 			return canEdit(ns.getStudy(), user);
 		} else {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(ns.getCreUser())) return true;
-			}
-			return false;
+			return getEvaluator(user).isManaged(ns.getCreUser());
 		}
 	}
 
@@ -303,7 +316,8 @@ public class SpiritRights {
 	}
 
 	/**
-	 * True if the user can read the biosample
+	 * True if the user can read the biosample.
+	 * The decision only depends on the study rights, the owners, the group and the location's privacy, and is memoized on those.
 	 * @param biosamples
 	 * @param user
 	 * @return
@@ -311,36 +325,44 @@ public class SpiritRights {
 	public static boolean canRead(Biosample biosample, SpiritUser user) {
 		if(user==null) return false;
 		if(biosample==null || biosample.getId()<=0) return true;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Study right
 		if(biosample.getInheritedStudy()!=null && !canRead(biosample.getInheritedStudy(), user)) return false;
 
+		Location location = biosample.getLocation();
+		Privacy privacy = location==null? null: location.getInheritedPrivacy();
+		EmployeeGroup locationGroup = location==null? null: location.getInheritedEmployeeGroup();
+		Object[] key = new Object[] {ActionType.READ_BIOSAMPLE, biosample.getCreUser(), biosample.getUpdUser(), getGroupId(biosample.getEmployeeGroup()), privacy, getGroupId(locationGroup)};
+		Boolean res = ev.getDecision(key);
+		if(res!=null) return res;
+
+		return ev.putDecision(canReadBiosample(ev, biosample, privacy, locationGroup, user), key);
+	}
+
+	private static boolean canReadBiosample(RightsEvaluator ev, Biosample biosample, Privacy privacy, EmployeeGroup locationGroup, SpiritUser user) {
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.READ_BIOSAMPLE, role)) return true;
-		}
+		if(ev.hasRole(ActionType.READ_BIOSAMPLE)) return true;
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			if(biosample.getCreUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.READ_BIOSAMPLE, UserType.CREATOR)) return true;
-			if(biosample.getUpdUser().equals(user.getUsername()) && SpiritProperties.getInstance().isChecked(ActionType.READ_BIOSAMPLE, UserType.UPDATER)) return true;
-			for(String uid: user.getManagedUsers()) {
-				if(biosample.getCreUser().equals(uid) && SpiritProperties.getInstance().isChecked(ActionType.READ_BIOSAMPLE, UserType.CREATOR)) return true;
-				if(biosample.getUpdUser().equals(uid) && SpiritProperties.getInstance().isChecked(ActionType.READ_BIOSAMPLE, UserType.UPDATER)) return true;
-			}
+		if(ev.isUseGroups()) {
+			if(ev.isManaged(biosample.getCreUser()) && ev.isChecked(ActionType.READ_BIOSAMPLE, UserType.CREATOR)) return true;
+			if(ev.isManaged(biosample.getUpdUser()) && ev.isChecked(ActionType.READ_BIOSAMPLE, UserType.UPDATER)) return true;
 
 			//Everybody in the group has the rights
 			if(biosample.getEmployeeGroup()!=null && user.isMember(biosample.getEmployeeGroup())) return true;
 		}
 
 		//Otherwise it depends of the location: public, protected (biosample shown without location), or member of private location
-		Location location = biosample.getLocation();
-		if(location!=null && location.getInheritedPrivacy()==Privacy.PUBLIC) return true;
-		else if(location!=null && location.getInheritedPrivacy()==Privacy.PRIVATE && location.getInheritedEmployeeGroup()!=null && !user.isMember(location.getInheritedEmployeeGroup())) return false;
+		if(privacy==Privacy.PUBLIC) return true;
+		else if(privacy==Privacy.PRIVATE && locationGroup!=null && !user.isMember(locationGroup)) return false;
 
 		//Return true by default if roles have not been defined and the system is open
-		return SpiritProperties.getInstance().getUserRoles().length<=1 && SpiritProperties.getInstance().isOpen();
+		return ev.isNoRoles() && ev.isOpen();
+	}
 
+	private static int getGroupId(EmployeeGroup group) {
+		return group==null? 0: group.getId();
 	}
 
 	/**
@@ -382,39 +404,7 @@ public class SpiritRights {
 	 * @return
 	 */
 	public static boolean canWork(Biosample biosample, SpiritUser user) {
-		if(user==null) return false;
-		if(biosample==null) return true;
-		if(biosample.getId()<=0) return true;
-
-
-		//Study rights
-		if(biosample.getInheritedStudy()!=null) {
-			if(!canWork(biosample.getInheritedStudy(), user) && !canBlind(biosample.getInheritedStudy(), user)) return false;
-		}
-
-		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.WORK_BIOSAMPLE, role)) return true;
-		}
-
-		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(biosample.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.WORK_BIOSAMPLE, UserType.CREATOR)) return true;
-				if(uid.equals(biosample.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.WORK_BIOSAMPLE, UserType.UPDATER)) return true;
-			}
-			if(biosample.getEmployeeGroup()!=null && user.isMember(biosample.getEmployeeGroup())) return true;
-
-			//Check generic roles
-			for (String role : user.getRoles()) {
-				if(SpiritProperties.getInstance().isChecked(ActionType.WORK_BIOSAMPLE, role)) return true;
-			}
-			return biosample.getId()<=0 || biosample.getInheritedStudy()!=null && (canRead(biosample.getInheritedStudy(), user) || canBlind(biosample.getInheritedStudy(), user));
-		}
-
-		//Return true by default if roles have not been defined
-		return SpiritProperties.getInstance().getUserRoles().length<=1;
-
+		return canWorkOrEdit(ActionType.WORK_BIOSAMPLE, biosample, user);
 	}
 
 
@@ -429,60 +419,60 @@ public class SpiritRights {
 	 * @return
 	 */
 	public static boolean canEdit(Biosample biosample, SpiritUser user) {
+		return canWorkOrEdit(ActionType.EDIT_BIOSAMPLE, biosample, user);
+	}
+
+	/**
+	 * Common implementation of canWork/canEdit(Biosample), memoized on the study rights, the owners and the group of the biosample
+	 */
+	private static boolean canWorkOrEdit(ActionType action, Biosample biosample, SpiritUser user) {
 		if(user==null) return false;
 		if(biosample==null) return true;
 		if(biosample.getId()<=0) return true;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Study rights
-		if(biosample.getInheritedStudy()!=null) {
-			if(!canWork(biosample.getInheritedStudy(), user) && !canBlind(biosample.getInheritedStudy(), user)) return false;
-		}
+		Study study = biosample.getInheritedStudy();
+		if(study!=null && !canBlind(study, user)) return false;
+
+		Object[] key = new Object[] {action, study!=null, biosample.getCreUser(), biosample.getUpdUser(), getGroupId(biosample.getEmployeeGroup())};
+		Boolean res = ev.getDecision(key);
+		if(res!=null) return res;
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.EDIT_BIOSAMPLE, role)) return true;
-		}
+		if(ev.hasRole(action)) return ev.putDecision(true, key);
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(biosample.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_BIOSAMPLE, UserType.CREATOR)) return true;
-				if(uid.equals(biosample.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_BIOSAMPLE, UserType.UPDATER)) return true;
-			}
-			if(biosample.getEmployeeGroup()!=null && user.isMember(biosample.getEmployeeGroup())) return true;
+		if(ev.isUseGroups()) {
+			if(ev.isManaged(biosample.getCreUser()) && ev.isChecked(action, UserType.CREATOR)) return ev.putDecision(true, key);
+			if(ev.isManaged(biosample.getUpdUser()) && ev.isChecked(action, UserType.UPDATER)) return ev.putDecision(true, key);
+			if(biosample.getEmployeeGroup()!=null && user.isMember(biosample.getEmployeeGroup())) return ev.putDecision(true, key);
 
-			//Check generic roles
-			for (String role : user.getRoles()) {
-				if(SpiritProperties.getInstance().isChecked(ActionType.EDIT_BIOSAMPLE, role)) return true;
-			}
-			return biosample.getId()<=0 || biosample.getInheritedStudy()!=null && (canRead(biosample.getInheritedStudy(), user) || canBlind(biosample.getInheritedStudy(), user));
+			//The study rights have been checked above
+			return ev.putDecision(study!=null, key);
 		}
 
 		//Return true by default if roles have not been defined
-		return SpiritProperties.getInstance().getUserRoles().length<=1;
-
+		return ev.putDecision(ev.isNoRoles(), key);
 	}
 
 	public static boolean canDelete(Biosample biosample, SpiritUser user) {
 		if(user==null) return false;
 		if(biosample==null) return false;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Study rights
 		if(biosample.getInheritedStudy()!=null) {
-			if(!canWork(biosample.getInheritedStudy(), user) && !canBlind(biosample.getInheritedStudy(), user)) return false;
+			if(!canBlind(biosample.getInheritedStudy(), user)) return false;
 		}
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.DELETE_BIOSAMPLE, role)) return true;
-		}
+		if(ev.hasRole(ActionType.DELETE_BIOSAMPLE)) return true;
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(biosample.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_BIOSAMPLE, UserType.CREATOR)) return true;
-				if(uid.equals(biosample.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_BIOSAMPLE, UserType.UPDATER)) return true;
-			}
+		if(ev.isUseGroups()) {
+			if(ev.isManaged(biosample.getCreUser()) && ev.isChecked(ActionType.DELETE_BIOSAMPLE, UserType.CREATOR)) return true;
+			if(ev.isManaged(biosample.getUpdUser()) && ev.isChecked(ActionType.DELETE_BIOSAMPLE, UserType.UPDATER)) return true;
 		}
 
 		//Allow the study admin to delete a sample when the study design is changed
@@ -499,20 +489,24 @@ public class SpiritRights {
 	public static boolean canRead(Location location, SpiritUser user) {
 		if(location==null) return true;
 		if(user==null) return false;
-		if(location.getInheritedPrivacy()==Privacy.PUBLIC) return true;
+		Privacy privacy = location.getInheritedPrivacy();
+		if(privacy==Privacy.PUBLIC) return true;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.READ_LOCATION, role)) return true;
-		}
+		if(ev.hasRole(ActionType.READ_LOCATION)) return true;
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			if(user.isMember(location.getInheritedEmployeeGroup())) return true;
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(location.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.READ_LOCATION, UserType.CREATOR)) return true;
-				if(uid.equals(location.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.READ_LOCATION, UserType.UPDATER)) return true;
-			}
+		if(ev.isUseGroups()) {
+			EmployeeGroup group = location.getInheritedEmployeeGroup();
+			Object[] key = new Object[] {ActionType.READ_LOCATION, privacy, getGroupId(group), location.getCreUser(), location.getUpdUser()};
+			Boolean res = ev.getDecision(key);
+			if(res!=null) return res;
+
+			if(user.isMember(group)) return ev.putDecision(true, key);
+			if(ev.isManaged(location.getCreUser()) && ev.isChecked(ActionType.READ_LOCATION, UserType.CREATOR)) return ev.putDecision(true, key);
+			if(ev.isManaged(location.getUpdUser()) && ev.isChecked(ActionType.READ_LOCATION, UserType.UPDATER)) return ev.putDecision(true, key);
+			return ev.putDecision(false, key);
 		}
 		return false;
 	}
@@ -526,18 +520,15 @@ public class SpiritRights {
 	public static boolean canEdit(Location location, SpiritUser user) {
 		if(user==null) return false;
 		if(location==null) return false;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.EDIT_LOCATION, role)) return true;
-		}
+		if(ev.hasRole(ActionType.EDIT_LOCATION)) return true;
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(location.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_LOCATION, UserType.CREATOR)) return true;
-				if(uid.equals(location.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_LOCATION, UserType.UPDATER)) return true;
-			}
+		if(ev.isUseGroups()) {
+			if(ev.isManaged(location.getCreUser()) && ev.isChecked(ActionType.EDIT_LOCATION, UserType.CREATOR)) return true;
+			if(ev.isManaged(location.getUpdUser()) && ev.isChecked(ActionType.EDIT_LOCATION, UserType.UPDATER)) return true;
 			if(location.getInheritedEmployeeGroup()!=null && user.isMember(location.getInheritedEmployeeGroup())) return true;
 			if(location.getInheritedPrivacy()==Privacy.PUBLIC) return true;
 		}
@@ -554,18 +545,15 @@ public class SpiritRights {
 	public static boolean canDelete(Location location, SpiritUser user) {
 		if(user==null) return false;
 		if(location==null) return false;
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.DELETE_LOCATION, role)) return true;
-		}
+		if(ev.hasRole(ActionType.DELETE_LOCATION)) return true;
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(location.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_LOCATION, UserType.CREATOR)) return true;
-				if(uid.equals(location.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_LOCATION, UserType.UPDATER)) return true;
-			}
+		if(ev.isUseGroups()) {
+			if(ev.isManaged(location.getCreUser()) && ev.isChecked(ActionType.DELETE_LOCATION, UserType.CREATOR)) return true;
+			if(ev.isManaged(location.getUpdUser()) && ev.isChecked(ActionType.DELETE_LOCATION, UserType.UPDATER)) return true;
 			if(location.getInheritedEmployeeGroup()!=null && user.isMember(location.getInheritedEmployeeGroup())) return true;
 			if(location.getInheritedPrivacy()==Privacy.PUBLIC) return true;
 		}
@@ -600,14 +588,13 @@ public class SpiritRights {
 			Study study = result.getBiosample().getInheritedStudy();
 			if(study!=null && !canRead(study, user)) return false;
 		}
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.READ_RESULT, role)) return true;
-		}
+		if(ev.hasRole(ActionType.READ_RESULT)) return true;
 
 		//Return true by default if roles have not been defined
-		return SpiritProperties.getInstance().getUserRoles().length<=1;
+		return ev.isNoRoles();
 	}
 
 	/**
@@ -626,18 +613,15 @@ public class SpiritRights {
 		if(result.getBiosample()!=null) {
 			if(!canRead(result.getBiosample(), user)) return false;
 		}
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.EDIT_RESULT, role)) return true;
-		}
+		if(ev.hasRole(ActionType.EDIT_RESULT)) return true;
 
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(result.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_RESULT, UserType.CREATOR)) return true;
-				if(uid.equals(result.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.EDIT_RESULT, UserType.UPDATER)) return true;
-			}
+		if(ev.isUseGroups()) {
+			if(ev.isManaged(result.getCreUser()) && ev.isChecked(ActionType.EDIT_RESULT, UserType.CREATOR)) return true;
+			if(ev.isManaged(result.getUpdUser()) && ev.isChecked(ActionType.EDIT_RESULT, UserType.UPDATER)) return true;
 			if(canEdit(result.getStudy(), user)) return true;
 		}
 
@@ -657,17 +641,15 @@ public class SpiritRights {
 		if(result.getBiosample()!=null) {
 			if(!canRead(result.getBiosample(), user)) return false;
 		}
+		RightsEvaluator ev = getEvaluator(user);
 
 		//Check generic roles
-		for (String role : user.getRoles()) {
-			if(SpiritProperties.getInstance().isChecked(ActionType.DELETE_RESULT, role)) return true;
-		}
+		if(ev.hasRole(ActionType.DELETE_RESULT)) return true;
+
 		//Check group/hierarchy rights (if needed)
-		if(SpiritProperties.getInstance().isChecked(PropertyKey.USER_USEGROUPS)) {
-			for(String uid: user.getManagedUsers()) {
-				if(uid.equals(result.getCreUser()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_RESULT, UserType.CREATOR)) return true;
-				if(uid.equals(result.getUpdUser()) && SpiritProperties.getInstance().isChecked(ActionType.DELETE_RESULT, UserType.UPDATER)) return true;
-			}
+		if(ev.isUseGroups()) {
+			if(ev.isManaged(result.getCreUser()) && ev.isChecked(ActionType.DELETE_RESULT, UserType.CREATOR)) return true;
+			if(ev.isManaged(result.getUpdUser()) && ev.isChecked(ActionType.DELETE_RESULT, UserType.UPDATER)) return true;
 		}
 		return false;
 	}
@@ -680,10 +662,8 @@ public class SpiritRights {
 		if(user==null || order==null) return false;
 		if(order.getId()<=0) return true;
 
-		for(String uid: user.getManagedUsers()) {
-			if(uid.equals(order.getCreUser()) || uid.equals(order.getUpdUser())) return true;
-		}
-		return false;
+		RightsEvaluator ev = getEvaluator(user);
+		return ev.isManaged(order.getCreUser()) || ev.isManaged(order.getUpdUser());
 	}
 
 
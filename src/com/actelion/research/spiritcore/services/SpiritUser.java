@@ -47,6 +47,11 @@ public class SpiritUser implements Serializable {
 	private EmployeeGroup mainGroup;
 	private Set<EmployeeGroup> groups = new HashSet<>();
 
+	/**
+	 * Precomputed rights of the user (see SpiritRights)
+	 */
+	transient RightsEvaluator rightsEvaluator;
+
 	public SpiritUser(String username) {
 		this.username = username;
 		this.managedUsers.add(username);
@@ -89,6 +94,7 @@ public class SpiritUser implements Serializable {
 	public void setRole(String role) {
 		roles.clear();
 		roles.add(role);
+		rightsEvaluator = null;
 	}
 
 	public void setRole(String role, boolean set) {
@@ -97,6 +103,7 @@ public class SpiritUser implements Serializable {
 		} else {
 			roles.remove(role);
 		}
+		rightsEvaluator = null;
 	}
 
 	public boolean isRole(String role) {
@@ -158,6 +165,7 @@ public class SpiritUser implements Serializable {
 	public void setMainGroup(EmployeeGroup mainGroup) {
 		if(mainGroup!=null && !groups.contains(mainGroup)) groups.add(mainGroup);
 		this.mainGroup = mainGroup;
+		rightsEvaluator = null;
 	}
 
 	@Override
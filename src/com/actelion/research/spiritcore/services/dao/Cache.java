@@ -22,94 +22,212 @@
 package com.actelion.research.spiritcore.services.dao;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
 
 /**
+ * Second level cache, shared by the DAOs.
+ * <ul>
+ * <li>The cache is bounded by a maximum weight: the weight of an entry is 1 + the size of the collection or map it holds.
+ * When the cache exceeds its maximum weight, the least recently used entries are evicted.
+ * <li>Entries expire lazily when they are accessed (or when they reach the LRU end of the cache). There is no cleaning thread.
+ * <li>Lists are stored as immutable snapshots. The returned lists must not be modified by the caller.
+ * Use {@link #addList(String, List, int)} to return the same snapshot after a miss as after a hit.
+ * <li>Hits, misses, and evictions are counted per key prefix (the key without its variable part, ex: "elb_links_"), see {@link #getStatistics()}
+ * </ul>
  *
  * @author freyssj
  */
-@SuppressWarnings("rawtypes")
 public class Cache {
 
 	public static final int FAST = 15;
 	public static final int MEDIUM = 60;
 	public static final int LONG = 300;
 
+	public static final int DEFAULT_MAX_WEIGHT = 500000;
+
 	private static class CachedObject {
-		public CachedObject(Object obj, long expire) {
+		public CachedObject(Object obj, long expire, int weight) {
 			this.object = obj;
 			this.expire = expire;
+			this.weight = weight;
+		}
+		public final long expire;
+		public final Object object;
+		public final int weight;
+
+		public boolean isExpired(long time) {
+			return expire>0 && expire<time;
 		}
-		public long expire;
-		public Object object;
 	}
 
-	private final static Cache instance = new Cache();
-	private final Map<String, CachedObject> cache = new ConcurrentHashMap<>();
+	/**
+	 * Hit/Miss/Eviction counters for a given key prefix
+	 */
+	public static class CacheStatistics {
+		private final String prefix;
+		private long hits;
+		private long misses;
+		private long evictions;
+		private long expirations;
+		private int entries;
+		private long weight;
 
-	static {
-		Thread cleaningThread = new Thread() {
-			@Override
-			public void run() {
-				while(!interrupted()) {
-					try {Thread.sleep(60000);} catch (Exception e) {e.printStackTrace();}
-					instance.clean();
+		private CacheStatistics(String prefix) {
+			this.prefix = prefix;
+		}
 
-				}
-			}
-		};
-		cleaningThread.setDaemon(true);
-		cleaningThread.start();
+		private CacheStatistics(CacheStatistics s) {
+			this.prefix = s.prefix;
+			this.hits = s.hits;
+			this.misses = s.misses;
+			this.evictions = s.evictions;
+			this.expirations = s.expirations;
+			this.entries = s.entries;
+			this.weight = s.weight;
+		}
+
+		public String getPrefix() {return prefix;}
+		public long getHits() {return hits;}
+		public long getMisses() {return misses;}
+		public long getEvictions() {return evictions;}
+		public long getExpirations() {return expirations;}
+		public int getEntries() {return entries;}
+		public long getWeight() {return weight;}
+
+		public double getHitRatio() {
+			return hits+misses==0? 0: (double) hits / (hits+misses);
+		}
+
+		@Override
+		public String toString() {
+			return prefix + ": hits=" + hits + " misses=" + misses + " evictions=" + evictions + " expirations=" + expirations + " entries=" + entries + " weight=" + weight;
+		}
 	}
 
+	private final static Cache instance = new Cache();
+
+	/**
+	 * Access-ordered map: the first entry is the least recently used. All accesses are synchronized on the cache
+	 */
+	private final LinkedHashMap<String, CachedObject> cache = new LinkedHashMap<>(256, .75f, true);
+	private final Map<String, CacheStatistics> prefix2stats = new TreeMap<>();
+	private final SpiritMetrics.Counter hitCounter = SpiritMetrics.getInstance().counter("Cache.hits");
+	private final SpiritMetrics.Counter missCounter = SpiritMetrics.getInstance().counter("Cache.misses");
+	private int maxWeight = DEFAULT_MAX_WEIGHT;
+	private long weight = 0;
+
 	public static Cache getInstance() {
 		return instance;
 	}
 
-	public void clear() {
+	private Cache() {}
+
+	public synchronized void clear() {
 		cache.clear();
+		weight = 0;
+		for (CacheStatistics stats : prefix2stats.values()) {
+			stats.entries = 0;
+			stats.weight = 0;
+		}
 	}
 
-	public void clean() {
-		synchronized (instance) {
-			List<String> remove = new ArrayList<>();
-			long time = System.currentTimeMillis();
-			for(String name : cache.keySet()) {
-				long expiry = cache.get(name).expire;
-				if(expiry>0 && expiry<time) remove.add(name);
+	/**
+	 * Removes the expired entries.
+	 * This is not required (expired entries are removed on access), but it can be used to release memory
+	 */
+	public synchronized void clean() {
+		long time = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, CachedObject>> iterator = cache.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, CachedObject> e = iterator.next();
+			if(e.getValue().isExpired(time)) {
+				iterator.remove();
+				onRemove(e.getKey(), e.getValue()).expirations++;
 			}
-			for(String s: remove) cache.remove(s);
 		}
 	}
 
-	private Cache() {}
-
 	public void add(String name, Object obj) {
 		add(name, obj, LONG);
 	}
 
+	/**
+	 * Adds an object to the cache. If the object is a list, an immutable snapshot is stored instead
+	 * @param name
+	 * @param obj
+	 * @param timeSec - the time to live in seconds (0 for no expiry)
+	 */
 	public void add(String name, Object obj, int timeSec) {
-		if(obj instanceof ArrayList) obj = ((ArrayList)obj).clone();
-		CachedObject o = new CachedObject(obj, timeSec>0? System.currentTimeMillis()+timeSec*1000: 0);
-		cache.put(name, o);
+		store(name, obj, timeSec);
+	}
+
+	/**
+	 * Adds a list to the cache, and returns the stored immutable snapshot
+	 * @param name
+	 * @param list
+	 * @param timeSec - the time to live in seconds (0 for no expiry)
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public<T> List<T> addList(String name, List<T> list, int timeSec) {
+		return (List<T>) store(name, list, timeSec);
+	}
+
+	private Object store(String name, Object obj, int timeSec) {
+		if(obj instanceof List) obj = Collections.unmodifiableList(new ArrayList<>((List<?>) obj)); //keep the order
+		CachedObject o = new CachedObject(obj, timeSec>0? System.currentTimeMillis()+timeSec*1000L: 0, estimateWeight(obj));
+		synchronized (this) {
+			CachedObject previous = cache.put(name, o);
+			if(previous!=null) onRemove(name, previous);
+			weight += o.weight;
+			CacheStatistics stats = getStats(name);
+			stats.entries++;
+			stats.weight += o.weight;
+			evict();
+		}
+		return obj;
 	}
 
-	public Object get(String name) {
+	/**
+	 * Returns the cached object or null if the object is not in the cache or has expired.
+	 * Lists are returned as immutable snapshots
+	 * @param name
+	 * @return
+	 */
+	public synchronized Object get(String name) {
 		CachedObject o = cache.get(name);
-		if(o==null || o.object==null) return null;
-		if(o.object instanceof ArrayList) return ((ArrayList)o.object).clone(); //keep the order
+		if(o!=null && o.isExpired(System.currentTimeMillis())) {
+			cache.remove(name);
+			onRemove(name, o).expirations++;
+			o = null;
+		}
+		if(o==null || o.object==null) {
+			getStats(name).misses++;
+			missCounter.inc();
+			return null;
+		}
+		getStats(name).hits++;
+		hitCounter.inc();
 		return o.object;
 	}
 
-	public void remove(String name) {
-		cache.remove(name);
+	public synchronized void remove(String name) {
+		CachedObject o = cache.remove(name);
+		if(o!=null) onRemove(name, o);
 	}
 
-	public void removeAllWithPrefix(String prefix) {
-		for(String key: new ArrayList<>(cache.keySet())) {
-			if(key.startsWith(prefix)) cache.remove(key);
+	public synchronized void removeAllWithPrefix(String prefix) {
+		for (Iterator<Map.Entry<String, CachedObject>> iterator = cache.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, CachedObject> e = iterator.next();
+			if(e.getKey().startsWith(prefix)) {
+				iterator.remove();
+				onRemove(e.getKey(), e.getValue());
+			}
 		}
 	}
 
@@ -117,7 +235,113 @@ public class Cache {
 		instance.clear();
 	}
 
+	/**
+	 * Sets the maximum weight of the cache (~number of cached references), and evicts the LRU entries if needed
+	 * @param maxWeight
+	 */
+	public synchronized void setMaxWeight(int maxWeight) {
+		if(maxWeight<=0) throw new IllegalArgumentException("The maxWeight must be >0");
+		this.maxWeight = maxWeight;
+		evict();
+	}
+
+	public synchronized int getMaxWeight() {
+		return maxWeight;
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized int size() {
+		return cache.size();
+	}
 
+	/**
+	 * Returns a copy of the statistics, per key prefix
+	 * @return
+	 */
+	public synchronized Map<String, CacheStatistics> getStatistics() {
+		Map<String, CacheStatistics> res = new TreeMap<>();
+		for (CacheStatistics stats : prefix2stats.values()) {
+			res.put(stats.getPrefix(), new CacheStatistics(stats));
+		}
+		return res;
+	}
 
+	public synchronized void resetStatistics() {
+		for (CacheStatistics stats : prefix2stats.values()) {
+			stats.hits = 0;
+			stats.misses = 0;
+			stats.evictions = 0;
+			stats.expirations = 0;
+		}
+	}
+
+	/**
+	 * Evicts the expired entries then the least recently used entries, until the weight is below maxWeight.
+	 * Must be called from a synchronized block
+	 */
+	private void evict() {
+		if(weight<=maxWeight) return;
+		long time = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, CachedObject>> iterator = cache.entrySet().iterator(); weight>maxWeight && iterator.hasNext();) {
+			Map.Entry<String, CachedObject> e = iterator.next();
+			if(e.getValue().isExpired(time)) {
+				iterator.remove();
+				onRemove(e.getKey(), e.getValue()).expirations++;
+			}
+		}
+		for (Iterator<Map.Entry<String, CachedObject>> iterator = cache.entrySet().iterator(); weight>maxWeight && iterator.hasNext();) {
+			Map.Entry<String, CachedObject> e = iterator.next();
+			iterator.remove();
+			onRemove(e.getKey(), e.getValue()).evictions++;
+		}
+	}
+
+	/**
+	 * Updates the weight after an entry has been removed. Must be called from a synchronized block
+	 * @return the statistics of the removed entry
+	 */
+	private CacheStatistics onRemove(String name, CachedObject o) {
+		weight -= o.weight;
+		CacheStatistics stats = getStats(name);
+		stats.entries--;
+		stats.weight -= o.weight;
+		return stats;
+	}
+
+	private CacheStatistics getStats(String name) {
+		String prefix = getPrefix(name);
+		CacheStatistics stats = prefix2stats.get(prefix);
+		if(stats==null) {
+			stats = new CacheStatistics(prefix);
+			prefix2stats.put(prefix, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the prefix of the key used for the statistics: the leading lowercase words of the key, up to its variable part
+	 * (ex: "elb_links_1" -> "elb_links_", "study_biotypes_S-00001" -> "study_biotypes_", "employees_all" -> "employees_")
+	 */
+	private static String getPrefix(String name) {
+		int end = 0;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c=='_') {
+				end = i+1;
+			} else if(c<'a' || c>'z') {
+				break;
+			}
+		}
+		return end==0? name: name.substring(0, end);
+	}
+
+	private static int estimateWeight(Object obj) {
+		if(obj instanceof Collection) return 1 + ((Collection<?>) obj).size();
+		if(obj instanceof Map) return 1 + ((Map<?, ?>) obj).size();
+		return 1;
+	}
 
 }
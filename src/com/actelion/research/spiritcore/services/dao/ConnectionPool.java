@@ -0,0 +1,598 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.adapter.DBAdapter;
+
+/**
+ * Pool of JDBC connections, given to Hibernate as a DataSource (see JPAUtil.initFactory).
+ * <ul>
+ * <li>The physical connections are created by the DBAdapter, up to a maximum size. When all connections are used, the callers wait up to maxWaitMs.
+ * <li>The connections are validated when they are borrowed, if they have been idle for longer than validationIntervalMs.
+ * <li>The connections idle for longer than idleTimeoutMs are closed by a background thread (keeping minIdle connections).
+ * <li>The connections borrowed for longer than leakThresholdMs are reported as potential leaks.
+ * </ul>
+ * The borrowed connections are proxies: closing them returns the physical connection to the pool, after a rollback of the uncommitted changes.
+ * The proxies also count the statements created, see SpiritMetrics.
+ *
+ * @author Joel Freyss
+ */
+public class ConnectionPool implements DataSource {
+
+	private static Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+	/**
+	 * Configuration of the pool (see DBAdapter.getPoolConfig)
+	 */
+	public static class Config {
+		private int maxSize = 10;
+		private int minIdle = 1;
+		private long maxWaitMs = 30000;
+		private long idleTimeoutMs = 300000;
+		private long validationIntervalMs = 5000;
+		private long leakThresholdMs = 60000;
+		private boolean leakStackTrace = false;
+		private int isolation = -1;
+
+		public int getMaxSize() {
+			return maxSize;
+		}
+		public Config setMaxSize(int maxSize) {
+			this.maxSize = Math.max(1, maxSize);
+			return this;
+		}
+		public int getMinIdle() {
+			return minIdle;
+		}
+		public Config setMinIdle(int minIdle) {
+			this.minIdle = Math.max(0, minIdle);
+			return this;
+		}
+		public long getMaxWaitMs() {
+			return maxWaitMs;
+		}
+		public Config setMaxWaitMs(long maxWaitMs) {
+			this.maxWaitMs = maxWaitMs;
+			return this;
+		}
+		public long getIdleTimeoutMs() {
+			return idleTimeoutMs;
+		}
+		public Config setIdleTimeoutMs(long idleTimeoutMs) {
+			this.idleTimeoutMs = idleTimeoutMs;
+			return this;
+		}
+		public long getValidationIntervalMs() {
+			return validationIntervalMs;
+		}
+		/**
+		 * @param validationIntervalMs - the connections idle for longer are validated when borrowed (0 to validate them always)
+		 */
+		public Config setValidationIntervalMs(long validationIntervalMs) {
+			this.validationIntervalMs = validationIntervalMs;
+			return this;
+		}
+		public long getLeakThresholdMs() {
+			return leakThresholdMs;
+		}
+		/**
+		 * @param leakThresholdMs - the connections borrowed for longer are reported (0 to disable the leak detection)
+		 */
+		public Config setLeakThresholdMs(long leakThresholdMs) {
+			this.leakThresholdMs = leakThresholdMs;
+			return this;
+		}
+		public boolean isLeakStackTrace() {
+			return leakStackTrace;
+		}
+		/**
+		 * @param leakStackTrace - true to record the stacktrace of the borrower (costly), in order to report it with the leaks
+		 */
+		public Config setLeakStackTrace(boolean leakStackTrace) {
+			this.leakStackTrace = leakStackTrace;
+			return this;
+		}
+		public int getIsolation() {
+			return isolation;
+		}
+		/**
+		 * @param isolation - the transaction isolation of the connections (Connection.TRANSACTION_*), or -1 to keep the default of the driver
+		 */
+		public Config setIsolation(int isolation) {
+			this.isolation = isolation;
+			return this;
+		}
+	}
+
+	/**
+	 * Physical connection, and its proxy given to the borrower
+	 */
+	private class PooledConnection implements InvocationHandler {
+		private final Connection conn;
+		private final long created = System.currentTimeMillis();
+		private Connection proxy;
+		private long lastUsed = System.currentTimeMillis();
+		private long borrowed;
+		private String borrower;
+		private Exception borrowerStack;
+		private boolean leakReported;
+
+		public PooledConnection(Connection conn) {
+			this.conn = conn;
+		}
+
+		@Override
+		public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("close")) {
+				if(proxy==p) release(this);
+				return null;
+			} else if(name.equals("isClosed")) {
+				return proxy!=p || conn.isClosed();
+			} else if(name.equals("equals")) {
+				return p==args[0];
+			} else if(name.equals("hashCode")) {
+				return System.identityHashCode(p);
+			} else if(name.equals("toString")) {
+				return "[Pooled: " + conn + "]";
+			} else if(proxy!=p) {
+				throw new SQLException("The connection is closed");
+			} else if(name.equals("prepareStatement") || name.equals("createStatement") || name.equals("prepareCall")) {
+				SpiritMetrics.countStatement();
+			}
+			try {
+				return method.invoke(conn, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	private final DBAdapter adapter;
+	private final Config config;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Deque<PooledConnection> idle = new ArrayDeque<>();
+	private final Set<PooledConnection> active = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final ScheduledExecutorService evictor;
+	private int total = 0;
+	private int waiting = 0;
+	private boolean closed = false;
+
+	//Statistics
+	private long borrowCount = 0;
+	private long createdCount = 0;
+	private long destroyedCount = 0;
+	private long invalidCount = 0;
+	private long leakCount = 0;
+	private long timeoutCount = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+	private int maxActive = 0;
+
+	public ConnectionPool(DBAdapter adapter, Config config) {
+		this.adapter = adapter;
+		this.config = config;
+		this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ConnectionPool-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, Math.min(30000, Math.min(config.idleTimeoutMs, config.leakThresholdMs>0? config.leakThresholdMs: Long.MAX_VALUE)/2));
+		evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public Config getConfig() {
+		return config;
+	}
+
+	/**
+	 * Borrows a connection from the pool. The connection must be closed to be returned to the pool.
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(config.maxWaitMs);
+		while(true) {
+			PooledConnection pc;
+			lock.lock();
+			try {
+				waiting++;
+				try {
+					while(!closed && idle.isEmpty() && total>=config.maxSize) {
+						long remaining = deadline - System.nanoTime();
+						if(remaining<=0) {
+							timeoutCount++;
+							throw new SQLException("No connection available after " + config.maxWaitMs + "ms: " + this);
+						}
+						available.awaitNanos(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a connection", e);
+				} finally {
+					waiting--;
+				}
+				if(closed) throw new SQLException("The connection pool is closed");
+				pc = idle.pollFirst();
+				if(pc==null) total++;
+			} finally {
+				lock.unlock();
+			}
+
+			if(pc==null) {
+				//Create a new connection
+				try {
+					pc = new PooledConnection(create());
+				} catch (SQLException | RuntimeException e) {
+					lock.lock();
+					try {
+						total--;
+						available.signal();
+					} finally {
+						lock.unlock();
+					}
+					throw e;
+				}
+			} else if(!validate(pc)) {
+				//The connection is not valid anymore: destroy it and try the next one
+				destroy(pc);
+				lock.lock();
+				try {
+					invalidCount++;
+				} finally {
+					lock.unlock();
+				}
+				continue;
+			}
+
+			long now = System.currentTimeMillis();
+			pc.borrowed = now;
+			pc.borrower = Thread.currentThread().getName();
+			pc.borrowerStack = config.leakStackTrace? new Exception("Connection borrowed by " + pc.borrower): null;
+			pc.leakReported = false;
+			pc.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, pc);
+
+			long wait = System.nanoTime() - start;
+			lock.lock();
+			try {
+				active.add(pc);
+				borrowCount++;
+				totalWaitNanos += wait;
+				maxWaitNanos = Math.max(maxWaitNanos, wait);
+				maxActive = Math.max(maxActive, active.size());
+			} finally {
+				lock.unlock();
+			}
+			return pc.proxy;
+		}
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("The credentials are given by the DBAdapter");
+	}
+
+	private Connection create() throws SQLException {
+		Connection conn = adapter.getConnection();
+		conn.setAutoCommit(false);
+		if(config.isolation>=0) conn.setTransactionIsolation(config.isolation);
+		lock.lock();
+		try {
+			createdCount++;
+		} finally {
+			lock.unlock();
+		}
+		logger.debug("Create connection: " + this);
+		return conn;
+	}
+
+	private boolean validate(PooledConnection pc) {
+		if(System.currentTimeMillis()-pc.lastUsed<config.validationIntervalMs) return true;
+		try {
+			String testQuery = adapter.getTestQuery();
+			if(testQuery!=null && testQuery.length()>0) {
+				try (Statement stmt = pc.conn.createStatement()) {
+					stmt.execute(testQuery);
+				}
+				pc.conn.rollback();
+				return true;
+			}
+			return pc.conn.isValid(5);
+		} catch (Exception e) {
+			logger.warn("Invalid connection: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the connection to the pool, after rollbacking the uncommitted changes
+	 */
+	private void release(PooledConnection pc) {
+		pc.proxy = null;
+		boolean ok;
+		try {
+			if(!pc.conn.getAutoCommit()) pc.conn.rollback();
+			pc.conn.clearWarnings();
+			ok = !pc.conn.isClosed();
+		} catch (Exception e) {
+			logger.warn("Could not release the connection: " + e);
+			ok = false;
+		}
+		pc.lastUsed = System.currentTimeMillis();
+		pc.borrowerStack = null;
+
+		lock.lock();
+		try {
+			active.remove(pc);
+			if(ok && !closed) {
+				idle.addFirst(pc);
+				available.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		destroy(pc);
+	}
+
+	private void destroy(PooledConnection pc) {
+		try {
+			pc.conn.close();
+		} catch (Exception e) {
+			//Ignore
+		}
+		lock.lock();
+		try {
+			total--;
+			destroyedCount++;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the connections idle for too long, and reports the leaks
+	 */
+	private void evict() {
+		try {
+			long now = System.currentTimeMillis();
+			List<PooledConnection> toDestroy = new ArrayList<>();
+			List<PooledConnection> leaks = new ArrayList<>();
+			lock.lock();
+			try {
+				//The oldest connections are at the end of the deque
+				for (Iterator<PooledConnection> iter = idle.descendingIterator(); iter.hasNext() && idle.size()>config.minIdle;) {
+					PooledConnection pc = iter.next();
+					if(now-pc.lastUsed<config.idleTimeoutMs) break;
+					iter.remove();
+					toDestroy.add(pc);
+				}
+				if(config.leakThresholdMs>0) {
+					for (PooledConnection pc : active) {
+						if(!pc.leakReported && now-pc.borrowed>config.leakThresholdMs) {
+							pc.leakReported = true;
+							leakCount++;
+							leaks.add(pc);
+						}
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			for (PooledConnection pc : toDestroy) {
+				logger.debug("Close idle connection, created " + (now-pc.created)/1000 + "s ago");
+				destroy(pc);
+			}
+			for (PooledConnection pc : leaks) {
+				logger.warn("Potential connection leak: borrowed by " + pc.borrower + " " + (now-pc.borrowed)/1000 + "s ago", pc.borrowerStack);
+			}
+		} catch (Throwable e) {
+			logger.error("Error in the connection evictor", e);
+		}
+	}
+
+	/**
+	 * Closes the pool and all the idle connections. The borrowed connections are closed when they are returned.
+	 */
+	public void close() {
+		List<PooledConnection> toDestroy;
+		lock.lock();
+		try {
+			closed = true;
+			toDestroy = new ArrayList<>(idle);
+			idle.clear();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		evictor.shutdownNow();
+		for (PooledConnection pc : toDestroy) {
+			destroy(pc);
+		}
+		logger.debug("Pool closed: " + this);
+	}
+
+	/**
+	 * Returns the number of borrowed connections
+	 */
+	public int getActiveCount() {
+		lock.lock();
+		try {
+			return active.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of connections available in the pool
+	 */
+	public int getIdleCount() {
+		lock.lock();
+		try {
+			return idle.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of threads waiting for a connection
+	 */
+	public int getWaitingCount() {
+		lock.lock();
+		try {
+			return waiting;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum number of connections borrowed at the same time
+	 */
+	public int getMaxActiveCount() {
+		lock.lock();
+		try {
+			return maxActive;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getBorrowCount() {
+		lock.lock();
+		try {
+			return borrowCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the average time spent to borrow a connection (waiting, validation and creation included)
+	 */
+	public double getAverageWaitMs() {
+		lock.lock();
+		try {
+			return borrowCount==0? 0: totalWaitNanos / 1e6 / borrowCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public double getMaxWaitMs() {
+		lock.lock();
+		try {
+			return maxWaitNanos / 1e6;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getLeakCount() {
+		lock.lock();
+		try {
+			return leakCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "[ConnectionPool: active=" + active.size() + " idle=" + idle.size() + " waiting=" + waiting + " max=" + config.maxSize
+					+ " maxActive=" + maxActive + " borrowed=" + borrowCount + " created=" + createdCount + " destroyed=" + destroyedCount
+					+ " invalid=" + invalidCount + " timeouts=" + timeoutCount + " leaks=" + leakCount
+					+ " avgWait=" + String.format("%.2f", borrowCount==0? 0: totalWaitNanos / 1e6 / borrowCount) + "ms maxWait=" + String.format("%.2f", maxWaitNanos / 1e6) + "ms]";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return null;
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return 0;
+	}
+
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if(iface.isInstance(this)) return iface.cast(this);
+		throw new SQLException("Not a wrapper for " + iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+}
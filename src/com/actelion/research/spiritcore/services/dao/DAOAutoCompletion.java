@@ -0,0 +1,376 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.biosample.Biotype;
+import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
+import com.actelion.research.spiritcore.business.result.Result;
+import com.actelion.research.spiritcore.business.result.ResultValue;
+import com.actelion.research.spiritcore.business.result.TestAttribute;
+import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.util.MiscUtils;
+import com.actelion.research.spiritcore.util.PrefixTrie;
+
+/**
+ * In-memory autocompletion service for the biotype metadata, names, comments and the test attributes.
+ * <br>
+ * A frequency-ranked PrefixTrie is kept per (field, study), for the MAX_TRIES most recently used keys.
+ * The trie is loaded once from the DB (one group by query, limited to the MAX_ROWS most frequent values),
+ * and is then updated incrementally when biosamples or results are created or deleted through the DAOs.
+ * When they are updated, the tries of their fields are removed, so that the replaced values are not proposed anymore.
+ * The tries are reloaded after REFRESH_SEC, to see the changes done by other clients.
+ *
+ * @author Joel Freyss
+ */
+public class DAOAutoCompletion {
+
+	private static Logger logger = LoggerFactory.getLogger(DAOAutoCompletion.class);
+
+	/** Time to live of a trie, before it is reloaded from the DB */
+	public static final int REFRESH_SEC = 1800;
+
+	/** Number of values returned by DAOTest.getAutoCompletionFields */
+	public static final int MAX_ATTRIBUTE_VALUES = 100;
+
+	/** Number of values proposed in the popup of the autocompletion components */
+	public static final int MAX_POPUP_VALUES = 50;
+
+	/** Maximum number of distinct values loaded in a trie */
+	public static final int MAX_ROWS = 3000;
+
+	/** Maximum number of tries kept in memory */
+	private static final int MAX_TRIES = 200;
+
+	public static enum Field {
+		METADATA,
+		NAME,
+		COMMENTS,
+		ATTRIBUTE
+	}
+
+	private static class Entry {
+		private final PrefixTrie trie = new PrefixTrie();
+		private final long expire = System.currentTimeMillis() + REFRESH_SEC * 1000L;
+		private int sortedVersion = -1;
+		private TreeSet<String> sorted;
+	}
+
+	/**
+	 * Access-ordered map of the tries: the least recently used trie is removed when there are more than MAX_TRIES
+	 */
+	private static final Map<String, Entry> key2entry = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, .75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size()>MAX_TRIES;
+		}
+	});
+
+	private static String getKey(Field field, int id, Study study) {
+		return field + "_" + id + "_" + (study==null? 0: study.getId());
+	}
+
+	/**
+	 * Returns the trie of the given metadata, loaded from the DB if needed
+	 * @param metadata
+	 * @param study - the study (or null for all studies)
+	 */
+	public static PrefixTrie getTrie(BiotypeMetadata metadata, Study study) {
+		if(metadata==null || metadata.getId()<=0) return new PrefixTrie();
+		return getEntry(Field.METADATA, metadata.getId(), study, DAOMetadataValue.canQuery(metadata)).trie;
+	}
+
+	/**
+	 * Returns the trie of the names or comments of the given biotype, loaded from the DB if needed
+	 * @param field - NAME or COMMENTS
+	 * @param biotype
+	 * @param study - the study (or null for all studies)
+	 */
+	public static PrefixTrie getTrie(Field field, Biotype biotype, Study study) {
+		assert field==Field.NAME || field==Field.COMMENTS;
+		if(biotype==null || biotype.getId()<=0) return new PrefixTrie();
+		return getEntry(field, biotype.getId(), study, true).trie;
+	}
+
+	/**
+	 * Returns the trie of the given attribute, loaded from the DB if needed
+	 */
+	public static PrefixTrie getTrie(TestAttribute att) {
+		if(att==null || att.getId()<=0) return new PrefixTrie();
+		return getEntry(Field.ATTRIBUTE, att.getId(), null, true).trie;
+	}
+
+	/**
+	 * Returns all the values of the given metadata, sorted with CompareUtils.STRING_COMPARATOR.
+	 */
+	public static Set<String> getValues(BiotypeMetadata metadata, Study study) {
+		if(metadata==null || metadata.getId()<=0) return new TreeSet<>();
+		return getSorted(getEntry(Field.METADATA, metadata.getId(), study, DAOMetadataValue.canQuery(metadata)));
+	}
+
+	/**
+	 * Returns all the names or comments of the given biotype, sorted with CompareUtils.STRING_COMPARATOR.
+	 */
+	public static Set<String> getValues(Field field, Biotype biotype, Study study) {
+		if(biotype==null || biotype.getId()<=0) return new TreeSet<>();
+		return getSorted(getEntry(field, biotype.getId(), study, true));
+	}
+
+	/**
+	 * Returns the k most frequent values of the given metadata, starting with the given prefix (case insensitive)
+	 */
+	public static List<String> complete(BiotypeMetadata metadata, Study study, String prefix, int k) {
+		return getTrie(metadata, study).topK(prefix, k);
+	}
+
+	/**
+	 * Returns the k most frequent values of the given attribute, starting with the given prefix (case insensitive)
+	 */
+	public static List<String> complete(TestAttribute att, String prefix, int k) {
+		return getTrie(att).topK(prefix, k);
+	}
+
+	/**
+	 * Returns the k most frequent names or comments of the given biotype, starting with the given prefix (case insensitive)
+	 */
+	public static List<String> complete(Field field, Biotype biotype, Study study, String prefix, int k) {
+		return getTrie(field, biotype, study).topK(prefix, k);
+	}
+
+	private static Set<String> getSorted(Entry entry) {
+		synchronized (entry) {
+			int version = entry.trie.getVersion();
+			if(entry.sorted==null || entry.sortedVersion!=version) {
+				entry.sorted = entry.trie.getSortedWords();
+				entry.sortedVersion = version;
+			}
+			//Copy of a sorted set: done in linear time
+			return new TreeSet<>(entry.sorted);
+		}
+	}
+
+	private static Entry getEntry(Field field, int id, Study study, boolean indexed) {
+		String key = getKey(field, id, study);
+		Entry entry = key2entry.get(key);
+		if(entry==null || entry.expire<System.currentTimeMillis()) {
+			entry = new Entry();
+			try {
+				load(entry.trie, field, id, study, indexed);
+			} catch(Exception e) {
+				logger.error("Could not load the autocompletion of " + key, e);
+			}
+			key2entry.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Loads the trie from the DB
+	 * @param indexed - for the metadata, true if the values can be read from the normalized table (BiosampleMetadataValue), instead of the serialized metadata
+	 */
+	@SuppressWarnings("unchecked")
+	private static void load(PrefixTrie trie, Field field, int id, Study study, boolean indexed) {
+		long s = System.currentTimeMillis();
+		EntityManager session = JPAUtil.getManager();
+		Query query;
+		switch (field) {
+		case METADATA:
+			if(indexed) {
+				query = session.createQuery("select v.value, count(*) from BiosampleMetadataValue v where v.metadataId = ?1"
+						+ (study!=null? " and v.biosampleId in (select b.id from Biosample b where b.inheritedStudy = ?2)": "")
+						+ " group by v.value order by count(*) desc");
+			} else {
+				query = session.createQuery("select b.serializedMetadata, count(*) from Biosample b "
+						+ " where concat(';', b.serializedMetadata, '%') like '%;" + id + "=%'"
+						+ " and not concat(';', b.serializedMetadata, '%') like '%;" + id + "=;%'"
+						+ (study!=null? " and b.inheritedStudy = ?2": "")
+						+ " group by b.serializedMetadata order by count(*) desc");
+			}
+			break;
+		case NAME:
+			query = session.createQuery("select b.name, count(*) from Biosample b where b.biotype.id = ?1 and length(b.name)>0"
+					+ (study!=null? " and b.inheritedStudy = ?2": "")
+					+ " group by b.name order by count(*) desc");
+			break;
+		case COMMENTS:
+			query = session.createQuery("select b.comments, count(*) from Biosample b where b.biotype.id = ?1 and length(b.comments)>0"
+					+ (study!=null? " and b.inheritedStudy = ?2": "")
+					+ " group by b.comments order by count(*) desc");
+			break;
+		case ATTRIBUTE:
+			query = session.createQuery("select rv.value, count(*) from ResultValue rv where rv.attribute.id = ?1 and rv.value is not null group by rv.value order by count(*) desc");
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid field: " + field);
+		}
+		if(field!=Field.METADATA || indexed) query.setParameter(1, id);
+		if(study!=null && field!=Field.ATTRIBUTE) query.setParameter(2, study);
+		query.setMaxResults(MAX_ROWS);
+
+		for (Object[] row : (List<Object[]>) query.getResultList()) {
+			String value = (String) row[0];
+			int count = ((Number) row[1]).intValue();
+			if(field==Field.METADATA && !indexed) {
+				value = MiscUtils.deserializeIntegerMap(value).get(id);
+			}
+			trie.add(value, count);
+		}
+		logger.debug("Loaded autocompletion of " + field + " " + id + " " + (study==null? "": study.getStudyId()) + ": " + trie.size() + " values in " + (System.currentTimeMillis()-s) + "ms");
+	}
+
+	/**
+	 * Updates the loaded tries with the values of the saved biosamples (the tries are not loaded if they are not yet in memory).
+	 * The frequencies of the values of the new biosamples are incremented.
+	 * The old values of the updated biosamples are not known, so the tries of their biotypes are removed (and reloaded on the next access).
+	 * @param created - the biosamples, which have been inserted
+	 * @param updated - the biosamples, which have been updated
+	 */
+	public static void onPersistBiosamples(Collection<Biosample> created, Collection<Biosample> updated) {
+		updateBiosamples(created, 1);
+		if(updated!=null && !key2entry.isEmpty()) {
+			for (Biotype biotype : Biosample.getBiotypes(updated)) {
+				invalidate(biotype);
+			}
+		}
+	}
+
+	/**
+	 * Decrements the frequencies of the values of the deleted biosamples in the loaded tries
+	 */
+	public static void onDeleteBiosamples(Collection<Biosample> biosamples) {
+		updateBiosamples(biosamples, -1);
+	}
+
+	/**
+	 * Updates the loaded tries with the values of the saved results (the tries are not loaded if they are not yet in memory).
+	 * The tries of the attributes of the updated results are removed (and reloaded on the next access).
+	 * @param created - the results, which have been inserted
+	 * @param updated - the results, which have been updated
+	 */
+	public static void onPersistResults(Collection<Result> created, Collection<Result> updated) {
+		updateResults(created, 1);
+		if(updated!=null && !key2entry.isEmpty()) {
+			Set<TestAttribute> atts = new HashSet<>();
+			for (Result r : updated) {
+				for (ResultValue rv : r.getResultValues()) {
+					if(rv.getAttribute()!=null) atts.add(rv.getAttribute());
+				}
+			}
+			for (TestAttribute att : atts) {
+				invalidate(att);
+			}
+		}
+	}
+
+	/**
+	 * Decrements the frequencies of the values of the deleted results in the loaded tries
+	 */
+	public static void onDeleteResults(Collection<Result> results) {
+		updateResults(results, -1);
+	}
+
+	private static void updateBiosamples(Collection<Biosample> biosamples, int delta) {
+		if(key2entry.isEmpty() || biosamples==null) return;
+		for (Biosample b : biosamples) {
+			Biotype biotype = b.getBiotype();
+			if(biotype==null || biotype.getId()<=0) continue;
+			Study study = b.getInheritedStudy();
+			for (BiotypeMetadata bm : biotype.getMetadata()) {
+				update(Field.METADATA, bm.getId(), study, b.getMetadataValue(bm), delta);
+			}
+			update(Field.NAME, biotype.getId(), study, b.getSampleName(), delta);
+			update(Field.COMMENTS, biotype.getId(), study, b.getComments(), delta);
+		}
+	}
+
+	private static void updateResults(Collection<Result> results, int delta) {
+		if(key2entry.isEmpty() || results==null) return;
+		for (Result r : results) {
+			for (ResultValue rv : r.getResultValues()) {
+				if(rv.getAttribute()==null) continue;
+				update(Field.ATTRIBUTE, rv.getAttribute().getId(), null, rv.getValue(), delta);
+			}
+		}
+	}
+
+	/**
+	 * Updates the frequency of the value in the loaded tries of the field (global and study specific)
+	 * @param delta - the increment
+	 */
+	private static void update(Field field, int id, Study study, String value, int delta) {
+		if(value==null || value.length()==0 || id<=0) return;
+		update(key2entry.get(getKey(field, id, null)), value, delta);
+		if(study!=null && study.getId()>0) {
+			update(key2entry.get(getKey(field, id, study)), value, delta);
+		}
+	}
+
+	private static void update(Entry entry, String value, int delta) {
+		if(entry==null) return;
+		entry.trie.add(value, delta);
+	}
+
+	/**
+	 * Removes the tries of the given biotype (after a change of its metadata or a rename of its values)
+	 */
+	public static void invalidate(Biotype biotype) {
+		if(biotype==null) return;
+		synchronized (key2entry) {
+			key2entry.keySet().removeIf(k -> k.startsWith(Field.NAME + "_" + biotype.getId() + "_") || k.startsWith(Field.COMMENTS + "_" + biotype.getId() + "_"));
+			for (BiotypeMetadata bm : biotype.getMetadata()) {
+				key2entry.keySet().removeIf(k -> k.startsWith(Field.METADATA + "_" + bm.getId() + "_"));
+			}
+		}
+	}
+
+	/**
+	 * Removes the tries of the given attribute
+	 */
+	public static void invalidate(TestAttribute att) {
+		if(att==null) return;
+		synchronized (key2entry) {
+			key2entry.keySet().removeIf(k -> k.startsWith(Field.ATTRIBUTE + "_" + att.getId() + "_"));
+		}
+	}
+
+	/**
+	 * Removes all tries
+	 */
+	public static void clearAll() {
+		key2entry.clear();
+	}
+}
@@ -21,16 +21,21 @@
 
 package com.actelion.research.spiritcore.services.dao;
 
+import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
 
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.actelion.research.spiritcore.business.biosample.BarcodeSequence;
@@ -39,6 +44,7 @@ import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
 import com.actelion.research.spiritcore.business.biosample.ContainerType;
 import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.util.ListHashMap;
 import com.actelion.research.spiritcore.util.MiscUtils;
 
 /**
@@ -48,16 +54,155 @@ import com.actelion.research.spiritcore.util.MiscUtils;
  */
 public class DAOBarcode {
 
+	private static Logger logger = LoggerFactory.getLogger(DAOBarcode.class);
+
+	/**
+	 * Minimum and maximum number of ids reserved at each refill of a block (biosamples and containers).
+	 * The size of the block is doubled when the block is refilled within ADAPT_MS, and halved otherwise.
+	 */
+	private static final int MIN_BLOCK = 10;
+	private static final int MAX_BLOCK = 500;
+	private static final long ADAPT_MS = 10000;
+
 	/**
-	 * Maximum tolerated sequence hole in the barcode sequences
+	 * Maximum number of attempts to update the sequence, when other clients update it concurrently
 	 */
-	private static final int MAX_HOLE = 100; //To be increased with the number of users
-	private static Map<String, List<String>> prefix2PrecomputedIds = new HashMap<>();
-	private static Map<String, String> lastUsedIds = new HashMap<>();
+	private static final int MAX_RETRIES = 20;
+
+	/**
+	 * Block of reserved ids for a given category and formatted pattern: the ids [next, end[ are available.
+	 * The block is only accessed while holding its lock.
+	 */
+	private static class Block {
+		private final Category cat;
+		private final String pattern;
+		private final String prefix;
+		private final String suffix;
+		private final DecimalFormat format;
+		private final int digits;
+		private int next = 0;
+		private int end = 0;
+		private int lastUsed = 0;
+		private int blockSize;
+		private long lastRefill = 0;
+		/** true after the first refill, when the sequence has been checked against the DB */
+		private boolean initialized = false;
+
+		public Block(Category cat, String pattern) {
+			assert pattern.contains("#");
+			int firstIndex = pattern.indexOf("#");
+			int lastIndex = pattern.lastIndexOf("#");
+			String suffix = pattern.substring(lastIndex+1);
+			this.cat = cat;
+			this.pattern = pattern;
+			this.prefix = pattern.substring(0, firstIndex);
+			this.suffix = suffix.equals("-N")? "": suffix;
+			this.digits = lastIndex-firstIndex+1;
+			this.format = new DecimalFormat(MiscUtils.repeat("0", digits));
+			this.blockSize = getMinBlockSize();
+		}
+
+		private int getMinBlockSize() {
+			return cat==Category.BIOSAMPLE || cat==Category.CONTAINER? MIN_BLOCK: 1;
+		}
+
+		private int getMaxBlockSize() {
+			return cat==Category.BIOSAMPLE || cat==Category.CONTAINER? MAX_BLOCK: 1;
+		}
+
+		/**
+		 * Releases the reserved ids, so that the next refill checks the sequence against the DB again.
+		 * The block size is kept
+		 */
+		private void invalidate() {
+			next = 0;
+			end = 0;
+			lastUsed = 0;
+			initialized = false;
+		}
 
-	public static synchronized void reset() {
-		prefix2PrecomputedIds.clear();
-		lastUsedIds.clear();
+		/**
+		 * Releases the remaining reserved ids (ex: an id was given manually after them), so that the next refill checks the DB again.
+		 * Contrary to invalidate, the ids are never given backwards
+		 */
+		private void skip() {
+			next = 0;
+			end = 0;
+			initialized = false;
+		}
+
+		private String format(int increment) {
+			return prefix + format.format(increment) + suffix;
+		}
+
+		/**
+		 * Returns true if the barcode follows the pattern, like the barcodes considered by getLastBarcode
+		 */
+		private boolean matches(String barcode) {
+			if(barcode==null || barcode.length()<prefix.length() + digits + suffix.length()) return false;
+			if(!barcode.startsWith(prefix) || !barcode.endsWith(suffix)) return false;
+			String middle = barcode.substring(prefix.length(), barcode.length()-suffix.length());
+			return MiscUtils.extractStartDigits(middle).length()==middle.length();
+		}
+
+		/**
+		 * Returns the increment of the given barcode, or 0 if the barcode does not follow the pattern
+		 */
+		private int parse(String barcode) {
+			if(barcode==null || !barcode.startsWith(prefix)) return 0;
+			String digits = MiscUtils.extractStartDigits(barcode.substring(prefix.length()));
+			try {
+				return digits.length()==0? 0: Integer.parseInt(digits);
+			} catch (Exception e) {
+				return 0;
+			}
+		}
+	}
+
+	private static final Map<String, Block> key2block = new ConcurrentHashMap<>();
+
+	/**
+	 * Releases all the reserved ids
+	 */
+	public static void reset() {
+		key2block.clear();
+	}
+
+	/**
+	 * Called after each new revision.
+	 * If the sequences are not used, the reserved ids are released, as ids may have been given manually or deleted: the next refill checks the last barcode in the DB again.
+	 * If the sequences are used, the BarcodeSequence is the only source of truth and the blocks are kept (the manual ids are handled by onPersist)
+	 */
+	public static void onNewRevision() {
+		if(SpiritProperties.getInstance().isChecked(PropertyKey.SYSTEM_USEBARCODESEQUENCE)) return;
+		for (Block block : key2block.values()) {
+			synchronized (block) {
+				block.invalidate();
+			}
+		}
+	}
+
+	/**
+	 * Called before persisting barcodes of the given category.
+	 * If a barcode was given manually after the reserved ids of a block, the block is released, so that its next refill skips this barcode.
+	 * The barcodes generated from the blocks are below the next id, and therefore ignored
+	 * @param cat
+	 * @param barcodes
+	 */
+	public static void onPersist(Category cat, Collection<String> barcodes) {
+		for (Block block : key2block.values()) {
+			if(block.cat!=cat) continue;
+			synchronized (block) {
+				if(!block.initialized) continue;
+				for (String barcode : barcodes) {
+					if(block.matches(barcode) && block.parse(barcode)>=block.next) {
+						logger.debug("Manual barcode " + barcode + " after the block of " + block.pattern);
+						block.skip();
+						break;
+					}
+				}
+			}
+		}
 	}
 
 	/**
@@ -168,134 +313,173 @@ public class DAOBarcode {
 	}
 
 	private static String getNextId(Category cat, String pattern, Biosample context) {
-		String formattedPattern = formatPattern(pattern, context);
-
-		assert formattedPattern.contains("#");
-		int firstIndex = formattedPattern.indexOf("#");
-		int lastIndex = formattedPattern.lastIndexOf("#");
-		int prefLength = firstIndex;
-		int incrementLength = lastIndex-firstIndex+1;
-		int suffLength = formattedPattern.length() - lastIndex-1;
-		String suffix = formattedPattern.substring(formattedPattern.length()-suffLength);
-		if(suffix.equals("-N")) suffix = "";
-
-		//Retrieve next id
-		List<String> list = prefix2PrecomputedIds.get(cat+"_"+formattedPattern);
-		boolean newPrefix = list == null;
+		return getNextIds(cat, pattern, context, 1).get(0);
+	}
 
-		//Generate next id
-		if(list==null || list.size()==0) {
+	/**
+	 * Gets the next n ids for the given pattern.
+	 * The ids are taken from a block of reserved ids, which is refilled from the BarcodeSequence when needed.
+	 * This function is thread-safe.
+	 *
+	 * @param cat
+	 * @param pattern - the pattern (before formatting, see formatPattern)
+	 * @param context - the biosample used to format the pattern (can be null)
+	 * @param n
+	 * @return
+	 */
+	public static List<String> getNextIds(Category cat, String pattern, Biosample context, int n) {
+		String formattedPattern = formatPattern(pattern, context);
+		Block block = key2block.computeIfAbsent(cat + "_" + formattedPattern, k -> new Block(cat, formattedPattern));
 
+		List<String> res = new ArrayList<>();
+		synchronized (block) {
+			while(res.size()<n) {
+				if(block.next>=block.end) {
+					refill(block, n - res.size());
+				}
+				block.lastUsed = block.next++;
+				res.add(block.format(block.lastUsed));
+			}
+		}
+		logger.debug("getNextIds for " + formattedPattern + " = " + res);
+		return res;
+	}
 
-			list = new ArrayList<>();
-			prefix2PrecomputedIds.put(cat+"_"+formattedPattern, list);
+	/**
+	 * Generates the missing sampleIds of the given biosamples.
+	 * The ids are generated by batch, for the biosamples sharing the same pattern.
+	 * @param biosamples
+	 * @throws Exception if a biotype has no prefix
+	 */
+	public static void generateSampleIds(Collection<Biosample> biosamples) throws Exception {
+		ListHashMap<String, Biosample> pattern2biosamples = new ListHashMap<>();
+		for (Biosample b : biosamples) {
+			if(b.getSampleId()!=null && b.getSampleId().length()>0) continue;
+			if(b.getBiotype()==null) throw new Exception("You must give a biotype");
+			String prefix = b.getBiotype().getPrefix();
+			if(prefix==null || prefix.length()==0) throw new Exception("SampleIds cannot be generated for " + b.getBiotype().getName() + " because the prefix is null");
+			if(prefix.contains("{StudyId}") && b.getInheritedStudy()==null) throw new Exception("You nust select a study first");
+			pattern2biosamples.add(formatPattern(prefix, b), b);
+		}
+		for (Map.Entry<String, List<Biosample>> e : pattern2biosamples.entrySet()) {
+			List<String> ids = getNextIds(Category.BIOSAMPLE, e.getKey(), null, e.getValue().size());
+			for (int i = 0; i < ids.size(); i++) {
+				e.getValue().get(i).setSampleId(ids.get(i));
+			}
+		}
+	}
 
-			int reserveN = cat==Category.BIOSAMPLE || cat==Category.CONTAINER? 10: 1;
+	/**
+	 * Refills the block with up to n ids (and at most getMaxBlockSize ids, the caller loops for larger n).
+	 * The block size is adapted to the demand.
+	 * If the sequences are used, the ids are reserved in the BarcodeSequence table:
+	 * the last barcode in the DB is only checked at the first refill of the block (or after a manual id, see onPersist), to skip the ids, which may have been given manually.
+	 * The sequence never goes backwards, so that the ids reserved by other clients are never reused.
+	 */
+	private static void refill(Block block, int n) {
+		long now = System.currentTimeMillis();
+		if(block.initialized) {
+			block.blockSize = now-block.lastRefill<ADAPT_MS? Math.min(block.getMaxBlockSize(), block.blockSize*2): Math.max(block.getMinBlockSize(), block.blockSize/2);
+		}
+		int reserveN = Math.min(Math.max(n, block.blockSize), block.getMaxBlockSize());
+		boolean useSequence = SpiritProperties.getInstance().isChecked(PropertyKey.SYSTEM_USEBARCODESEQUENCE);
+
+		//Find the first possible increment
+		int startIncrement = block.lastUsed + 1;
+		if(!block.initialized || !useSequence) {
+			String lastDBBarcode = getLastBarcode(block.cat, block.pattern);
+			startIncrement = Math.max(startIncrement, block.parse(lastDBBarcode) + 1);
+		}
 
-			//Find the last used increment
-			int startIncrement = 1;
+		if(useSequence) {
+			startIncrement = reserve(block, startIncrement, reserveN);
+		}
 
-			String lastDBBarcode = getLastBarcode(cat, formattedPattern);
-			if(lastDBBarcode==null) {
-				startIncrement = 1;
-			} else {
-				lastDBBarcode = MiscUtils.extractStartDigits(lastDBBarcode.substring(prefLength));
-				try {
-					startIncrement = lastDBBarcode.length()==0? 1: 1 + Integer.parseInt(MiscUtils.extractStartDigits(lastDBBarcode));
-				} catch (Exception e) {
-					System.err.println("Error in getting last barcode: "+e);
-				}
-			}
-			System.out.println("DAOBarcode.getNextId() startIncrement="+startIncrement);
-
-			String lastUsed = lastUsedIds.get(cat+"_"+formattedPattern);
-			if(lastUsed!=null) {
-				lastUsed = MiscUtils.extractStartDigits(lastUsed.substring(prefLength));
-				try {
-					int startIncrement2 = lastUsed.length()==0? 1: 1 + Integer.parseInt(lastUsed);
-					System.out.println("DAOBarcode.getNextId() startIncrement2="+startIncrement2+"  --> startIncrement="+startIncrement);
-					startIncrement = Math.max(startIncrement, startIncrement2);
-				} catch (Exception e) {
-					System.err.println("Error in getting last barcode: "+e);
-				}
-			}
+		logger.debug("Reserve " + reserveN + " ids for " + block.pattern + ": start at " + startIncrement);
+		block.next = startIncrement;
+		block.end = startIncrement + reserveN;
+		block.lastRefill = now;
+		block.initialized = true;
+	}
 
+	/**
+	 * Returns true if the exception is caused by the violation of a unique constraint (SQLState 23xxx)
+	 */
+	private static boolean isConstraintViolation(Throwable e) {
+		for(Throwable t = e; t!=null; t = t.getCause()) {
+			if(t instanceof SQLException && ((SQLException) t).getSQLState()!=null && ((SQLException) t).getSQLState().startsWith("23")) return true;
+		}
+		return false;
+	}
 
-			//Find the theoretical last barcode, and update it.
-			//Be careful to create a new session, otherwise we may commit all other changes
-			if(SpiritProperties.getInstance().isChecked(PropertyKey.SYSTEM_USEBARCODESEQUENCE)) {
-				EntityTransaction txn = null;
-				EntityManager session = null;
-				try {
-					session = JPAUtil.createManager();
-
-					List<BarcodeSequence> barcodeSequences = session.createQuery("from BarcodeSequence bs where type = ?1 and category = ?2")
-							.setParameter(1, formattedPattern)
-							.setParameter(2, cat)
-							.getResultList();
-					txn = session.getTransaction();
-					txn.begin();
-					if(barcodeSequences.size()==0) {
-						//Create a new sequence
-						String nextBarcode =  formattedPattern.substring(0, prefLength) + new DecimalFormat(MiscUtils.repeat("0", incrementLength)).format(startIncrement+reserveN-1) + suffix;
-						LoggerFactory.getLogger(DAOBarcode.class).debug("Create new sequence for " + formattedPattern + " = " + nextBarcode);
-						BarcodeSequence sequence = new BarcodeSequence(cat, formattedPattern, nextBarcode);
+	/**
+	 * Reserves the ids [start, start+reserveN[ in the BarcodeSequence, where start is the first id after the sequence (and at least minIncrement).
+	 * At the first refill of the block, the sequence starts at ##1 if possible.
+	 * The sequence is updated atomically (compare and set), in its own EntityManager, so that no other changes are committed.
+	 * @return start
+	 */
+	@SuppressWarnings("unchecked")
+	private static int reserve(Block block, int minIncrement, int reserveN) {
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		try {
+			session = JPAUtil.createManager();
+			for (int retry = 0; retry < MAX_RETRIES; retry++) {
+				txn = session.getTransaction();
+				txn.begin();
+				List<BarcodeSequence> barcodeSequences = session.createQuery("from BarcodeSequence bs where type = ?1 and category = ?2 order by bs.id")
+						.setParameter(1, block.pattern)
+						.setParameter(2, block.cat)
+						.getResultList();
+
+				if(barcodeSequences.size()==0) {
+					//Create a new sequence. The sequence is unique per type and category, so the commit fails if another client has created it concurrently
+					int start = minIncrement;
+					logger.debug("Create new sequence for " + block.pattern + " = " + block.format(start+reserveN-1));
+					BarcodeSequence sequence = new BarcodeSequence(block.cat, block.pattern, block.format(start+reserveN-1));
+					try {
 						session.persist(sequence);
-					} else {
-						BarcodeSequence sequence = barcodeSequences.get(0);
-						String lastBarcode = sequence.getLastBarcode();
-						LoggerFactory.getLogger(DAOBarcode.class).debug("Last barcode from seq for " + formattedPattern+ " = " + lastBarcode);
-						int startBarcodeSeq;
-						try {
-							startBarcodeSeq = lastBarcode==null? 1: 1 + Integer.parseInt(MiscUtils.extractStartDigits(lastBarcode));
-						} catch (Exception e) {
-							startBarcodeSeq = startIncrement;
-						}
-						if(newPrefix) {
-							LoggerFactory.getLogger(DAOBarcode.class).debug("Last barcodes: seq="+startBarcodeSeq+" / db="+startIncrement);
-							if(startBarcodeSeq<startIncrement) {
-								//The sequence number is smaller than the actual sampleId
-								LoggerFactory.getLogger(DAOBarcode.class).debug("Error in the naming for sequence prefix: "+formattedPattern+ ", restart at "+startIncrement+" instead of "+startBarcodeSeq);
-								startBarcodeSeq = startIncrement;
-							} else if(startIncrement>=0 && startBarcodeSeq> startIncrement + MAX_HOLE) {
-								//Such a big hole in the sequence is very unlikely,
-								LoggerFactory.getLogger(DAOBarcode.class).debug("Fix hole in NextId Sequence for prefix: "+formattedPattern+ ", restart at "+startIncrement+" instead of "+startBarcodeSeq);
-								startBarcodeSeq = startIncrement;
-							} else if(startBarcodeSeq<startIncrement) {
-
-							} else {
-								LoggerFactory.getLogger(DAOBarcode.class).debug("continue at "+startBarcodeSeq);
-							}
-						}
+						txn.commit();
+						txn = null;
+						return start;
+					} catch(PersistenceException e) {
+						if(!isConstraintViolation(e)) throw e;
+						logger.debug("Concurrent creation of the sequence " + block.pattern + ", retry");
+						if(txn.isActive()) txn.rollback();
+						txn = null;
+
+						//The EntityManager cannot be used after a failed flush: update the sequence created by the other client from a new one
+						session.close();
+						session = JPAUtil.createManager();
+						continue;
+					}
+				} else {
+					//Update the sequence, if nobody else did it in between
+					BarcodeSequence sequence = barcodeSequences.get(0);
+					String lastBarcode = sequence.getLastBarcode();
+					int start = Math.max(minIncrement, block.parse(lastBarcode) + 1);
+					if(!block.initialized) {
 						//Start the sequence at ##1 if possible
-						while(startBarcodeSeq%10!=1) startBarcodeSeq++;
-						startIncrement = startBarcodeSeq;
-						sequence.setLastBarcode(formattedPattern.substring(0, prefLength) + new DecimalFormat(MiscUtils.repeat("0", incrementLength)).format(startIncrement+reserveN-1) + suffix);
+						while(start%10!=1) start++;
 					}
+					Query query = session.createQuery("update BarcodeSequence bs set bs.lastBarcode = ?1 where bs.id = ?2 and "
+							+ (lastBarcode==null? "bs.lastBarcode is null": "bs.lastBarcode = ?3"))
+							.setParameter(1, block.format(start+reserveN-1))
+							.setParameter(2, sequence.getId());
+					if(lastBarcode!=null) query.setParameter(3, lastBarcode);
+					int updated = query.executeUpdate();
 					txn.commit();
 					txn = null;
-
-				} finally {
-					if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
-					if(session!=null) try{session.close();}catch (Exception e) {e.printStackTrace();}
+					if(updated==1) return start;
+					logger.debug("Concurrent update of the sequence " + block.pattern + ", retry");
 				}
+				session.clear();
 			}
-
-			//Reserve the barcodes for future use
-			LoggerFactory.getLogger(DAOBarcode.class).debug("Reserve Ids for "+formattedPattern+" : start at "+startIncrement+" lastUsed="+lastUsed+" lastDBBarcode="+lastDBBarcode);
-			for (int i = 0; i < reserveN; i++) {
-				int nextId = startIncrement+i;
-				String nextBarcode =  formattedPattern.substring(0, prefLength) + new DecimalFormat(MiscUtils.repeat("0", incrementLength)).format(nextId) + suffix;
-				list.add(nextBarcode);
-			}
-
+			throw new RuntimeException("The sequence " + block.pattern + " could not be updated after " + MAX_RETRIES + " attempts");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) try{session.close();}catch (Exception e) {e.printStackTrace();}
 		}
-
-		String res = list.remove(0);
-		lastUsedIds.put(cat+"_"+formattedPattern, res);
-		LoggerFactory.getLogger(DAOBarcode.class).debug("getNextId for "+formattedPattern+" = " + res + ", format="+formattedPattern);
-		return res;
 	}
 
-
 }
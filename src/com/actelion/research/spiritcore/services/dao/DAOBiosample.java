@@ -46,6 +46,7 @@ import org.slf4j.LoggerFactory;
 import com.actelion.research.spiritcore.business.DataType;
 import com.actelion.research.spiritcore.business.Quality;
 import com.actelion.research.spiritcore.business.ValidationException;
+import com.actelion.research.spiritcore.business.biosample.BarcodeSequence.Category;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.biosample.BiosampleLinker;
 import com.actelion.research.spiritcore.business.biosample.BiosampleLinker.LinkerType;
@@ -104,7 +105,7 @@ public class DAOBiosample {
 		Map<String, Biosample> res = new HashMap<>();
 		if(sampleIds.size()==0) return res;
 		EntityManager session = JPAUtil.getManager();
-		for (Biosample b : (List<Biosample>) session.createQuery("from Biosample b where " + QueryTokenizer.expandForIn("b.sampleId", sampleIds)).getResultList()) {
+		for (Biosample b : JPAUtil.<Biosample>queryIn(session, "from Biosample b where b.sampleId in (:ids)", "ids", sampleIds)) {
 			res.put(b.getSampleId(), b);
 		}
 		return res;
@@ -114,7 +115,7 @@ public class DAOBiosample {
 		Map<String, Integer> res = new HashMap<>();
 		if(sampleIds.size()==0) return res;
 		EntityManager session = JPAUtil.getManager();
-		for (Object[] objects : (List<Object[]>) session.createQuery("select b.sampleId, id from Biosample b where " + QueryTokenizer.expandForIn("b.sampleId", sampleIds)).getResultList()) {
+		for (Object[] objects : JPAUtil.<Object[]>queryIn(session, "select b.sampleId, b.id from Biosample b where b.sampleId in (:ids)", "ids", sampleIds)) {
 			res.put((String)objects[0], (Integer) objects[1]);
 		}
 		return res;
@@ -126,12 +127,12 @@ public class DAOBiosample {
 
 		Set<String> toSearch = new HashSet<>(containerIds);
 		EntityManager session = JPAUtil.getManager();
-		for (Biosample b : (List<Biosample>) session.createQuery("from Biosample b where " + QueryTokenizer.expandForIn("b.container.containerId", toSearch)).getResultList()) {
+		for (Biosample b : JPAUtil.<Biosample>queryIn(session, "from Biosample b where b.container.containerId in (:ids)", "ids", toSearch)) {
 			res.put(b.getContainerId(), b);
 			toSearch.remove(b.getContainerId());
 		}
 		if(toSearch.size()>0) {
-			for (Biosample b : (List<Biosample>) session.createQuery("from Biosample b where " + QueryTokenizer.expandForIn("b.sampleId", toSearch)).getResultList()) {
+			for (Biosample b : JPAUtil.<Biosample>queryIn(session, "from Biosample b where b.sampleId in (:ids)", "ids", toSearch)) {
 				res.put(b.getSampleId(), b);
 			}
 		}
@@ -190,7 +191,7 @@ public class DAOBiosample {
 	 * @return
 	 */
 	public static List<Biosample> queryBiosamples(BiosampleQuery q, SpiritUser user) throws Exception {
-		return queryBiosamples(JPAUtil.getManager(), q, user);
+		return SpiritMetrics.time("DAOBiosample.queryBiosamples", () -> queryBiosamples(JPAUtil.getManager(), q, user));
 	}
 
 	public static List<Biosample> queryBiosamples(EntityManager session, BiosampleQuery q, SpiritUser user) throws Exception {
@@ -201,6 +202,8 @@ public class DAOBiosample {
 
 		long start = System.currentTimeMillis();
 		List<Entry<BiosampleLinker, String>> postprocessFilters = new ArrayList<>();
+		//Linkers, which are exactly filtered by the query and don't need to be checked afterwards
+		Set<BiosampleLinker> exactFilters = new HashSet<>();
 
 		if ((q.getBiotypes() == null || q.getBiotypes().length == 0) && user != null && !user.isSuperAdmin()) {
 			clause.append(" and b.biotype.isHidden = false");
@@ -267,7 +270,7 @@ public class DAOBiosample {
 				expr.append(" or lower(b.elb) like lower(?)");
 				expr.append(" or (b.id in (select b2.id from Biosample b2 where lower(b2.location.name) like lower(?)))");
 				expr.append(" )\n");
-				clause.append(" and (" + QueryTokenizer.expandQuery(expr.toString(), q.getKeywords(), true, true) + ")");
+				clause.append(" and (" + DAOKeyword.expandBiosampleQuery(expr.toString(), q.getKeywords()) + ")");
 			}
 			if (q.getStudyIds() != null && q.getStudyIds().equalsIgnoreCase("NONE")) {
 				clause.append(" and b.inheritedStudy is null");
@@ -300,9 +303,13 @@ public class DAOBiosample {
 				parameters.add(q.getContainerType());
 			}
 			if(q.getLocationRoot()!=null) {
-				Location l = session.merge(q.getLocationRoot());
-				List<Location> locs = new ArrayList<Location>(l.getChildrenRec(8));
-				clause.append(" and " + QueryTokenizer.expandForIn("b.location.id", JPAUtil.getIds(locs)));
+				if(DAOLocationClosure.isEnabled()) {
+					clause.append(" and b.location.id in (select c.descendantId from LocationClosure c where c.ancestorId = " + q.getLocationRoot().getId() + ")");
+				} else {
+					Location l = session.merge(q.getLocationRoot());
+					List<Location> locs = new ArrayList<Location>(l.getChildrenRec(8));
+					clause.append(" and " + QueryTokenizer.expandForIn("b.location.id", JPAUtil.getIds(locs)));
+				}
 			}
 			if(q.getLocations()!=null && q.getLocations().size()>0) {
 				clause.append(" and " + QueryTokenizer.expandForIn("b.location.id", JPAUtil.getIds(q.getLocations())));
@@ -432,7 +439,16 @@ public class DAOBiosample {
 				String val = entry.getValue();
 				if (val == null)
 					continue;
-				if (linker.getAggregatedMetadata() != null) {
+				if (linker.getType() == LinkerType.METADATA && linker.getHierarchyBiotype() == null && DAOMetadataValue.canQuery(linker.getBiotypeMetadata())) {
+					// Linker on a metadata, using the normalized metadata values
+					String subquery = DAOMetadataValue.getSubquery(linker.getBiotypeMetadata(), val);
+					if (subquery != null && linker.getAggregatedMetadata() != null) {
+						clause.append(" and (b.id in (select b2.id from Biosample b2 JOIN b2.linkedBiosamples b3 where key(b3) = " + linker.getAggregatedMetadata().getId() + " and b3.id in (" + subquery + ")))");
+					} else if (subquery != null) {
+						clause.append(" and b.id in (" + subquery + ")");
+					}
+					exactFilters.add(linker);
+				} else if (linker.getAggregatedMetadata() != null) {
 					// Linker for aggregated biosamples
 					long idAgg = linker.getAggregatedMetadata().getId();
 					if (linker.getType() == LinkerType.SAMPLEID) {
@@ -488,6 +504,9 @@ public class DAOBiosample {
 		}
 
 
+		//Filter the biosamples that the user cannot read (the rights are still checked afterwards)
+		clause.append(RightsPredicate.getBiosampleClause("b", user));
+
 		String jpql = "from Biosample b";
 		if (clause.length() > 0) {
 			assert clause.substring(0, 4).equals(" and");
@@ -508,6 +527,7 @@ public class DAOBiosample {
 		loop: for (Iterator<Biosample> iterator = biosamples.iterator(); iterator.hasNext();) {
 			Biosample biosample = iterator.next();
 			for (Entry<BiosampleLinker, String> entry : q.getLinker2values().entrySet()) {
+				if(exactFilters.contains(entry.getKey())) continue;
 				if(!QueryTokenizer.matchQuery(entry.getKey().getValue(biosample), entry.getValue())) {
 					iterator.remove();
 					continue loop;
@@ -596,12 +616,17 @@ public class DAOBiosample {
 			deleteBiosamples(session, biosamples, user);
 			txn.commit();
 			txn = null;
+			DAOAutoCompletion.onDeleteBiosamples(biosamples);
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
 		}
 	}
 
 	public static void deleteBiosamples(EntityManager session, Collection<Biosample> biosamples, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOBiosample.deleteBiosamples", () -> doDeleteBiosamples(session, biosamples, user));
+	}
+
+	private static void doDeleteBiosamples(EntityManager session, Collection<Biosample> biosamples, SpiritUser user) throws Exception {
 		assert session!=null;
 		assert session.getTransaction().isActive();
 		logger.info("Remove "+biosamples.size()+" biosamples");
@@ -625,12 +650,20 @@ public class DAOBiosample {
 		Collections.sort(list, Collections.reverseOrder());
 
 		//Delete
+		DAOStudySummary.Changes summaryChanges = DAOStudySummary.beforeBiosamples(session, biosamples);
+		DAOBiosampleLineage.beforeDelete(session, biosamples);
 		for (Biosample biosample : list) {
 			if(!session.contains(biosample)) {
 				biosample = session.merge(biosample);
 			}
 			session.remove(biosample);
 		}
+		DAOKeyword.remove(session, biosamples);
+		DAOMetadataValue.remove(session, biosamples);
+		DAOStudySummary.afterDelete(session, summaryChanges);
+		for (Study study : Biosample.getStudies(biosamples)) {
+			DAOStudy.removeCacheOfBiosamples(study);
+		}
 	}
 
 	/**
@@ -665,6 +698,13 @@ public class DAOBiosample {
 
 		testConcurrentModification(session, biosamples);
 
+		//Keep the new biosamples (before they get an id), to update the autocompletion
+		List<Biosample> created = new ArrayList<>();
+		List<Biosample> updated = new ArrayList<>();
+		for (Biosample b : biosamples) {
+			(b.getId()<=0? created: updated).add(b);
+		}
+
 		try {
 
 			/////////////////////////////////////////////////
@@ -745,6 +785,7 @@ public class DAOBiosample {
 
 			txn.commit();
 			txn = null;
+			DAOAutoCompletion.onPersistBiosamples(created, updated);
 		} finally {
 			if (txn != null && txn.isActive())try {txn.rollback();} catch (Exception e2) {e2.printStackTrace();}
 		}
@@ -759,8 +800,7 @@ public class DAOBiosample {
 		List<Object[]> lastUpdates = null;
 
 		// Test that nobody else modified the samples
-		String jpql = "select b.updDate, b.updUser, b.id from Biosample b where " + QueryTokenizer.expandForIn("b.id", id2biosample.keySet());
-		lastUpdates = session.createQuery(jpql).getResultList();
+		lastUpdates = JPAUtil.queryIn(session, "select b.updDate, b.updUser, b.id from Biosample b where b.id in (:ids)", "ids", id2biosample.keySet());
 
 		for (Object[] lastUpdate : lastUpdates) {
 			Date lastDate = (Date) lastUpdate[0];
@@ -783,9 +823,15 @@ public class DAOBiosample {
 	 * @throws Exception
 	 */
 	public static List<Biosample> persistBiosamples(EntityManager session, Collection<Biosample> biosamples, SpiritUser user) throws Exception {
+		return SpiritMetrics.time("DAOBiosample.persistBiosamples", () -> doPersistBiosamples(session, biosamples, user));
+	}
+
+	private static List<Biosample> doPersistBiosamples(EntityManager session, Collection<Biosample> biosamples, SpiritUser user) throws Exception {
 		assert session!=null;
 		assert session.getTransaction().isActive();
 
+		//Read the previous keys of the study summary, before anything is flushed
+		DAOStudySummary.Changes summaryChanges = DAOStudySummary.beforeBiosamples(session, biosamples);
 
 		List<Biosample> res = new ArrayList<>();
 
@@ -797,7 +843,7 @@ public class DAOBiosample {
 			try {
 				newEm = JPAUtil.createManager();
 				Set<Integer> biosampleIdsToSave = new HashSet<>(JPAUtil.getIds(biosamples));
-				List<Object[]> l = session.createQuery("select b.id, b.container.containerId, b.location.id, b.pos from Biosample b where b.pos>=0 and " + QueryTokenizer.expandForIn("b.location.id", JPAUtil.getIds(locations))).getResultList();
+				List<Object[]> l = JPAUtil.queryIn(session, "select b.id, b.container.containerId, b.location.id, b.pos from Biosample b where b.pos>=0 and b.location.id in (:ids)", "ids", JPAUtil.getIds(locations));
 				for (Object[] object : l) {
 					int biosampleId = (Integer) object[0];
 					String containerId = (String) object[1];
@@ -815,14 +861,19 @@ public class DAOBiosample {
 
 		/////////////////////////
 		// Validation
+		// Skip the ids given manually, and generate missing sampleIds (if possible)
+		List<String> manualSampleIds = new ArrayList<>();
+		List<String> manualContainerIds = new ArrayList<>();
+		for (Biosample biosample : biosamples) {
+			if(biosample.getSampleId()!=null && biosample.getSampleId().length()>0) manualSampleIds.add(biosample.getSampleId());
+			if(biosample.getContainerId()!=null && biosample.getContainerId().length()>0) manualContainerIds.add(biosample.getContainerId());
+		}
+		DAOBarcode.onPersist(Category.BIOSAMPLE, manualSampleIds);
+		DAOBarcode.onPersist(Category.CONTAINER, manualContainerIds);
+		DAOBarcode.generateSampleIds(biosamples);
 		for (Biosample biosample : biosamples) {
-
-			// Generate missing sampleId (if possible)
 			if (biosample.getSampleId() == null || biosample.getSampleId().length() == 0) {
-				biosample.setSampleId(DAOBarcode.getNextId(biosample));
-				if (biosample.getSampleId() == null || biosample.getSampleId().length() == 0) {
-					throw new Exception("The biosample must have a sampleId");
-				}
+				throw new Exception("The biosample must have a sampleId");
 			}
 			if (biosample.getSampleId().indexOf(' ') >= 0) {
 				throw new Exception("The sampleId '" + biosample.getSampleId() + "' cannot have spaces");
@@ -868,7 +919,7 @@ public class DAOBiosample {
 			}
 		}
 		if(biotype2name2sample.size()>0) {
-			for(Biosample b: (List<Biosample>) session.createQuery("from Biosample b where  " + QueryTokenizer.expandForIn("b.name", Biosample.getSampleNames(biosamples))).getResultList()) {
+			for(Biosample b: JPAUtil.<Biosample>queryIn(session, "from Biosample b where b.name in (:names)", "names", Biosample.getSampleNames(biosamples))) {
 				Map<String, Biosample> map = biotype2name2sample.get(b.getBiotype());
 				if(map==null) continue;
 				Biosample b2 = map.get(b.getSampleName());
@@ -1031,7 +1082,7 @@ public class DAOBiosample {
 		Set<String> containerIds = Biosample.getContainerIds(res);
 		Map<String, Container> cid2container = new HashMap<>();
 		if(containerIds.size()>0) {
-			List<Biosample> inBiosamples = session.createQuery("from Biosample b where " + QueryTokenizer.expandForIn("b.container.containerId", containerIds)).getResultList();
+			List<Biosample> inBiosamples = JPAUtil.queryIn(session, "from Biosample b where b.container.containerId in (:ids)", "ids", containerIds);
 			cid2container.putAll(Container.mapContainerId(Biosample.getContainers(inBiosamples, true)));
 		}
 
@@ -1068,6 +1119,8 @@ public class DAOBiosample {
 		}
 
 		// Propagate the study information to children
+		Set<Integer> savedIds = new HashSet<>(JPAUtil.getIds(res));
+		List<Biosample> propagated = new ArrayList<>();
 		for (Biosample b : res) {
 			List<Biosample> toCheck = new LinkedList<>();
 			toCheck.addAll(b.getChildren());
@@ -1077,11 +1130,17 @@ public class DAOBiosample {
 				// Stop at samples attached to study
 				if(tmp.getAttachedStudy()!=null) continue;
 
-				// Update the study of child
-				tmp.setInheritedStudy(b.getInheritedStudy());
+				// Update the study of child (the summary counts of the children, which are not saved here, are moved too)
+				boolean modified = false;
+				if (!CompareUtils.equals(b.getInheritedStudy(), tmp.getInheritedStudy())) {
+					if(tmp.getId()>0 && !savedIds.contains(tmp.getId()) && DAOStudySummary.beforePropagateStudy(summaryChanges, tmp)) {
+						propagated.add(tmp);
+					}
+					tmp.setInheritedStudy(b.getInheritedStudy());
+					modified = true;
+				}
 
 				// Update the group/phase of child
-				boolean modified = false;
 				if (CompareUtils.compare(b.getInheritedGroup(), tmp.getInheritedGroup())!=0 || b.getInheritedSubGroup() != tmp.getInheritedSubGroup()) {
 					tmp.setInheritedGroup(b.getInheritedGroup());
 					tmp.setInheritedSubGroup(b.getInheritedSubGroup());
@@ -1106,8 +1165,7 @@ public class DAOBiosample {
 		// ///////////////////////////////////////////
 		// Update the inverse values of the linked biosamples if needed (to create a new version)
 		{
-			String query = "select b from Biosample b, IN(b.linkedBiosamples) lb where " +QueryTokenizer.expandForIn("lb.id", JPAUtil.getIds(biosamples));
-			List<Biosample> linked = session.createQuery(query).getResultList();
+			List<Biosample> linked = JPAUtil.queryIn(session, "select b from Biosample b, IN(b.linkedBiosamples) lb where lb.id in (:ids)", "ids", JPAUtil.getIds(biosamples));
 			for (Biosample b : linked) {
 				for (BiotypeMetadata bm : b.getBiotype().getMetadata()) {
 					if (bm.getDataType()==DataType.BIOSAMPLE && b.getMetadataBiosample(bm) != null) {
@@ -1117,6 +1175,17 @@ public class DAOBiosample {
 			}
 		}
 
+		//Update the keyword index and the metadata values
+		DAOKeyword.index(session, res);
+		DAOMetadataValue.index(session, res);
+		List<Biosample> summarized = new ArrayList<>(res);
+		summarized.addAll(propagated);
+		DAOStudySummary.afterPersistBiosamples(session, summaryChanges, summarized);
+		DAOBiosampleLineage.afterPersist(session, res);
+		for (Study study : Biosample.getStudies(summarized)) {
+			DAOStudy.removeCacheOfBiosamples(study);
+		}
+
 		return res;
 	}
 
@@ -0,0 +1,329 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.biosample.BiosampleLineage;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+
+/**
+ * DAO functions to maintain the lineage of the biosamples (see BiosampleLineage), and to load whole subtrees.
+ * <br>
+ * The lineage is updated in the same transaction as the biosamples: when a biosample is created or its parent is changed,
+ * its subtree is detached from its old ancestors and attached to the ancestors of its new parent.
+ * Biosamples updated outside of DAOBiosample are not reflected, so the lineage can be rebuilt from the admin menu.
+ * <br>
+ * The lineage is only used when the DB_BIOSAMPLELINEAGE flag is set (ie. after a rebuild)
+ *
+ * @author Joel Freyss
+ */
+@SuppressWarnings("unchecked")
+public class DAOBiosampleLineage {
+
+	private static Logger logger = LoggerFactory.getLogger(DAOBiosampleLineage.class);
+
+	/**
+	 * Returns true if the lineage has been built, and can be used to load the subtrees
+	 */
+	public static boolean isEnabled() {
+		return SpiritProperties.getInstance().isChecked(PropertyKey.DB_BIOSAMPLELINEAGE);
+	}
+
+	/**
+	 * Updates the lineage of the given biosamples, after they have been persisted (the ids must be set).
+	 * The rows are only changed for the new biosamples, and for the biosamples whose parent has changed.
+	 * @param session
+	 * @param biosamples
+	 */
+	static void afterPersist(EntityManager session, Collection<Biosample> biosamples) {
+		if(!isEnabled()) return;
+
+		//Load the current parents of the biosamples (0 if the biosample is a top, absent if the biosample has no rows)
+		Map<Integer, Integer> id2oldParentId = new HashMap<>();
+		List<Integer> ids = JPAUtil.getIds(biosamples);
+		ids.removeIf(id -> id<=0);
+		for (List<Integer> chunk : QueryTokenizer.splitForIn(ids)) {
+			List<Object[]> rows = session.createQuery("select c.descendantId, c.ancestorId, c.depth from BiosampleLineage c where c.descendantId in (:ids) and c.depth <= 1")
+					.setParameter("ids", chunk)
+					.getResultList();
+			for (Object[] row : rows) {
+				if((Integer) row[2]==0) id2oldParentId.putIfAbsent((Integer) row[0], 0);
+				else id2oldParentId.put((Integer) row[0], (Integer) row[1]);
+			}
+		}
+
+		//Find the biosamples to update, and process the parents before their children
+		List<Biosample> changed = new ArrayList<>();
+		Set<Integer> changedIds = new HashSet<>();
+		for (Biosample b : biosamples) {
+			if(b.getId()<=0) continue;
+			Integer oldParentId = id2oldParentId.get(b.getId());
+			if(oldParentId!=null && oldParentId==getParentId(b)) continue;
+			if(changedIds.add(b.getId())) changed.add(b);
+		}
+		if(changed.isEmpty()) return;
+		Map<Biosample, Integer> depths = new HashMap<>();
+		for (Biosample b : changed) {
+			depths.put(b, b.getHierarchy(Biosample.HierarchyMode.PARENTS).size());
+		}
+		changed.sort((b1, b2) -> depths.get(b1) - depths.get(b2));
+
+		//Load the ancestors of the parents, which are not updated (the ancestors of the updated biosamples are computed below)
+		Map<Integer, Map<Integer, Integer>> id2ancestors = new HashMap<>();
+		Set<Integer> parentIds = new HashSet<>();
+		for (Biosample b : changed) {
+			int parentId = getParentId(b);
+			if(parentId>0 && !changedIds.contains(parentId)) parentIds.add(parentId);
+		}
+		loadAncestors(session, parentIds, id2ancestors);
+
+		List<BiosampleLineage> created = new ArrayList<>();
+		for (Biosample b : changed) {
+			int id = b.getId();
+			int parentId = getParentId(b);
+
+			//Load the subtree of the moved biosamples, and detach it from the old ancestors.
+			//The ancestors are reloaded, as they may have been changed by a previous move
+			Map<Integer, Integer> subtree = new LinkedHashMap<>();
+			if(id2oldParentId.containsKey(id)) {
+				List<Object[]> rows = session.createQuery("select c.descendantId, c.depth from BiosampleLineage c where c.ancestorId = :id")
+						.setParameter("id", id)
+						.getResultList();
+				for (Object[] row : rows) {
+					subtree.put((Integer) row[0], (Integer) row[1]);
+				}
+				List<Integer> oldAncestorIds = session.createQuery("select c.ancestorId from BiosampleLineage c where c.descendantId = :id and c.depth > 0")
+						.setParameter("id", id)
+						.getResultList();
+				if(oldAncestorIds.size()>0) {
+					for (List<Integer> chunk : QueryTokenizer.splitForIn(subtree.keySet())) {
+						session.createQuery("delete from BiosampleLineage c where c.ancestorId in (:ancestorIds) and c.descendantId in (:ids)")
+						.setParameter("ancestorIds", oldAncestorIds)
+						.setParameter("ids", chunk)
+						.executeUpdate();
+					}
+				}
+				//The preloaded ancestors may be in the moved subtree: they will be reloaded if needed
+				id2ancestors.keySet().retainAll(changedIds);
+			} else {
+				BiosampleLineage c = new BiosampleLineage(id, id, 0);
+				session.persist(c);
+				created.add(c);
+				subtree.put(id, 0);
+			}
+
+			//Attach the subtree to the new ancestors
+			Map<Integer, Integer> ancestors = new HashMap<>();
+			ancestors.put(id, 0);
+			if(parentId>0) {
+				if(!id2ancestors.containsKey(parentId)) {
+					loadAncestors(session, Collections.singleton(parentId), id2ancestors);
+				}
+				Map<Integer, Integer> parentAncestors = id2ancestors.get(parentId);
+				if(parentAncestors==null) {
+					logger.warn("The biosample lineage is out of sync: " + b.getParent() + " has no rows - it should be rebuilt");
+					parentAncestors = Collections.emptyMap();
+				}
+				for (Map.Entry<Integer, Integer> a : parentAncestors.entrySet()) {
+					ancestors.put(a.getKey(), a.getValue() + 1);
+					for (Map.Entry<Integer, Integer> d : subtree.entrySet()) {
+						BiosampleLineage c = new BiosampleLineage(a.getKey(), d.getKey(), a.getValue() + 1 + d.getValue());
+						session.persist(c);
+						created.add(c);
+					}
+				}
+			}
+			id2ancestors.put(id, ancestors);
+		}
+
+		//The rows are not kept in the session, as they may be deleted by the bulk updates
+		if(created.size()>0) {
+			session.flush();
+			for (BiosampleLineage c : created) {
+				session.detach(c);
+			}
+		}
+	}
+
+	/**
+	 * Loads the ancestors (the biosample included) of the given biosamples, mapped to their depth
+	 */
+	private static void loadAncestors(EntityManager session, Collection<Integer> ids, Map<Integer, Map<Integer, Integer>> id2ancestors) {
+		for (List<Integer> chunk : QueryTokenizer.splitForIn(ids)) {
+			List<Object[]> rows = session.createQuery("select c.descendantId, c.ancestorId, c.depth from BiosampleLineage c where c.descendantId in (:ids)")
+					.setParameter("ids", chunk)
+					.getResultList();
+			for (Object[] row : rows) {
+				id2ancestors.computeIfAbsent((Integer) row[0], k -> new HashMap<>()).put((Integer) row[1], (Integer) row[2]);
+			}
+		}
+	}
+
+	private static int getParentId(Biosample b) {
+		return b.getParent()==null? 0: b.getParent().getId();
+	}
+
+	/**
+	 * Deletes the rows of the given biosamples (as ancestor or as descendant), before they are deleted.
+	 * @param session
+	 * @param biosamples
+	 */
+	static void beforeDelete(EntityManager session, Collection<Biosample> biosamples) {
+		if(!isEnabled()) return;
+		List<Integer> ids = JPAUtil.getIds(biosamples);
+		ids.removeIf(id -> id<=0);
+		JPAUtil.executeUpdateIn(session, "delete from BiosampleLineage c where c.ancestorId in (:ids) or c.descendantId in (:ids)", "ids", ids);
+	}
+
+	/**
+	 * Loads the given biosamples and all their descendants, with their children already initialized,
+	 * so that the hierarchy can be browsed without any further query.
+	 * If the lineage is not enabled, the subtree is loaded one level at a time.
+	 *
+	 * @param biosamples
+	 * @return the biosamples and their descendants (sorted hierarchically, the children being sorted), mapped to their depth (0 for the given biosamples)
+	 */
+	public static Map<Biosample, Integer> loadDescendants(Collection<Biosample> biosamples) {
+		return loadDescendants(JPAUtil.getManager(), biosamples);
+	}
+
+	/**
+	 * Loads the given biosamples and all their descendants in the given session.
+	 * The children of the given biosamples are only initialized if those biosamples are managed by this session.
+	 *
+	 * @param session
+	 * @param biosamples
+	 * @return the biosamples and their descendants (sorted hierarchically, the children being sorted), mapped to their depth (0 for the given biosamples)
+	 */
+	public static Map<Biosample, Integer> loadDescendants(EntityManager session, Collection<Biosample> biosamples) {
+		List<Integer> ids = JPAUtil.getIds(biosamples);
+		ids.removeIf(id -> id<=0);
+
+		Map<Integer, Biosample> id2biosample = new HashMap<>();
+		if(isEnabled()) {
+			List<Biosample> loaded = JPAUtil.queryIn(session, "select distinct b from Biosample b left join fetch b.children"
+					+ " where b.id in (select c.descendantId from BiosampleLineage c where c.ancestorId in (:ids))", "ids", ids);
+			for (Biosample b : loaded) {
+				id2biosample.put(b.getId(), b);
+			}
+		} else {
+			Collection<Integer> levelIds = ids;
+			for (int depth = 0; depth<20 && levelIds.size()>0; depth++) {
+				List<Biosample> loaded = JPAUtil.queryIn(session, "select distinct b from Biosample b left join fetch b.children where b.id in (:ids)", "ids", levelIds);
+				levelIds = new ArrayList<>();
+				for (Biosample b : loaded) {
+					id2biosample.put(b.getId(), b);
+					for (Biosample child : b.getChildren()) {
+						if(!id2biosample.containsKey(child.getId())) levelIds.add(child.getId());
+					}
+				}
+			}
+		}
+
+		//Walk the hierarchy in memory
+		Map<Biosample, Integer> res = new LinkedHashMap<>();
+		for (Integer id : ids) {
+			Biosample root = id2biosample.get(id);
+			if(root!=null) addRec(res, root, 0);
+		}
+		return res;
+	}
+
+	private static void addRec(Map<Biosample, Integer> res, Biosample b, int depth) {
+		if(res.containsKey(b)) return;
+		res.put(b, depth);
+		List<Biosample> children = new ArrayList<>(b.getChildren());
+		Collections.sort(children);
+		for (Biosample child : children) {
+			addRec(res, child, depth+1);
+		}
+	}
+
+	/**
+	 * Rebuilds the lineage from the parents of the biosamples, and enables its use.
+	 * @param user
+	 * @throws Exception
+	 */
+	public static void rebuild(SpiritUser user) throws Exception {
+		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin");
+		long start = System.currentTimeMillis();
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		try {
+			session = JPAUtil.createManager();
+			txn = session.getTransaction();
+			txn.begin();
+
+			session.createQuery("delete from BiosampleLineage c").executeUpdate();
+
+			Map<Integer, Integer> id2parentId = new HashMap<>();
+			List<Object[]> rows = session.createQuery("select b.id, p.id from Biosample b left join b.parent p").getResultList();
+			for (Object[] row : rows) {
+				id2parentId.put((Integer) row[0], (Integer) row[1]);
+			}
+
+			int count = 0;
+			for (Integer id : id2parentId.keySet()) {
+				Set<Integer> seen = new HashSet<>();
+				Integer ancestorId = id;
+				int depth = 0;
+				while(ancestorId!=null && seen.add(ancestorId)) {
+					session.persist(new BiosampleLineage(ancestorId, id, depth++));
+					if(++count%500==0) {
+						session.flush();
+						session.clear();
+					}
+					ancestorId = id2parentId.get(ancestorId);
+				}
+				if(ancestorId!=null) logger.warn("Cycle in the biosample hierarchy of " + id);
+			}
+
+			txn.commit();
+			txn = null;
+			logger.info("Biosample lineage rebuilt: " + count + " rows in " + (System.currentTimeMillis()-start) + "ms");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) session.close();
+		}
+
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_BIOSAMPLELINEAGE, "true");
+		SpiritProperties.getInstance().saveValues();
+	}
+}
@@ -46,6 +46,7 @@ import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
 import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.util.MiscUtils;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
 import com.actelion.research.util.CompareUtils;
 
 /**
@@ -58,7 +59,16 @@ public class DAOBiotype {
 
 	private static Logger logger = LoggerFactory.getLogger(DAOBiotype.class);
 
+	private static final EntityCache<Biotype> biotypeCache = new EntityCache<>(Biotype.class, Cache.LONG, (session, ids) -> {
+		Query query = session.createQuery("select distinct(t) from Biotype t left join fetch t.metadata" + (ids==null? "": " where " + QueryTokenizer.expandForIn("t.id", ids)));
+		return query.getResultList();
+	});
+
 	public static void deleteBiotype(Biotype biotype, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOBiotype.deleteBiotype", () -> doDeleteBiotype(biotype, user));
+	}
+
+	private static void doDeleteBiotype(Biotype biotype, SpiritUser user) throws Exception {
 		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be am admin");
 		if(biotype==null) throw new Exception("Biotype is null");
 		if(biotype.getChildren().size()>0) throw new Exception("You must delete the children first: "+biotype.getChildren());
@@ -83,23 +93,18 @@ public class DAOBiotype {
 			txn = null;
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
-			Cache.getInstance().removeAllWithPrefix("id2biotype_"+JPAUtil.getManager());
+			biotypeCache.invalidate(biotype);
+			DAOAutoCompletion.invalidate(biotype);
 		}
 
 	}
 
+	/**
+	 * Returns all the biotypes, mapped by id. The map must not be modified
+	 * @return
+	 */
 	public static Map<Integer, Biotype> getId2Biotype() {
-		Map<Integer, Biotype> id2biotype = (Map<Integer, Biotype>) Cache.getInstance().get("id2biotype_"+JPAUtil.getManager());
-		if(id2biotype==null) {
-			EntityManager session = JPAUtil.getManager();
-			//Load all
-			Query query = session.createQuery("select distinct(t) from Biotype t left join fetch t.metadata");
-
-			List<Biotype> biotypes = query.getResultList();
-			id2biotype = JPAUtil.mapIds(biotypes);
-			Cache.getInstance().add("id2biotype_"+JPAUtil.getManager(), id2biotype, 180);
-		}
-		return id2biotype;
+		return biotypeCache.getAll(JPAUtil.getManager());
 	}
 
 	public static List<Biotype> getBiotypes() {
@@ -152,35 +157,11 @@ public class DAOBiotype {
 		return null;
 	}
 
+	/**
+	 * Returns the values of the given metadata, used for the autocompletion (see DAOAutoCompletion).
+	 */
 	public static Set<String> getAutoCompletionFields(BiotypeMetadata metadataType, Study study) {
-		if(metadataType==null || metadataType.getId()<=0) return new TreeSet<String>();
-
-		//Use Cache
-		String key = "biotype_autocompletion_"+metadataType.getId()+"_"+(study==null?"": study.getId());
-		Set<String> res = (Set<String>) Cache.getInstance().get(key);
-		if(res==null) {
-			res = new TreeSet<String>(CompareUtils.STRING_COMPARATOR);
-			try {
-				EntityManager session = JPAUtil.getManager();
-				int id = metadataType.getId();
-				//Select first 500 non empty rows
-				Query query = session.createQuery("select distinct(b.serializedMetadata) from Biosample b "
-						+ " WHERE concat(';', b.serializedMetadata, '%') like '%;"+id+"=%'"
-						+ " AND NOT concat(';', b.serializedMetadata, '%') like '%;"+id+"=;%'"
-						+ (study!=null? " AND b.inheritedStudy = ?2 ":""));
-				if(study!=null) query.setParameter(2, study);
-				query.setMaxResults(3000);
-				for (String s : (List<String>) query.getResultList()) {
-					String tok = MiscUtils.deserializeIntegerMap(s).get(id);
-					if(tok!=null) res.add(tok);
-				}
-			} catch(Exception e) {
-				e.printStackTrace();
-			}
-
-			Cache.getInstance().add(key, res, 60);
-		}
-		return res;
+		return DAOAutoCompletion.getValues(metadataType, study);
 	}
 
 	public static Set<String> getAutoCompletionFieldsForSampleId(Biotype biotype, BiotypeMetadata fromAgregated, Study study) {
@@ -208,53 +189,18 @@ public class DAOBiotype {
 		return res;
 	}
 
+	/**
+	 * Returns the names of the given biotype, used for the autocompletion (see DAOAutoCompletion).
+	 */
 	public static Set<String> getAutoCompletionFieldsForName(Biotype biotype, Study study) {
-
-		if(biotype==null || biotype.getId()<=0) return new TreeSet<String>();
-
-		//Use Cache
-		String key = "biotype_autocompletion_name_"+biotype.getId()+"_"+(study==null?"": study.getId());
-		Set<String> res = (Set<String>) Cache.getInstance().get(key);
-		if(res==null) {
-
-			EntityManager session = JPAUtil.getManager();
-			Query query = session.createQuery(
-					"SELECT distinct(b.name) FROM Biosample b WHERE b.biotype = ?1 AND length(b.name)>0  " +
-							(study!=null? " AND b.inheritedStudy = ?2 ":""));
-			query.setParameter(1, biotype);
-			if(study!=null) query.setParameter(2, study);
-			query.setMaxResults(3000);
-			res = new TreeSet<String>(CompareUtils.STRING_COMPARATOR);
-			res.addAll(query.getResultList());
-
-
-			Cache.getInstance().add(key, res, Cache.FAST);
-		}
-		return res;
+		return DAOAutoCompletion.getValues(DAOAutoCompletion.Field.NAME, biotype, study);
 	}
 
+	/**
+	 * Returns the comments of the given biotype, used for the autocompletion (see DAOAutoCompletion).
+	 */
 	public static Set<String> getAutoCompletionFieldsForComments(Biotype biotype, Study study) {
-
-		if(biotype==null || biotype.getId()<=0) return new TreeSet<String>();
-
-		//Use Cache
-		String key = "biotype_autocompletion_comments_"+biotype.getId()+"_"+(study==null?"": study.getId());
-		Set<String> res = (Set<String>) Cache.getInstance().get(key);
-		if(res==null) {
-
-			EntityManager session = JPAUtil.getManager();
-			Query query = session.createQuery(
-					"SELECT distinct(b.comments) FROM Biosample b WHERE b.biotype = ?1 AND length(b.comments)>0 " +
-							(study!=null? " AND b.inheritedStudy = ?2 ":""));
-			query.setParameter(1, biotype);
-			if(study!=null) query.setParameter(2, study);
-			query.setMaxResults(3000);
-			res = new TreeSet<String>(CompareUtils.STRING_COMPARATOR);
-			res.addAll(query.getResultList());
-
-			Cache.getInstance().add(key, res, Cache.FAST);
-		}
-		return res;
+		return DAOAutoCompletion.getValues(DAOAutoCompletion.Field.COMMENTS, biotype, study);
 	}
 
 	public static void persistBiotype(Biotype biotype, SpiritUser user) throws Exception {
@@ -279,6 +225,10 @@ public class DAOBiotype {
 	}
 
 	public static void persistBiotypes(EntityManager session, Collection<Biotype> biotypes, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOBiotype.persistBiotypes", () -> doPersistBiotypes(session, biotypes, user));
+	}
+
+	private static void doPersistBiotypes(EntityManager session, Collection<Biotype> biotypes, SpiritUser user) throws Exception {
 
 		if(biotypes==null || biotypes.size()==0) return;
 
@@ -318,11 +268,17 @@ public class DAOBiotype {
 				}
 			}
 		}
-		Cache.getInstance().remove("id2biotype_"+JPAUtil.getManager());
-
+		biotypeCache.invalidate(biotypes);
+		for (Biotype biotype : biotypes) {
+			DAOAutoCompletion.invalidate(biotype);
+		}
 	}
 
 	public static int renameNames(Biotype biotype, String value, String newValue, SpiritUser user) throws Exception {
+		return SpiritMetrics.time("DAOBiotype.renameNames", () -> doRenameNames(biotype, value, newValue, user));
+	}
+
+	private static int doRenameNames(Biotype biotype, String value, String newValue, SpiritUser user) throws Exception {
 		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin to rename a name");
 		EntityManager session = JPAUtil.getManager();
 		EntityTransaction txn = null;
@@ -340,16 +296,22 @@ public class DAOBiotype {
 				b.setSampleName(newValue);
 				session.merge(b);
 			}
+			DAOKeyword.index(session, biosamples);
 
 			txn.commit();
 			return biosamples.size();
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
-			Cache.getInstance().remove("id2biotype_"+JPAUtil.getManager());
+			biotypeCache.invalidate(biotype);
+			DAOAutoCompletion.invalidate(biotype);
 		}
 	}
 
 	public static int renameMetadata(BiotypeMetadata att, String value, String newValue, SpiritUser user) throws Exception {
+		return SpiritMetrics.time("DAOBiotype.renameMetadata", () -> doRenameMetadata(att, value, newValue, user));
+	}
+
+	private static int doRenameMetadata(BiotypeMetadata att, String value, String newValue, SpiritUser user) throws Exception {
 		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin to rename a metadata");
 		EntityManager session = JPAUtil.getManager();
 		EntityTransaction txn = null;
@@ -367,8 +329,11 @@ public class DAOBiotype {
 					b.setMetadataValue(att, newValue);
 				}
 			}
+			DAOKeyword.index(session, biosamples);
+			DAOMetadataValue.index(session, biosamples);
 
-			Cache.getInstance().remove("id2biotype_"+JPAUtil.getManager());
+			biotypeCache.invalidate(att.getBiotype());
+			DAOAutoCompletion.invalidate(att.getBiotype());
 			txn.commit();
 			return biosamples.size();
 		} finally {
@@ -377,6 +342,10 @@ public class DAOBiotype {
 	}
 
 	public static void moveNameToMetadata(Biotype biotype, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOBiotype.moveNameToMetadata", () -> doMoveNameToMetadata(biotype, user));
+	}
+
+	private static void doMoveNameToMetadata(Biotype biotype, SpiritUser user) throws Exception {
 		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin to rename a metadata");
 		EntityManager session = JPAUtil.getManager();
 		EntityTransaction txn = null;
@@ -400,17 +369,24 @@ public class DAOBiotype {
 			BiosampleQuery q = new BiosampleQuery();
 			q.setBiotype(biotype);
 			List<Biosample> biosamples = DAOBiosample.queryBiosamples(session, q, null);
+			List<Biosample> merged = new ArrayList<>();
 			for(Biosample b: biosamples) {
 				b = session.merge(b);
 				b.setMetadataValue(newMetadata, b.getSampleName());
 				b.setUpdUser(user.getUsername());
 				b.setUpdDate(now);
+				merged.add(b);
 			}
 
 			///Remove the name
 			biotype.setSampleNameLabel(null);
 
-			Cache.getInstance().remove("id2biotype_"+JPAUtil.getManager());
+			//Flush to get the id of the new metadata, before updating its values
+			session.flush();
+			DAOMetadataValue.index(session, merged);
+
+			biotypeCache.invalidate(biotype);
+			DAOAutoCompletion.invalidate(biotype);
 			txn.commit();
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
@@ -419,6 +395,10 @@ public class DAOBiotype {
 	}
 
 	public static void moveMetadataToName(BiotypeMetadata biotypeMetadata, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOBiotype.moveMetadataToName", () -> doMoveMetadataToName(biotypeMetadata, user));
+	}
+
+	private static void doMoveMetadataToName(BiotypeMetadata biotypeMetadata, SpiritUser user) throws Exception {
 		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin to rename a metadata");
 
 		EntityManager session = JPAUtil.getManager();
@@ -448,6 +428,7 @@ public class DAOBiotype {
 			BiosampleQuery q = new BiosampleQuery();
 			q.setBiotype(biotype);
 			List<Biosample> biosamples = DAOBiosample.queryBiosamples(session, q, null);
+			List<Biosample> merged = new ArrayList<>();
 			for(Biosample b: biosamples) {
 				String m = b.getMetadataValue(biotypeMetadata);
 				if(m!=null) {
@@ -455,13 +436,16 @@ public class DAOBiotype {
 					b.setSampleName(m);
 					b.setUpdUser(user.getUsername());
 					b.setUpdDate(now);
+					merged.add(b);
 				}
 			}
 
 			///Remove the metadata
 			biotype.getMetadata().remove(biotype.getMetadata(biotypeMetadata.getName()));
 			biotype = session.merge(biotype);
-			Cache.getInstance().remove("id2biotype_"+JPAUtil.getManager());
+			DAOMetadataValue.index(session, merged);
+			biotypeCache.invalidate(biotype);
+			DAOAutoCompletion.invalidate(biotype);
 
 			txn.commit();
 
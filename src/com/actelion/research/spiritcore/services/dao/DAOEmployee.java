@@ -36,6 +36,7 @@ import javax.persistence.Query;
 
 import com.actelion.research.spiritcore.business.employee.Employee;
 import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
+import com.actelion.research.spiritcore.services.SpiritRights;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.util.ListHashMap;
 import com.actelion.research.spiritcore.util.QueryTokenizer;
@@ -74,7 +75,7 @@ public class DAOEmployee {
 
 			//Sort alphabetically
 			Collections.sort(groups);
-			Cache.getInstance().add("departments", groups, 300);
+			groups = Cache.getInstance().addList("departments", groups, 300);
 		}
 
 		List<EmployeeGroup> res = new ArrayList<>();
@@ -118,14 +119,14 @@ public class DAOEmployee {
 			EntityManager session = JPAUtil.getManager();
 			res = session.createQuery("SELECT distinct(e) FROM Employee as e left join fetch e.employeeGroups g").getResultList();
 			Collections.sort(res);
-			Cache.getInstance().add("employees_all", res, 180);
+			res = Cache.getInstance().addList("employees_all", res, 180);
 		}
 		return res;
 	}
 
 	@SuppressWarnings("unchecked")
 	public static List<Employee> getEmployees(String root) {
-		List<Employee> res = (List<Employee>) Cache.getInstance().get("employees_"+root);
+		List<Employee> res = (List<Employee>) Cache.getInstance().get("employees_group_"+root);
 		if(res==null) {
 			List<Integer> ids = EmployeeGroup.getIds(getEmployeeGroups(root));
 			if(ids.isEmpty()) {
@@ -135,7 +136,7 @@ public class DAOEmployee {
 				res = session.createQuery("from Employee e left join fetch e.employeeGroups g where " + QueryTokenizer.expandForIn("g.id", ids)+")").getResultList();
 				Collections.sort(res);
 			}
-			Cache.getInstance().add("employees_"+root, res, 180);
+			res = Cache.getInstance().addList("employees_group_"+root, res, 180);
 		}
 		return res;
 	}
@@ -185,6 +186,8 @@ public class DAOEmployee {
 			txn = null;
 
 			Cache.getInstance().remove("employees_all");
+			Cache.getInstance().removeAllWithPrefix("employees_group_");
+			SpiritRights.invalidateCache();
 		} catch (Exception e) {
 			if(txn!=null && txn.isActive()) try{ txn.rollback();} catch(Exception e2) {e2.printStackTrace();}
 			throw e;
@@ -208,6 +211,8 @@ public class DAOEmployee {
 			txn = null;
 
 			Cache.getInstance().remove("employees_all");
+			Cache.getInstance().removeAllWithPrefix("employees_group_");
+			SpiritRights.invalidateCache();
 		} catch (Exception e) {
 			if(txn!=null && txn.isActive()) try{ txn.rollback();} catch(Exception e2) {e2.printStackTrace();}
 			throw e;
@@ -247,6 +252,8 @@ public class DAOEmployee {
 			txn = null;
 
 			Cache.getInstance().remove("departments");
+			Cache.getInstance().removeAllWithPrefix("employees_group_");
+			SpiritRights.invalidateCache();
 		} catch (Exception e) {
 			if(txn!=null && txn.isActive()) try{ txn.rollback();} catch(Exception e2) {e2.printStackTrace();}
 			throw e;
@@ -278,6 +285,8 @@ public class DAOEmployee {
 			txn = null;
 
 			Cache.getInstance().remove("departments");
+			Cache.getInstance().removeAllWithPrefix("employees_group_");
+			SpiritRights.invalidateCache();
 		} catch (Exception e) {
 			if(txn!=null && txn.isActive()) try{ txn.rollback();} catch(Exception e2) {e2.printStackTrace();}
 			throw e;
@@ -21,24 +21,43 @@
 
 package com.actelion.research.spiritcore.services.dao;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
 
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.actelion.research.spiritcore.business.DataType;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
+import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
 import com.actelion.research.spiritcore.business.location.Location;
 import com.actelion.research.spiritcore.business.result.Result;
 import com.actelion.research.spiritcore.business.result.ResultValue;
 import com.actelion.research.spiritcore.business.result.Test;
 import com.actelion.research.spiritcore.business.result.TestAttribute;
+import com.actelion.research.spiritcore.business.study.Group;
+import com.actelion.research.spiritcore.business.study.NamedSampling;
+import com.actelion.research.spiritcore.business.study.NamedTreatment;
+import com.actelion.research.spiritcore.business.study.Phase;
+import com.actelion.research.spiritcore.business.study.Sampling;
 import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.business.study.StudyAction;
 import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.services.exchange.BulkCheckpoint;
+import com.actelion.research.spiritcore.services.exchange.BulkCheckpoint.Step;
 import com.actelion.research.spiritcore.services.exchange.ExchangeMapping;
 
 /**
@@ -48,6 +67,25 @@ import com.actelion.research.spiritcore.services.exchange.ExchangeMapping;
  */
 public class DAOExchange {
 
+	private static Logger logger = LoggerFactory.getLogger(DAOExchange.class);
+
+	/**
+	 * Number of biosamples/results persisted at once
+	 */
+	private static final int CHUNK_SIZE = 500;
+
+	/**
+	 * Listener notified after each chunk committed by persistBulk
+	 */
+	public static interface BulkListener {
+		/**
+		 * @param step - the step being imported
+		 * @param done - the number of entities of this step, which are committed
+		 * @param total - the number of entities of this step
+		 * @param rowsPerSecond - the average throughput of this step
+		 */
+		public void progress(Step step, int done, int total, double rowsPerSecond);
+	}
 
 	public static void persist(ExchangeMapping mapping, SpiritUser user) throws Exception {
 		EntityManager session = JPAUtil.getManager();
@@ -64,49 +102,262 @@ public class DAOExchange {
 	}
 
 	public static void persist(EntityManager session, ExchangeMapping mapping, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOExchange.persist", () -> doPersist(session, mapping, user));
+	}
+
+	private static void doPersist(EntityManager session, ExchangeMapping mapping, SpiritUser user) throws Exception {
 		if(user==null) throw new Exception("You must give a user");
 
+		//Save the different entities. Careful: the order of those statements is important:
+		//test/biotype, studies, locations, biosample, results
+		persistTypes(session, mapping, user);
+
+		List<Biosample> biosamples = sortDependenciesFirst(mapping.getMappedBiosamples());
+		logger.debug("Persist Biosamples: n=" + biosamples.size());
+		//Persist by chunks, the parents first, so that each chunk only refers to biosamples already saved
+		for (List<Biosample> chunk : split(biosamples, CHUNK_SIZE)) {
+			DAOBiosample.persistBiosamples(session, chunk, user);
+			session.flush();
+		}
+
+		List<Result> results = mapping.getMappedResults();
+		remapTests(session, results);
+
+		logger.debug("Persist Results: n=" + results.size());
+		for (List<Result> chunk : split(results, CHUNK_SIZE)) {
+			DAOResult.persistResults(session, chunk, user);
+			session.flush();
+			//The results are not referenced by the other entities, release them from the session
+			for (Result result : chunk) {
+				if(session.contains(result)) session.detach(result);
+			}
+		}
+	}
+
+	/**
+	 * Persists the mapping in bulk mode, for large imports: the biosamples and results are saved by chunks, each chunk being committed in its own transaction,
+	 * and the EntityManager is cleared between chunks, so that the persistence context does not grow with the size of the import.
+	 * (the import uses the EntityManager of the thread, which is also used by the revision listener: the entities loaded before are detached)
+	 * <br>
+	 * Unlike persist, the import is not atomic: the mapping's BulkCheckpoint records what has been committed, so that an interrupted import
+	 * can be resumed by calling this function again with the same mapping (the entities of a failed chunk are reset, to be saved again).
+	 *
+	 * @param mapping
+	 * @param user
+	 * @param chunkSize - the number of biosamples or results per transaction
+	 * @param listener - the listener notified of the progress (can be null)
+	 * @throws Exception
+	 */
+	public static void persistBulk(ExchangeMapping mapping, SpiritUser user, int chunkSize, BulkListener listener) throws Exception {
+		persistBulk(mapping, user, chunkSize, listener, null);
+	}
+
+	/**
+	 * Persists the mapping in bulk mode, while saving the checkpoint to the given file after each commit, so that the import can be resumed after a restart
+	 * (see BulkCheckpoint.load and ExchangeMapping.resumeBulk). The file is deleted when the import is complete.
+	 *
+	 * @param mapping
+	 * @param user
+	 * @param chunkSize - the number of biosamples or results per transaction
+	 * @param listener - the listener notified of the progress (can be null)
+	 * @param checkpointFile - the file where the checkpoint is saved (can be null)
+	 * @throws Exception
+	 */
+	public static void persistBulk(ExchangeMapping mapping, SpiritUser user, int chunkSize, BulkListener listener, File checkpointFile) throws Exception {
+		SpiritMetrics.run("DAOExchange.persistBulk", () -> doPersistBulk(mapping, user, chunkSize, listener, checkpointFile));
+	}
+
+	private static void doPersistBulk(ExchangeMapping mapping, SpiritUser user, int chunkSize, BulkListener listener, File checkpointFile) throws Exception {
+		if(user==null) throw new Exception("You must give a user");
+		if(chunkSize<=0) throw new IllegalArgumentException("Invalid chunkSize: " + chunkSize);
+		BulkCheckpoint checkpoint = mapping.getBulkCheckpoint();
+		if(checkpoint.isComplete()) return;
+		logger.info("Bulk import: resume from " + checkpoint);
+
+		EntityManager session = JPAUtil.getManager();
+		EntityTransaction txn = null;
+		try {
+			//The types, studies and locations are small and saved at once
+			if(checkpoint.getStep()==Step.START) {
+				List<Study> studies = mapping.getMappedStudies();
+				List<Runnable> resetIds = getResetIds(mapping);
+				try {
+					txn = session.getTransaction();
+					txn.begin();
+					persistTypes(session, mapping, user);
+					txn.commit();
+					txn = null;
+				} catch(Exception e) {
+					//The ids given during the failed transaction are not valid
+					for (Runnable r : resetIds) r.run();
+					throw e;
+				} finally {
+					session.clear();
+				}
+				checkpoint.setStep(Step.TYPES);
+
+				//Record the created studies, to link them if the import is resumed with a new mapping
+				for (Map.Entry<String, Study> e : mapping.getStudyId2mappedStudy().entrySet()) {
+					for (Study study : studies) {
+						if(e.getValue()==study && study.getId()>0) checkpoint.getStudyIds().put(e.getKey(), study.getId());
+					}
+				}
+				save(checkpoint, checkpointFile);
+			}
+
+			//Biosamples
+			if(checkpoint.getStep()==Step.TYPES) {
+				List<Biosample> biosamples = sortDependenciesFirst(mapping.getMappedBiosamples());
+				long start = System.currentTimeMillis();
+				int startDone = checkpoint.getBiosamplesDone();
+				for (int offset = startDone; offset < biosamples.size(); offset+=chunkSize) {
+					List<Biosample> chunk = biosamples.subList(offset, Math.min(biosamples.size(), offset+chunkSize));
+					List<Biosample> newBiosamples = new ArrayList<>();
+					for (Biosample b : chunk) {
+						if(b.getId()<=0) newBiosamples.add(b);
+					}
+					try {
+						txn = session.getTransaction();
+						txn.begin();
+						DAOBiosample.persistBiosamples(session, chunk, user);
+						txn.commit();
+						txn = null;
+					} catch(Exception e) {
+						//The ids given during the failed transaction are not valid
+						for (Biosample b : newBiosamples) b.setId(0);
+						throw e;
+					} finally {
+						session.clear();
+					}
+					checkpoint.setBiosamplesDone(offset + chunk.size());
+					save(checkpoint, checkpointFile);
+					fireProgress(listener, Step.BIOSAMPLES, checkpoint.getBiosamplesDone(), biosamples.size(), checkpoint.getBiosamplesDone()-startDone, start);
+				}
+				checkpoint.setStep(Step.BIOSAMPLES);
+			}
+
+			//Results
+			if(checkpoint.getStep()==Step.BIOSAMPLES) {
+				List<Result> results = mapping.getMappedResults();
+				remapTests(session, results);
+				long start = System.currentTimeMillis();
+				int startDone = checkpoint.getResultsDone();
+				for (int offset = startDone; offset < results.size(); offset+=chunkSize) {
+					List<Result> chunk = results.subList(offset, Math.min(results.size(), offset+chunkSize));
+					List<Result> newResults = new ArrayList<>();
+					for (Result r : chunk) {
+						if(r.getId()<=0) newResults.add(r);
+					}
+					try {
+						txn = session.getTransaction();
+						txn.begin();
+						DAOResult.persistResults(session, chunk, user);
+						txn.commit();
+						txn = null;
+					} catch(Exception e) {
+						for (Result r : newResults) {
+							r.setId(0);
+							for (ResultValue rv : r.getResultValues()) rv.setId(0);
+						}
+						throw e;
+					} finally {
+						session.clear();
+					}
+					checkpoint.setResultsDone(offset + chunk.size());
+					save(checkpoint, checkpointFile);
+					fireProgress(listener, Step.RESULTS, checkpoint.getResultsDone(), results.size(), checkpoint.getResultsDone()-startDone, start);
+				}
+				checkpoint.setStep(Step.RESULTS);
+			}
+			if(checkpointFile!=null && checkpointFile.exists() && !checkpointFile.delete()) {
+				logger.warn("Could not delete " + checkpointFile);
+			}
+			logger.info("Bulk import: done " + checkpoint);
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+		}
+	}
+
+	private static void save(BulkCheckpoint checkpoint, File checkpointFile) throws IOException {
+		if(checkpointFile!=null) checkpoint.save(checkpointFile);
+	}
+
+	/**
+	 * Returns the functions resetting the ids of the mapped biotypes, tests, studies and locations (with their children), which are not yet saved
+	 */
+	private static List<Runnable> getResetIds(ExchangeMapping mapping) throws Exception {
+		List<Runnable> res = new ArrayList<>();
+		for (Biotype biotype : mapping.getMappedBiotypes()) {
+			if(biotype.getId()<=0) res.add(() -> biotype.setId(0));
+			for (BiotypeMetadata m : biotype.getMetadata()) {
+				if(m.getId()<=0) res.add(() -> m.setId(0));
+			}
+		}
+		for (Test test : mapping.getMappedTests()) {
+			if(test.getId()<=0) res.add(() -> test.setId(0));
+			for (TestAttribute ta : test.getAttributes()) {
+				if(ta.getId()<=0) res.add(() -> ta.setId(0));
+			}
+		}
+		for (Study study : mapping.getMappedStudies()) {
+			if(study.getId()>0) continue;
+			res.add(() -> study.setId(0));
+			for (Group g : study.getGroups()) res.add(() -> g.setId(0));
+			for (Phase p : study.getPhases()) res.add(() -> p.setId(0));
+			for (NamedTreatment t : study.getNamedTreatments()) res.add(() -> t.setId(0));
+			for (NamedSampling ns : study.getNamedSamplings()) {
+				res.add(() -> ns.setId(0));
+				for (Sampling s : ns.getAllSamplings()) res.add(() -> s.setId(0));
+			}
+			for (StudyAction a : study.getStudyActions()) res.add(() -> a.setId(0));
+		}
+		for (Location location : mapping.getMappedLocations()) {
+			if(location.getId()<=0) res.add(() -> location.setId(0));
+		}
+		return res;
+	}
 
+	private static void fireProgress(BulkListener listener, Step step, int done, int total, int doneInThisRun, long start) {
+		double rowsPerSecond = doneInThisRun * 1000.0 / Math.max(1, System.currentTimeMillis()-start);
+		logger.info("Bulk import: " + step + " " + done + "/" + total + " (" + (int) rowsPerSecond + " rows/s)");
+		if(listener!=null) listener.progress(step, done, total, rowsPerSecond);
+	}
 
+	/**
+	 * Persists the mapped biotypes, tests, studies and locations
+	 */
+	private static void persistTypes(EntityManager session, ExchangeMapping mapping, SpiritUser user) throws Exception {
 		//Retrieve the mapped objects
 		List<Test> tests = mapping.getMappedTests();
 		List<Biotype> biotypes = mapping.getMappedBiotypes();
-
 		List<Study> studies = mapping.getMappedStudies();
-		List<Biosample> biosamples = mapping.getMappedBiosamples();
 		List<Location> locations = mapping.getMappedLocations();
-		List<Result> results = mapping.getMappedResults();
-
 
 		if(biotypes.size()>0 && !user.isSuperAdmin()) throw new Exception("You must be an admin to save biotypes");
 		if(tests.size()>0 && !user.isSuperAdmin()) throw new Exception("You must be an admin to save tests");
 
-
-		//Save the different entities. Careful: the order of those statements is important:
-		//test/biotype, studies, locations, biosample, results
-		LoggerFactory.getLogger(DAOExchange.class).debug("Persist Biotypes: " + biotypes);
+		logger.debug("Persist Biotypes: " + biotypes);
 		DAOBiotype.persistBiotypes(session, biotypes, user);
 		session.flush();
 
-		LoggerFactory.getLogger(DAOExchange.class).debug("Persist Tests: " + tests);
+		logger.debug("Persist Tests: " + tests);
 		DAOTest.persistTests(session, tests, user);
 		session.flush();
 
-		LoggerFactory.getLogger(DAOExchange.class).debug("Persist Studies: " + studies);
+		logger.debug("Persist Studies: " + studies);
 		DAOStudy.persistStudies(session, studies, user);
 		session.flush();
 
-		LoggerFactory.getLogger(DAOExchange.class).debug("Persist Locations: n=" + locations.size());
+		logger.debug("Persist Locations: n=" + locations.size());
 		DAOLocation.persistLocations(session, locations, user);
 		session.flush();
+	}
 
-		LoggerFactory.getLogger(DAOExchange.class).debug("Persist Biosamples: n=" + biosamples.size());
-		DAOBiosample.persistBiosamples(session, biosamples, user);
-		session.flush();
-
-		//Remap results
+	/**
+	 * Links the attributes of the results to the saved tests
+	 */
+	private static void remapTests(EntityManager session, List<Result> results) {
 		for (Result result : results) {
-			Map<TestAttribute, ResultValue> map2 = new HashMap<>();
 			for (Map.Entry<TestAttribute, ResultValue> e : result.getResultValueMap().entrySet()) {
 				Test t = e.getKey().getTest();
 				if(t.getId()<=0) {
@@ -115,13 +366,63 @@ public class DAOExchange {
 				assert t.getId()>0;
 				assert t.getAttribute(e.getKey().getName()).getId()>0;
 				e.getKey().setTest(t);
-				map2.put(t.getAttribute(e.getKey().getName()), e.getValue());
 			}
+		}
+	}
 
+	/**
+	 * Sorts the biosamples so that the parents and the linked biosamples (aggregates) are saved before the samples referring to them:
+	 * persistBiosamples only accepts a link to a biosample, which already exists or is saved in the same call.
+	 * The sort is stable, so that the order is the same when a bulk import is resumed
+	 */
+	private static List<Biosample> sortDependenciesFirst(List<Biosample> biosamples) {
+		Set<Biosample> input = Collections.newSetFromMap(new IdentityHashMap<>());
+		input.addAll(biosamples);
+		Set<Biosample> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		Set<Biosample> added = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<Biosample> sorted = new ArrayList<>();
+		Deque<Biosample> stack = new ArrayDeque<>();
+		for (Biosample b : biosamples) {
+			stack.push(b);
+			while(!stack.isEmpty()) {
+				Biosample top = stack.peek();
+				if(seen.add(top)) {
+					//First visit: save the dependencies first (a cycle is broken where it is found)
+					List<Biosample> dependencies = getDependencies(top);
+					for (int i = dependencies.size()-1; i >= 0; i--) {
+						Biosample dep = dependencies.get(i);
+						if(input.contains(dep) && !seen.contains(dep)) stack.push(dep);
+					}
+				} else {
+					stack.pop();
+					if(added.add(top)) sorted.add(top);
+				}
+			}
 		}
+		return sorted;
+	}
 
-		LoggerFactory.getLogger(DAOExchange.class).debug("Persist Results: n=" + results.size());
-		DAOResult.persistResults(session, results, user);
+	/**
+	 * Returns the parent and the linked biosamples of the given biosample
+	 */
+	private static List<Biosample> getDependencies(Biosample b) {
+		List<Biosample> res = new ArrayList<>();
+		if(b.getParent()!=null) res.add(b.getParent());
+		if(b.getBiotype()!=null) {
+			for(BiotypeMetadata bType: b.getBiotype().getMetadata()) {
+				if(bType.getDataType()!=DataType.BIOSAMPLE) continue;
+				Biosample linked = b.getMetadataBiosample(bType);
+				if(linked!=null) res.add(linked);
+			}
+		}
+		return res;
+	}
 
+	private static<T> List<List<T>> split(List<T> list, int chunkSize) {
+		List<List<T>> res = new ArrayList<>();
+		for (int i = 0; i < list.size(); i+=chunkSize) {
+			res.add(list.subList(i, Math.min(list.size(), i+chunkSize)));
+		}
+		return res;
 	}
 }
@@ -0,0 +1,402 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.business.IObject;
+import com.actelion.research.spiritcore.business.Keyword;
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.business.result.Result;
+import com.actelion.research.spiritcore.business.result.ResultValue;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+
+/**
+ * DAO functions linked to the keyword index.
+ *
+ * The keyword index contains the suffixes of the words found in the searchable fields of biosamples and results,
+ * so that the keyword search can use an indexed prefix search (token like 'kw%') instead of scanning the tables with '%kw%'.
+ * The suffixes are truncated to MAX_TOKEN_LENGTH, so that the index grows linearly with the length of the words.
+ * The keywords are split into words with the same separators as the indexed values. When a keyword has several words,
+ * or a word longer than MAX_TOKEN_LENGTH, the index only gives the candidates, which are then filtered by the original query.
+ * The index is used only once it has been built (see rebuildIndex), until then the keyword search falls back to the original query.
+ *
+ * @author Joel Freyss
+ */
+@SuppressWarnings("unchecked")
+public class DAOKeyword {
+
+	private static Logger logger = LoggerFactory.getLogger(DAOKeyword.class);
+
+	/** Longer words are truncated before being indexed, so that a long word does not generate too many suffixes */
+	private static final int MAX_WORD_LENGTH = 256;
+
+	/** Maximum length of the indexed suffixes: each word of n characters generates at most n tokens of MAX_TOKEN_LENGTH characters */
+	private static final int MAX_TOKEN_LENGTH = 16;
+
+	/** Characters removed from names and values, when they are normalized */
+	private static final String NORMALIZED_CHARS = ". -_/:#";
+
+	/** Separators used to split the values into words */
+	private static final String SEPARATORS = "[\\s,;()]+";
+
+	private static final int CHUNK_SIZE = 500;
+
+	/**
+	 * Returns true if the keyword index has been built and can be used by the queries
+	 */
+	public static boolean isIndexed() {
+		return SpiritProperties.getInstance().isChecked(PropertyKey.DB_KEYWORDINDEX);
+	}
+
+	/**
+	 * Expands the biosample keywords into a query on the alias 'b'.
+	 * If the index is not built, or if the keyword cannot be searched through the index (exact search, inner wildcards), the legacy expression is used.
+	 * @param legacyExpr - the original expression, containing '?' for the keyword
+	 * @param keywords
+	 * @return
+	 * @throws Exception
+	 */
+	public static String expandBiosampleQuery(String legacyExpr, String keywords) throws Exception {
+		if(!isIndexed()) return QueryTokenizer.expandQuery(legacyExpr, keywords, true, true);
+		return QueryTokenizer.expandQuery((tok, exact) -> {
+			List<String> words = getWords(tok, exact);
+			if(words==null) return legacyExpr.replace("?", "'" + tok + "'");
+
+			String like = "lower('" + tok + "')";
+			StringBuilder sb = new StringBuilder();
+			for (String word : words) {
+				List<String> prefixes = getPrefixes(word);
+				if(sb.length()>0) sb.append(" and ");
+				sb.append("(");
+				sb.append("b.id in (" + getSubquery(prefixes, Keyword.KIND_BIOSAMPLE, Keyword.KIND_BIOSAMPLE_INFO) + ")");
+				sb.append(" or b.parent.id in (" + getSubquery(prefixes, Keyword.KIND_BIOSAMPLE_INFO) + ")");
+				sb.append(" or b.topParent.id in (" + getSubquery(prefixes, Keyword.KIND_BIOSAMPLE_INFO) + ")");
+				sb.append(" or b.biotype.id in (select t.id from Biotype t where lower(t.name) like " + like + ")");
+				sb.append(" or b.parent.id in (select b2.id from Biosample b2 where b2.biotype.id in (select t.id from Biotype t where lower(t.name) like " + like + "))");
+				sb.append(" or b.topParent.id in (select b2.id from Biosample b2 where b2.biotype.id in (select t.id from Biotype t where lower(t.name) like " + like + "))");
+				sb.append(getStudyExpression(like));
+				sb.append(")");
+			}
+			//The index gives only candidates if the keyword is not one short word: filter them with the original query
+			if(words.size()>1 || words.get(0).length()>MAX_TOKEN_LENGTH) sb.append(" and (" + legacyExpr.replace("?", "'" + tok + "'") + ")");
+			return sb.toString();
+		}, keywords, true, true);
+	}
+
+	/**
+	 * Expands the result keywords into a query on the aliases 'r' (result) and 'b' (biosample).
+	 * If the index is not built, or if the keyword cannot be searched through the index (exact search, inner wildcards), the legacy expression is used.
+	 * @param legacyExpr - the original expression, containing '?' for the keyword
+	 * @param keywords
+	 * @return
+	 * @throws Exception
+	 */
+	public static String expandResultQuery(String legacyExpr, String keywords) throws Exception {
+		if(!isIndexed()) return QueryTokenizer.expandQuery(legacyExpr, keywords, true, true);
+		return QueryTokenizer.expandQuery((tok, exact) -> {
+			List<String> words = getWords(tok, exact);
+			if(words==null) return legacyExpr.replace("?", "'" + tok + "'");
+
+			String like = "lower('" + tok + "')";
+			StringBuilder sb = new StringBuilder();
+			for (String word : words) {
+				List<String> prefixes = getPrefixes(word);
+				if(sb.length()>0) sb.append(" and ");
+				sb.append("(");
+				sb.append("r.id in (" + getSubquery(prefixes, Keyword.KIND_RESULT) + ")");
+				sb.append(" or r.test.id in (select t.id from Test t where lower(t.name) like " + like + ")");
+				sb.append(" or b.id in (" + getSubquery(prefixes, Keyword.KIND_BIOSAMPLE, Keyword.KIND_BIOSAMPLE_INFO) + ")");
+				sb.append(" or b.parent.id in (" + getSubquery(prefixes, Keyword.KIND_BIOSAMPLE_INFO) + ")");
+				sb.append(" or b.topParent.id in (" + getSubquery(prefixes, Keyword.KIND_BIOSAMPLE, Keyword.KIND_BIOSAMPLE_INFO) + ")");
+				sb.append(" or b.id in (select b2.id from Biosample b2 join b2.linkedBiosamples b3 where b3.id in (" + getSubquery(prefixes, Keyword.KIND_BIOSAMPLE_INFO) + "))");
+				sb.append(" or b.biotype.id in (select t.id from Biotype t where lower(t.name) like " + like + ")");
+				sb.append(getStudyExpression(like));
+				sb.append(")");
+			}
+			//The index gives only candidates if the keyword is not one short word: filter them with the original query
+			if(words.size()>1 || words.get(0).length()>MAX_TOKEN_LENGTH) sb.append(" and (" + legacyExpr.replace("?", "'" + tok + "'") + ")");
+			return sb.toString();
+		}, keywords, true, true);
+	}
+
+	/**
+	 * Expression on the small tables (study, group, phase, location), which do not need to be indexed
+	 */
+	private static String getStudyExpression(String like) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(" or b.inheritedStudy.id in (select s.id from Study s where lower(s.studyId) like " + like + " or lower(s.localId) like " + like + ")");
+		sb.append(" or b.inheritedGroup.id in (select g.id from Study s join s.groups g where lower(g.name) like " + like + ")");
+		sb.append(" or b.inheritedPhase.id in (select p.id from Study s join s.phases p where lower(p.name) like " + like + ")");
+		sb.append(" or b.location.id in (select l.id from Location l where lower(l.name) like " + like + ")");
+		return sb.toString();
+	}
+
+	private static String getSubquery(List<String> prefixes, String... kinds) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("select k.entityId from Keyword k where " + QueryTokenizer.expandForIn("k.kind", Arrays.asList(kinds)) + " and (");
+		for (int i = 0; i < prefixes.size(); i++) {
+			if(i>0) sb.append(" or ");
+			sb.append("k.token like '" + prefixes.get(i) + "%'");
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the words to be searched in the index for the given token (escaped and with wildcards), or null if the token cannot be searched through the index.
+	 * The token is split with the same separators as the indexed values. The words are lowercase and unescaped.
+	 */
+	private static List<String> getWords(String tok, boolean exact) {
+		if(exact) return null;
+		String core = tok;
+		while(core.startsWith("%")) core = core.substring(1);
+		while(core.endsWith("%")) core = core.substring(0, core.length()-1);
+		if(core.length()==0 || core.contains("%")) return null;
+
+		//Unescape before splitting and truncating, so that we never cut an escaped quote
+		List<String> words = new ArrayList<>();
+		for (String word : core.replace("''", "'").toLowerCase().split(SEPARATORS)) {
+			if(word.length()>0) words.add(word);
+		}
+		return words.isEmpty()? null: words;
+	}
+
+	/**
+	 * Returns the prefixes to be searched in the index for the given word, escaped for SQL.
+	 * The prefixes are the word and its normalized form.
+	 */
+	private static List<String> getPrefixes(String word) {
+		Set<String> res = new LinkedHashSet<>();
+		res.add(truncate(word));
+		String normalized = normalize(word);
+		if(normalized.length()>0) res.add(truncate(normalized));
+
+		List<String> prefixes = new ArrayList<>();
+		for (String s : res) {
+			prefixes.add(QueryTokenizer.escapeForSQL(s));
+		}
+		return prefixes;
+	}
+
+	private static String truncate(String s) {
+		return s.length()>MAX_TOKEN_LENGTH? s.substring(0, MAX_TOKEN_LENGTH): s;
+	}
+
+	private static String normalize(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			if(NORMALIZED_CHARS.indexOf(s.charAt(i))<0) sb.append(s.charAt(i));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Adds the suffixes of the words of the given value to the set of keywords.
+	 * The whole value is tokenized, each word is truncated to MAX_WORD_LENGTH, and each suffix to MAX_TOKEN_LENGTH.
+	 * @param res
+	 * @param kind
+	 * @param id
+	 * @param value
+	 * @param normalized - if true, the value is normalized and indexed as one word (and as separate words if it is too long), if false, the value is split into words
+	 */
+	private static void addTokens(Set<Keyword> res, String kind, int id, String value, boolean normalized) {
+		if(value==null) return;
+		value = value.toLowerCase();
+
+		List<String> words = new ArrayList<>();
+		if(normalized) {
+			String word = normalize(value);
+			words.add(word);
+			//The end of a long value would be lost by the truncation: index also its words
+			if(word.length()>MAX_WORD_LENGTH) words.addAll(Arrays.asList(value.split(SEPARATORS)));
+		} else {
+			words.addAll(Arrays.asList(value.split(SEPARATORS)));
+		}
+		for (String word : words) {
+			if(word.length()>MAX_WORD_LENGTH) word = word.substring(0, MAX_WORD_LENGTH);
+			for (int i = 0; i < word.length(); i++) {
+				res.add(new Keyword(kind, id, truncate(word.substring(i))));
+			}
+		}
+	}
+
+	/**
+	 * Updates the index of the given objects (biosamples or results). Other objects are skipped.
+	 * This function must be called within a transaction, after the objects have been persisted
+	 * @param session
+	 * @param objects
+	 * @throws Exception
+	 */
+	public static void index(EntityManager session, Collection<? extends IObject> objects) throws Exception {
+		List<Biosample> biosamples = new ArrayList<>();
+		List<Result> results = new ArrayList<>();
+		for (IObject o : objects) {
+			if(o instanceof Biosample) biosamples.add((Biosample) o);
+			else if(o instanceof Result) results.add((Result) o);
+		}
+		indexBiosamples(session, biosamples, true);
+		indexResults(session, results, true);
+	}
+
+	/**
+	 * Removes the given objects (biosamples or results) from the index. Other objects are skipped.
+	 * This function must be called within a transaction
+	 * @param session
+	 * @param objects
+	 * @throws Exception
+	 */
+	public static void remove(EntityManager session, Collection<? extends IObject> objects) throws Exception {
+		List<Integer> biosampleIds = new ArrayList<>();
+		List<Integer> resultIds = new ArrayList<>();
+		for (IObject o : objects) {
+			if(o.getId()<=0) continue;
+			if(o instanceof Biosample) biosampleIds.add(o.getId());
+			else if(o instanceof Result) resultIds.add(o.getId());
+		}
+		write(session, biosampleIds, new String[] {Keyword.KIND_BIOSAMPLE, Keyword.KIND_BIOSAMPLE_INFO}, null);
+		write(session, resultIds, new String[] {Keyword.KIND_RESULT}, null);
+	}
+
+	private static void indexBiosamples(EntityManager session, Collection<Biosample> biosamples, boolean deleteFirst) throws Exception {
+		List<Integer> ids = new ArrayList<>();
+		Set<Keyword> keywords = new LinkedHashSet<>();
+		for (Biosample b : biosamples) {
+			if(b.getId()<=0) continue;
+			ids.add(b.getId());
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE, b.getId(), b.getSampleId(), false);
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE, b.getId(), b.getContainerId(), false);
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE, b.getId(), b.getComments(), false);
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE, b.getId(), b.getCreUser(), false);
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE, b.getId(), b.getUpdUser(), false);
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE, b.getId(), b.getElb(), false);
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE_INFO, b.getId(), b.getSampleName(), false);
+			addTokens(keywords, Keyword.KIND_BIOSAMPLE_INFO, b.getId(), b.getSampleName(), true);
+			if(b.getBiotype()!=null) {
+				for (String value : b.getMetadataValues().values()) {
+					addTokens(keywords, Keyword.KIND_BIOSAMPLE_INFO, b.getId(), value, false);
+				}
+			}
+		}
+		write(session, deleteFirst? ids: null, new String[] {Keyword.KIND_BIOSAMPLE, Keyword.KIND_BIOSAMPLE_INFO}, keywords);
+	}
+
+	private static void indexResults(EntityManager session, Collection<Result> results, boolean deleteFirst) throws Exception {
+		List<Integer> ids = new ArrayList<>();
+		Set<Keyword> keywords = new LinkedHashSet<>();
+		for (Result r : results) {
+			if(r.getId()<=0) continue;
+			ids.add(r.getId());
+			addTokens(keywords, Keyword.KIND_RESULT, r.getId(), r.getElb(), false);
+			for (ResultValue v : r.getResultValues()) {
+				addTokens(keywords, Keyword.KIND_RESULT, r.getId(), v.getValue(), true);
+			}
+		}
+		write(session, deleteFirst? ids: null, new String[] {Keyword.KIND_RESULT}, keywords);
+	}
+
+	/**
+	 * Deletes the keywords of the given ids, and inserts the new keywords.
+	 * The keywords are flushed and detached, so that the same keywords can be written again within the same session
+	 */
+	private static void write(EntityManager session, Collection<Integer> idsToDelete, String[] kinds, Collection<Keyword> keywords) throws Exception {
+		assert session.getTransaction().isActive();
+		if(idsToDelete!=null && !idsToDelete.isEmpty()) {
+			JPAUtil.executeUpdateIn(session, "delete from Keyword k where " + QueryTokenizer.expandForIn("k.kind", Arrays.asList(kinds)) + " and k.entityId in (:ids)", "ids", idsToDelete);
+		}
+		if(keywords!=null && !keywords.isEmpty()) {
+			for (Keyword k : keywords) {
+				session.persist(k);
+			}
+			session.flush();
+			for (Keyword k : keywords) {
+				session.detach(k);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the whole keyword index, and enables it for the keyword search.
+	 * This is needed after the migration of an existing DB.
+	 * @param user
+	 * @throws Exception
+	 */
+	public static void rebuildIndex(SpiritUser user) throws Exception {
+		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin to rebuild the keyword index");
+
+		//Disable the index while it is rebuilt, as it will be incomplete until the end
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_KEYWORDINDEX, "false");
+		SpiritProperties.getInstance().saveValues();
+
+		long start = System.currentTimeMillis();
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		try {
+			session = JPAUtil.createManager();
+			txn = session.getTransaction();
+			txn.begin();
+			session.createQuery("delete from Keyword k").executeUpdate();
+			txn.commit();
+
+			//Commit each chunk, so that the transaction does not grow with the DB
+			List<Integer> biosampleIds = session.createQuery("select b.id from Biosample b").getResultList();
+			for (int i = 0; i < biosampleIds.size(); i+=CHUNK_SIZE) {
+				txn.begin();
+				List<Biosample> biosamples = JPAUtil.queryIn(session, "select b from Biosample b where b.id in (:ids)", "ids", biosampleIds.subList(i, Math.min(biosampleIds.size(), i+CHUNK_SIZE)));
+				indexBiosamples(session, biosamples, false);
+				txn.commit();
+				session.clear();
+			}
+
+			List<Integer> resultIds = session.createQuery("select r.id from Result r").getResultList();
+			for (int i = 0; i < resultIds.size(); i+=CHUNK_SIZE) {
+				txn.begin();
+				List<Result> results = JPAUtil.queryIn(session, "select distinct r from Result r left join fetch r.values where r.id in (:ids)", "ids", resultIds.subList(i, Math.min(resultIds.size(), i+CHUNK_SIZE)));
+				indexResults(session, results, false);
+				txn.commit();
+				session.clear();
+			}
+
+			txn = null;
+			logger.info("Keyword index rebuilt: " + biosampleIds.size() + " biosamples, " + resultIds.size() + " results in " + (System.currentTimeMillis()-start) + "ms");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) session.close();
+		}
+
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_KEYWORDINDEX, "true");
+		SpiritProperties.getInstance().saveValues();
+	}
+}
@@ -60,6 +60,11 @@ public class DAOLocation {
 
 	private static Logger logger = LoggerFactory.getLogger(DAOLocation.class);
 
+	@SuppressWarnings("unchecked")
+	private static final EntityCache<Location> locationCache = new EntityCache<>(Location.class, Cache.LONG, (session, ids) -> {
+		return ids==null? session.createQuery("from Location l").getResultList(): JPAUtil.queryIn(session, "from Location l where l.id in (:ids)", "ids", ids);
+	});
+
 	public static void persistLocations(Collection<Location> locations, SpiritUser user) throws Exception {
 		if(locations==null || locations.size()==0) return;
 		EntityManager session = JPAUtil.getManager();
@@ -76,6 +81,10 @@ public class DAOLocation {
 	}
 
 	public static void persistLocations(EntityManager session, Collection<Location> locations, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOLocation.persistLocations", () -> doPersistLocations(session, locations, user));
+	}
+
+	private static void doPersistLocations(EntityManager session, Collection<Location> locations, SpiritUser user) throws Exception {
 
 		if(locations==null || locations.size()==0) return;
 		logger.info("persist "+locations.size()+" locations");
@@ -86,7 +95,7 @@ public class DAOLocation {
 		Map<Integer, Integer> id2cols = new HashMap<>();
 		Map<Integer, Location> id2location = JPAUtil.mapIds(locations);
 		if(id2location.size()>0) {
-			List<Object[]> lastUpdates = session.createQuery("select l.id, l.rows, l.cols, l.updDate, l.updUser from Location l where " + QueryTokenizer.expandForIn("l.id", id2location.keySet())).getResultList();
+			List<Object[]> lastUpdates = JPAUtil.queryIn(session, "select l.id, l.rows, l.cols, l.updDate, l.updUser from Location l where l.id in (:ids)", "ids", id2location.keySet());
 			for (Object[] lastUpdate : lastUpdates) {
 				Location l = id2location.get(lastUpdate[0]);
 				Integer rows = (Integer) lastUpdate[1];
@@ -267,15 +276,16 @@ public class DAOLocation {
 			}
 
 		}
-		Cache.getInstance().remove("locationRoots");
-		Cache.getInstance().remove("locations");
+		DAOLocationClosure.afterPersist(session, map.values());
+
+		locationCache.invalidate(locations);
+		RightsPredicate.invalidateLocations();
+		Location.invalidateCaches();
 	}
 
 
 	public static Location getLocation(int id) {
-		EntityManager session = JPAUtil.getManager();
-		List<Location> list = session.createQuery("from Location l where l.id = "+id).getResultList();
-		return list.size()==1? list.get(0): null;
+		return locationCache.get(JPAUtil.getManager(), id);
 	}
 
 	public static Location getLocation(Location parent, String name) {
@@ -334,6 +344,10 @@ public class DAOLocation {
 	 * @throws Exception
 	 */
 	public static List<Location> queryLocation(LocationQuery q, SpiritUser user) throws Exception {
+		return SpiritMetrics.time("DAOLocation.queryLocation", () -> doQueryLocation(q, user));
+	}
+
+	private static List<Location> doQueryLocation(LocationQuery q, SpiritUser user) throws Exception {
 
 		EntityManager session = JPAUtil.getManager();
 		String jpql = "from Location location where 1 = 1";
@@ -448,6 +462,10 @@ public class DAOLocation {
 	 * @throws Exception
 	 */
 	public static void deleteLocations(EntityManager session, Collection<Location> locations, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOLocation.deleteLocations", () -> doDeleteLocations(session, locations, user));
+	}
+
+	private static void doDeleteLocations(EntityManager session, Collection<Location> locations, SpiritUser user) throws Exception {
 
 		if(user==null) throw new Exception("There is no user");
 		for (Location location : locations) {
@@ -457,6 +475,8 @@ public class DAOLocation {
 			if(location.getChildren()!=null && !locations.containsAll(location.getChildren())) throw new Exception(location+" has children");
 		}
 
+		DAOLocationClosure.beforeDelete(session, locations);
+
 		Date now = JPAUtil.getCurrentDateFromDatabase();
 		for (Location location : locations) {
 
@@ -469,7 +489,9 @@ public class DAOLocation {
 			session.remove(location);
 		}
 
-		Cache.getInstance().remove("locationRoots");
+		locationCache.invalidate(locations);
+		RightsPredicate.invalidateLocations();
+		Location.invalidateCaches();
 	}
 
 
@@ -588,6 +610,10 @@ public class DAOLocation {
 
 
 	public static void moveLocations(List<Location> locations, Location parent, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOLocation.moveLocations", () -> doMoveLocations(locations, parent, user));
+	}
+
+	private static void doMoveLocations(List<Location> locations, Location parent, SpiritUser user) throws Exception {
 		//test for cycles
 		if(parent!=null) {
 			List<Location> hierarchy = parent.getHierarchy();
@@ -605,16 +631,19 @@ public class DAOLocation {
 
 			//Update the locations
 			Date now = JPAUtil.getCurrentDateFromDatabase();
+			List<Location> merged = new ArrayList<>();
 			for (Location l : locations) {
 				l.setParent(parent);
 				l.setUpdUser(user.getUsername());
 				l.setUpdDate(now);
-				session.merge(l);
+				merged.add(session.merge(l));
 			}
+			DAOLocationClosure.afterPersist(session, merged);
 
 			txn.commit();
-			Cache.getInstance().remove("locationRoots");
-			Cache.getInstance().remove("locations");
+			locationCache.invalidate(locations);
+			RightsPredicate.invalidateLocations();
+			Location.invalidateCaches();
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
 		}
@@ -0,0 +1,228 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.business.location.Location;
+import com.actelion.research.spiritcore.business.location.LocationClosure;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+
+/**
+ * DAO functions to maintain the ancestor/descendant closure of the locations (see LocationClosure).
+ * <br>
+ * The closure is updated in the same transaction as the locations: when a location is created or its parent is changed,
+ * its subtree is detached from its old ancestors and attached to the ancestors of its new parent.
+ * Locations updated outside of DAOLocation are not reflected, so the closure can be rebuilt from the admin menu.
+ * <br>
+ * The closure is only used when the DB_LOCATIONCLOSURE flag is set (ie. after a rebuild)
+ *
+ * @author Joel Freyss
+ */
+@SuppressWarnings("unchecked")
+public class DAOLocationClosure {
+
+	private static Logger logger = LoggerFactory.getLogger(DAOLocationClosure.class);
+
+	/**
+	 * Returns true if the closure has been built, and can be used to query the subtrees
+	 */
+	public static boolean isEnabled() {
+		return SpiritProperties.getInstance().isChecked(PropertyKey.DB_LOCATIONCLOSURE);
+	}
+
+	/**
+	 * Updates the closure of the given locations, after they have been persisted or moved (the ids must be set).
+	 * The rows are only changed for the new locations, and for the locations whose parent has changed.
+	 * @param session
+	 * @param locations
+	 */
+	static void afterPersist(EntityManager session, Collection<Location> locations) {
+		if(!isEnabled()) return;
+
+		//Process the parents before their children
+		List<Location> sorted = new ArrayList<>(locations);
+		sorted.sort((l1, l2) -> l1.getHierarchy().size() - l2.getHierarchy().size());
+
+		List<LocationClosure> created = new ArrayList<>();
+		for (Location location : sorted) {
+			if(location.getId()<=0) continue;
+			int id = location.getId();
+			int parentId = location.getParent()==null? 0: location.getParent().getId();
+
+			//Load the current ancestors
+			boolean exists = false;
+			int oldParentId = 0;
+			List<Integer> oldAncestorIds = new ArrayList<>();
+			List<Object[]> rows = session.createQuery("select c.ancestorId, c.depth from LocationClosure c where c.descendantId = :id")
+					.setParameter("id", id)
+					.getResultList();
+			for (Object[] row : rows) {
+				int depth = (Integer) row[1];
+				if(depth==0) exists = true;
+				else oldAncestorIds.add((Integer) row[0]);
+				if(depth==1) oldParentId = (Integer) row[0];
+			}
+			if(exists && oldParentId==parentId) continue;
+
+			//Load the subtree (the location included), mapped to its depth
+			Map<Integer, Integer> subtree = new LinkedHashMap<>();
+			if(exists) {
+				rows = session.createQuery("select c.descendantId, c.depth from LocationClosure c where c.ancestorId = :id")
+						.setParameter("id", id)
+						.getResultList();
+				for (Object[] row : rows) {
+					subtree.put((Integer) row[0], (Integer) row[1]);
+				}
+			} else {
+				LocationClosure c = new LocationClosure(id, id, 0);
+				session.persist(c);
+				created.add(c);
+				subtree.put(id, 0);
+			}
+
+			//Detach the subtree from the old ancestors
+			if(oldAncestorIds.size()>0) {
+				for (List<Integer> chunk : QueryTokenizer.splitForIn(subtree.keySet())) {
+					session.createQuery("delete from LocationClosure c where c.ancestorId in (:ancestorIds) and c.descendantId in (:ids)")
+					.setParameter("ancestorIds", oldAncestorIds)
+					.setParameter("ids", chunk)
+					.executeUpdate();
+				}
+			}
+
+			//Attach the subtree to the new ancestors
+			if(parentId>0) {
+				rows = session.createQuery("select c.ancestorId, c.depth from LocationClosure c where c.descendantId = :id")
+						.setParameter("id", parentId)
+						.getResultList();
+				if(rows.isEmpty()) {
+					logger.warn("The location closure is out of sync: " + location.getParent() + " has no rows - it should be rebuilt");
+				}
+				for (Object[] row : rows) {
+					for (Map.Entry<Integer, Integer> e : subtree.entrySet()) {
+						LocationClosure c = new LocationClosure((Integer) row[0], e.getKey(), (Integer) row[1] + 1 + e.getValue());
+						session.persist(c);
+						created.add(c);
+					}
+				}
+			}
+		}
+
+		//The rows are not kept in the session, as they may be deleted by the bulk updates
+		if(created.size()>0) {
+			session.flush();
+			for (LocationClosure c : created) {
+				session.detach(c);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the rows of the given locations, before they are deleted.
+	 * The locations must not have children, except the ones, which are also deleted.
+	 * @param session
+	 * @param locations
+	 */
+	static void beforeDelete(EntityManager session, Collection<Location> locations) {
+		if(!isEnabled()) return;
+		JPAUtil.executeUpdateIn(session, "delete from LocationClosure c where c.descendantId in (:ids)", "ids", JPAUtil.getIds(locations));
+	}
+
+	/**
+	 * Returns the ids of the locations under the given location (the location included)
+	 * @param session
+	 * @param location
+	 * @return
+	 */
+	public static List<Integer> getDescendantIds(EntityManager session, Location location) {
+		return session.createQuery("select c.descendantId from LocationClosure c where c.ancestorId = :id")
+				.setParameter("id", location.getId())
+				.getResultList();
+	}
+
+	/**
+	 * Rebuilds the closure from the parents of the locations, and enables its use.
+	 * @param user
+	 * @throws Exception
+	 */
+	public static void rebuild(SpiritUser user) throws Exception {
+		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin");
+		long start = System.currentTimeMillis();
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		try {
+			session = JPAUtil.createManager();
+			txn = session.getTransaction();
+			txn.begin();
+
+			session.createQuery("delete from LocationClosure c").executeUpdate();
+
+			Map<Integer, Integer> id2parentId = new HashMap<>();
+			List<Object[]> rows = session.createQuery("select l.id, p.id from Location l left join l.parent p").getResultList();
+			for (Object[] row : rows) {
+				id2parentId.put((Integer) row[0], (Integer) row[1]);
+			}
+
+			int count = 0;
+			for (Integer id : id2parentId.keySet()) {
+				Set<Integer> seen = new HashSet<>();
+				Integer ancestorId = id;
+				int depth = 0;
+				while(ancestorId!=null && seen.add(ancestorId)) {
+					session.persist(new LocationClosure(ancestorId, id, depth++));
+					if(++count%500==0) {
+						session.flush();
+						session.clear();
+					}
+					ancestorId = id2parentId.get(ancestorId);
+				}
+				if(ancestorId!=null) logger.warn("Cycle in the location hierarchy of " + id);
+			}
+
+			txn.commit();
+			txn = null;
+			logger.info("Location closure rebuilt: " + count + " rows in " + (System.currentTimeMillis()-start) + "ms");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) session.close();
+		}
+
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_LOCATIONCLOSURE, "true");
+		SpiritProperties.getInstance().saveValues();
+	}
+}
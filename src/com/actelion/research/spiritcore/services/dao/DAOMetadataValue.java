@@ -0,0 +1,242 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.business.DataType;
+import com.actelion.research.spiritcore.business.IObject;
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.biosample.BiosampleMetadataValue;
+import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.util.MiscUtils;
+import com.actelion.research.spiritcore.util.Pair;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+
+/**
+ * DAO functions linked to the normalized metadata values (BiosampleMetadataValue).
+ *
+ * The table is used by the linker filters of the BiosampleQuery, once it has been built (see rebuildIndex).
+ * Until then, the queries use the serialized metadata.
+ *
+ * @author Joel Freyss
+ */
+@SuppressWarnings("unchecked")
+public class DAOMetadataValue {
+
+	private static Logger logger = LoggerFactory.getLogger(DAOMetadataValue.class);
+
+	private static final int CHUNK_SIZE = 500;
+
+	/**
+	 * Returns true if the metadata values have been indexed and can be used by the queries
+	 */
+	public static boolean isIndexed() {
+		return SpiritProperties.getInstance().isChecked(PropertyKey.DB_METADATAINDEX);
+	}
+
+	/**
+	 * Returns true if a filter on the given metadata can be done through the normalized table.
+	 * In that case, the filter is exact and does not need to be checked afterwards.
+	 */
+	public static boolean canQuery(BiotypeMetadata metadata) {
+		return metadata!=null && metadata.getId()>0 && metadata.getDataType()!=DataType.LARGE && isIndexed();
+	}
+
+	/**
+	 * Returns a subquery selecting the ids of the biosamples, whose metadata matches the given query.
+	 * The query follows the syntax of QueryTokenizer.matchQuery: exact values, wildcards (*val*) or numeric comparisons (&gt;5).
+	 * The tokens are combined with AND, unless they are separated by OR: "a b or c" is read as "(a and b) or c"
+	 * @param metadata
+	 * @param queryString
+	 * @return the subquery, or null if the query has no token
+	 */
+	public static String getSubquery(BiotypeMetadata metadata, String queryString) {
+		List<String> orClauses = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		for (String tok : QueryTokenizer.tokenize(queryString, ",; ()")) {
+			if("and".equalsIgnoreCase(tok)) continue;
+			if("or".equalsIgnoreCase(tok)) {
+				if(sb.length()>0) orClauses.add(sb.toString());
+				sb.setLength(0);
+				continue;
+			}
+			if(sb.length()>0) sb.append(" and ");
+			Pair<String, Double> comparison = QueryTokenizer.parseComparison(tok);
+			if(tok.startsWith("*") || tok.endsWith("*")) {
+				sb.append("lower(v.value) like '%" + escapeForLike(tok.toLowerCase().replace("*", "")) + "%' escape '!'");
+			} else if(comparison!=null) {
+				sb.append("v.numValue " + comparison.getFirst() + " " + comparison.getSecond());
+			} else {
+				sb.append("v.value = '" + QueryTokenizer.escapeForSQL(truncate(tok)) + "'");
+			}
+		}
+		if(sb.length()>0) orClauses.add(sb.toString());
+		if(orClauses.isEmpty()) return null;
+		return "select v.biosampleId from BiosampleMetadataValue v where v.metadataId = " + metadata.getId() + " and ((" + String.join(") or (", orClauses) + "))";
+	}
+
+	/**
+	 * Escapes the quotes and the wildcards of a like pattern, using '!' as escape character
+	 */
+	private static String escapeForLike(String s) {
+		return s.replace("!", "!!").replace("%", "!%").replace("_", "!_").replace("'", "''");
+	}
+
+	private static String truncate(String s) {
+		return s.length()>BiosampleMetadataValue.MAX_LENGTH? s.substring(0, BiosampleMetadataValue.MAX_LENGTH): s;
+	}
+
+	/**
+	 * Updates the metadata values of the given biosamples. Other objects are skipped.
+	 * This function must be called within a transaction, after the biosamples have been persisted
+	 * @param session
+	 * @param objects
+	 * @throws Exception
+	 */
+	public static void index(EntityManager session, Collection<? extends IObject> objects) throws Exception {
+		write(session, getBiosampleIds(objects), getValues(objects));
+	}
+
+	/**
+	 * Removes the metadata values of the given biosamples. Other objects are skipped.
+	 * This function must be called within a transaction
+	 * @param session
+	 * @param objects
+	 * @throws Exception
+	 */
+	public static void remove(EntityManager session, Collection<? extends IObject> objects) throws Exception {
+		write(session, getBiosampleIds(objects), null);
+	}
+
+	private static List<Integer> getBiosampleIds(Collection<? extends IObject> objects) {
+		List<Integer> ids = new ArrayList<>();
+		for (IObject o : objects) {
+			if(o instanceof Biosample && o.getId()>0) ids.add(o.getId());
+		}
+		return ids;
+	}
+
+	private static List<BiosampleMetadataValue> getValues(Collection<? extends IObject> objects) {
+		List<BiosampleMetadataValue> res = new ArrayList<>();
+		Set<Integer> seen = new HashSet<>();
+		for (IObject o : objects) {
+			if(!(o instanceof Biosample) || o.getId()<=0 || !seen.add(o.getId())) continue;
+			Biosample b = (Biosample) o;
+			if(b.getBiotype()==null) continue;
+			Set<Integer> metadataIds = new HashSet<>();
+			for (BiotypeMetadata bm : b.getBiotype().getMetadata()) {
+				metadataIds.add(bm.getId());
+			}
+			//The map may contain stale keys (whose id was set after they were added): keep the last value of each metadata
+			Map<Integer, BiosampleMetadataValue> values = new LinkedHashMap<>();
+			for (Map.Entry<BiotypeMetadata, String> e : b.getMetadataValues().entrySet()) {
+				BiotypeMetadata bm = e.getKey();
+				String value = e.getValue();
+				if(bm.getId()<=0 || bm.getDataType()==DataType.LARGE || value==null || value.length()==0) continue;
+				if(!metadataIds.contains(bm.getId())) continue;
+				values.put(bm.getId(), new BiosampleMetadataValue(b.getId(), bm.getId(), truncate(value), MiscUtils.parseDouble(value)));
+			}
+			res.addAll(values.values());
+		}
+		return res;
+	}
+
+	/**
+	 * Deletes the values of the given biosamples, and inserts the new values.
+	 * The values are flushed and detached, so that they can be written again within the same session
+	 */
+	private static void write(EntityManager session, Collection<Integer> idsToDelete, Collection<BiosampleMetadataValue> values) throws Exception {
+		assert session.getTransaction().isActive();
+		if(idsToDelete!=null && !idsToDelete.isEmpty()) {
+			JPAUtil.executeUpdateIn(session, "delete from BiosampleMetadataValue v where v.biosampleId in (:ids)", "ids", idsToDelete);
+		}
+		if(values!=null && !values.isEmpty()) {
+			for (BiosampleMetadataValue v : values) {
+				session.persist(v);
+			}
+			session.flush();
+			for (BiosampleMetadataValue v : values) {
+				session.detach(v);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the whole table of metadata values, and enables it for the queries.
+	 * This is needed after the migration of an existing DB.
+	 * @param user
+	 * @throws Exception
+	 */
+	public static void rebuildIndex(SpiritUser user) throws Exception {
+		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin to rebuild the metadata index");
+
+		//Disable the index while it is rebuilt, as it will be incomplete until the end
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_METADATAINDEX, "false");
+		SpiritProperties.getInstance().saveValues();
+
+		long start = System.currentTimeMillis();
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		try {
+			session = JPAUtil.createManager();
+			txn = session.getTransaction();
+			txn.begin();
+			session.createQuery("delete from BiosampleMetadataValue v").executeUpdate();
+			txn.commit();
+
+			//Commit each chunk, so that the transaction does not grow with the DB
+			List<Integer> biosampleIds = session.createQuery("select b.id from Biosample b").getResultList();
+			for (int i = 0; i < biosampleIds.size(); i+=CHUNK_SIZE) {
+				txn.begin();
+				List<Biosample> biosamples = JPAUtil.queryIn(session, "select b from Biosample b where b.id in (:ids)", "ids", biosampleIds.subList(i, Math.min(biosampleIds.size(), i+CHUNK_SIZE)));
+				//The biosamples saved since the deletion are already indexed: replace their values
+				write(session, getBiosampleIds(biosamples), getValues(biosamples));
+				txn.commit();
+				session.clear();
+			}
+
+			txn = null;
+			logger.info("Metadata index rebuilt: " + biosampleIds.size() + " biosamples in " + (System.currentTimeMillis()-start) + "ms");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) session.close();
+		}
+
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_METADATAINDEX, "true");
+		SpiritProperties.getInstance().saveValues();
+	}
+}
@@ -23,6 +23,7 @@ package com.actelion.research.spiritcore.services.dao;
 
 import java.net.URL;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
@@ -43,6 +44,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
 import javax.persistence.Query;
 
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,6 +53,7 @@ import com.actelion.research.spiritcore.business.DataType;
 import com.actelion.research.spiritcore.business.Quality;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
 import com.actelion.research.spiritcore.business.result.Result;
 import com.actelion.research.spiritcore.business.result.ResultQuery;
 import com.actelion.research.spiritcore.business.result.ResultValue;
@@ -65,6 +68,7 @@ import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.services.helper.ExpressionHelper;
 import com.actelion.research.spiritcore.util.ListHashMap;
 import com.actelion.research.spiritcore.util.MiscUtils;
+import com.actelion.research.spiritcore.util.Pair;
 import com.actelion.research.spiritcore.util.QueryTokenizer;
 import com.actelion.research.util.CompareUtils;
 
@@ -81,17 +85,22 @@ public class DAOResult {
 
 	private static Logger logger = LoggerFactory.getLogger(DAOResult.class);
 
+	/**
+	 * Number of numeric values read and updated per transaction (see rebuildNumValues)
+	 */
+	private static final int NUMVALUE_BATCH_SIZE = 1000;
+
 	public static String suggestElb(String user) {
 		return "ELB-" + (user==null?"": user + "-") + new SimpleDateFormat("yyyyMMdd-HHmm").format(JPAUtil.getCurrentDateFromDatabase());
 	}
 
 	public static List<Result> queryResults(ResultQuery q, SpiritUser user) throws Exception  {
-		return queryResults(JPAUtil.getManager(), q, user);
+		return SpiritMetrics.time("DAOResult.queryResults", () -> queryResults(JPAUtil.getManager(), q, user));
 	}
 
 	public static List<Result> getResults(Collection<Integer> ids) throws Exception  {
 		EntityManager session = JPAUtil.getManager();
-		List<Result> results = session.createQuery("from Result r left join fetch r.biosample where " + QueryTokenizer.expandForIn("r.id", ids)).getResultList();
+		List<Result> results = JPAUtil.queryIn(session, "from Result r left join fetch r.biosample where r.id in (:ids)", "ids", ids);
 		postLoad(results);
 		return results;
 	}
@@ -100,7 +109,7 @@ public class DAOResult {
 		//Create a new query per Test
 		long s = System.currentTimeMillis();
 		//New method for searching
-		List<Result> results = getResults(session, q);
+		List<Result> results = getResults(session, q, user);
 
 		//Check rights
 		if(user!=null) {
@@ -118,7 +127,7 @@ public class DAOResult {
 		return results;
 	}
 
-	private static void postLoad(Collection<Result> results) {
+	static void postLoad(Collection<Result> results) {
 		//Load linked biosamples
 		ListHashMap<String,  ResultValue> sampleId2rvs = new ListHashMap<>();
 		Map<Test, List<Result>> map = Result.mapTest(results);
@@ -183,7 +192,10 @@ public class DAOResult {
 		return updated;
 	}
 
-	private static List<Result> getResults(EntityManager session, ResultQuery q) throws Exception {
+	/**
+	 * Queries the results. If the user is given, the results that the user cannot read are filtered by the query (but their rights must still be checked)
+	 */
+	private static List<Result> getResults(EntityManager session, ResultQuery q, SpiritUser user) throws Exception {
 		StringBuilder clause = new StringBuilder();
 		List<Object> parameters = new ArrayList<>();
 
@@ -302,6 +314,21 @@ public class DAOResult {
 			clause.append(")");
 		}
 
+		if(q.getAttribute2Range().size()>0 && isNumValueIndexed()) {
+			for (Map.Entry<TestAttribute, Pair<Double, Double>> e : q.getAttribute2Range().entrySet()) {
+				clause.append(" and r IN (SELECT v.result FROM ResultValue v WHERE v.attribute.id = " + e.getKey().getId());
+				if(e.getValue().getFirst()!=null) {
+					clause.append(" and v.numValue >= ?");
+					parameters.add(e.getValue().getFirst());
+				}
+				if(e.getValue().getSecond()!=null) {
+					clause.append(" and v.numValue <= ?");
+					parameters.add(e.getValue().getSecond());
+				}
+				clause.append(")");
+			}
+		}
+
 		if(q.getInputs()!=null && q.getInputs().size()>0) {
 			clause.append(" and r IN (SELECT v.result FROM ResultValue v WHERE v.attribute.isOutput = false and (");
 			boolean first = true;
@@ -339,9 +366,11 @@ public class DAOResult {
 			expr.append(" or LOWER(b.updUser) like LOWER(?)");
 
 
-			clause.append(" and (" + QueryTokenizer.expandQuery(expr.toString(), q.getKeywords(), true, true) + ")");
+			clause.append(" and (" + DAOKeyword.expandResultQuery(expr.toString(), q.getKeywords()) + ")");
 		}
 
+		clause.append(RightsPredicate.getResultClause("r", "b", user));
+
 		String jpql = "SELECT r FROM Result r left join fetch r.biosample b ";
 
 		if(clause.length()>0) {
@@ -377,7 +406,21 @@ public class DAOResult {
 			}
 		}
 
-
+		//Range filters, if the numeric values have not been migrated yet
+		if(q.getAttribute2Range().size()>0 && !isNumValueIndexed()) {
+			List<Result> filtered = new ArrayList<>();
+			loop: for (Result r : results) {
+				for (Map.Entry<TestAttribute, Pair<Double, Double>> e : q.getAttribute2Range().entrySet()) {
+					ResultValue rv = r.getResultValue(e.getKey());
+					double v = rv==null? Double.NaN: rv.getNumValue();
+					if(Double.isNaN(v)) continue loop;
+					if(e.getValue().getFirst()!=null && v<e.getValue().getFirst()) continue loop;
+					if(e.getValue().getSecond()!=null && v>e.getValue().getSecond()) continue loop;
+				}
+				filtered.add(r);
+			}
+			results = filtered;
+		}
 
 		return results;
 
@@ -393,12 +436,17 @@ public class DAOResult {
 			deleteResults(session, results, user);
 			txn.commit();
 			txn = null;
+			DAOAutoCompletion.onDeleteResults(results);
 		} finally {
 			if(txn!=null && txn.isActive()) if(txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
 		}
 	}
 
 	public static void deleteResults(EntityManager session, Collection<Result> results, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOResult.deleteResults", () -> doDeleteResults(session, results, user));
+	}
+
+	private static void doDeleteResults(EntityManager session, Collection<Result> results, SpiritUser user) throws Exception {
 		if(results==null || results.size()==0) return;
 		assert session!=null;
 		assert session.getTransaction().isActive();
@@ -407,12 +455,15 @@ public class DAOResult {
 			if(!SpiritRights.canDelete(result, user)) throw new Exception(user+" is not allowed to delete "+result);
 		}
 
+		DAOStudySummary.Changes summaryChanges = DAOStudySummary.beforeResults(session, results);
 		for (Result result : results) {
 			if(!session.contains(result)) {
 				result = session.merge(result);
 			}
 			session.remove(result);
 		}
+		DAOKeyword.remove(session, results);
+		DAOStudySummary.afterDelete(session, summaryChanges);
 	}
 
 
@@ -443,9 +494,15 @@ public class DAOResult {
 			long s = System.currentTimeMillis();
 			txn = session.getTransaction();
 			txn.begin();
+			List<Result> created = new ArrayList<>();
+			List<Result> updated = new ArrayList<>();
+			for (Result r : results) {
+				(r.getId()<=0? created: updated).add(r);
+			}
 			persistResults(session, experimentElb, isNewExperiment, true, results, user);
 			txn.commit();
 			txn = null;
+			DAOAutoCompletion.onPersistResults(created, updated);
 			logger.debug("done in "+(System.currentTimeMillis()-s)+"ms");
 
 		} finally {
@@ -477,10 +534,16 @@ public class DAOResult {
 			long s = System.currentTimeMillis();
 			txn = session.getTransaction();
 			txn.begin();
+			List<Result> created = new ArrayList<>();
+			List<Result> updated = new ArrayList<>();
+			for (Result r : results) {
+				(r.getId()<=0? created: updated).add(r);
+			}
 			persistResults(session, null, false, false, results, user);
 
 			txn.commit();
 			txn = null;
+			DAOAutoCompletion.onPersistResults(created, updated);
 			logger.debug("done in "+(System.currentTimeMillis()-s)+"ms");
 
 		} finally {
@@ -490,7 +553,7 @@ public class DAOResult {
 	}
 
 	public static void persistResults(EntityManager session, Collection<Result> results, SpiritUser user) throws Exception {
-		persistResults(session, null, false, false, results, user);
+		SpiritMetrics.run("DAOResult.persistResults", () -> persistResults(session, null, false, false, results, user));
 	}
 
 	private static void persistResults(EntityManager session, String experimentElb, boolean isNewExperiment, boolean removeOlderResults, Collection<Result> results, SpiritUser user) throws Exception {
@@ -500,6 +563,9 @@ public class DAOResult {
 
 		Date now = JPAUtil.getCurrentDateFromDatabase();
 
+		//Read the previous keys of the study summary, before anything is flushed
+		DAOStudySummary.Changes summaryChanges = DAOStudySummary.beforeResults(session, results);
+
 		//Quick check of integrity constraints
 		for (Result r : results) {
 
@@ -518,7 +584,7 @@ public class DAOResult {
 
 
 			Map<Integer, Result> id2result = JPAUtil.mapIds(results);
-			List<Object[]> lastUpdates = session.createQuery("select b.updDate, b.updUser, b.id from Result b where " + QueryTokenizer.expandForIn("b.id", id2result.keySet())).getResultList();
+			List<Object[]> lastUpdates = JPAUtil.queryIn(session, "select b.updDate, b.updUser, b.id from Result b where b.id in (:ids)", "ids", id2result.keySet());
 			for (Object[] lastUpdate : lastUpdates) {
 				Date lastDate = (Date) lastUpdate[0];
 				String lastUser = (String) lastUpdate[1];
@@ -531,7 +597,7 @@ public class DAOResult {
 			}
 
 
-			List<Result> before = getResults(session, ResultQuery.createQueryForElb(experimentElb));
+			List<Result> before = getResults(session, ResultQuery.createQueryForElb(experimentElb), null);
 			if(isNewExperiment && before.size()>0) {
 				throw new Exception("The elb " +experimentElb+" is not new. You should edit an experiment to add results to an existing one");
 			}
@@ -539,13 +605,19 @@ public class DAOResult {
 			Map<Integer, Result> id2after = JPAUtil.mapIds(results);
 			if(removeOlderResults) {
 				//Delete outdated results
+				List<Result> removed = new ArrayList<>();
 				for (Result b : before) {
 					if(!id2after.containsKey(b.getId())) {
-						b.setUpdUser(user.getUsername());
-						b.setUpdDate(now);
-						session.remove(b);
+						removed.add(b);
 					}
 				}
+				summaryChanges.addAll(DAOStudySummary.beforeResults(session, removed));
+				for (Result b : removed) {
+					b.setUpdUser(user.getUsername());
+					b.setUpdDate(now);
+					session.remove(b);
+				}
+				DAOKeyword.remove(session, removed);
 			}
 		}
 
@@ -590,6 +662,10 @@ public class DAOResult {
 				logger.debug(count+"/"+results.size()+" rows processed");
 			}
 		}
+
+		//Update the keyword index and the study summary
+		DAOKeyword.index(session, results);
+		DAOStudySummary.afterPersistResults(session, summaryChanges, results);
 	}
 
 	public static int rename(TestAttribute att, String value, String newValue, SpiritUser user) throws Exception {
@@ -612,11 +688,13 @@ public class DAOResult {
 				result.setValue(att, newValue);
 				session.merge(result);
 			}
+			DAOKeyword.index(session, results);
 
 			txn.commit();
 			return results.size();
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			DAOAutoCompletion.invalidate(att);
 		}
 	}
 
@@ -656,6 +734,10 @@ public class DAOResult {
 			}
 
 			txn.commit();
+			DAOAutoCompletion.invalidate(srcAtt);
+			for (TestAttribute att : dest.getAttributes()) {
+				DAOAutoCompletion.invalidate(att);
+			}
 			return results.size();
 		} catch (Exception e) {
 			if(txn!=null && txn.isActive()) txn.rollback();
@@ -666,6 +748,85 @@ public class DAOResult {
 	}
 
 
+	/**
+	 * Returns true if the numeric values (ResultValue.numValue) have been filled for all results.
+	 * Until then, the range filters are applied on the loaded results
+	 * @return
+	 */
+	public static boolean isNumValueIndexed() {
+		return SpiritProperties.getInstance().isChecked(PropertyKey.DB_NUMVALUEINDEX);
+	}
+
+	/**
+	 * Fills the numeric values of all NUMBER/FORMULA result values, by parsing their text value.
+	 * The values are read by ranges of ids (NUMVALUE_BATCH_SIZE values at a time), and each range is committed separately.
+	 * The update is done through JDBC batches, so that no new revision is created.
+	 * The range filters are applied on the loaded results until the rebuild is complete.
+	 * @param user
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	public static void rebuildNumValues(SpiritUser user) throws Exception {
+		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin");
+
+		//Disable the numeric values while they are rebuilt, as they will be incomplete until the end
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_NUMVALUEINDEX, "false");
+		SpiritProperties.getInstance().saveValues();
+
+		long start = System.currentTimeMillis();
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		int count = 0;
+		try {
+			session = JPAUtil.createManager();
+			int lastId = 0;
+			while(true) {
+				txn = session.getTransaction();
+				txn.begin();
+				List<Object[]> rows = session.createQuery("select v.id, v.value from ResultValue v where v.id > :lastId and v.attribute.dataType in (:types) order by v.id")
+						.setParameter("lastId", lastId)
+						.setParameter("types", Arrays.asList(DataType.NUMBER, DataType.FORMULA))
+						.setMaxResults(NUMVALUE_BATCH_SIZE)
+						.getResultList();
+
+				//The range ]lastId, toId] covers the rows read (and the values of the other types between them)
+				int toId = rows.size()<NUMVALUE_BATCH_SIZE? Integer.MAX_VALUE: (Integer) rows.get(rows.size()-1)[0];
+				session.createQuery("update ResultValue v set v.numValue = null where v.id > :fromId and v.id <= :toId and v.numValue is not null")
+						.setParameter("fromId", lastId)
+						.setParameter("toId", toId)
+						.executeUpdate();
+				session.unwrap(Session.class).doWork(conn -> {
+					try(PreparedStatement stmt = conn.prepareStatement("update spirit.assay_result_value set num_value = ? where assay_result_value_id = ?")) {
+						int n = 0;
+						for (Object[] row : rows) {
+							Double d = ResultValue.parseDouble((String) row[1]);
+							if(d==null) continue;
+							stmt.setDouble(1, d);
+							stmt.setInt(2, (Integer) row[0]);
+							stmt.addBatch();
+							n++;
+						}
+						if(n>0) stmt.executeBatch();
+					}
+				});
+				txn.commit();
+				txn = null;
+				session.clear();
+
+				count += rows.size();
+				if(toId==Integer.MAX_VALUE) break;
+				lastId = toId;
+			}
+			logger.info("Numeric values rebuilt: " + count + " values in " + (System.currentTimeMillis()-start) + "ms");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) session.close();
+		}
+
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_NUMVALUEINDEX, "true");
+		SpiritProperties.getInstance().saveValues();
+	}
+
 	public static List<String> getRecentElbs(SpiritUser user) {
 		EntityManager session = JPAUtil.getManager();
 		Calendar cal = Calendar.getInstance();
@@ -889,8 +1050,8 @@ public class DAOResult {
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
+			Cache.getInstance().add("elb_links_"+study.getId(), res, 60);
 		}
-		Cache.getInstance().add("elb_links_"+study.getId(), res, 60);
 		return res;
 	}
 
@@ -1089,22 +1250,25 @@ public class DAOResult {
 			keys.add(r.getTestBiosamplePhaseInputKey());
 		}
 
-		//Query results matching sampleIds (we will get a lot of results)
+		//Query results matching sampleIds (we will get a lot of results), by chunks of 1000 biosamples so that only the matching results are kept
 		//Build a query - Note: don't test for test.ids because those can be different in different instances
-		ResultQuery q = new ResultQuery();
-		q.setSampleIds(MiscUtils.flatten(Biosample.getSampleIds(biosamples), " "));
-		List<Result> list;
-		try {
-			list = DAOResult.queryResults(q, null);
-		} catch(Exception e) {
-			throw new RuntimeException(e);
-		}
+		List<String> sampleIds = new ArrayList<>(Biosample.getSampleIds(biosamples));
+		for (int i = 0; i < sampleIds.size(); i+=1000) {
+			ResultQuery q = new ResultQuery();
+			q.setSampleIds(MiscUtils.flatten(sampleIds.subList(i, Math.min(sampleIds.size(), i+1000)), " "));
+			List<Result> list;
+			try {
+				list = DAOResult.queryResults(q, null);
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
 
-		//Map only the matching results
-		for (Result result : list) {
-			String key = result.getTestBiosamplePhaseInputKey();
-			if(keys.contains(key)) {
-				mapKey2result.put(key, result);
+			//Map only the matching results
+			for (Result result : list) {
+				String key = result.getTestBiosamplePhaseInputKey();
+				if(keys.contains(key)) {
+					mapKey2result.put(key, result);
+				}
 			}
 		}
 
@@ -0,0 +1,377 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.persistence.EntityManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.adapter.DBAdapter;
+import com.actelion.research.spiritcore.business.DataType;
+import com.actelion.research.spiritcore.business.Quality;
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
+import com.actelion.research.spiritcore.business.result.Result;
+import com.actelion.research.spiritcore.business.result.ResultQuery;
+import com.actelion.research.spiritcore.business.result.ResultValue;
+import com.actelion.research.spiritcore.business.result.Test;
+import com.actelion.research.spiritcore.business.result.TestAttribute;
+import com.actelion.research.spiritcore.business.study.Phase;
+import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.services.SpiritRights;
+import com.actelion.research.spiritcore.services.SpiritUser;
+
+/**
+ * Local snapshots of the results of a study, so that the analysis of a study can be reopened without querying all its results.
+ * <br>
+ * The snapshot is a binary file, organized by columns:
+ * <ul>
+ * <li>a header with the study id, the updDate of the study, the max(updDate) and the number of results of the study when the snapshot was taken
+ * <li>a dictionary of all the strings (values, elbs, comments, users)
+ * <li>the result columns: id, biosampleId, testId, phaseId, elb, comments, quality, updUser, updDate, creUser, creDate
+ * <li>the value columns: result index, attributeId, value, numValue (the pre-parsed doubles, NaN if not numeric)
+ * </ul>
+ * The file is memory-mapped on load. The snapshot is stale (and replaced) as soon as the max(updDate) or the count of the study's results changes,
+ * or when the study is saved (as the rights on its results may have been extended).
+ * The biosamples, tests and phases are not in the snapshot: they are retrieved from the caches or in one query per chunk of biosamples.
+ *
+ * @author Joel Freyss
+ */
+public class DAOResultSnapshot {
+
+	private static Logger logger = LoggerFactory.getLogger(DAOResultSnapshot.class);
+
+	private static final int MAGIC = 0x53505253; //SPRS
+	private static final int VERSION = 2;
+	private static final long NULL_DATE = Long.MIN_VALUE;
+
+	/**
+	 * Returns the results of the study, from the local snapshot if it is up to date, or from the DB (the snapshot is then replaced).
+	 * The results are filtered by the rights of the user, before being written: the snapshot of a user only contains the results readable by this user.
+	 * @param study
+	 * @param user
+	 * @return
+	 * @throws Exception
+	 */
+	public static List<Result> queryResults(Study study, SpiritUser user) throws Exception {
+		if(user==null) throw new Exception("You must give a user");
+		File file = getSnapshotFile(study, user);
+		Object[] state = getState(study);
+		long studyUpdDate = state[0]==null? NULL_DATE: ((Date) state[0]).getTime();
+		long maxUpdDate = state[1]==null? NULL_DATE: ((Date) state[1]).getTime();
+		int count = ((Number) state[2]).intValue();
+
+		List<Result> results = null;
+		if(file.exists()) {
+			try {
+				results = read(file, study, studyUpdDate, maxUpdDate, count);
+			} catch(Exception e) {
+				logger.warn("Could not read the snapshot " + file + ": " + e);
+			}
+		}
+		if(results==null) {
+			ResultQuery q = new ResultQuery();
+			q.setSid(study.getId());
+			results = DAOResult.queryResults(q, user);
+			try {
+				write(file, study, studyUpdDate, maxUpdDate, count, results);
+			} catch(IOException e) {
+				logger.warn("Could not write the snapshot " + file + ": " + e);
+			}
+		}
+
+		//Check the rights again, as they may have been reduced since the snapshot
+		for (Iterator<Result> iterator = results.iterator(); iterator.hasNext();) {
+			if(!SpiritRights.canRead(iterator.next(), user)) {
+				iterator.remove();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the file used to store the snapshot of the given study, for the given user.
+	 * The file depends on the DB, and on the user with his roles and groups (so that a snapshot is not reused when the rights are extended)
+	 */
+	public static File getSnapshotFile(Study study, SpiritUser user) {
+		String db = Integer.toHexString(DBAdapter.getInstance().getDBConnectionURL().hashCode());
+		List<String> groups = new ArrayList<>();
+		for (EmployeeGroup g : user.getGroups()) {
+			groups.add(g.getName());
+		}
+		Collections.sort(groups);
+		String rights = Integer.toHexString((user.getUsername() + "_" + new TreeSet<>(user.getRoles()) + "_" + groups).hashCode());
+		return new File(System.getProperty("user.home"), ".spirit/snapshots/" + db + "_" + rights + "_" + study.getId() + ".snapshot");
+	}
+
+	/**
+	 * Returns the updDate of the study (as saved in the DB), the max(updDate) and the count of the results of the study
+	 */
+	private static Object[] getState(Study study) {
+		EntityManager session = JPAUtil.getManager();
+		Object studyUpdDate = session.createQuery("select s.updDate from Study s where s.id = ?1")
+				.setParameter(1, study.getId())
+				.getSingleResult();
+		Object[] res = (Object[]) session.createQuery("select max(r.updDate), count(r) from Result r where r.study.id = ?1")
+				.setParameter(1, study.getId())
+				.getSingleResult();
+		return new Object[] {studyUpdDate, res[0], res[1]};
+	}
+
+	/**
+	 * Writes the results in the snapshot format
+	 * @param file
+	 * @param study
+	 * @param studyUpdDate - the updDate of the study, when the results were queried
+	 * @param maxUpdDate - the max(updDate) of the study's results, when they were queried
+	 * @param count - the number of study's results, when they were queried
+	 * @param results
+	 * @throws IOException
+	 */
+	public static void write(File file, Study study, long studyUpdDate, long maxUpdDate, int count, List<Result> results) throws IOException {
+		long s = System.currentTimeMillis();
+		file.getParentFile().mkdirs();
+
+		//Build the dictionary
+		Map<String, Integer> dictionary = new HashMap<>();
+		List<String> strings = new ArrayList<>();
+		int nValues = 0;
+		for (Result r : results) {
+			encode(r.getElb(), dictionary, strings);
+			encode(r.getComments(), dictionary, strings);
+			encode(r.getUpdUser(), dictionary, strings);
+			encode(r.getCreUser(), dictionary, strings);
+			for (ResultValue rv : r.getResultValues()) {
+				encode(rv.getValue(), dictionary, strings);
+				nValues++;
+			}
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try(DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16))) {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			os.writeInt(study.getId());
+			os.writeLong(studyUpdDate);
+			os.writeLong(maxUpdDate);
+			os.writeInt(count);
+
+			os.writeInt(strings.size());
+			for (String string : strings) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				os.writeInt(bytes.length);
+				os.write(bytes);
+			}
+
+			os.writeInt(results.size());
+			for (Result r : results) os.writeInt(r.getId());
+			for (Result r : results) os.writeInt(r.getBiosample()==null? 0: r.getBiosample().getId());
+			for (Result r : results) os.writeInt(r.getTest().getId());
+			for (Result r : results) os.writeInt(r.getPhase()==null? 0: r.getPhase().getId());
+			for (Result r : results) os.writeInt(encode(r.getElb(), dictionary, strings));
+			for (Result r : results) os.writeInt(encode(r.getComments(), dictionary, strings));
+			for (Result r : results) {
+				//Only store the quality if it differs from the default (the quality of the biosample)
+				Quality defaultQuality = r.getBiosample()==null? Quality.VALID: r.getBiosample().getQuality();
+				os.writeInt(r.getQuality()==null || r.getQuality()==defaultQuality? -1: r.getQuality().ordinal());
+			}
+			for (Result r : results) os.writeInt(encode(r.getUpdUser(), dictionary, strings));
+			for (Result r : results) os.writeLong(r.getUpdDate()==null? NULL_DATE: r.getUpdDate().getTime());
+			for (Result r : results) os.writeInt(encode(r.getCreUser(), dictionary, strings));
+			for (Result r : results) os.writeLong(r.getCreDate()==null? NULL_DATE: r.getCreDate().getTime());
+
+			os.writeInt(nValues);
+			for (int i = 0; i < results.size(); i++) {
+				for (int j = 0; j < results.get(i).getResultValues().size(); j++) os.writeInt(i);
+			}
+			for (Result r : results) {
+				for (ResultValue rv : r.getResultValues()) os.writeInt(rv.getAttribute().getId());
+			}
+			for (Result r : results) {
+				for (ResultValue rv : r.getResultValues()) os.writeInt(encode(rv.getValue(), dictionary, strings));
+			}
+			for (Result r : results) {
+				for (ResultValue rv : r.getResultValues()) os.writeDouble(rv.getNumValue());
+			}
+		}
+		if(file.exists() && !file.delete()) throw new IOException("Could not replace " + file);
+		if(!tmp.renameTo(file)) throw new IOException("Could not rename " + tmp);
+		logger.info("Snapshot of " + study + " written: " + results.size() + " results, " + nValues + " values in " + (System.currentTimeMillis()-s) + "ms");
+	}
+
+	/**
+	 * Reads the snapshot, if it is up to date
+	 * @param file
+	 * @param study
+	 * @param studyUpdDate - the current updDate of the study
+	 * @param maxUpdDate - the current max(updDate) of the study's results
+	 * @param count - the current number of study's results
+	 * @return the results or null if the snapshot is stale
+	 * @throws Exception
+	 */
+	public static List<Result> read(File file, Study study, long studyUpdDate, long maxUpdDate, int count) throws Exception {
+		long s = System.currentTimeMillis();
+		ByteBuffer buf;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buf = mapped;
+		}
+
+		if(buf.getInt()!=MAGIC || buf.getInt()!=VERSION) throw new IOException("Invalid snapshot format");
+		if(buf.getInt()!=study.getId()) throw new IOException("Invalid snapshot study");
+		if(buf.getLong()!=studyUpdDate || buf.getLong()!=maxUpdDate || buf.getInt()!=count) {
+			logger.info("Snapshot of " + study + " is stale");
+			return null;
+		}
+
+		String[] strings = new String[buf.getInt()];
+		byte[] bytes = new byte[256];
+		for (int i = 0; i < strings.length; i++) {
+			int len = buf.getInt();
+			if(len>bytes.length) bytes = new byte[len*2];
+			buf.get(bytes, 0, len);
+			strings[i] = new String(bytes, 0, len, StandardCharsets.UTF_8);
+		}
+
+		int nResults = buf.getInt();
+		int[] ids = getInts(buf, nResults);
+		int[] biosampleIds = getInts(buf, nResults);
+		int[] testIds = getInts(buf, nResults);
+		int[] phaseIds = getInts(buf, nResults);
+		int[] elbs = getInts(buf, nResults);
+		int[] comments = getInts(buf, nResults);
+		int[] qualities = getInts(buf, nResults);
+		int[] updUsers = getInts(buf, nResults);
+		long[] updDates = getLongs(buf, nResults);
+		int[] creUsers = getInts(buf, nResults);
+		long[] creDates = getLongs(buf, nResults);
+
+		int nValues = buf.getInt();
+		int[] resultIndexes = getInts(buf, nValues);
+		int[] attributeIds = getInts(buf, nValues);
+		int[] values = getInts(buf, nValues);
+		double[] numValues = new double[nValues];
+		buf.asDoubleBuffer().get(numValues);
+
+		//Retrieve the linked entities
+		List<Integer> ids2 = new ArrayList<>();
+		for (int id : biosampleIds) if(id>0) ids2.add(id);
+		Map<Integer, Biosample> id2biosample = new HashMap<>();
+		for (Biosample b : JPAUtil.<Biosample>queryIn(JPAUtil.getManager(), "from Biosample b where b.id in (:ids)", "ids", ids2)) {
+			id2biosample.put(b.getId(), b);
+		}
+		Map<Integer, Phase> id2phase = new HashMap<>();
+		for (Phase p : study.getPhases()) {
+			id2phase.put(p.getId(), p);
+		}
+		Map<Integer, TestAttribute> id2attribute = new HashMap<>();
+
+		//Create the results
+		Quality[] qualityValues = Quality.values();
+		List<Result> results = new ArrayList<>(nResults);
+		for (int i = 0; i < nResults; i++) {
+			Test test = DAOTest.getTest(testIds[i]);
+			if(test==null) throw new IOException("Invalid test: " + testIds[i]);
+			for (TestAttribute ta : test.getAttributes()) {
+				id2attribute.put(ta.getId(), ta);
+			}
+			Result r = new Result(test);
+			r.setId(ids[i]);
+			r.setBiosample(biosampleIds[i]>0? id2biosample.get(biosampleIds[i]): null);
+			if(biosampleIds[i]>0 && r.getBiosample()==null) throw new IOException("Invalid biosample: " + biosampleIds[i]);
+			r.setPhase(phaseIds[i]>0? id2phase.get(phaseIds[i]): null);
+			r.setStudy(study);
+			r.setElb(decode(elbs[i], strings));
+			r.setComments(decode(comments[i], strings));
+			r.setQuality(qualities[i]<0? null: qualityValues[qualities[i]]);
+			r.setUpdUser(decode(updUsers[i], strings));
+			r.setUpdDate(updDates[i]==NULL_DATE? null: new Date(updDates[i]));
+			r.setCreUser(decode(creUsers[i], strings));
+			r.setCreDate(creDates[i]==NULL_DATE? null: new Date(creDates[i]));
+			results.add(r);
+		}
+		for (int i = 0; i < nValues; i++) {
+			TestAttribute ta = id2attribute.get(attributeIds[i]);
+			if(ta==null) throw new IOException("Invalid attribute: " + attributeIds[i]);
+			ResultValue rv = results.get(resultIndexes[i]).getResultValue(ta);
+			if(ta.getDataType()==DataType.LARGE) {
+				String value = decode(values[i], strings);
+				if(value!=null) rv.setValue(value);
+			} else {
+				rv.setValue(decode(values[i], strings), Double.isNaN(numValues[i])? null: numValues[i]);
+			}
+		}
+		DAOResult.postLoad(results);
+
+		logger.info("Snapshot of " + study + " read: " + nResults + " results, " + nValues + " values in " + (System.currentTimeMillis()-s) + "ms");
+		return results;
+	}
+
+	private static int encode(String s, Map<String, Integer> dictionary, List<String> strings) {
+		if(s==null) return -1;
+		Integer index = dictionary.get(s);
+		if(index==null) {
+			index = strings.size();
+			dictionary.put(s, index);
+			strings.add(s);
+		}
+		return index;
+	}
+
+	private static String decode(int index, String[] strings) {
+		return index<0? null: strings[index];
+	}
+
+	private static int[] getInts(ByteBuffer buf, int n) {
+		int[] res = new int[n];
+		buf.asIntBuffer().get(res);
+		buf.position(buf.position() + n*4);
+		return res;
+	}
+
+	private static long[] getLongs(ByteBuffer buf, int n) {
+		long[] res = new long[n];
+		buf.asLongBuffer().get(res);
+		buf.position(buf.position() + n*8);
+		return res;
+	}
+}
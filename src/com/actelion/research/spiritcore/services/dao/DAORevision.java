@@ -34,6 +34,7 @@ import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
 
 import org.hibernate.LockMode;
 import org.hibernate.envers.AuditReader;
@@ -41,6 +42,7 @@ import org.hibernate.envers.AuditReaderFactory;
 import org.hibernate.envers.RevisionType;
 import org.hibernate.envers.query.AuditEntity;
 import org.hibernate.envers.query.AuditQuery;
+import org.hibernate.envers.query.criteria.AuditCriterion;
 import org.slf4j.LoggerFactory;
 
 import com.actelion.research.spiritcore.business.DataType;
@@ -57,6 +59,7 @@ import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
 import com.actelion.research.spiritcore.business.employee.Employee;
 import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
 import com.actelion.research.spiritcore.business.location.Location;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
 import com.actelion.research.spiritcore.business.property.SpiritProperty;
 import com.actelion.research.spiritcore.business.result.Result;
 import com.actelion.research.spiritcore.business.result.Test;
@@ -65,6 +68,7 @@ import com.actelion.research.spiritcore.business.study.Sampling;
 import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.util.Pair;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
 
 /**
  * DAO functions linked to audit functions
@@ -73,6 +77,12 @@ import com.actelion.research.spiritcore.util.Pair;
  */
 public class DAORevision {
 
+	/**
+	 * Number of revisions indexed (and committed) at once by rebuildIndex, and number of audited rows read at once
+	 */
+	private static final int INDEX_CHUNK_SIZE = 200;
+	private static final int INDEX_PAGE_SIZE = 500;
+
 	/**
 	 * Returns all revisions of the given entity
 	 * @param obj
@@ -206,12 +216,46 @@ public class DAORevision {
 		return revisions.size()>0? revisions.get(0): null;
 	}
 
+	/**
+	 * Returns true if the audit index (revinfo_index) has been built, and can be used to query the revisions
+	 */
+	public static boolean isIndexEnabled() {
+		return SpiritProperties.getInstance().isChecked(PropertyKey.DB_AUDITINDEX);
+	}
+
+	/**
+	 * Query the revisions, the most recent first.
+	 * If the audit index is enabled, the matching revisions are found in the index and only those are loaded:
+	 * the caller can then page through the history by setting beforeRevId to the oldest revision already loaded.
+	 * @param query
+	 * @return
+	 */
 	public static List<Revision> queryRevisions(RevisionQuery query) {
+		return SpiritMetrics.time("DAORevision.queryRevisions", () -> doQueryRevisions(query));
+	}
+
+	private static List<Revision> doQueryRevisions(RevisionQuery query) {
 		assert query!=null;
 		long s = System.currentTimeMillis();
 		EntityManager session = JPAUtil.getManager();
 		AuditReader reader = AuditReaderFactory.get(session);
 
+		Set<Class<?>> entityClasses = new HashSet<>();
+		if(query.isStudies()) entityClasses.add(Study.class);
+		if(query.isSamples()) entityClasses.add(Biosample.class);
+		if(query.isResults()) entityClasses.add(Result.class);
+		if(query.isLocations()) entityClasses.add(Location.class);
+		if(query.isAdmin()) entityClasses.add(Biotype.class);
+		if(query.isAdmin()) entityClasses.add(Test.class);
+		if(query.isAdmin()) entityClasses.add(Employee.class);
+		if(query.isAdmin()) entityClasses.add(EmployeeGroup.class);
+		if(query.isAdmin()) entityClasses.add(SpiritProperty.class);
+
+		if(query.getRevId()<=0 && isIndexEnabled()) {
+			List<Revision> res = queryRevisionsFromIndex(session, reader, entityClasses, query);
+			LoggerFactory.getLogger(DAORevision.class).debug("Loaded " + res.size() + " revisions from the index in "+(System.currentTimeMillis()-s)+"ms");
+			return res;
+		}
 
 		int rev1 = 0;
 		try {
@@ -225,25 +269,16 @@ public class DAORevision {
 		} catch (Exception e) {
 			//after last revision->ignore
 		}
+		if(query.getRevId()<=0 && query.getBeforeRevId()>0) rev2 = Math.min(rev2, query.getBeforeRevId()-1);
 		LoggerFactory.getLogger(DAORevision.class).debug("getRevisions between " + rev1 + " and " + rev2);
-		Set<Class<?>> entityClasses = new HashSet<>();
-		if(query.isStudies()) entityClasses.add(Study.class);
-		if(query.isSamples()) entityClasses.add(Biosample.class);
-		if(query.isResults()) entityClasses.add(Result.class);
-		if(query.isLocations()) entityClasses.add(Location.class);
-		if(query.isAdmin()) entityClasses.add(Biotype.class);
-		if(query.isAdmin()) entityClasses.add(Test.class);
-		if(query.isAdmin()) entityClasses.add(Employee.class);
-		if(query.isAdmin()) entityClasses.add(EmployeeGroup.class);
-		if(query.isAdmin()) entityClasses.add(SpiritProperty.class);
 
-		List<Revision> revisions = getRevisions(entityClasses, queryForRevisions(reader, entityClasses, rev1, rev2, query.getUserIdFilter(), query.getSidFilter(), query.getStudyIdFilter()));
+		LoggerFactory.getLogger(DAORevision.class).debug("queryForRevisions "+entityClasses+" "+query.getUserIdFilter()+" "+query.getSidFilter()+" "+query.getStudyIdFilter()+" "+rev1+" "+rev2);
+		List<Revision> revisions = getRevisions(entityClasses, queryForRevisions(reader, entityClasses, AuditEntity.revisionNumber().between(rev1, rev2), query.getUserIdFilter(), getSid(reader, query.getSidFilter(), query.getStudyIdFilter())));
 		LoggerFactory.getLogger(DAORevision.class).debug("Loaded revisions in "+(System.currentTimeMillis()-s)+"ms");
 
 		//Post filter per study
 		List<Revision> res = new ArrayList<>();
 		for (Revision revision : revisions) {
-			System.out.println("DAORevision.queryRevisions() "+revision+" "+revision.getType()+" "+revision.getDifference());
 			if(query.getSidFilter()>0 || (query.getStudyIdFilter()!=null && query.getStudyIdFilter().length()>0) ) {
 				boolean ok = false;
 				if(!ok) {
@@ -275,16 +310,105 @@ public class DAORevision {
 			}
 
 			res.add(revision);
+			if(query.getMaxRevisions()>0 && res.size()>=query.getMaxRevisions()) break;
 		}
 
 
 		return res;
 	}
 
-	private static List<Object[]> queryForRevisions(AuditReader reader, Set<Class<?>> entityClasses, int minRev, int maxRev, String userFilter, int sid, String studyIdFilter) {
-		List<Object[]> res = new ArrayList<>();
-		LoggerFactory.getLogger(DAORevision.class).debug("queryForRevisions "+entityClasses+" "+userFilter+" "+sid+" "+studyIdFilter+" "+minRev+" "+maxRev);
-		//Find the study Id from the studyId (the study may have been deleted)
+	/**
+	 * Query the revisions through the audit index: the revision ids are found in the index (newest first, limited to maxRevisions),
+	 * and only those revisions are loaded with their auditables.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Revision> queryRevisionsFromIndex(EntityManager session, AuditReader reader, Set<Class<?>> entityClasses, RevisionQuery query) {
+		List<Revision> res = new ArrayList<>();
+		Set<String> entityTypes = new HashSet<>();
+		for (Class<?> claz : entityClasses) {
+			entityTypes.add(claz.getSimpleName());
+		}
+		if(entityTypes.isEmpty()) return res;
+
+		int sid = getSid(reader, query.getSidFilter(), query.getStudyIdFilter());
+		if(sid<0) return res;
+
+		//Find the revision ids
+		StringBuilder jpql = new StringBuilder("select distinct r.id from revinfo r join r.indexEntries i where i.entityType in (:entityTypes)");
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("entityTypes", entityTypes);
+		if(sid>0) {
+			//Entries without study (difference not computed) are matched through the current study of the entity, or through the study of the revision
+			jpql.append(" and (i.sid = :sid or (i.sid = 0 and (r.sid = :sid"
+					+ " or (i.entityType = 'Biosample' and i.entityId in (select str(b.id) from Biosample b where b.inheritedStudy.id = :sid))"
+					+ " or (i.entityType = 'Result' and i.entityId in (select str(x.id) from Result x where x.study.id = :sid)))))");
+			parameters.put("sid", sid);
+		}
+		if(query.getUserIdFilter()!=null && query.getUserIdFilter().length()>0) {
+			jpql.append(" and i.userId = :userId");
+			parameters.put("userId", query.getUserIdFilter());
+		}
+		if(query.getFromDate()!=null) {
+			jpql.append(" and i.revDate >= :fromDate");
+			parameters.put("fromDate", query.getFromDate());
+		}
+		if(query.getToDate()!=null) {
+			jpql.append(" and i.revDate < :toDate");
+			parameters.put("toDate", query.getToDate());
+		}
+		if(query.getBeforeRevId()>0) {
+			jpql.append(" and r.id < :beforeRevId");
+			parameters.put("beforeRevId", query.getBeforeRevId());
+		}
+		jpql.append(" order by r.id desc");
+		Query q = session.createQuery(jpql.toString());
+		for (Map.Entry<String, Object> e : parameters.entrySet()) {
+			q.setParameter(e.getKey(), e.getValue());
+		}
+		if(query.getMaxRevisions()>0) q.setMaxResults(query.getMaxRevisions());
+		List<Integer> revIds = q.getResultList();
+		if(revIds.isEmpty()) return res;
+
+		//Merge the change types of the matching entries: DEL, then ADD, then MOD
+		Map<Integer, RevisionType> rev2type = new HashMap<>();
+		List<Object[]> rows = JPAUtil.queryIn(session, "select r.id, i.entityType, i.sid, i.changeType from revinfo r join r.indexEntries i where r.id in (:revIds)", "revIds", revIds);
+		for (Object[] row : rows) {
+			if(!entityTypes.contains(row[1])) continue;
+			if(sid>0 && (Integer) row[2]!=0 && (Integer) row[2]!=sid) continue;
+			RevisionType type = RevisionType.fromRepresentation(row[3]);
+			RevisionType prev = rev2type.get(row[0]);
+			if(prev==null || type==RevisionType.DEL || (type==RevisionType.ADD && prev!=RevisionType.DEL)) {
+				rev2type.put((Integer) row[0], type);
+			}
+		}
+
+		//Load the revisions
+		Map<Integer, Revision> map = new HashMap<>();
+		List<SpiritRevisionEntity> revs = JPAUtil.queryIn(session, "select r from revinfo r where r.id in (:revIds)", "revIds", revIds);
+		for (SpiritRevisionEntity rev : revs) {
+			RevisionType type = rev2type.get(rev.getId());
+			Study study = DAOStudy.getStudy(rev.getSid());
+			map.put(rev.getId(), new Revision(rev.getId(), type==null? RevisionType.MOD: type, study, rev.getReason(), rev.getDifferenceList(), rev.getUserId(), rev.getRevisionDate()));
+		}
+
+		//Load the auditables of those revisions only
+		for (List<Integer> chunk : QueryTokenizer.splitForIn(revIds)) {
+			for (Object[] a : queryForRevisions(reader, entityClasses, AuditEntity.revisionNumber().in(chunk), query.getUserIdFilter(), sid)) {
+				Revision r = map.get(((SpiritRevisionEntity) a[1]).getId());
+				if(r!=null && entityClasses.contains(a[0].getClass())) r.getAuditables().add((IAuditable) a[0]);
+			}
+		}
+		res.addAll(map.values());
+		Collections.sort(res);
+		return res;
+	}
+
+	/**
+	 * Returns the study id to filter on: the given sid, or the id of the study matching the given studyId (the study may have been deleted).
+	 * Returns 0 if there is no filter, and -1 if the studyId could not be found
+	 */
+	@SuppressWarnings("unchecked")
+	private static int getSid(AuditReader reader, int sid, String studyIdFilter) {
 		if(sid<=0 && studyIdFilter!=null && studyIdFilter.length()>0) {
 			AuditQuery query = reader.createQuery().forRevisionsOfEntity(Study.class, false, true)
 					.add(AuditEntity.revisionType().eq(RevisionType.ADD))
@@ -292,15 +416,24 @@ public class DAORevision {
 			List<Object[]> array = query.getResultList();
 			for (Object[] a: array) {
 				Study entity = (Study) a[0];
-				sid = entity.getId();
-				break;
+				return entity.getId();
 			}
-			if(sid<=0) return res;
+			return -1;
 		}
+		return sid>0? sid: 0;
+	}
+
+	/**
+	 * Query the audited entities of the given classes, in the revisions matching the given criterion
+	 * @param sid - the id of the study to filter on (0 for no filter, -1 if the study could not be found)
+	 */
+	private static List<Object[]> queryForRevisions(AuditReader reader, Set<Class<?>> entityClasses, AuditCriterion revisions, String userFilter, int sid) {
+		List<Object[]> res = new ArrayList<>();
+		if(sid<0) return res;
 
 		for(Class<?> claz: entityClasses ) {
 			AuditQuery query = reader.createQuery().forRevisionsOfEntity(claz, false, true)
-					.add(AuditEntity.revisionNumber().between(minRev, maxRev));
+					.add(revisions);
 			if (userFilter!=null
 					&& userFilter.length()>0
 					&& (claz==Result.class 
@@ -369,6 +502,10 @@ public class DAORevision {
 	 * @throws Exception
 	 */
 	public static void restore(Collection<? extends IObject> objects, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAORevision.restore", () -> doRestore(objects, user));
+	}
+
+	private static void doRestore(Collection<? extends IObject> objects, SpiritUser user) throws Exception {
 		EntityManager session = JPAUtil.getManager();
 		EntityTransaction txn =  session.getTransaction();
 
@@ -381,6 +518,8 @@ public class DAORevision {
 				session.merge(entity);
 				mapMerged.put(entity.getClass() + "_" + entity.getId(), null);
 			}
+			DAOKeyword.index(session, objects);
+			DAOMetadataValue.index(session, objects);
 			txn.commit();
 			txn = null;
 		} catch (Exception e) {
@@ -402,8 +541,12 @@ public class DAORevision {
 	 * @param comments
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	public static void revert(Revision revision, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAORevision.revert", () -> doRevert(revision, user));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void doRevert(Revision revision, SpiritUser user) throws Exception {
 		EntityManager session = JPAUtil.getManager();
 		EntityTransaction txn =  session.getTransaction();
 
@@ -418,7 +561,7 @@ public class DAORevision {
 			txn.begin();
 
 			for(Class<IObject> claz : new Class[]{Biotype.class, Test.class, Study.class, Location.class, Biosample.class, Result.class}) {
-				List<Object[]> res = queryForRevisions(reader, Collections.singleton(claz), revId, revId, null, -1, null);
+				List<Object[]> res = queryForRevisions(reader, Collections.singleton(claz), AuditEntity.revisionNumber().eq(revId), null, 0);
 
 
 				List<IObject> toDelete = new ArrayList<>();
@@ -443,6 +586,7 @@ public class DAORevision {
 				}
 
 				LoggerFactory.getLogger(DAORevision.class).debug(claz+" >  toMerge="+toMerge.size()+" toDelete="+toDelete.size());
+				List<IObject> merged = new ArrayList<>();
 				int step = 0;
 				while(toMerge.size()>0 && step++<10) {
 					for (IObject o : new ArrayList<>(toMerge)) {
@@ -452,13 +596,19 @@ public class DAORevision {
 						toMerge.remove(o);
 
 						LoggerFactory.getLogger(DAORevision.class).debug("merge "+o.getClass().getSimpleName()+" "+o.getId()+":"+o);
-						mapMerged.put(o.getClass() + "_" + id, session.merge(o));
+						IObject m = session.merge(o);
+						mapMerged.put(o.getClass() + "_" + id, m);
+						merged.add(m);
 					}
 				}
 				for (IObject o : toDelete) {
 					LoggerFactory.getLogger(DAORevision.class).debug("remove "+o.getClass().getSimpleName()+" "+o.getId()+":"+o);
 					session.remove(o);
 				}
+				DAOKeyword.remove(session, toDelete);
+				DAOKeyword.index(session, merged);
+				DAOMetadataValue.remove(session, toDelete);
+				DAOMetadataValue.index(session, merged);
 			}
 			txn.commit();
 			txn = null;
@@ -653,4 +803,66 @@ public class DAORevision {
 
 
 
+	/**
+	 * Builds the audit index of the revisions, which have not been indexed yet (ie. revisions created before the index was introduced).
+	 * The revisions are indexed by chunks, each chunk being committed separately (a revision is never half indexed).
+	 * In a chunk, the Envers tables are read per entity type and by pages, ordered by (rev, id), so that the memory stays bounded.
+	 * @param user
+	 * @throws Exception
+	 */
+	public static void rebuildIndex(SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAORevision.rebuildIndex", () -> doRebuildIndex(user));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void doRebuildIndex(SpiritUser user) throws Exception {
+		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin");
+		long start = System.currentTimeMillis();
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		int count = 0;
+		try {
+			session = JPAUtil.createManager();
+			List<Integer> revIds = session.createQuery("select r.id from revinfo r where r.indexEntries is empty order by r.id").getResultList();
+			AuditReader reader = AuditReaderFactory.get(session);
+			Class<?>[] entityClasses = new Class<?>[] {Study.class, Biosample.class, Result.class, Location.class, Biotype.class, Test.class, Employee.class, EmployeeGroup.class, SpiritProperty.class};
+			for (int i = 0; i < revIds.size(); i+=INDEX_CHUNK_SIZE) {
+				List<Integer> chunk = revIds.subList(i, Math.min(revIds.size(), i+INDEX_CHUNK_SIZE));
+				Set<Integer> chunkIds = new HashSet<>(chunk);
+				txn = session.getTransaction();
+				txn.begin();
+				for (Class<?> claz : entityClasses) {
+					for(int offset = 0; ; offset+=INDEX_PAGE_SIZE) {
+						List<Object[]> rows = reader.createQuery().forRevisionsOfEntity(claz, false, true)
+								.add(AuditEntity.revisionNumber().between(chunk.get(0), chunk.get(chunk.size()-1)))
+								.addOrder(AuditEntity.revisionNumber().asc())
+								.addOrder(AuditEntity.id().asc())
+								.setFirstResult(offset)
+								.setMaxResults(INDEX_PAGE_SIZE)
+								.getResultList();
+						for (Object[] row : rows) {
+							IAuditable entity = (IAuditable) row[0];
+							SpiritRevisionEntity rev = (SpiritRevisionEntity) row[1];
+							if(!chunkIds.contains(rev.getId())) continue;
+							rev.getIndexEntries().add(new RevisionIndexEntry(claz, entity.getSerializableId(), entity.getSid(), rev.getUserId(), rev.getRevisionDate(), (RevisionType) row[2]));
+							count++;
+						}
+						session.flush();
+						session.clear();
+						if(rows.size()<INDEX_PAGE_SIZE) break;
+					}
+				}
+				txn.commit();
+				txn = null;
+			}
+			LoggerFactory.getLogger(DAORevision.class).info("Audit index rebuilt: " + revIds.size() + " revisions, " + count + " rows in " + (System.currentTimeMillis()-start) + "ms");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) session.close();
+		}
+
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_AUDITINDEX, "true");
+		SpiritProperties.getInstance().saveValues();
+	}
+
 }
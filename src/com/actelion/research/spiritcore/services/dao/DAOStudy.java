@@ -64,6 +64,7 @@ import com.actelion.research.spiritcore.business.study.Randomization;
 import com.actelion.research.spiritcore.business.study.Sampling;
 import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.business.study.StudyAction;
+import com.actelion.research.spiritcore.business.study.StudySummary;
 import com.actelion.research.spiritcore.business.study.StudyQuery;
 import com.actelion.research.spiritcore.services.SpiritRights;
 import com.actelion.research.spiritcore.services.SpiritUser;
@@ -82,6 +83,12 @@ public class DAOStudy {
 
 	private static Logger logger = LoggerFactory.getLogger(DAOStudy.class);
 
+	private static final EntityCache<Study> studyCache = new EntityCache<>(Study.class, Cache.LONG, (session, ids) -> {
+		List<Study> res = ids==null? session.createQuery("select s from Study s").getResultList(): JPAUtil.queryIn(session, "select s from Study s where s.id in (:ids)", "ids", ids);
+		postLoad(res);
+		return res;
+	});
+
 
 	public static List<Study> getStudies() {
 		EntityManager session = JPAUtil.getManager();
@@ -89,13 +96,13 @@ public class DAOStudy {
 		if(res==null) {
 			res = session.createQuery("from Study").getResultList();
 			Collections.sort(res);
-			Cache.getInstance().add("allstudies", res, Cache.LONG);
+			res = Cache.getInstance().addList("allstudies", res, Cache.LONG);
 		}
 		return res;
 	}
 
 	public static List<Study> getRecentStudies(SpiritUser user, RightLevel level) {
-		String key = "studies_"+user+"_"+level+"_"+JPAUtil.getManager();
+		String key = "studies_"+level+"_"+user+"_"+JPAUtil.getManager();
 		List<Study> studies = (List<Study>) Cache.getInstance().get(key);
 
 		//Make sure studies are in the same session, or reset the cache
@@ -133,7 +140,7 @@ public class DAOStudy {
 			}
 			Collections.sort(studies);
 
-			Cache.getInstance().add(key, studies, 120);
+			studies = Cache.getInstance().addList(key, studies, 120);
 		}
 		return studies;
 
@@ -167,7 +174,7 @@ public class DAOStudy {
 	}
 
 	public static List<String> getMetadataValues(String metadata) {
-		List<String> res = (List<String>) Cache.getInstance().get("study_"+metadata);
+		List<String> res = (List<String>) Cache.getInstance().get("study_metadata_"+metadata);
 		if(res==null) {
 			Set<String> set = new TreeSet<>();
 			for (Study s : getStudies()) {
@@ -175,20 +182,13 @@ public class DAOStudy {
 					set.add(s.getMetadata(metadata));
 				}
 			}
-			res = new ArrayList<>(set);
-			Cache.getInstance().add("study_"+metadata, res, Cache.LONG);
+			res = Cache.getInstance().addList("study_metadata_"+metadata, new ArrayList<>(set), Cache.LONG);
 		}
 		return res;
 	}
 
 	public static Study getStudy(int id) {
-		EntityManager session = JPAUtil.getManager();
-		List<Study> res = session.createQuery("select s from Study s where s.id = ?1")
-				.setParameter(1, id)
-				.getResultList();
-		Study s = res.size()==1? res.get(0): null;
-		if(s!=null) postLoad(Collections.singleton(s));
-		return s;
+		return studyCache.get(JPAUtil.getManager(), id);
 	}
 
 	public static Study getStudyByStudyId(String studyId) {
@@ -221,7 +221,7 @@ public class DAOStudy {
 					.setParameter(1, study)
 					.getResultList();
 			Collections.sort(res);
-			Cache.getInstance().add("study_containers_"+study, res);
+			res = Cache.getInstance().addList("study_containers_"+study, res, Cache.LONG);
 		}
 		return res;
 	}
@@ -234,12 +234,16 @@ public class DAOStudy {
 					.setParameter(1, study)
 					.getResultList();
 			Collections.sort(res);
-			Cache.getInstance().add("study_biotypes_"+study, res);
+			res = Cache.getInstance().addList("study_biotypes_"+study, res, Cache.LONG);
 		}
 		return res;
 	}
 
 	public static List<Study> queryStudies(StudyQuery q, SpiritUser user) throws Exception {
+		return SpiritMetrics.time("DAOStudy.queryStudies", () -> doQueryStudies(q, user));
+	}
+
+	private static List<Study> doQueryStudies(StudyQuery q, SpiritUser user) throws Exception {
 		assert q!=null;
 		EntityManager session = JPAUtil.getManager();
 		long s = System.currentTimeMillis();
@@ -418,6 +422,10 @@ public class DAOStudy {
 	 * @throws Exception
 	 */
 	public static List<Study> persistStudies(EntityManager session, Collection<Study> studies, SpiritUser user) throws Exception {
+		return SpiritMetrics.time("DAOStudy.persistStudies", () -> doPersistStudies(session, studies, user));
+	}
+
+	private static List<Study> doPersistStudies(EntityManager session, Collection<Study> studies, SpiritUser user) throws Exception {
 		List<Study> res = new ArrayList<>();
 		if(studies==null || studies.size()==0) return res;
 
@@ -477,8 +485,8 @@ public class DAOStudy {
 			}
 			res.add(study);
 		}
-		Cache.getInstance().remove("studies_"+user);
-		Cache.getInstance().remove("allstudies");
+		studyCache.invalidate(res);
+		removeCache(res);
 		return res;
 	}
 
@@ -522,6 +530,10 @@ public class DAOStudy {
 	 * @throws Exception
 	 */
 	public static void deleteStudies(EntityManager session, Collection<Study> studies, boolean forceCascade, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOStudy.deleteStudies", () -> doDeleteStudies(session, studies, forceCascade, user));
+	}
+
+	private static void doDeleteStudies(EntityManager session, Collection<Study> studies, boolean forceCascade, SpiritUser user) throws Exception {
 		assert session!=null;
 		assert session.getTransaction().isActive();
 		for (Study study : studies) {
@@ -561,8 +573,31 @@ public class DAOStudy {
 			session.flush();
 		}
 
-		Cache.getInstance().remove("studies_"+user);
+		studyCache.invalidate(studies);
+		removeCache(studies);
+	}
+
+	/**
+	 * Removes the cached lists depending on the given studies: the lists of all studies, and the lists of the given studies only
+	 * @param studies
+	 */
+	static void removeCache(Collection<Study> studies) {
 		Cache.getInstance().remove("allstudies");
+		Cache.getInstance().removeAllWithPrefix("studies_");
+		Cache.getInstance().removeAllWithPrefix("study_metadata_");
+		for (Study study : studies) {
+			removeCacheOfBiosamples(study);
+		}
+	}
+
+	/**
+	 * Removes the cached lists depending on the biosamples of the given study (biotypes, container types)
+	 * @param study
+	 */
+	static void removeCacheOfBiosamples(Study study) {
+		if(study==null) return;
+		Cache.getInstance().remove("study_containers_"+study);
+		Cache.getInstance().remove("study_biotypes_"+study);
 	}
 
 	public static String getNextStudyId() {
@@ -612,6 +647,7 @@ public class DAOStudy {
 
 			txn.commit();
 			txn = null;
+			studyCache.invalidate(study);
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
 		}
@@ -891,9 +927,14 @@ public class DAOStudy {
 					+ " where " + QueryTokenizer.expandForIn("b.inheritedStudy.id", JPAUtil.getIds(studies))
 					+ " group by b.inheritedStudy.studyId, b.biotype.name, b.updUser";
 
-		Query q = session.createQuery(query);
-		if(minDate!=null) q.setParameter(1, minDate);
-		List<Object[]> results = q.getResultList();
+		List<Object[]> results;
+		if(minDate==null && DAOStudySummary.isEnabled()) {
+			results = getSummaryRows(StudySummary.KIND_BIOSAMPLE, studies);
+		} else {
+			Query q = session.createQuery(query);
+			if(minDate!=null) q.setParameter(1, minDate);
+			results = q.getResultList();
+		}
 
 		for (Object[] strings : results) {
 			String sid = (String)strings[0];
@@ -947,7 +988,7 @@ public class DAOStudy {
 				+ " where " + QueryTokenizer.expandForIn("r.biosample.inheritedStudy.id", JPAUtil.getIds(studies))
 				+ " group by r.biosample.inheritedStudy.studyId, r.test.name, r.updUser";
 
-		List<Object[]> results = session.createQuery(query).getResultList();
+		List<Object[]> results = DAOStudySummary.isEnabled()? getSummaryRows(StudySummary.KIND_RESULT, studies): session.createQuery(query).getResultList();
 
 		for (Object[] strings : results) {
 			String sid = (String)strings[0];
@@ -1000,7 +1041,20 @@ public class DAOStudy {
 				+ (studies==null || studies.size()==0? "": " and " + QueryTokenizer.expandForIn("r.biosample.inheritedStudy.id", JPAUtil.getIds(studies)))
 				+ (biotype==null? "": " and " + "r.biosample.biotype.id = "+biotype.getId())
 				+ " group by r.test.id";
-		results = session.createQuery(sql).getResultList();
+		if(studies!=null && studies.size()>0 && DAOStudySummary.isEnabled()) {
+			//Sum the summary rows by test
+			Map<Integer, Integer> testId2n = new TreeMap<>();
+			for (StudySummary row : DAOStudySummary.getSummaries(StudySummary.KIND_RESULT, studies)) {
+				if(biotype!=null && row.getBiotypeId()!=biotype.getId()) continue;
+				testId2n.put(row.getTypeId(), row.getCount() + (testId2n.containsKey(row.getTypeId())? testId2n.get(row.getTypeId()): 0));
+			}
+			results = new ArrayList<>();
+			for (Map.Entry<Integer, Integer> e : testId2n.entrySet()) {
+				results.add(new Object[] {e.getKey(), e.getValue()});
+			}
+		} else {
+			results = session.createQuery(sql).getResultList();
+		}
 
 		for (Object[] strings : results) {
 			Test t = DAOTest.getTest(Integer.parseInt(""+strings[0]));
@@ -1009,6 +1063,31 @@ public class DAOStudy {
 		return res;
 	}
 
+	/**
+	 * Returns the rows of the study summary, in the format of the count queries: studyId, biotype or test name, updUser, count, maxUpdDate
+	 * @param kind - StudySummary.KIND_BIOSAMPLE or StudySummary.KIND_RESULT
+	 * @param studies - the studies or null, to get the rows without study (studyId is then "")
+	 */
+	private static List<Object[]> getSummaryRows(String kind, Collection<Study> studies) {
+		Map<Integer, Study> id2study = studies==null? new HashMap<>(): JPAUtil.mapIds(studies);
+		Map<Integer, Biotype> id2biotype = DAOBiotype.getId2Biotype();
+		List<Object[]> res = new ArrayList<>();
+		for (StudySummary row : DAOStudySummary.getSummaries(kind, studies)) {
+			Study study = id2study.get(row.getStudyId());
+			String name;
+			if(StudySummary.KIND_BIOSAMPLE.equals(kind)) {
+				Biotype biotype = id2biotype.get(row.getTypeId());
+				name = biotype==null? null: biotype.getName();
+			} else {
+				Test test = DAOTest.getTest(row.getTypeId());
+				name = test==null? null: test.getName();
+			}
+			if(name==null || (studies!=null && study==null)) continue;
+			res.add(new Object[] {study==null? "": study.getStudyId(), name, row.getUpdUser(), row.getCount(), row.getMaxUpdDate()==null? new Date(0): row.getMaxUpdDate()});
+		}
+		return res;
+	}
+
 	public static Map<Phase, Pair<Integer, Integer>> countBiosampleAndResultsByPhase(Study study) {
 
 		EntityManager session = JPAUtil.getManager();
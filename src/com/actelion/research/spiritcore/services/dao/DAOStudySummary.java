@@ -0,0 +1,384 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.business.result.Result;
+import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.business.study.StudySummary;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+
+/**
+ * DAO functions to maintain the materialized counts of biosamples and results per study (see StudySummary).
+ * <br>
+ * The summary is updated in the same transaction as the biosamples and results: the keys of the persisted entities are read before saving,
+ * and the difference between the old and the new keys is applied to the summary after saving.
+ * The deltas are applied as updates; a missing row is inserted, or updated if a concurrent transaction has inserted it meanwhile.
+ * Bulk updates done outside of DAOBiosample/DAOResult are not reflected, so the summary can be rebuilt from the admin menu.
+ * <br>
+ * The summary is only used when the DB_STUDYSUMMARY flag is set (ie. after a rebuild)
+ *
+ * @author Joel Freyss
+ */
+@SuppressWarnings("unchecked")
+public class DAOStudySummary {
+
+	private static Logger logger = LoggerFactory.getLogger(DAOStudySummary.class);
+
+	/**
+	 * Changes to be applied on the summary, mapped by key (the count of the key is the delta)
+	 */
+	static class Changes {
+		private final Map<String, StudySummary> key2delta = new TreeMap<>();
+		private final Map<Integer, StudySummary> biosampleId2oldKey = new HashMap<>();
+
+		private void add(String kind, int studyId, int typeId, int biotypeId, String updUser, int delta, Date date) {
+			if(updUser==null) updUser = "";
+			if(updUser.length()>StudySummary.MAX_USER_LENGTH) updUser = updUser.substring(0, StudySummary.MAX_USER_LENGTH);
+			String key = kind + "_" + studyId + "_" + typeId + "_" + biotypeId + "_" + updUser;
+			StudySummary s = key2delta.get(key);
+			int n = delta + (s==null? 0: s.getCount());
+			Date max = s==null? date: s.getMaxUpdDate()==null? date: date==null || s.getMaxUpdDate().after(date)? s.getMaxUpdDate(): date;
+			key2delta.put(key, new StudySummary(kind, studyId, typeId, biotypeId, updUser, n, delta>0? max: s==null? null: s.getMaxUpdDate()));
+		}
+
+		void addAll(Changes changes) {
+			for (StudySummary s : changes.key2delta.values()) {
+				add(s.getKind(), s.getStudyId(), s.getTypeId(), s.getBiotypeId(), s.getUpdUser(), s.getCount(), s.getMaxUpdDate());
+			}
+			biosampleId2oldKey.putAll(changes.biosampleId2oldKey);
+		}
+	}
+
+	/**
+	 * Returns true if the summary has been built, and can be used to count the biosamples and results
+	 */
+	public static boolean isEnabled() {
+		return SpiritProperties.getInstance().isChecked(PropertyKey.DB_STUDYSUMMARY);
+	}
+
+	/**
+	 * Reads the keys of the given biosamples, as they are in the DB, before they are saved or deleted.
+	 * The entities are not flushed, so that the keys reflect the last committed state.
+	 * @param session
+	 * @param biosamples
+	 * @return the changes, with -1 for each biosample already in the DB
+	 */
+	static Changes beforeBiosamples(EntityManager session, Collection<Biosample> biosamples) {
+		Changes changes = new Changes();
+		if(!isEnabled()) return changes;
+		List<Integer> ids = JPAUtil.getIds(biosamples);
+		ids.removeIf(id -> id<=0);
+		for (List<Integer> chunk : QueryTokenizer.splitForIn(ids)) {
+			List<Object[]> rows = session.createQuery("select b.id, s.id, b.biotype.id, b.updUser, b.updDate from Biosample b left join b.inheritedStudy s where b.id in (:ids)")
+					.setFlushMode(FlushModeType.COMMIT)
+					.setParameter("ids", chunk)
+					.getResultList();
+			for (Object[] row : rows) {
+				int studyId = row[1]==null? 0: (Integer) row[1];
+				changes.add(StudySummary.KIND_BIOSAMPLE, studyId, (Integer) row[2], 0, (String) row[3], -1, null);
+				changes.biosampleId2oldKey.put((Integer) row[0], new StudySummary(StudySummary.KIND_BIOSAMPLE, studyId, (Integer) row[2], 0, (String) row[3], 0, (Date) row[4]));
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Reads the key of a biosample, which is not saved but whose inherited study is about to be changed by the propagation from a saved parent.
+	 * The biosample must then be given to afterPersistBiosamples, so that its count (and the count of its results) is moved to the new study.
+	 * @param changes - the changes returned by beforeBiosamples
+	 * @param b - the child, before its study is changed
+	 * @return true if the key was added (ie. the summary is enabled and the biosample was not yet recorded)
+	 */
+	static boolean beforePropagateStudy(Changes changes, Biosample b) {
+		if(!isEnabled() || b.getBiotype()==null || changes.biosampleId2oldKey.containsKey(b.getId())) return false;
+		int studyId = b.getInheritedStudy()==null? 0: b.getInheritedStudy().getId();
+		changes.add(StudySummary.KIND_BIOSAMPLE, studyId, b.getBiotype().getId(), 0, b.getUpdUser(), -1, null);
+		changes.biosampleId2oldKey.put(b.getId(), new StudySummary(StudySummary.KIND_BIOSAMPLE, studyId, b.getBiotype().getId(), 0, b.getUpdUser(), 0, b.getUpdDate()));
+		return true;
+	}
+
+	/**
+	 * Adds the keys of the saved biosamples and applies the changes to the summary.
+	 * If the study or the biotype of a biosample has been changed, the counts of its results are moved too.
+	 * @param session
+	 * @param changes - the changes returned by beforeBiosamples
+	 * @param biosamples - the saved biosamples, and the children given to beforePropagateStudy
+	 */
+	static void afterPersistBiosamples(EntityManager session, Changes changes, Collection<Biosample> biosamples) {
+		if(!isEnabled()) return;
+		List<Integer> movedIds = new ArrayList<>();
+		Map<Integer, Biosample> id2biosample = new HashMap<>();
+		for (Biosample b : biosamples) {
+			if(b.getBiotype()==null) continue;
+			int studyId = b.getInheritedStudy()==null? 0: b.getInheritedStudy().getId();
+			changes.add(StudySummary.KIND_BIOSAMPLE, studyId, b.getBiotype().getId(), 0, b.getUpdUser(), 1, b.getUpdDate());
+
+			StudySummary old = changes.biosampleId2oldKey.get(b.getId());
+			if(old!=null && (old.getStudyId()!=studyId || old.getTypeId()!=b.getBiotype().getId())) {
+				movedIds.add(b.getId());
+				id2biosample.put(b.getId(), b);
+			}
+		}
+
+		for (List<Integer> chunk : QueryTokenizer.splitForIn(movedIds)) {
+			List<Object[]> rows = session.createQuery("select r.biosample.id, r.test.id, r.updUser, count(r), max(r.updDate) from Result r where r.biosample.id in (:ids) group by r.biosample.id, r.test.id, r.updUser")
+					.setParameter("ids", chunk)
+					.getResultList();
+			for (Object[] row : rows) {
+				Biosample b = id2biosample.get(row[0]);
+				StudySummary old = changes.biosampleId2oldKey.get(row[0]);
+				int n = ((Number) row[3]).intValue();
+				changes.add(StudySummary.KIND_RESULT, old.getStudyId(), (Integer) row[1], old.getTypeId(), (String) row[2], -n, null);
+				changes.add(StudySummary.KIND_RESULT, b.getInheritedStudy()==null? 0: b.getInheritedStudy().getId(), (Integer) row[1], b.getBiotype().getId(), (String) row[2], n, (Date) row[4]);
+			}
+		}
+		apply(session, changes);
+	}
+
+	/**
+	 * Reads the keys of the given results, as they are in the DB, before they are saved or deleted.
+	 * @param session
+	 * @param results
+	 * @return the changes, with -1 for each result already in the DB
+	 */
+	static Changes beforeResults(EntityManager session, Collection<Result> results) {
+		Changes changes = new Changes();
+		if(!isEnabled()) return changes;
+		List<Integer> ids = JPAUtil.getIds(results);
+		ids.removeIf(id -> id<=0);
+		for (List<Integer> chunk : QueryTokenizer.splitForIn(ids)) {
+			List<Object[]> rows = session.createQuery("select s.id, r.test.id, b.biotype.id, r.updUser from Result r join r.biosample b left join b.inheritedStudy s where r.id in (:ids)")
+					.setFlushMode(FlushModeType.COMMIT)
+					.setParameter("ids", chunk)
+					.getResultList();
+			for (Object[] row : rows) {
+				changes.add(StudySummary.KIND_RESULT, row[0]==null? 0: (Integer) row[0], (Integer) row[1], (Integer) row[2], (String) row[3], -1, null);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Adds the keys of the saved results and applies the changes to the summary.
+	 * @param session
+	 * @param changes - the changes returned by beforeResults
+	 * @param results - the saved results (the results, which were not saved, ie. without id, are skipped)
+	 */
+	static void afterPersistResults(EntityManager session, Changes changes, Collection<Result> results) {
+		if(!isEnabled()) return;
+		for (Result r : results) {
+			if(r.getId()<=0 || r.getBiosample()==null || r.getTest()==null || r.getBiosample().getBiotype()==null) continue;
+			Study study = r.getBiosample().getInheritedStudy();
+			changes.add(StudySummary.KIND_RESULT, study==null? 0: study.getId(), r.getTest().getId(), r.getBiosample().getBiotype().getId(), r.getUpdUser(), 1, r.getUpdDate());
+		}
+		apply(session, changes);
+	}
+
+	/**
+	 * Applies the changes returned by beforeBiosamples or beforeResults, after the entities have been deleted.
+	 * @param session
+	 * @param changes
+	 */
+	static void afterDelete(EntityManager session, Changes changes) {
+		if(!isEnabled()) return;
+		apply(session, changes);
+	}
+
+	/**
+	 * Applies the deltas to the summary, in a sorted order to limit the deadlocks between concurrent transactions.
+	 * The rows are created if needed, and deleted when their count reaches 0.
+	 */
+	private static void apply(EntityManager session, Changes changes) {
+		Set<Integer> studyIds = new HashSet<>();
+		for (StudySummary delta : changes.key2delta.values()) {
+			if(delta.getCount()==0 && delta.getMaxUpdDate()==null) continue;
+
+			int updated = updateCount(session, delta);
+			if(updated==0 && delta.getCount()>0 && !insert(session, delta)) {
+				//The row has been inserted by a concurrent transaction since the update
+				updated = updateCount(session, delta);
+			}
+
+			if(updated==0) {
+				if(delta.getCount()<0) {
+					logger.warn("The study summary is out of sync: " + delta + " - it should be rebuilt");
+				}
+			} else if(delta.getMaxUpdDate()!=null) {
+				session.createQuery("update StudySummary s set s.maxUpdDate = :date"
+						+ " where s.kind = :kind and s.studyId = :studyId and s.typeId = :typeId and s.biotypeId = :biotypeId and s.updUser = :updUser"
+						+ " and (s.maxUpdDate is null or s.maxUpdDate < :date)")
+				.setParameter("date", delta.getMaxUpdDate())
+				.setParameter("kind", delta.getKind())
+				.setParameter("studyId", delta.getStudyId())
+				.setParameter("typeId", delta.getTypeId())
+				.setParameter("biotypeId", delta.getBiotypeId())
+				.setParameter("updUser", delta.getUpdUser())
+				.executeUpdate();
+			}
+			if(delta.getCount()<0) studyIds.add(delta.getStudyId());
+		}
+		if(studyIds.size()>0) {
+			JPAUtil.executeUpdateIn(session, "delete from StudySummary s where s.count <= 0 and s.studyId in (:ids)", "ids", studyIds);
+		}
+	}
+
+	private static int updateCount(EntityManager session, StudySummary delta) {
+		return session.createQuery("update StudySummary s set s.count = s.count + :delta"
+				+ " where s.kind = :kind and s.studyId = :studyId and s.typeId = :typeId and s.biotypeId = :biotypeId and s.updUser = :updUser")
+				.setParameter("delta", delta.getCount())
+				.setParameter("kind", delta.getKind())
+				.setParameter("studyId", delta.getStudyId())
+				.setParameter("typeId", delta.getTypeId())
+				.setParameter("biotypeId", delta.getBiotypeId())
+				.setParameter("updUser", delta.getUpdUser())
+				.executeUpdate();
+	}
+
+	/**
+	 * Inserts the row of the given delta, within a savepoint: if the key has been inserted by a concurrent transaction,
+	 * the insert is rolled back to the savepoint (so that the transaction can go on) and false is returned.
+	 */
+	private static boolean insert(EntityManager session, StudySummary delta) {
+		return session.unwrap(Session.class).doReturningWork(conn -> {
+			Savepoint savepoint = conn.setSavepoint();
+			try(PreparedStatement stmt = conn.prepareStatement("insert into spirit.study_summary (kind, study_id, type_id, biotype_id, upd_user, n, max_upd_date) values (?, ?, ?, ?, ?, ?, ?)")) {
+				stmt.setString(1, delta.getKind());
+				stmt.setInt(2, delta.getStudyId());
+				stmt.setInt(3, delta.getTypeId());
+				stmt.setInt(4, delta.getBiotypeId());
+				stmt.setString(5, delta.getUpdUser());
+				stmt.setInt(6, delta.getCount());
+				if(delta.getMaxUpdDate()==null) {
+					stmt.setNull(7, Types.TIMESTAMP);
+				} else {
+					stmt.setTimestamp(7, new Timestamp(delta.getMaxUpdDate().getTime()));
+				}
+				stmt.executeUpdate();
+				return true;
+			} catch(SQLException e) {
+				//SQLState 23xxx: integrity constraint violation
+				if(e.getSQLState()==null || !e.getSQLState().startsWith("23")) throw e;
+				logger.debug("Study summary inserted concurrently: " + delta);
+				conn.rollback(savepoint);
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Returns the summary rows of the given kind, for the given studies
+	 * @param kind - StudySummary.KIND_BIOSAMPLE or StudySummary.KIND_RESULT
+	 * @param studies - the studies, or null to get the rows without study
+	 * @return
+	 */
+	public static List<StudySummary> getSummaries(String kind, Collection<Study> studies) {
+		EntityManager session = JPAUtil.getManager();
+		if(studies==null) {
+			return session.createQuery("from StudySummary s where s.kind = :kind and s.studyId = 0")
+					.setParameter("kind", kind)
+					.getResultList();
+		}
+		List<StudySummary> res = new ArrayList<>();
+		for (List<Integer> chunk : QueryTokenizer.splitForIn(JPAUtil.getIds(studies))) {
+			res.addAll(session.createQuery("from StudySummary s where s.kind = :kind and s.studyId in (:ids)")
+					.setParameter("kind", kind)
+					.setParameter("ids", chunk)
+					.getResultList());
+		}
+		return res;
+	}
+
+	/**
+	 * Rebuilds the summary from the biosamples and results, and enables its use.
+	 * @param user
+	 * @throws Exception
+	 */
+	public static void rebuild(SpiritUser user) throws Exception {
+		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be an admin");
+		long start = System.currentTimeMillis();
+		EntityManager session = null;
+		EntityTransaction txn = null;
+		try {
+			session = JPAUtil.createManager();
+			txn = session.getTransaction();
+			txn.begin();
+
+			session.createQuery("delete from StudySummary s").executeUpdate();
+
+			//The users are truncated, so the rows are merged in memory before being inserted
+			Changes changes = new Changes();
+			List<Object[]> rows = session.createQuery("select s.id, b.biotype.id, b.updUser, count(b), max(b.updDate) from Biosample b left join b.inheritedStudy s group by s.id, b.biotype.id, b.updUser").getResultList();
+			for (Object[] row : rows) {
+				changes.add(StudySummary.KIND_BIOSAMPLE, row[0]==null? 0: (Integer) row[0], (Integer) row[1], 0, (String) row[2], ((Number) row[3]).intValue(), (Date) row[4]);
+			}
+			rows = session.createQuery("select s.id, r.test.id, b.biotype.id, r.updUser, count(r), max(r.updDate) from Result r join r.biosample b left join b.inheritedStudy s group by s.id, r.test.id, b.biotype.id, r.updUser").getResultList();
+			for (Object[] row : rows) {
+				changes.add(StudySummary.KIND_RESULT, row[0]==null? 0: (Integer) row[0], (Integer) row[1], (Integer) row[2], (String) row[3], ((Number) row[4]).intValue(), (Date) row[5]);
+			}
+
+			int count = 0;
+			for (StudySummary s : changes.key2delta.values()) {
+				session.persist(s);
+				if(++count%500==0) {
+					session.flush();
+					session.clear();
+				}
+			}
+
+			txn.commit();
+			txn = null;
+			logger.info("Study summary rebuilt: " + count + " rows in " + (System.currentTimeMillis()-start) + "ms");
+		} finally {
+			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
+			if(session!=null) session.close();
+		}
+
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_STUDYSUMMARY, "true");
+		SpiritProperties.getInstance().saveValues();
+	}
+}
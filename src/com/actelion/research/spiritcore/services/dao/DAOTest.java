@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.Function;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
@@ -62,6 +63,17 @@ public class DAOTest {
 	public static final String FOODWATER_TESTNAME = "FoodWater";
 	public static final String OBSERVATION_TESTNAME =  "Observation";
 
+	@SuppressWarnings("unchecked")
+	private static final EntityCache<Test> testCache = new EntityCache<>(Test.class, Cache.LONG, (session, ids) -> {
+		Query query = session.createQuery("select distinct(t) from Test t left join fetch t.attributes" + (ids==null? "": " where " + QueryTokenizer.expandForIn("t.id", ids)));
+		return query.getResultList();
+	});
+
+	/**
+	 * Key of the map of the cached tests by name
+	 */
+	private static final Function<Test, String> TEST_NAME = Test::getName;
+
 	public static List<Test> getTestsFromElbs(String elbs) {
 		try {
 			EntityManager session = JPAUtil.getManager();
@@ -76,23 +88,7 @@ public class DAOTest {
 
 
 	private static Map<Integer, Test> getId2TestMap() {
-		@SuppressWarnings("unchecked")
-		Map<Integer, Test> id2Test = (Map<Integer, Test>) Cache.getInstance().get("id2test_"+JPAUtil.getManager());
-		if(id2Test==null) {
-			EntityManager session = JPAUtil.getManager();
-			List<Test> res = session.createQuery(
-					"select distinct(t) from Test t left join fetch t.attributes").getResultList();
-			id2Test = JPAUtil.mapIds(res);
-			Cache.getInstance().add("id2test_"+JPAUtil.getManager(), id2Test, Cache.FAST);
-			Cache.getInstance().add("name2test_"+JPAUtil.getManager(), Test.mapName(res), Cache.FAST);
-		}
-		return id2Test;
-	}
-
-	@SuppressWarnings("unchecked")
-	private static Map<String, Test> getName2TestMap() {
-		getId2TestMap();
-		return (Map<String, Test>) Cache.getInstance().get("name2test_"+JPAUtil.getManager());
+		return testCache.getAll(JPAUtil.getManager());
 	}
 
 
@@ -113,7 +109,8 @@ public class DAOTest {
 	}
 
 	public static Test getTest(String name) {
-		return getName2TestMap().get(name);
+		if(name==null) return null;
+		return testCache.getAllBy(JPAUtil.getManager(), TEST_NAME).get(name);
 	}
 
 	public static List<Test> getTests() {
@@ -148,6 +145,10 @@ public class DAOTest {
 	}
 
 	public static void persistTests(EntityManager session, Collection<Test> tests, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOTest.persistTests", () -> doPersistTests(session, tests, user));
+	}
+
+	private static void doPersistTests(EntityManager session, Collection<Test> tests, SpiritUser user) throws Exception {
 		logger.info("Persist "+tests.size()+" tests");
 		if(!SpiritRights.isSuperAdmin(user)) throw new Exception("You must be an admin to edit a test");
 
@@ -180,10 +181,14 @@ public class DAOTest {
 				session.persist(test);
 			}
 		}
-		Cache.getInstance().remove("id2test_"+JPAUtil.getManager());
+		testCache.invalidate(tests);
 	}
 
 	public static void removeTest(Test test, SpiritUser user) throws Exception {
+		SpiritMetrics.run("DAOTest.removeTest", () -> doRemoveTest(test, user));
+	}
+
+	private static void doRemoveTest(Test test, SpiritUser user) throws Exception {
 		if(user==null || !user.isSuperAdmin()) throw new Exception("You must be am admin");
 		//Make sure that there are no results linked to it
 		ResultQuery q = new ResultQuery();
@@ -202,33 +207,25 @@ public class DAOTest {
 			session.remove(test);
 			txn.commit();
 			txn = null;
-			Cache.getInstance().remove("id2test_"+JPAUtil.getManager());
+			testCache.invalidate(test);
 
 		} finally {
 			if(txn!=null && txn.isActive()) try{txn.rollback();}catch (Exception e) {e.printStackTrace();}
 		}
 	}
 
+	/**
+	 * Returns the most frequent values of the given attribute, used for the autocompletion (see DAOAutoCompletion)
+	 */
 	public static Set<String> getAutoCompletionFields(TestAttribute att) {
-		Set<String> cached = (Set<String>) Cache.getInstance().get("autocompletion_ta_" + att.getId());
-		if(cached==null) {
-			EntityManager session = JPAUtil.getManager();
-			Query query =  session.createQuery("select rv.value, count(*) from ResultValue rv where rv.attribute.id = " + att.getId() + " and rv.value is not null group by rv.value");
-			List<Object[]> l = query.getResultList();
-			Collections.sort(l, (o1, o2) -> {
-				return -((Long)o1[1]).compareTo(((Long)o2[1]));
-			});
-			List<String> items = new ArrayList<>();
-			for (int i = 0; i < 100 && i<l.size(); i++) {
-				items.add((String)l.get(i)[0]);
-			}
-			cached = new TreeSet<String>(items);
-			Cache.getInstance().add("autocompletion_ta_" + att.getId(), cached, Cache.FAST);
-		}
-		return cached;
+		return new TreeSet<String>(DAOAutoCompletion.complete(att, null, DAOAutoCompletion.MAX_ATTRIBUTE_VALUES));
 	}
 
 	public static Map<TestAttribute, Collection<String>> getInputFields(Integer testId, String studyIds) throws Exception {
+		return SpiritMetrics.time("DAOTest.getInputFields", () -> doGetInputFields(testId, studyIds));
+	}
+
+	private static Map<TestAttribute, Collection<String>> doGetInputFields(Integer testId, String studyIds) throws Exception {
 		EntityManager session = JPAUtil.getManager();
 		Map<TestAttribute, Collection<String>> res = new HashMap<>();
 
@@ -0,0 +1,340 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+
+import com.actelion.research.spiritcore.business.IObject;
+
+/**
+ * Cache of entities (Biotype, Test, Study, Location), keyed by id.
+ * <br>
+ * Entities are attached to an EntityManager, so the cache keeps one map of id-&gt;entity per EntityManager.
+ * A cached entity is only returned if it is still contained in the EntityManager (ie. the EntityManager has not been cleared in between).
+ * <br>
+ * The DAOs must call invalidate after persisting or deleting entities: the invalidated ids are reloaded (and only those) on the next access.
+ * The whole cache also expires after a given time, to see the changes done by other clients.
+ *
+ * @author Joel Freyss
+ */
+public class EntityCache<T extends IObject> {
+
+	/**
+	 * Loader used to load the entities from the DB.
+	 */
+	public static interface Loader<T> {
+		/**
+		 * Loads the entities of the given ids (or all entities if ids is null)
+		 */
+		public List<T> load(EntityManager session, Collection<Integer> ids);
+	}
+
+	private static class Entry<T> {
+		/**
+		 * The map is never modified once published (copy on write), so that it can be iterated by the callers
+		 */
+		private Map<Integer, T> id2obj = new HashMap<>();
+		/**
+		 * Ids, which have to be reloaded before the map is returned
+		 */
+		private Set<Integer> stale = new HashSet<>();
+		/**
+		 * Maps of the entities by an other key (see getAllBy), computed from id2obj and cleared when id2obj is replaced
+		 */
+		private Map<Function<T, ?>, Map<Object, T>> indexes = new HashMap<>();
+		/**
+		 * true if all the entities are loaded
+		 */
+		private boolean complete;
+		private final long expire;
+
+		public Entry(long expire) {
+			this.expire = expire;
+		}
+	}
+
+	private static final List<EntityCache<?>> caches = new CopyOnWriteArrayList<>();
+
+	private final Class<T> claz;
+	private final Loader<T> loader;
+	private final int timeSec;
+	private final Map<EntityManager, Entry<T>> em2entry = new WeakHashMap<>();
+	private final SpiritMetrics.Counter hitCounter;
+	private final SpiritMetrics.Counter missCounter;
+	/**
+	 * Incremented by each invalidation: the entities loaded outside of the lock are only cached if no invalidation happened during the load
+	 */
+	private long generation;
+
+	/**
+	 * Creates and registers a new cache for the given class
+	 * @param claz
+	 * @param timeSec - the time to live of the cached entities
+	 * @param loader
+	 */
+	public EntityCache(Class<T> claz, int timeSec, Loader<T> loader) {
+		this.claz = claz;
+		this.timeSec = timeSec;
+		this.loader = loader;
+		this.hitCounter = SpiritMetrics.getInstance().counter("EntityCache." + claz.getSimpleName() + ".hits");
+		this.missCounter = SpiritMetrics.getInstance().counter("EntityCache." + claz.getSimpleName() + ".misses");
+		caches.add(this);
+	}
+
+	/**
+	 * Returns the cache registered for the given class or null
+	 */
+	@SuppressWarnings("unchecked")
+	public static<T extends IObject> EntityCache<T> getCache(Class<?> claz) {
+		for (EntityCache<?> cache : caches) {
+			if(cache.claz.isAssignableFrom(claz)) return (EntityCache<T>) cache;
+		}
+		return null;
+	}
+
+	/**
+	 * Clears all entity caches
+	 */
+	public static void clearAll() {
+		for (EntityCache<?> cache : caches) {
+			cache.clear();
+		}
+	}
+
+	public synchronized void clear() {
+		em2entry.clear();
+		generation++;
+	}
+
+	/**
+	 * Returns the entity of the given id, from the cache if possible or from the DB
+	 * @param session
+	 * @param id
+	 * @return the entity or null if the entity does not exist
+	 */
+	public T get(EntityManager session, int id) {
+		T obj = getIfPresent(session, id);
+		if(obj!=null) {
+			hitCounter.inc();
+		} else {
+			missCounter.inc();
+			long gen = getGeneration();
+			List<T> res = loader.load(session, Collections.singleton(id));
+			synchronized (this) {
+				if(gen==generation) put(session, res);
+			}
+			obj = res.size()==1? res.get(0): null;
+		}
+		return obj;
+	}
+
+	/**
+	 * Returns the entity of the given id if it is cached and attached to the session, without querying the DB
+	 * @param session
+	 * @param id
+	 * @return
+	 */
+	public synchronized T getIfPresent(EntityManager session, int id) {
+		Entry<T> entry = getEntry(session);
+		if(entry==null || entry.stale.contains(id)) return null;
+		T obj = entry.id2obj.get(id);
+		if(obj!=null && !session.contains(obj)) {
+			em2entry.remove(session);
+			return null;
+		}
+		return obj;
+	}
+
+	/**
+	 * Returns all the entities (loaded once, then only the stale entities are reloaded).
+	 * The returned map must not be modified
+	 * @param session
+	 * @return
+	 */
+	public Map<Integer, T> getAll(EntityManager session) {
+		Set<Integer> stale;
+		long gen;
+		synchronized (this) {
+			gen = generation;
+			Entry<T> entry = getEntry(session);
+			if(entry!=null && entry.complete) {
+				if(entry.stale.isEmpty()) {
+					hitCounter.inc();
+					return Collections.unmodifiableMap(entry.id2obj);
+				}
+				stale = new HashSet<>(entry.stale);
+			} else {
+				stale = null;
+			}
+		}
+
+		missCounter.inc();
+		if(stale==null) {
+			//Load all
+			List<T> res = loader.load(session, null);
+			Entry<T> entry = new Entry<>(timeSec>0? System.currentTimeMillis()+timeSec*1000L: 0);
+			entry.id2obj = JPAUtil.mapIds(res);
+			entry.complete = true;
+			synchronized (this) {
+				//Invalidated during the load: the loaded entities may be outdated, so they are returned without being cached
+				if(gen==generation) em2entry.put(session, entry);
+			}
+			return Collections.unmodifiableMap(entry.id2obj);
+		} else {
+			//Reload the stale entities
+			List<T> res = loader.load(session, stale);
+			synchronized (this) {
+				Entry<T> entry = em2entry.get(session);
+				if(entry==null) return JPAUtil.mapIds(res);
+				Map<Integer, T> id2obj = new HashMap<>(entry.id2obj);
+				id2obj.keySet().removeAll(stale);
+				id2obj.putAll(JPAUtil.mapIds(res));
+				if(gen!=generation) {
+					//Invalidated during the load: return the entities without caching them
+					return Collections.unmodifiableMap(id2obj);
+				}
+				entry.id2obj = id2obj;
+				entry.indexes.clear();
+				entry.stale.removeAll(stale);
+				return Collections.unmodifiableMap(id2obj);
+			}
+		}
+	}
+
+	/**
+	 * Returns all the entities mapped by the given key (ex: the name), instead of the id.
+	 * The map is computed once, and then recomputed when the cached entities are reloaded or invalidated.
+	 * The function must be a constant (it is the key of the computed map). The returned map must not be modified
+	 * @param session
+	 * @param key
+	 * @return
+	 */
+	public<K> Map<K, T> getAllBy(EntityManager session, Function<T, K> key) {
+		Map<Integer, T> id2obj = getAll(session);
+		synchronized (this) {
+			Entry<T> entry = getEntry(session);
+			if(entry==null || !entry.complete || !entry.stale.isEmpty()) {
+				//Invalidated meanwhile: do not keep the map
+				return Collections.unmodifiableMap(mapBy(id2obj.values(), key));
+			}
+			Map<Object, T> index = entry.indexes.get(key);
+			if(index==null) {
+				index = new HashMap<>(mapBy(entry.id2obj.values(), key));
+				entry.indexes.put(key, index);
+			}
+			@SuppressWarnings("unchecked")
+			Map<K, T> res = (Map<K, T>) index;
+			return Collections.unmodifiableMap(res);
+		}
+	}
+
+	private static<K, T> Map<K, T> mapBy(Collection<T> objects, Function<T, K> key) {
+		Map<K, T> res = new HashMap<>();
+		for (T o : objects) {
+			K k = key.apply(o);
+			if(k!=null) res.put(k, o);
+		}
+		return res;
+	}
+
+	/**
+	 * Adds the given entities, which must be attached to the session
+	 * @param session
+	 * @param objects
+	 */
+	public synchronized void put(EntityManager session, Collection<T> objects) {
+		if(objects==null || objects.isEmpty()) return;
+		Entry<T> entry = getEntry(session);
+		if(entry==null) {
+			entry = new Entry<>(timeSec>0? System.currentTimeMillis()+timeSec*1000L: 0);
+			em2entry.put(session, entry);
+		}
+		Map<Integer, T> id2obj = new HashMap<>(entry.id2obj);
+		for (T o : objects) {
+			if(o==null || o.getId()<=0) continue;
+			id2obj.put(o.getId(), o);
+			entry.stale.remove(o.getId());
+		}
+		entry.id2obj = id2obj;
+		entry.indexes.clear();
+	}
+
+	/**
+	 * Invalidates the given entities in all sessions. This function must be called after the entities have been persisted or deleted
+	 * @param objects
+	 */
+	public synchronized void invalidate(Collection<? extends IObject> objects) {
+		if(objects==null || objects.isEmpty()) return;
+		Set<Integer> ids = new HashSet<>(JPAUtil.getIds(objects));
+		generation++;
+		for (Entry<T> entry : em2entry.values()) {
+			Map<Integer, T> id2obj = new HashMap<>(entry.id2obj);
+			id2obj.keySet().removeAll(ids);
+			entry.id2obj = id2obj;
+			entry.indexes.clear();
+			if(entry.complete) entry.stale.addAll(ids);
+		}
+	}
+
+	public void invalidate(IObject object) {
+		if(object==null) return;
+		invalidate(Collections.singleton(object));
+	}
+
+	private synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns the valid entry for the given session or null
+	 */
+	private Entry<T> getEntry(EntityManager session) {
+		Entry<T> entry = em2entry.get(session);
+		if(entry!=null && ((entry.expire>0 && entry.expire<System.currentTimeMillis()) || !session.isOpen())) {
+			em2entry.remove(session);
+			entry = null;
+		}
+		return entry;
+	}
+
+	@Override
+	public synchronized String toString() {
+		List<Integer> sizes = new ArrayList<>();
+		for (Entry<T> entry : em2entry.values()) {
+			sizes.add(entry.id2obj.size());
+		}
+		return "EntityCache<" + claz.getSimpleName() + ">" + sizes;
+	}
+
+}
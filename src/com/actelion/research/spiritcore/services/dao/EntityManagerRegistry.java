@@ -0,0 +1,179 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the EntityManagers opened by JPAUtil, with the thread owning them.
+ * <br>
+ * The threads are referenced weakly: the EntityManagers of the terminated (or collected) threads are released
+ * whenever an EntityManager is registered or a scope is closed, so that their persistence contexts can be garbage collected.
+ * The threads of a pool do not terminate: their EntityManager is released at the end of each task (see unregisterAndRelease).
+ * Releasing an EntityManager rolls back its pending transaction and gives its connection back to the pool. The EntityManager is closed only if the registry
+ * owns the scope of its entities (ie. a request). Otherwise, it is kept open and forgotten: its entities may still be used by the UI,
+ * and it is collected with them.
+ * A warning is logged when the registry grows above the expected size.
+ * This class is thread-safe.
+ *
+ * @author Joel Freyss
+ */
+class EntityManagerRegistry {
+
+	private static Logger logger = LoggerFactory.getLogger(EntityManagerRegistry.class);
+
+	private final String name;
+	private final int warnSize;
+	private final boolean closeTerminated;
+	private final Map<EntityManager, WeakReference<Thread>> em2thread = new IdentityHashMap<>();
+	private boolean warned = false;
+
+	/**
+	 * @param name - the name of the registry, for the logs
+	 * @param warnSize - the number of EntityManagers above which a warning is logged
+	 * @param closeTerminated - true to close the EntityManagers of the terminated threads, false to unregister them without closing them
+	 */
+	public EntityManagerRegistry(String name, int warnSize, boolean closeTerminated) {
+		this.name = name;
+		this.warnSize = warnSize;
+		this.closeTerminated = closeTerminated;
+	}
+
+	/**
+	 * Registers the EntityManager, owned by the current thread
+	 */
+	public void register(EntityManager em) {
+		releaseTerminated();
+		synchronized (this) {
+			em2thread.put(em, new WeakReference<>(Thread.currentThread()));
+			if(em2thread.size()>warnSize && !warned) {
+				warned = true;
+				logger.warn(name + ": " + em2thread.size() + " EntityManagers are open, the threads should be scoped (see JPAUtil.openScope)");
+			}
+		}
+	}
+
+	public synchronized void unregister(EntityManager em) {
+		em2thread.remove(em);
+	}
+
+	/**
+	 * Unregisters the EntityManager of a thread, which does not terminate (ex: a thread of a pool) at the end of its task.
+	 * The EntityManager is closed if the registry owns its scope, or released otherwise
+	 */
+	public void unregisterAndRelease(EntityManager em) {
+		unregister(em);
+		if(closeTerminated) {
+			close(em);
+		} else {
+			release(em);
+		}
+	}
+
+	public synchronized int size() {
+		return em2thread.size();
+	}
+
+	/**
+	 * Returns a copy of the registered EntityManagers
+	 */
+	public synchronized List<EntityManager> getAll() {
+		return new ArrayList<>(em2thread.keySet());
+	}
+
+	/**
+	 * Unregisters the EntityManagers of the terminated threads, and closes them if the registry owns their scope
+	 */
+	public void releaseTerminated() {
+		List<EntityManager> toRelease = new ArrayList<>();
+		synchronized (this) {
+			for (Iterator<Map.Entry<EntityManager, WeakReference<Thread>>> iter = em2thread.entrySet().iterator(); iter.hasNext();) {
+				Map.Entry<EntityManager, WeakReference<Thread>> e = iter.next();
+				Thread thread = e.getValue().get();
+				if(thread==null || !thread.isAlive()) {
+					toRelease.add(e.getKey());
+					iter.remove();
+				}
+			}
+		}
+		for (EntityManager em : toRelease) {
+			if(closeTerminated) {
+				close(em);
+			} else {
+				release(em);
+			}
+		}
+		if(toRelease.size()>0) logger.debug(name + ": released " + toRelease.size() + " EntityManagers of terminated threads");
+	}
+
+	/**
+	 * Closes and unregisters all EntityManagers
+	 */
+	public void closeAll() {
+		List<EntityManager> toClose;
+		synchronized (this) {
+			toClose = new ArrayList<>(em2thread.keySet());
+			em2thread.clear();
+			warned = false;
+		}
+		for (EntityManager em : toClose) {
+			close(em);
+		}
+	}
+
+	/**
+	 * Rollbacks the pending transaction and gives the connection back to the pool, without closing the EntityManager.
+	 * A new connection is borrowed if the EntityManager is used again (ex: to load a lazy association)
+	 */
+	private static void release(EntityManager em) {
+		try {
+			if(em.isOpen()) {
+				if(em.getTransaction().isActive()) em.getTransaction().rollback();
+				em.unwrap(Session.class).disconnect();
+			}
+		} catch(Exception e) {
+			logger.warn("Could not release EntityManager: ", e);
+		}
+	}
+
+	private static void close(EntityManager em) {
+		try {
+			if(em.isOpen()) {
+				if(em.getTransaction().isActive()) em.getTransaction().rollback();
+				em.close();
+			}
+		} catch(Exception e) {
+			logger.warn("Could not close EntityManager: ", e);
+		}
+	}
+}
@@ -47,7 +47,6 @@ import com.actelion.research.spiritcore.business.study.NamedSampling;
 import com.actelion.research.spiritcore.business.study.Sampling;
 import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.services.SpiritUser;
-import com.actelion.research.spiritcore.services.StringEncrypter;
 import com.actelion.research.spiritcore.util.QueryTokenizer;
 
 /**
@@ -164,11 +163,20 @@ public class JPAUtil {
 	//	}
 
 
-	private static List<EntityManager> all = Collections.synchronizedList(new ArrayList<>());
+	/**
+	 * All EntityManagers created by the MyThreadLocal (desktop mode).
+	 * The EntityManagers of the terminated threads are unregistered (but not closed, as their entities may still be used by the UI)
+	 * when a new EntityManager is created or a scope is closed.
+	 */
+	private static final EntityManagerRegistry all = new EntityManagerRegistry("Desktop", 50, false);
 
-	private static class MyThreadLocal extends ThreadLocal<EntityManager> {
+	/**
+	 * Pool of connections, used by the EntityManagers.
+	 * The connections are borrowed for each statement or transaction, and are validated when borrowed.
+	 */
+	private static ConnectionPool pool;
 
-		public long lastTestQuery = 0;
+	private static class MyThreadLocal extends ThreadLocal<EntityManager> {
 
 		/**
 		 * Rollback and Close all entityManagers
@@ -187,8 +195,7 @@ public class JPAUtil {
 		 * Make sure all related threads are stopped
 		 */
 		public void clear() {
-			//			EntityManager em = get();
-			for(EntityManager em: all) {
+			for(EntityManager em: all.getAll()) {
 				if(em!=null && em.isOpen() ) {
 					LoggerFactory.getLogger(JPAUtil.class).debug("Clear EM: "+em+" active="+em.getTransaction().isActive());
 					if(em.getTransaction().isActive()) em.getTransaction().rollback();
@@ -202,7 +209,7 @@ public class JPAUtil {
 			EntityManager em = factory.createEntityManager();
 			em.setFlushMode(FlushModeType.AUTO);
 			LoggerFactory.getLogger(JPAUtil.class).debug("Create EntityManager");
-			all.add(em);
+			all.register(em);
 			return em;
 		}
 
@@ -210,23 +217,9 @@ public class JPAUtil {
 		public EntityManager get() {
 			EntityManager em = super.get();
 
-			//Check first if the connection is still alive, execute test query every 5s
-			boolean connected = false;
-			if(em!=null && em.isOpen()) {
-				try {
-					String testQuery = DBAdapter.getInstance().getTestQuery() ;
-					if(testQuery!=null && testQuery.length()>0 && System.currentTimeMillis()-lastTestQuery>5000) {
-						em.createNativeQuery(testQuery).getSingleResult();
-						lastTestQuery = System.currentTimeMillis();
-					}
-					connected = true;
-				} catch(Exception e) {
-					connected = false;
-				}
-			}
-
-			//If not alive, recreate a connection
-			if(!connected) {
+			//The connections are validated by the pool: recreate the EntityManager only if it was closed
+			if(em==null || !em.isOpen()) {
+				if(em!=null) all.unregister(em);
 				em  = initialValue();
 				set(em);
 
@@ -240,23 +233,48 @@ public class JPAUtil {
 		@Override
 		public void remove() {
 			EntityManager em = get();
-			all.remove(em);
+			all.unregister(em);
 			em.close();
+			super.remove();
 		}
+
+		/**
+		 * Forgets the EntityManager of the current thread, without closing it (its entities may still be used by the UI).
+		 * The next call to get() creates a new EntityManager
+		 */
+		public void release() {
+			EntityManager em = super.get();
+			if(em==null) return;
+			super.remove();
+			all.unregisterAndRelease(em);
+		}
+	}
+
+	/**
+	 * Returns the pool of connections (to check its occupancy and wait times), or null if the factory is not initialized
+	 */
+	public static ConnectionPool getConnectionPool() {
+		return pool;
 	}
 
 
 	/**
-	 * Used for the web
+	 * Used for the web: EntityManager of the current request (see openRequest/closeRequest)
 	 */
-	private static Map<Thread, EntityManager> thread2entityManager = Collections.synchronizedMap(new HashMap<Thread, EntityManager>());
+	private static final ThreadLocal<EntityManager> requestEntityManager = new ThreadLocal<>();
+	private static final EntityManagerRegistry requestEntityManagers = new EntityManagerRegistry("Request", 200, true);
 
 	/**
-	 * The currently logged in user (for auditing through Envers)
+	 * The currently logged in user (for auditing through Envers): per thread in request mode, global otherwise
 	 */
-	private static Map<Thread, SpiritUser> thread2user = Collections.synchronizedMap(new HashMap<Thread, SpiritUser>());
+	private static final ThreadLocal<SpiritUser> threadUser = new ThreadLocal<>();
+	private static SpiritUser user;
 
-	private static Map<Thread, Map<String, String>> thread2ReasonForChange = Collections.synchronizedMap(new HashMap<Thread, Map<String, String>>());
+	/**
+	 * The reason for change: per thread in request mode, global otherwise
+	 */
+	private static final ThreadLocal<Map<String, String>> threadReasonForChange = new ThreadLocal<>();
+	private static Map<String, String> reasonForChange;
 
 	private static EntityManagerFactory factory;
 
@@ -301,7 +319,7 @@ public class JPAUtil {
 			//			if(writeEntityManager!=null) {
 			//				writeEntityManager.clear();
 			//			}
-			for (EntityManager em: new ArrayList<>(all)) {
+			for (EntityManager em: all.getAll()) {
 				if (em.isOpen()) {
 					em.clear();
 				}
@@ -311,6 +329,8 @@ public class JPAUtil {
 		}
 		LoggerFactory.getLogger(JPAUtil.class).debug("Clear Cache");
 		Cache.removeAll();
+		EntityCache.clearAll();
+		DAOAutoCompletion.clearAll();
 	}
 
 	public static void closeFactory() {
@@ -331,22 +351,12 @@ public class JPAUtil {
 				LoggerFactory.getLogger(JPAUtil.class).warn("Could not close session: ", e);
 			}
 		} else {
-			for (EntityManager em : thread2entityManager.values()) {
-				try {
-					em.close();
-				} catch(Exception e) {
-					LoggerFactory.getLogger(JPAUtil.class).warn("Could not clear factory: ", e);
-				}
-			}
-			thread2entityManager.clear();
+			requestEntityManagers.closeAll();
+			requestEntityManager.remove();
 		}
 
-		for (EntityManager em : all) {
-			if(em.isOpen()) {
-				LoggerFactory.getLogger(JPAUtil.class).debug("Close session: "+em);
-				em.close();
-			}
-		}
+		LoggerFactory.getLogger(JPAUtil.class).debug("Close sessions: " + all.size());
+		all.closeAll();
 
 		if(factory!=null) {
 			LoggerFactory.getLogger(JPAUtil.class).debug("Close factory");
@@ -357,18 +367,30 @@ public class JPAUtil {
 			}
 			factory = null;
 		}
+		if(pool!=null) {
+			LoggerFactory.getLogger(JPAUtil.class).debug("Close pool: " + pool);
+			pool.close();
+			pool = null;
+		}
 		Cache.removeAll();
+		EntityCache.clearAll();
+		DAOAutoCompletion.clearAll();
 		SpiritProperties.reset();
 	}
 
+	/**
+	 * When jpaMode == JPAMode.REQUEST (web mode), closes the EntityManager of the current thread, and releases the user and reason for change
+	 */
 	public static void closeRequest() {
 		assert jpaMode == JPAMode.REQUEST;
-		Thread thread = Thread.currentThread();
-		final EntityManager session = thread2entityManager.get(thread);
-		if(session!=null && session.isOpen()) {
-			session.close();
+		final EntityManager session = requestEntityManager.get();
+		if(session!=null) {
+			requestEntityManagers.unregister(session);
+			if(session.isOpen()) session.close();
 		}
-		thread2entityManager.remove(thread);
+		requestEntityManager.remove();
+		threadUser.remove();
+		threadReasonForChange.remove();
 	}
 
 
@@ -440,7 +462,7 @@ public class JPAUtil {
 			em = writeEntityManager.get();
 			return em;
 		case REQUEST:
-			em = thread2entityManager.get(Thread.currentThread());
+			em = requestEntityManager.get();
 			assert em!=null : "You must use this block: try {openRequest} finally {closeRequest}";
 			return em;
 		default:
@@ -491,14 +513,15 @@ public class JPAUtil {
 		closeFactory();
 		Map properties = new HashMap();
 		properties.put("hibernate.dialect", adapter.getHibernateDialect());
-		properties.put("hibernate.connection.driver_class", adapter.getDriverClass());
-		properties.put("hibernate.connection.username", adapter.getDBUsername());
-		properties.put("hibernate.connection.password", new String(new StringEncrypter("program from joel").decrypt(adapter.getDBPassword())));
 		properties.put("hibernate.show_sql", "true".equalsIgnoreCase(System.getProperty("show_sql")));
 		properties.put("hibernate.hbm2ddl.auto", mode);
-		properties.put("hibernate.connection.url", adapter.getDBConnectionURL());
 		properties.put("hibernate.default_schema", "spirit");
 
+		//Connections are borrowed from the pool (the credentials are given by the adapter), and released at the end of each transaction (or after each operation outside of the transactions)
+		pool = new ConnectionPool(adapter, adapter.getPoolConfig());
+		properties.put("hibernate.connection.datasource", pool);
+		properties.put("hibernate.connection.release_mode", "after_transaction");
+
 		LoggerFactory.getLogger(JPAUtil.class).debug("create factory");
 		factory = Persistence.createEntityManagerFactory("spirit", properties);
 		LoggerFactory.getLogger(JPAUtil.class).debug("factory created");
@@ -555,6 +578,39 @@ public class JPAUtil {
 	}
 
 
+	/**
+	 * Executes a query, whose IN clause is given by a collection parameter, ex: "from Biosample b where b.sampleId in (:ids)".
+	 * The items are bound by padded chunks (see QueryTokenizer.splitForIn), so that the statements are reused instead of being parsed for each call.
+	 * @param session
+	 * @param jpql
+	 * @param paramName - the name of the collection parameter
+	 * @param items
+	 * @return the concatenated results of each chunk
+	 */
+	public static<T> List<T> queryIn(EntityManager session, String jpql, String paramName, Collection<?> items) {
+		List<T> res = new ArrayList<>();
+		for (List<?> chunk : QueryTokenizer.splitForIn(items)) {
+			res.addAll(session.createQuery(jpql).setParameter(paramName, chunk).getResultList());
+		}
+		return res;
+	}
+
+	/**
+	 * Executes an update/delete, whose IN clause is given by a collection parameter (see queryIn)
+	 * @param session
+	 * @param jpql
+	 * @param paramName - the name of the collection parameter
+	 * @param items
+	 * @return the number of updated rows
+	 */
+	public static int executeUpdateIn(EntityManager session, String jpql, String paramName, Collection<?> items) {
+		int res = 0;
+		for (List<?> chunk : QueryTokenizer.splitForIn(items)) {
+			res += session.createQuery(jpql).setParameter(paramName, chunk).executeUpdate();
+		}
+		return res;
+	}
+
 	/**
 	 * Map the objects to their id
 	 * @param object
@@ -577,12 +633,13 @@ public class JPAUtil {
 
 		if(factory==null) initialize();
 
-		Thread thread = Thread.currentThread();
-		EntityManager session = thread2entityManager.get(thread);
+		EntityManager session = requestEntityManager.get();
 		if(session==null || !session.isOpen()) {
+			if(session!=null) requestEntityManagers.unregister(session);
 			session = factory.createEntityManager();
 			session.setFlushMode(FlushModeType.AUTO);
-			thread2entityManager.put(thread, session);
+			requestEntityManager.set(session);
+			requestEntityManagers.register(session);
 		}
 		return session;
 	}
@@ -624,6 +681,10 @@ public class JPAUtil {
 	 *
 	 */
 	public static<T extends IObject> List<T> reattach(Collection<T> objects) {
+		return SpiritMetrics.time("JPAUtil.reattach", () -> doReattach(objects));
+	}
+
+	private static<T extends IObject> List<T> doReattach(Collection<T> objects) {
 		if(objects==null) return null;
 		long s = System.currentTimeMillis();
 		List<T> res = new ArrayList<>(objects);
@@ -673,13 +734,27 @@ public class JPAUtil {
 		}
 
 		Class<?> claz  = objects.iterator().next().getClass();
+		EntityCache<T> cache = null;
 		if(!toBeReloadedIds.isEmpty()) {
 			//Get the proper class to load
 			if(claz.getName().contains("_$$_")) claz = claz.getSuperclass();
 
+			//Use the cached entities if they are attached to the session
+			cache = EntityCache.getCache(claz);
+			if(cache!=null) {
+				for (Integer id : new ArrayList<>(toBeReloadedIds)) {
+					T cached = cache.getIfPresent(entityManager, id);
+					if(cached!=null) {
+						res.set(id2index.get(id), cached);
+						toBeReloadedIds.remove(id);
+					}
+				}
+			}
+		}
+
+		if(!toBeReloadedIds.isEmpty()) {
 			//Reload detached objects
-			String jpql = "from " + claz.getSimpleName() +" o where " + QueryTokenizer.expandForIn("o.id", toBeReloadedIds);
-			List<T> reloaded = entityManager.createQuery(jpql).getResultList();
+			List<T> reloaded = queryIn(entityManager, "from " + claz.getSimpleName() +" o where o.id in (:ids)", "ids", toBeReloadedIds);
 			for (T o : reloaded) {
 				toBeReloadedIds.remove((Integer)o.getId());
 				int index = id2index.get(o.getId());
@@ -690,6 +765,7 @@ public class JPAUtil {
 				}
 				res.set(index, o);
 			}
+			if(cache!=null) cache.put(entityManager, reloaded);
 
 			//Unset Ids of invalid objects
 			for (Integer id : toBeReloadedIds) {
@@ -738,9 +814,9 @@ public class JPAUtil {
 	 */
 	public static SpiritUser getSpiritUser() {
 		if(jpaMode==JPAMode.REQUEST) {
-			return thread2user.get(Thread.currentThread());
+			return threadUser.get();
 		} else {
-			return thread2user.get(null);
+			return user;
 		}
 	}
 
@@ -751,9 +827,9 @@ public class JPAUtil {
 	 */
 	public static void setSpiritUser(SpiritUser user) {
 		if(jpaMode==JPAMode.REQUEST) {
-			thread2user.put(Thread.currentThread(), user);
+			threadUser.set(user);
 		} else {
-			thread2user.put(null, user);
+			JPAUtil.user = user;
 		}
 	}
 
@@ -763,9 +839,9 @@ public class JPAUtil {
 	 */
 	public static Map<String, String> getReasonForChange() {
 		if(jpaMode==JPAMode.REQUEST) {
-			return thread2ReasonForChange.get(Thread.currentThread());
+			return threadReasonForChange.get();
 		} else {
-			return thread2ReasonForChange.get(null);
+			return reasonForChange;
 		}
 	}
 
@@ -774,9 +850,69 @@ public class JPAUtil {
 	 */
 	public static void setReasonForChange(Map<String, String> reasons) {
 		if(jpaMode==JPAMode.REQUEST) {
-			thread2ReasonForChange.put(Thread.currentThread(), reasons);
+			threadReasonForChange.set(reasons);
+		} else {
+			reasonForChange = reasons;
+		}
+	}
+
+	/**
+	 * Scope of a task (desktop mode) or of a request (web mode), to be used in a try-with-resources block:
+	 * <pre>
+	 * try(JPAUtil.Scope scope = JPAUtil.openScope()) {
+	 *   ...
+	 * }
+	 * </pre>
+	 * In web mode, the outermost scope opens the request (see openRequest) and closes it.
+	 * In desktop mode, the outermost scope of a thread releases its read EntityManager when it is closed: the thread can be reused by a pool,
+	 * and its next task starts with an empty EntityManager. The released EntityManager is not closed (the loaded entities are still used by the UI),
+	 * and is collected with its entities. Closing the scope also releases the EntityManagers of the terminated threads (see EntityManagerRegistry).
+	 */
+	public static class Scope implements AutoCloseable {
+		private final boolean ownsRequest;
+		private final boolean ownsTask;
+		private boolean closed = false;
+
+		private Scope(boolean ownsRequest, boolean ownsTask) {
+			this.ownsRequest = ownsRequest;
+			this.ownsTask = ownsTask;
+		}
+
+		@Override
+		public void close() {
+			if(closed) return;
+			closed = true;
+			if(ownsRequest) {
+				closeRequest();
+			}
+			if(ownsTask) {
+				taskScope.remove();
+				//The write EntityManager is shared by the tasks of the editable context: it is kept
+				if(jpaMode==JPAMode.READ && readEntityManager!=null) readEntityManager.release();
+			}
+			all.releaseTerminated();
+			requestEntityManagers.releaseTerminated();
+		}
+	}
+
+	/**
+	 * Outermost scope of the current thread (desktop mode)
+	 */
+	private static final ThreadLocal<Scope> taskScope = new ThreadLocal<>();
+
+	/**
+	 * Opens a scope for the current task or request (see Scope)
+	 */
+	public static Scope openScope() {
+		if(jpaMode==JPAMode.REQUEST) {
+			boolean ownsRequest = requestEntityManager.get()==null;
+			if(ownsRequest) openRequest();
+			return new Scope(ownsRequest, false);
 		} else {
-			thread2ReasonForChange.put(null, reasons);
+			boolean ownsTask = taskScope.get()==null;
+			Scope scope = new Scope(false, ownsTask);
+			if(ownsTask) taskScope.set(scope);
+			return scope;
 		}
 	}
-}
\ No newline at end of file
+}
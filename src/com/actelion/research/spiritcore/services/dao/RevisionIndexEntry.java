@@ -0,0 +1,114 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.envers.RevisionType;
+
+/**
+ * One entry of the audit index: the entity changed by a revision, with the study, the user and the date of the change.
+ * The entries are added to the SpiritRevisionEntity by the SpiritRevisionListener,
+ * so that the revisions can be filtered and paged without loading the historical entities.
+ *
+ * @author Joel Freyss
+ */
+@Embeddable
+public class RevisionIndexEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int MAX_ENTITYID_LENGTH = 64;
+
+	@Column(name="entity_type", length=32, nullable=false)
+	private String entityType;
+
+	@Column(name="entity_id", length=MAX_ENTITYID_LENGTH)
+	private String entityId;
+
+	/**
+	 * The study.id of the changed entity, 0 if none or unknown
+	 */
+	@Column(name="study_id", nullable=false)
+	private int sid;
+
+	@Column(name="user_id", length=20)
+	private String userId;
+
+	@Column(name="rev_date")
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date revDate;
+
+	/**
+	 * The RevisionType representation: 0=ADD, 1=MOD, 2=DEL
+	 */
+	@Column(name="change_type", nullable=false)
+	private byte changeType;
+
+	public RevisionIndexEntry() {
+	}
+
+	public RevisionIndexEntry(Class<?> entityClass, Serializable entityId, int sid, String userId, Date revDate, RevisionType changeType) {
+		this.entityType = entityClass.getSimpleName();
+		this.entityId = entityId==null? null: entityId.toString();
+		if(this.entityId!=null && this.entityId.length()>MAX_ENTITYID_LENGTH) this.entityId = this.entityId.substring(0, MAX_ENTITYID_LENGTH);
+		this.sid = sid;
+		this.userId = userId;
+		this.revDate = revDate;
+		this.changeType = changeType.getRepresentation();
+	}
+
+	public String getEntityType() {
+		return entityType;
+	}
+
+	public String getEntityId() {
+		return entityId;
+	}
+
+	public int getSid() {
+		return sid;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public Date getRevDate() {
+		return revDate;
+	}
+
+	public RevisionType getChangeType() {
+		return RevisionType.fromRepresentation(changeType);
+	}
+
+	@Override
+	public String toString() {
+		return "[RevisionIndexEntry:" + entityType + ":" + entityId + " sid=" + sid + " " + getChangeType() + "]";
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
+import com.actelion.research.spiritcore.business.location.Privacy;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.services.SpiritRights;
+import com.actelion.research.spiritcore.services.SpiritRights.ActionType;
+import com.actelion.research.spiritcore.services.SpiritRights.UserType;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+
+/**
+ * Compiles the read rights of a user (see SpiritRights) into JPQL clauses, so that the DAOs don't load the rows that the user cannot read.
+ * <ul>
+ * <li>the studies that the user cannot read are excluded (the study rights are evaluated on the cached studies)
+ * <li>the biosamples are then filtered by role, creator/updater (user and managed users), department, and by the inherited privacy of their location
+ * <li>the results are filtered by role
+ * </ul>
+ * The clauses never exclude a readable row, but may include some rows that are not readable: the DAOs still check SpiritRights on the returned rows.
+ *
+ * @author Joel Freyss
+ */
+public class RightsPredicate {
+
+	private static final String LOCATIONS_KEY = "rights_locations";
+
+	/**
+	 * Inherited privacy and employeeGroup.id of a location
+	 */
+	private static class LocationPrivacy {
+		private final Privacy privacy;
+		private final Integer groupId;
+		public LocationPrivacy(Privacy privacy, Integer groupId) {
+			this.privacy = privacy;
+			this.groupId = groupId;
+		}
+	}
+
+	/**
+	 * Returns the clause (starting with " and") restricting the biosamples (with the given alias) to the ones readable by the user,
+	 * or an empty string if no restriction is needed
+	 * @param alias
+	 * @param user
+	 * @return
+	 */
+	public static String getBiosampleClause(String alias, SpiritUser user) {
+		if(user==null) return "";
+		StringBuilder clause = new StringBuilder();
+
+		//Study rights
+		clause.append(getStudyClause(alias + ".inheritedStudy", user));
+
+		//Generic roles
+		SpiritProperties props = SpiritProperties.getInstance();
+		for (String role : user.getRoles()) {
+			if(props.isChecked(ActionType.READ_BIOSAMPLE, role)) return clause.toString();
+		}
+
+		List<String> alternatives = new ArrayList<>();
+
+		//Group/hierarchy rights
+		if(props.isChecked(PropertyKey.USER_USEGROUPS)) {
+			Set<String> users = new LinkedHashSet<>();
+			users.add(user.getUsername());
+			users.addAll(user.getManagedUsers());
+			if(props.isChecked(ActionType.READ_BIOSAMPLE, UserType.CREATOR)) {
+				alternatives.add(QueryTokenizer.expandForIn(alias + ".creUser", users));
+			}
+			if(props.isChecked(ActionType.READ_BIOSAMPLE, UserType.UPDATER)) {
+				alternatives.add(QueryTokenizer.expandForIn(alias + ".updUser", users));
+			}
+			List<Integer> groupIds = new ArrayList<>();
+			for (EmployeeGroup group : user.getGroups()) {
+				if(group.getId()>0) groupIds.add(group.getId());
+			}
+			if(groupIds.size()>0) {
+				alternatives.add(QueryTokenizer.expandForIn(alias + ".group.id", groupIds));
+			}
+		}
+
+		//Location rights
+		Map<Integer, LocationPrivacy> id2privacy = getLocationPrivacies();
+		boolean isOpen = props.getUserRoles().length<=1 && props.isOpen();
+		List<Integer> excludedIds = new ArrayList<>();
+		for (Map.Entry<Integer, LocationPrivacy> e : id2privacy.entrySet()) {
+			LocationPrivacy lp = e.getValue();
+			if(isOpen) {
+				//Open system: exclude the private locations of other departments
+				if(lp.privacy==Privacy.PRIVATE && lp.groupId!=null && !isMember(user, lp.groupId)) excludedIds.add(e.getKey());
+			} else {
+				//Closed system: only the public locations
+				if(lp.privacy!=Privacy.PUBLIC) excludedIds.add(e.getKey());
+			}
+		}
+		String notExcluded = excludedIds.isEmpty()? null: "not (" + QueryTokenizer.expandForIn(alias + ".location.id", excludedIds) + ")";
+		if(isOpen) {
+			alternatives.add(notExcluded==null? "1=1": "(" + alias + ".location is null or " + notExcluded + ")");
+		} else {
+			alternatives.add("(" + alias + ".location is not null" + (notExcluded==null? "": " and " + notExcluded) + ")");
+		}
+
+		if(alternatives.contains("1=1")) return clause.toString();
+		clause.append(" and (");
+		for (int i = 0; i < alternatives.size(); i++) {
+			if(i>0) clause.append(" or ");
+			clause.append(alternatives.get(i));
+		}
+		clause.append(")");
+		return clause.toString();
+	}
+
+	/**
+	 * Returns the clause (starting with " and") restricting the results to the ones readable by the user,
+	 * or an empty string if no restriction is needed.
+	 * @param resultAlias - the alias of the result
+	 * @param biosampleAlias - the alias of the biosample, which must be left joined to the result
+	 * @param user
+	 * @return
+	 */
+	public static String getResultClause(String resultAlias, String biosampleAlias, SpiritUser user) {
+		if(user==null) return "";
+		SpiritProperties props = SpiritProperties.getInstance();
+		boolean canReadRole = props.getUserRoles().length<=1;
+		for (String role : user.getRoles()) {
+			if(props.isChecked(ActionType.READ_RESULT, role)) canReadRole = true;
+		}
+		if(!canReadRole) return " and 1=0";
+
+		String studyClause = getStudyClause(biosampleAlias + ".inheritedStudy", user);
+		if(studyClause.length()==0) return "";
+		return " and (" + biosampleAlias + ".id is null or " + studyClause.substring(5) + ")";
+	}
+
+	/**
+	 * Returns the clause (starting with " and") excluding the studies that the user cannot read
+	 */
+	private static String getStudyClause(String studyPath, SpiritUser user) {
+		List<Integer> unreadable = new ArrayList<>();
+		for (Study study : DAOStudy.getStudies()) {
+			if(!SpiritRights.canRead(study, user)) unreadable.add(study.getId());
+		}
+		if(unreadable.isEmpty()) return "";
+		return " and (" + studyPath + " is null or not (" + QueryTokenizer.expandForIn(studyPath + ".id", unreadable) + "))";
+	}
+
+	private static boolean isMember(SpiritUser user, int groupId) {
+		for (EmployeeGroup group : user.getGroups()) {
+			if(group.getId()==groupId) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the inherited privacy of the locations, which are not public.
+	 * The locations are read as scalars (no entity is loaded), and cached until a location is modified.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<Integer, LocationPrivacy> getLocationPrivacies() {
+		Map<Integer, LocationPrivacy> res = (Map<Integer, LocationPrivacy>) Cache.getInstance().get(LOCATIONS_KEY);
+		if(res==null) {
+			List<Object[]> rows = JPAUtil.getManager().createQuery("select l.id, p.id, l.privacy, g.id from Location l left join l.parent p left join l.employeeGroup g").getResultList();
+			Map<Integer, Object[]> id2row = new HashMap<>();
+			for (Object[] row : rows) {
+				id2row.put((Integer) row[0], row);
+			}
+
+			//Same logic as Location.getInheritedPrivacy
+			res = new HashMap<>();
+			for (Object[] row : rows) {
+				Object[] r = row;
+				int depth = 0;
+				while(r!=null && (++depth)<10 && (r[2]==null || r[2]==Privacy.INHERITED)) {
+					r = r[1]==null? null: id2row.get(r[1]);
+				}
+				if(r==null || depth>=10 || r[2]==Privacy.PUBLIC) continue;
+				res.put((Integer) row[0], new LocationPrivacy((Privacy) r[2], (Integer) r[3]));
+			}
+			Cache.getInstance().add(LOCATIONS_KEY, res, Cache.LONG);
+		}
+		return res;
+	}
+
+	/**
+	 * To be called when the locations are modified
+	 */
+	public static void invalidateLocations() {
+		Cache.getInstance().remove(LOCATIONS_KEY);
+	}
+
+}
@@ -0,0 +1,494 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.dao;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lightweight registry of metrics (counters, histograms, timers), used to instrument the hot paths of Spirit.
+ * <ul>
+ * <li>The main DAO entry points are timed with <code>return SpiritMetrics.time("DAOXxx.method", () -&gt; ...)</code> (or {@link #run(String, Task)} for void methods).
+ * Each call records the elapsed time in the timer "DAOXxx.method" and the number of JDBC statements executed during the call in the histogram "DAOXxx.method.statements"
+ * <li>The statements are counted by the proxies of the ConnectionPool (see {@link #countStatement()}), and attributed to the innermost timed call of the thread
+ * (and through it to the enclosing calls). The statements executed outside of any timed call are counted in "JDBC.statements.untimed"
+ * <li>Every metric is registered as a JMX MBean (domain {@value #JMX_DOMAIN}) when it is created
+ * <li>The metrics can be dumped periodically to the log and to a CSV file, see {@link #startDump(int, File)}.
+ * The dump is started automatically if the system property metrics_dump is set to a period in seconds (and optionally metrics_csv to a file).
+ * </ul>
+ * The updates only use LongAdders and atomic arrays (no lock, no allocation except the Context), so that the metrics can stay enabled in production.
+ *
+ * @author Joel Freyss
+ */
+public class SpiritMetrics {
+
+	public static final String JMX_DOMAIN = "com.actelion.research.spirit";
+
+	private static Logger logger = LoggerFactory.getLogger(SpiritMetrics.class);
+
+	private static final SpiritMetrics instance = new SpiritMetrics();
+
+	public interface CounterMBean {
+		public long getCount();
+	}
+
+	public interface HistogramMBean {
+		public long getCount();
+		public double getMean();
+		public long getMin();
+		public long getMax();
+		public long get50thPercentile();
+		public long get95thPercentile();
+		public long get99thPercentile();
+		public void reset();
+	}
+
+	/**
+	 * Counter of events
+	 */
+	public static class Counter implements CounterMBean {
+		private final LongAdder count = new LongAdder();
+
+		public void inc() {
+			count.increment();
+		}
+
+		public void add(long n) {
+			count.add(n);
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + getCount();
+		}
+	}
+
+	/**
+	 * Distribution of positive values.
+	 * The values are counted in logarithmic buckets (4 buckets per power of 2), so that the percentiles are estimated within 25%.
+	 */
+	public static class Histogram implements HistogramMBean {
+		private static final int NBUCKETS = 62*4;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(NBUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+		public void update(long value) {
+			if(value<0) value = 0;
+			buckets.incrementAndGet(getBucket(value));
+			count.increment();
+			sum.add(value);
+			long m;
+			while(value<(m=min.get()) && !min.compareAndSet(m, value)) {}
+			while(value>(m=max.get()) && !max.compareAndSet(m, value)) {}
+		}
+
+		private static int getBucket(long value) {
+			if(value<4) return (int) value;
+			int e = 63 - Long.numberOfLeadingZeros(value);
+			return Math.min(NBUCKETS-1, (e-1)*4 + (int) ((value >> (e-2)) & 3));
+		}
+
+		private static long getUpperBound(int bucket) {
+			if(bucket<4) return bucket;
+			int e = bucket/4 + 1;
+			return ((4L + bucket%4 + 1) << (e-2)) - 1;
+		}
+
+		@Override
+		public long getCount() {
+			return count.sum();
+		}
+
+		@Override
+		public double getMean() {
+			long n = count.sum();
+			return n==0? 0: (double) sum.sum() / n;
+		}
+
+		@Override
+		public long getMin() {
+			return count.sum()==0? 0: min.get();
+		}
+
+		@Override
+		public long getMax() {
+			return count.sum()==0? 0: max.get();
+		}
+
+		/**
+		 * Returns an estimation of the given percentile (0-100)
+		 */
+		public long getPercentile(double percentile) {
+			long n = 0;
+			for (int i = 0; i < NBUCKETS; i++) n += buckets.get(i);
+			if(n==0) return 0;
+			long rank = (long) Math.ceil(n * percentile / 100);
+			long cumul = 0;
+			for (int i = 0; i < NBUCKETS; i++) {
+				cumul += buckets.get(i);
+				if(cumul>=rank && cumul>0) return Math.min(getUpperBound(i), getMax());
+			}
+			return getMax();
+		}
+
+		@Override
+		public long get50thPercentile() {
+			return getPercentile(50);
+		}
+
+		@Override
+		public long get95thPercentile() {
+			return getPercentile(95);
+		}
+
+		@Override
+		public long get99thPercentile() {
+			return getPercentile(99);
+		}
+
+		@Override
+		public void reset() {
+			for (int i = 0; i < NBUCKETS; i++) buckets.set(i, 0);
+			count.reset();
+			sum.reset();
+			min.set(Long.MAX_VALUE);
+			max.set(Long.MIN_VALUE);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1f min=%d p50=%d p95=%d p99=%d max=%d", getCount(), getMean(), getMin(), get50thPercentile(), get95thPercentile(), get99thPercentile(), getMax());
+		}
+	}
+
+	/**
+	 * Histogram of durations, in microseconds
+	 */
+	public static class Timer extends Histogram {
+		public void update(long duration, TimeUnit unit) {
+			update(unit.toMicros(duration));
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + " (us)";
+		}
+	}
+
+	/** Innermost context opened by the current thread */
+	private static final ThreadLocal<Context> currentContext = new ThreadLocal<>();
+
+	/**
+	 * Timed call, which returns a value
+	 */
+	public interface Call<T, E extends Exception> {
+		public T call() throws E;
+	}
+
+	/**
+	 * Timed call, without return value
+	 */
+	public interface Task<E extends Exception> {
+		public void run() throws E;
+	}
+
+	/**
+	 * Measure of one call, to be closed at the end of the call (try-with-resources).
+	 * A context nested in a context of the same name (overloads calling each other, recursive calls) is not recorded, so that each call is only counted once.
+	 * The statements of a context are added to its parent when it is closed.
+	 */
+	public static class Context implements AutoCloseable {
+		private final String name;
+		private final Context parent;
+		private final boolean nested;
+		private final long start;
+		private long statements;
+
+		private Context(String name) {
+			this.name = name;
+			this.parent = currentContext.get();
+			boolean nested = false;
+			for (Context c = parent; c!=null && !nested; c = c.parent) {
+				nested = c.name.equals(name);
+			}
+			this.nested = nested;
+			currentContext.set(this);
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Returns the number of JDBC statements executed since the context was started (including the nested contexts already closed)
+		 */
+		public long getStatements() {
+			return statements;
+		}
+
+		@Override
+		public void close() {
+			currentContext.set(parent);
+			if(parent!=null) parent.statements += statements;
+			if(nested) return;
+			instance.timer(name).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			instance.histogram(name + ".statements").update(getStatements());
+		}
+	}
+
+	private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+	private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+	private final Counter statements = counter("JDBC.statements");
+	private final Counter untimedStatements = counter("JDBC.statements.untimed");
+	private ScheduledExecutorService dumpExecutor;
+
+	private SpiritMetrics() {
+	}
+
+	public static SpiritMetrics getInstance() {
+		return instance;
+	}
+
+	static {
+		try {
+			String period = System.getProperty("metrics_dump");
+			if(period!=null && period.length()>0) {
+				String csv = System.getProperty("metrics_csv");
+				instance.startDump(Integer.parseInt(period), csv==null || csv.length()==0? null: new File(csv));
+			}
+		} catch (Exception e) {
+			logger.warn("Could not start the dump of the metrics: " + e);
+		}
+	}
+
+	/**
+	 * Starts timing a call, see {@link Context}
+	 */
+	public static Context time(String name) {
+		return new Context(name);
+	}
+
+	/**
+	 * Executes the call and records it under the given name, see {@link Context}
+	 */
+	public static<T, E extends Exception> T time(String name, Call<T, E> call) throws E {
+		Context ctx = new Context(name);
+		try {
+			return call.call();
+		} finally {
+			ctx.close();
+		}
+	}
+
+	/**
+	 * Executes the task and records it under the given name, see {@link Context}
+	 */
+	public static<E extends Exception> void run(String name, Task<E> task) throws E {
+		Context ctx = new Context(name);
+		try {
+			task.run();
+		} finally {
+			ctx.close();
+		}
+	}
+
+	/**
+	 * Called by the connection pool when a statement is created: the statement is attributed to the innermost timed call of the current thread
+	 */
+	public static void countStatement() {
+		Context ctx = currentContext.get();
+		if(ctx!=null) {
+			ctx.statements++;
+		} else {
+			instance.untimedStatements.inc();
+		}
+		instance.statements.inc();
+	}
+
+	/**
+	 * Returns the counter of the given name (created if needed)
+	 */
+	public Counter counter(String name) {
+		Counter c = counters.get(name);
+		if(c==null) {
+			c = counters.computeIfAbsent(name, k -> register("Counter", k, new Counter(), CounterMBean.class));
+		}
+		return c;
+	}
+
+	/**
+	 * Returns the histogram of the given name (created if needed)
+	 */
+	public Histogram histogram(String name) {
+		Histogram h = histograms.get(name);
+		if(h==null) {
+			h = histograms.computeIfAbsent(name, k -> register("Histogram", k, new Histogram(), HistogramMBean.class));
+		}
+		return h;
+	}
+
+	/**
+	 * Returns the timer of the given name (created if needed)
+	 */
+	public Timer timer(String name) {
+		Timer t = timers.get(name);
+		if(t==null) {
+			t = timers.computeIfAbsent(name, k -> register("Timer", k, new Timer(), HistogramMBean.class));
+		}
+		return t;
+	}
+
+	/**
+	 * Records the time elapsed since start (from System.nanoTime) in the given timer, and returns the current time, so that consecutive phases can be measured
+	 * @param name
+	 * @param start
+	 * @return
+	 */
+	public long lap(String name, long start) {
+		long now = System.nanoTime();
+		timer(name).update(now - start, TimeUnit.NANOSECONDS);
+		return now;
+	}
+
+	private static<T, I> T register(String type, String name, T metric, Class<I> mbeanInterface) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			if(!server.isRegistered(objectName)) {
+				server.registerMBean(new StandardMBean(mbeanInterface.cast(metric), mbeanInterface), objectName);
+			}
+		} catch (Exception e) {
+			logger.warn("Could not register the MBean " + name + ": " + e);
+		}
+		return metric;
+	}
+
+	/**
+	 * Returns all the metrics, sorted by name
+	 */
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> res = new TreeMap<>();
+		res.putAll(counters);
+		res.putAll(histograms);
+		res.putAll(timers);
+		return res;
+	}
+
+	/**
+	 * Resets the histograms and timers (the counters are cumulative)
+	 */
+	public void reset() {
+		for (Histogram h : histograms.values()) h.reset();
+		for (Timer t : timers.values()) t.reset();
+	}
+
+	/**
+	 * Dumps the metrics to the log, and appends them to the CSV file if not null
+	 * @param csvFile
+	 * @throws IOException
+	 */
+	public void dump(File csvFile) throws IOException {
+		Map<String, Object> metrics = getMetrics();
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Object> e : metrics.entrySet()) {
+			sb.append("\n " + e.getKey() + ": " + e.getValue());
+		}
+		sb.append("\n Cache: " + Cache.getInstance().getStatistics().values());
+		logger.info("Metrics:" + sb);
+
+		if(csvFile==null) return;
+		boolean header = !csvFile.exists();
+		String date = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+		try(PrintWriter w = new PrintWriter(new FileWriter(csvFile, true))) {
+			if(header) w.println("date,name,type,count,mean,min,p50,p95,p99,max");
+			for (Map.Entry<String, Object> e : metrics.entrySet()) {
+				Object m = e.getValue();
+				String type = m instanceof Timer? "timer_us": m instanceof Histogram? "histogram": "counter";
+				if(m instanceof Histogram) {
+					Histogram h = (Histogram) m;
+					w.println(date + ",\"" + e.getKey() + "\"," + type + "," + h.getCount() + "," + String.format("%.1f", h.getMean()) + "," + h.getMin() + "," + h.get50thPercentile() + "," + h.get95thPercentile() + "," + h.get99thPercentile() + "," + h.getMax());
+				} else {
+					w.println(date + ",\"" + e.getKey() + "\"," + type + "," + ((Counter) m).getCount() + ",,,,,,");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts dumping the metrics every periodSec seconds (replacing the previous dump if any)
+	 * @param periodSec
+	 * @param csvFile - optional CSV file where the metrics are appended
+	 */
+	public synchronized void startDump(int periodSec, File csvFile) {
+		stopDump();
+		if(periodSec<=0) return;
+		dumpExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "SpiritMetrics-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		dumpExecutor.scheduleAtFixedRate(() -> {
+			try {
+				dump(csvFile);
+			} catch (Exception e) {
+				logger.warn("Could not dump the metrics: " + e);
+			}
+		}, periodSec, periodSec, TimeUnit.SECONDS);
+		logger.info("Dump the metrics every " + periodSec + "s" + (csvFile==null? "": " to " + csvFile));
+	}
+
+	public synchronized void stopDump() {
+		if(dumpExecutor!=null) {
+			dumpExecutor.shutdownNow();
+			dumpExecutor = null;
+		}
+	}
+
+}
@@ -75,6 +75,7 @@ public class SpiritProperties {
 
 	public static void reset() {
 		instance = null;
+		SpiritRights.invalidateCache();
 	}
 
 	/**
@@ -225,6 +226,7 @@ public class SpiritProperties {
 		//Make sure the user is not allowed to update this property
 		String key = propertyKey.toString();
 		properties.put(key, v);
+		SpiritRights.invalidateCache();
 	}
 
 	/**
@@ -243,6 +245,7 @@ public class SpiritProperties {
 	public void setValues(Map<String, String> map) {
 		this.properties = new HashMap<>();
 		this.properties.putAll(map);
+		SpiritRights.invalidateCache();
 		LoggerFactory.getLogger(getClass()).debug("properties="+properties);
 	}
 
@@ -446,6 +449,7 @@ public class SpiritProperties {
 	public void setChecked(SpiritRights.ActionType action, SpiritRights.UserType userType, String role, boolean val) {
 		String key = getKey(action, userType, role);
 		properties.put(key, val?"true":"false");
+		SpiritRights.invalidateCache();
 	}
 
 }
@@ -22,17 +22,22 @@
 package com.actelion.research.spiritcore.services.dao;
 
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import javax.persistence.Basic;
+import javax.persistence.CollectionTable;
 import javax.persistence.Column;
+import javax.persistence.ElementCollection;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
+import javax.persistence.JoinColumn;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
@@ -87,6 +92,18 @@ public class SpiritRevisionEntity {
 	@Transient
 	private transient DifferenceList differenceList = new DifferenceList();
 
+	/**
+	 * The entities changed by this revision (see RevisionIndexEntry)
+	 */
+	@ElementCollection(fetch=FetchType.LAZY)
+	@CollectionTable(name="revinfo_index", joinColumns=@JoinColumn(name="rev"), indexes = {
+			@Index(name="revinfo_index_rev_index", columnList = "rev"),
+			@Index(name="revinfo_index_study_index", columnList = "study_id, rev"),
+			@Index(name="revinfo_index_user_index", columnList = "user_id, rev"),
+			@Index(name="revinfo_index_date_index", columnList = "rev_date")
+	})
+	private List<RevisionIndexEntry> indexEntries = new ArrayList<>();
+
 	public int getId() {
 		return id;
 	}
@@ -181,4 +198,8 @@ public class SpiritRevisionEntity {
 		this.sid = sid;
 	}
 
+	public List<RevisionIndexEntry> getIndexEntries() {
+		return indexEntries;
+	}
+
 }
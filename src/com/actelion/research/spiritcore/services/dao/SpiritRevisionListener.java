@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import com.actelion.research.spiritcore.adapter.DBAdapter;
 import com.actelion.research.spiritcore.business.IAuditable;
 import com.actelion.research.spiritcore.business.audit.DifferenceList;
+import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.util.Pair;
 
@@ -60,7 +61,7 @@ public class SpiritRevisionListener implements EntityTrackingRevisionListener {
 		rev.setReason(JPAUtil.getReasonForChange());
 		rev.setSid(-1);
 
-		DAOBarcode.reset();
+		DAOBarcode.onNewRevision();
 		LoggerFactory.getLogger(SpiritRevisionListener.class).info("New revision > reason=" + rev.getReason());
 
 	}
@@ -74,6 +75,7 @@ public class SpiritRevisionListener implements EntityTrackingRevisionListener {
 		if(!IAuditable.class.isAssignableFrom(entityClass)) return;
 
 		//Compute difference
+		int entitySid = entityClass==Study.class && entityId instanceof Integer? (Integer) entityId: 0;
 		if(rev.getDifferenceList()==null) {
 			//skip
 		} else if(DBAdapter.getInstance().isAuditSimplified() && rev.getDifferenceList().size()>4) {
@@ -90,6 +92,7 @@ public class SpiritRevisionListener implements EntityTrackingRevisionListener {
 					//Update the modified studyId: >0 when one study is updated, -1 when none is modified, 0 when unknown
 					int sid = change.getFirst().getSid();
 					if(sid>0) {
+						entitySid = sid;
 						if(rev.getSid()<0) {
 							rev.setSid(sid);
 						} else if(rev.getSid()!=sid) {
@@ -101,6 +104,9 @@ public class SpiritRevisionListener implements EntityTrackingRevisionListener {
 				LoggerFactory.getLogger(SpiritRevisionListener.class).warn("Could not compute difference from audit table ", e);
 			}
 		}
+
+		//Index the change (the study is unknown if the difference was not computed)
+		rev.getIndexEntries().add(new RevisionIndexEntry(entityClass, entityId, entitySid, rev.getUserId(), rev.getRevisionDate(), revisionType));
 	}
 
 }
@@ -0,0 +1,146 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.exchange;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Checkpoint of a bulk import (see DAOExchange.persistBulk): it records the last step and the number of entities, which have been committed.
+ * The checkpoint is kept by the ExchangeMapping, so that an interrupted import can be resumed by persisting the same mapping again.
+ * <br>
+ * The checkpoint is also saved next to the import file, so that the import can be resumed after a restart, with a new mapping of the same file (see ExchangeMapping.resumeBulk)
+ *
+ * @author Joel Freyss
+ */
+public class BulkCheckpoint {
+
+	public static enum Step {
+		/**Nothing has been committed*/
+		START,
+		/**The biotypes, tests, studies and locations have been committed*/
+		TYPES,
+		/**The biosamples have been committed*/
+		BIOSAMPLES,
+		/**The results have been committed: the import is complete*/
+		RESULTS
+	}
+
+	private Step step = Step.START;
+	private int biosamplesDone;
+	private int resultsDone;
+	private final Map<String, Integer> studyIds = new HashMap<>();
+
+	public Step getStep() {
+		return step;
+	}
+
+	public void setStep(Step step) {
+		this.step = step;
+	}
+
+	/**
+	 * Returns the number of biosamples committed (in the order given by DAOExchange.persistBulk)
+	 */
+	public int getBiosamplesDone() {
+		return biosamplesDone;
+	}
+
+	public void setBiosamplesDone(int biosamplesDone) {
+		this.biosamplesDone = biosamplesDone;
+	}
+
+	/**
+	 * Returns the number of results committed
+	 */
+	public int getResultsDone() {
+		return resultsDone;
+	}
+
+	public void setResultsDone(int resultsDone) {
+		this.resultsDone = resultsDone;
+	}
+
+	/**
+	 * Returns the ids of the studies created by the import, mapped by the studyId of the imported file
+	 */
+	public Map<String, Integer> getStudyIds() {
+		return studyIds;
+	}
+
+	public boolean isComplete() {
+		return step==Step.RESULTS;
+	}
+
+	/**
+	 * Returns the file, where the checkpoint of the import of the given file is saved
+	 */
+	public static File getFile(File importFile) {
+		return new File(importFile.getPath() + ".checkpoint");
+	}
+
+	public void save(File file) throws IOException {
+		Properties prop = new Properties();
+		prop.setProperty("step", step.name());
+		prop.setProperty("biosamples", "" + biosamplesDone);
+		prop.setProperty("results", "" + resultsDone);
+		for (Map.Entry<String, Integer> e : studyIds.entrySet()) {
+			prop.setProperty("study." + e.getKey(), "" + e.getValue());
+		}
+		try(Writer writer = new FileWriter(file)) {
+			prop.store(writer, "Spirit Bulk Import Checkpoint");
+		}
+	}
+
+	public static BulkCheckpoint load(File file) throws IOException {
+		Properties prop = new Properties();
+		try(Reader reader = new FileReader(file)) {
+			prop.load(reader);
+		}
+		BulkCheckpoint checkpoint = new BulkCheckpoint();
+		try {
+			checkpoint.setStep(Step.valueOf(prop.getProperty("step", Step.START.name())));
+			checkpoint.setBiosamplesDone(Integer.parseInt(prop.getProperty("biosamples", "0")));
+			checkpoint.setResultsDone(Integer.parseInt(prop.getProperty("results", "0")));
+			for (String key : prop.stringPropertyNames()) {
+				if(key.startsWith("study.")) {
+					checkpoint.getStudyIds().put(key.substring("study.".length()), Integer.parseInt(prop.getProperty(key)));
+				}
+			}
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Invalid checkpoint " + file, e);
+		}
+		return checkpoint;
+	}
+
+	@Override
+	public String toString() {
+		return "[BulkCheckpoint: " + step + ", biosamples=" + biosamplesDone + ", results=" + resultsDone + "]";
+	}
+}
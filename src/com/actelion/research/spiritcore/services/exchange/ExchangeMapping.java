@@ -55,6 +55,7 @@ import com.actelion.research.spiritcore.services.dao.DAOResult;
 import com.actelion.research.spiritcore.services.dao.DAOStudy;
 import com.actelion.research.spiritcore.services.dao.DAOTest;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
+import com.actelion.research.spiritcore.services.exchange.BulkCheckpoint.Step;
 import com.actelion.research.spiritcore.util.MiscUtils;
 import com.actelion.research.spiritcore.util.Pair;
 
@@ -128,6 +129,9 @@ public class ExchangeMapping {
 	private List<Test> mappedTests;
 	private List<Result> mappedResults;
 
+	//Progress of the bulk import
+	private final BulkCheckpoint bulkCheckpoint = new BulkCheckpoint();
+
 	/**
 	 * Create a default ExchangeMapping. If some data exists already, it is linked (IGNORE_LINK option)
 	 * @param exchange
@@ -332,6 +336,9 @@ public class ExchangeMapping {
 		}
 
 
+		//Resumed bulk import
+		linkResumedStudies();
+
 		logger.debug("initializeMappingFromDb("+defaultAdminAction+","+defaultEntityAction+")");
 		logger.debug("test2action="+test2action);
 		logger.debug("test2mappedTest="+test2mappedTest);
@@ -348,6 +355,48 @@ public class ExchangeMapping {
 		logger.debug("location2mappedLocation="+location2mappedLocation);
 	}
 
+	/**
+	 * Returns the checkpoint of the bulk import of this mapping (see DAOExchange.persistBulk)
+	 */
+	public BulkCheckpoint getBulkCheckpoint() {
+		return bulkCheckpoint;
+	}
+
+	/**
+	 * Resumes a bulk import of the same exchange, which was interrupted in an other session (see BulkCheckpoint.load).
+	 * The types and studies committed by the interrupted import are linked, and the biosamples and results already committed are skipped:
+	 * if the existing entities were to be copied, they are now kept.
+	 * This function must be called before the mapped entities are computed.
+	 */
+	public void resumeBulk(BulkCheckpoint saved) throws Exception {
+		if(mapped) throw new Exception("The mapping has already been computed");
+		if(saved.getStep()==Step.START) return;
+
+		//The positions of the committed entities are not valid for this mapping, the committed entities are not mapped anymore
+		bulkCheckpoint.setStep(saved.isComplete()? Step.RESULTS: Step.TYPES);
+		bulkCheckpoint.setBiosamplesDone(0);
+		bulkCheckpoint.setResultsDone(0);
+		bulkCheckpoint.getStudyIds().clear();
+		bulkCheckpoint.getStudyIds().putAll(saved.getStudyIds());
+		linkResumedStudies();
+	}
+
+	private void linkResumedStudies() {
+		if(bulkCheckpoint.getStep()==Step.START) return;
+		for (Map.Entry<String, Integer> e : bulkCheckpoint.getStudyIds().entrySet()) {
+			Study study = DAOStudy.getStudy(e.getValue());
+			if(study==null) continue;
+			studyId2mappedStudy.put(e.getKey(), study);
+			studyId2action.put(e.getKey(), EntityAction.MAP_REPLACE);
+		}
+		for (Map.Entry<String, EntityAction> e : biotype2existingBiosampleAction.entrySet()) {
+			if(e.getValue()==EntityAction.CREATE) e.setValue(EntityAction.SKIP);
+		}
+		for (Map.Entry<String, EntityAction> e : test2existingResultAction.entrySet()) {
+			if(e.getValue()==EntityAction.CREATE) e.setValue(EntityAction.SKIP);
+		}
+	}
+
 	public boolean hasExistingEntities() {
 		return hasExistingEntities;
 	}
@@ -575,6 +624,11 @@ public class ExchangeMapping {
 					//					assert t!=null: m.getTest().getName() + " was not present in "+test2mappedTest+ " nor "+mappedTests;
 					m.setTest(t);
 				}
+			} else if(existingAction==EntityAction.MAP_REPLACE && bulkCheckpoint.getStudyIds().containsKey(inputStudy.getStudyId())) {
+				//Study created by an interrupted bulk import: link it, its biosamples are still imported
+				logger.debug("Link Study "+inputStudy+" to the resumed "+existingStudy);
+				existingStudy = JPAUtil.reattach(existingStudy);
+				studyId2mappedStudy.put(inputStudy.getStudyId(), existingStudy);
 			} else if(existingAction==EntityAction.MAP_REPLACE) {
 				throw new Exception("The action replace is not implemented for studies");
 			} else {
@@ -21,16 +21,29 @@
 
 package com.actelion.research.spiritcore.services.exchange;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.actelion.research.spiritcore.business.Exchange;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
@@ -72,7 +85,9 @@ import com.actelion.research.spiritlib.StudyActionPojo;
 import com.actelion.research.spiritlib.StudyPojo;
 import com.actelion.research.spiritlib.TestAttributePojo;
 import com.actelion.research.spiritlib.TestPojo;
+import com.owlike.genson.Context;
 import com.owlike.genson.Genson;
+import com.owlike.genson.stream.ObjectWriter;
 
 /**
  *
@@ -81,9 +96,17 @@ import com.owlike.genson.Genson;
  */
 public class Exporter {
 
+	private static Logger logger = LoggerFactory.getLogger(Exporter.class);
+
+	/**
+	 * Number of biosamples/results converted at once, when writing
+	 */
+	private static final int CHUNK_SIZE = 500;
+
 	/**
 	 * Export studies, biosamples, locations, and results mentioned in the exchange object.
 	 * The file must contain all references to other entities. If the exchange object is invalid (ie. importing cannot be done after export), an exception will be thrown.
+	 * Each converted chunk is checked by an Importer, before being written.
 	 *
 	 * @param biosamples
 	 * @param user
@@ -91,12 +114,73 @@ public class Exporter {
 	 * @throws Exception
 	 */
 	public static void write(Exchange exchange, Writer writer) throws Exception {
+		long s = System.currentTimeMillis();
+		Genson genson = new Genson();
+		ObjectWriter w = genson.createWriter(writer);
+		w.beginObject();
+		w.writeString("name", exchange.getName());
+		w.writeString("version", exchange.getVersion());
+
+		//Write the sections in the order of their dependencies, so that the Importer can convert them while reading.
+		//The biosamples and the results are converted by chunks, the pojos are released after being written
+		Importer importer = new Importer();
+		writeSection(genson, w, importer, "biotypes", BiotypePojo.class, exchange.getBiotypes(), Exporter::convertBiotype, Integer.MAX_VALUE);
+		writeSection(genson, w, importer, "tests", TestPojo.class, exchange.getTests(), Exporter::convertTests, Integer.MAX_VALUE);
+		writeSection(genson, w, importer, "studies", StudyPojo.class, exchange.getStudies(), Exporter::convertStudies, Integer.MAX_VALUE);
+		writeSection(genson, w, importer, "locations", LocationPojo.class, exchange.getLocations(), Exporter::convertLocations, Integer.MAX_VALUE);
+		writeSection(genson, w, importer, "biosamples", BiosamplePojo.class, exchange.getBiosamples(), Exporter::convertBiosamples, CHUNK_SIZE);
+		writeSection(genson, w, importer, "results", ResultPojo.class, exchange.getResults(), Exporter::convertResults, CHUNK_SIZE);
+		try {
+			importer.checkEnd();
+		} catch(Exception ex) {
+			throw new Exception("The exported exchange format is invalid", ex);
+		}
 
-		ExchangePojo res = convertExchange(exchange);
-
-		Genson gson = new Genson();
-		writer.write(gson.serialize(res));
+		w.endObject();
+		w.flush();
 		writer.close();
+		logger.info("Exchange " + exchange.getName() + " written in " + (System.currentTimeMillis()-s) + "ms");
+	}
+
+	/**
+	 * Writes the exchange to the given file, compressed with gzip if the file ends with .gz
+	 */
+	public static void write(Exchange exchange, File file) throws Exception {
+		try(OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+			write(exchange, os, file.getName().toLowerCase().endsWith(".gz"));
+		}
+	}
+
+	public static void write(Exchange exchange, OutputStream os, boolean gzip) throws Exception {
+		OutputStream out = gzip? new GZIPOutputStream(os): os;
+		write(exchange, new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+	}
+
+	private static<E, P> void writeSection(Genson genson, ObjectWriter w, Importer importer, String name, Class<P> pojoClass, Collection<E> entities, Function<Collection<E>, Set<P>> converter, int chunkSize) throws Exception {
+		Context context = new Context(genson);
+		w.writeName(name);
+		w.beginArray();
+		List<E> chunk = new ArrayList<>();
+		Iterator<E> iterator = entities==null? Collections.<E>emptyIterator(): entities.iterator();
+		while(iterator.hasNext()) {
+			chunk.add(iterator.next());
+			if(chunk.size()>=chunkSize || !iterator.hasNext()) {
+				Set<P> pojos = converter.apply(chunk);
+
+				//Autotest, make sure the conversion is possible
+				try {
+					importer.check(name, new ArrayList<>(pojos));
+				} catch(Exception ex) {
+					throw new Exception("The exported exchange format is invalid", ex);
+				}
+
+				for (P pojo : pojos) {
+					genson.serialize(pojo, pojoClass, w, context);
+				}
+				chunk.clear();
+			}
+		}
+		w.endArray();
 	}
 
 	public static ExchangePojo convertExchange(Exchange c) {
@@ -21,7 +21,13 @@
 
 package com.actelion.research.spiritcore.services.exchange;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -31,6 +37,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
 
 import com.actelion.research.spiritcore.business.DataType;
 import com.actelion.research.spiritcore.business.Exchange;
@@ -80,7 +87,12 @@ import com.actelion.research.spiritlib.StudyActionPojo;
 import com.actelion.research.spiritlib.StudyPojo;
 import com.actelion.research.spiritlib.TestAttributePojo;
 import com.actelion.research.spiritlib.TestPojo;
+import com.owlike.genson.Context;
+import com.owlike.genson.GenericType;
 import com.owlike.genson.Genson;
+import com.owlike.genson.stream.JsonStreamException;
+import com.owlike.genson.stream.ObjectReader;
+import com.owlike.genson.stream.ValueType;
 
 /**
  * Read an Exchange file and converts it to native Spirit objects, while considering already imported objects.
@@ -139,14 +151,152 @@ public class Importer {
 
 
 
+	/**
+	 * Sections of the exchange file, in the order of their dependencies.
+	 */
+	private static final List<String> SECTIONS = Arrays.asList("biotypes", "tests", "studies", "locations", "biosamples", "results");
+
+	/**
+	 * Number of biosamples/results converted at once, when the file is streamed
+	 */
+	private static final int CHUNK_SIZE = 500;
+
+	/**
+	 * Biosamples, whose parent has not yet been read (only used when streaming)
+	 */
+	private Map<String, String> sampleId2pendingParentSampleId = new HashMap<>();
+
+	/**
+	 * Reads an exchange file, compressed with gzip or not
+	 */
+	public static Exchange read(File file) throws Exception {
+		try(InputStream is = new FileInputStream(file)) {
+			return read(is);
+		}
+	}
+
+	/**
+	 * Reads an exchange stream, compressed with gzip or not (the compression is detected from the first bytes)
+	 */
+	public static Exchange read(InputStream is) throws Exception {
+		BufferedInputStream bis = new BufferedInputStream(is);
+		bis.mark(2);
+		int magic = bis.read() | (bis.read()<<8);
+		bis.reset();
+		InputStream in = magic==GZIPInputStream.GZIP_MAGIC? new GZIPInputStream(bis): bis;
+		return read(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads an exchange file as a stream: the biosamples and results are deserialized and converted by chunks, so that the pojos of the whole file are never in memory.
+	 * The sections are expected in the order of their dependencies (as written by the Exporter).
+	 * The sections read before their dependencies (ie. in older files) are kept as pojos and converted at the end.
+	 */
 	public static Exchange read(Reader reader) throws Exception {
-		Genson gson = new Genson();
-		ExchangePojo pojo = gson.deserialize(reader, ExchangePojo.class);
-		if(pojo==null) throw new Exception("It seems that this is not a valid file");
-		Exchange res = new Importer().convertExchange(pojo);
+		Genson genson = new Genson();
+		ObjectReader r = genson.createReader(reader);
+		try {
+			return new Importer().read(genson, r);
+		} catch(JsonStreamException e) {
+			throw new Exception("It seems that this is not a valid file: " + e.getMessage(), e);
+		} finally {
+			r.close();
+		}
+	}
+
+	private Exchange read(Genson genson, ObjectReader r) throws Exception {
+		Exchange res = new Exchange();
+		Context context = new Context(genson);
+		Set<String> converted = new HashSet<>();
+		Map<String, List<Object>> section2pojos = new HashMap<>();
+
+		r.beginObject();
+		while(r.hasNext()) {
+			r.next();
+			String name = r.name();
+			if("name".equals(name)) {
+				res.setName(r.getValueType()==ValueType.NULL? null: r.valueAsString());
+			} else if("version".equals(name)) {
+				res.setVersion(r.getValueType()==ValueType.NULL? null: r.valueAsString());
+			} else if(SECTIONS.contains(name) && r.getValueType()==ValueType.ARRAY) {
+				GenericType<?> type = GenericType.of(getPojoClass(name));
+				boolean ready = converted.containsAll(SECTIONS.subList(0, SECTIONS.indexOf(name)));
+				boolean chunked = ready && ("biosamples".equals(name) || "results".equals(name));
+				List<Object> pojos = new ArrayList<>();
+				r.beginArray();
+				while(r.hasNext()) {
+					r.next();
+					pojos.add(genson.deserialize(type, r, context));
+					if(chunked && pojos.size()>=CHUNK_SIZE) {
+						convertSection(res, name, pojos);
+						pojos.clear();
+					}
+				}
+				r.endArray();
+				if(ready) {
+					convertSection(res, name, pojos);
+					converted.add(name);
+				} else {
+					section2pojos.put(name, pojos);
+				}
+			} else {
+				r.skipValue();
+			}
+		}
+		r.endObject();
+
+		//Convert the sections, which were read before their dependencies
+		for (String name : SECTIONS) {
+			if(section2pojos.containsKey(name)) {
+				convertSection(res, name, section2pojos.remove(name));
+				converted.add(name);
+			}
+		}
+		if(converted.isEmpty()) throw new Exception("It seems that this is not a valid file");
+		linkPendingParents();
 		return res;
 	}
 
+	private static Class<?> getPojoClass(String section) {
+		switch(section) {
+		case "biotypes": return BiotypePojo.class;
+		case "tests": return TestPojo.class;
+		case "studies": return StudyPojo.class;
+		case "locations": return LocationPojo.class;
+		case "biosamples": return BiosamplePojo.class;
+		case "results": return ResultPojo.class;
+		default: throw new IllegalArgumentException("Invalid section: " + section);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void convertSection(Exchange res, String section, List<?> pojos) throws Exception {
+		switch(section) {
+		case "biotypes": res.getBiotypes().addAll(convertBiotypes((List<BiotypePojo>) pojos)); break;
+		case "tests": res.getTests().addAll(convertTests((List<TestPojo>) pojos)); break;
+		case "studies": res.getStudies().addAll(convertStudies((List<StudyPojo>) pojos)); break;
+		case "locations": res.getLocations().addAll(convertLocations((List<LocationPojo>) pojos)); break;
+		case "biosamples": res.getBiosamples().addAll(convertBiosamples((List<BiosamplePojo>) pojos, true)); break;
+		case "results": res.getResults().addAll(convertResults((List<ResultPojo>) pojos)); break;
+		default: throw new IllegalArgumentException("Invalid section: " + section);
+		}
+	}
+
+	/**
+	 * Converts a section written by the Exporter, to check that it can be imported.
+	 * The sections must be given in the order of their dependencies, see {@link #checkEnd()}
+	 */
+	void check(String section, List<?> pojos) throws Exception {
+		convertSection(new Exchange(), section, pojos);
+	}
+
+	/**
+	 * Checks that the parents of the biosamples, given to check, have been exported
+	 */
+	void checkEnd() throws Exception {
+		linkPendingParents();
+	}
+
 	///////////////////////////////////////////////////////////////////////////////////////////
 	public Exchange convertExchange(ExchangePojo c) throws Exception {
 		Exchange res = new Exchange();
@@ -489,6 +639,15 @@ public class Importer {
 
 	///////////////////////////////////////////////////////////////////////////////////////////////////////
 	public Set<Biosample> convertBiosamples(Collection<BiosamplePojo> list) throws Exception {
+		return convertBiosamples(list, false);
+	}
+
+	/**
+	 * Converts the biosamples.
+	 * @param list
+	 * @param allowPendingParents - if true, the parents, which have not yet been converted, are linked in linkPendingParents
+	 */
+	private Set<Biosample> convertBiosamples(Collection<BiosamplePojo> list, boolean allowPendingParents) throws Exception {
 		if(list==null) return null;
 		Set<Biosample> biosamples = new HashSet<>();
 		for (BiosamplePojo b : list) {
@@ -597,7 +756,10 @@ public class Importer {
 			if(b.getParentSampleId()==null || b.getParentSampleId().length()==0) continue;
 			Biosample biosample = sampleId2biosample.get(b.getSampleId());
 			Biosample parent = sampleId2biosample.get(b.getParentSampleId());
-			if(parent==null) {
+			if(parent==null && allowPendingParents) {
+				sampleId2pendingParentSampleId.put(b.getSampleId(), b.getParentSampleId());
+				continue;
+			} else if(parent==null) {
 				throw new Exception("The biosample "+b.getParentSampleId()+" was not exported (sample="+b.getSampleId()+")");
 			}
 			biosample.setParent(parent);
@@ -605,6 +767,20 @@ public class Importer {
 		return biosamples;
 	}
 
+	/**
+	 * Links the biosamples, whose parent was read after them
+	 */
+	private void linkPendingParents() throws Exception {
+		for (Map.Entry<String, String> e : sampleId2pendingParentSampleId.entrySet()) {
+			Biosample parent = sampleId2biosample.get(e.getValue());
+			if(parent==null) {
+				throw new Exception("The biosample "+e.getValue()+" was not exported (sample="+e.getKey()+")");
+			}
+			sampleId2biosample.get(e.getKey()).setParent(parent);
+		}
+		sampleId2pendingParentSampleId.clear();
+	}
+
 
 	public Set<Location> convertLocations(Collection<LocationPojo> list) throws Exception {
 		if(list==null) return null;
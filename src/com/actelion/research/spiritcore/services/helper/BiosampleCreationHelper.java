@@ -313,12 +313,12 @@ public class BiosampleCreationHelper {
 				int res = JOptionPane.showConfirmDialog(opener, toGenerateSampleId.size() + " samples don't have a sampleId.\nDo you want SPIRIT to generate them?", "Generate SampleIds", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
 				if(res!=JOptionPane.YES_OPTION) throw new ValidationException("The sampleId is required", toGenerateSampleId.get(0), "SampleId");
 
-				for (Biosample b : toGenerateSampleId) {
-					if(editor!=null) {
+				if(editor!=null) {
+					for (Biosample b : toGenerateSampleId) {
 						editor.generateSampleId(b);
-					} else {
-						b.setSampleId(DAOBarcode.getNextId(b));
 					}
+				} else {
+					DAOBarcode.generateSampleIds(toGenerateSampleId);
 				}
 				opener.repaint();
 			}
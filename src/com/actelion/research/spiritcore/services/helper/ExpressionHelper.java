@@ -99,16 +99,18 @@ public class ExpressionHelper {
 		for(TestAttribute a: test.getInputAttributes()) {
 			i++;
 			ResultValue rv = result.getResultValue(a);						
-			if(a.getDataType()==DataType.NUMBER && rv.getDoubleValue()!=null) {
-				expr.setVariable("I" + i, rv.getDoubleValue());
+			double v = rv==null? Double.NaN: rv.getNumValue();
+			if(a.getDataType()==DataType.NUMBER && !Double.isNaN(v)) {
+				expr.setVariable("I" + i, v);
 			}
 		}
 		i = 0;
 		for(TestAttribute a: test.getOutputAttributes()) {
 			i++;
 			ResultValue rv = result.getResultValue(a);			
-			if(a.getDataType()==DataType.NUMBER && rv.getDoubleValue()!=null) {
-				expr.setVariable("O" + i, rv.getDoubleValue());
+			double v = rv==null? Double.NaN: rv.getNumValue();
+			if(a.getDataType()==DataType.NUMBER && !Double.isNaN(v)) {
+				expr.setVariable("O" + i, v);
 			}
 		}
 		return expr.evaluate();
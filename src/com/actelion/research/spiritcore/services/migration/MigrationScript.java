@@ -75,6 +75,7 @@ public abstract class MigrationScript {
 		scripts.add(new MigrationScript2_2());
 		scripts.add(new MigrationScript2_3());
 		scripts.add(new MigrationScript2_4());
+		scripts.add(new MigrationScript2_5());
 		return scripts;
 	}
 
@@ -0,0 +1,68 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.services.migration;
+
+import com.actelion.research.spiritcore.business.Keyword;
+import com.actelion.research.spiritcore.business.biosample.BiosampleMetadataValue;
+import com.actelion.research.spiritcore.business.study.StudySummary;
+import com.actelion.research.spiritcore.util.SQLConverter;
+import com.actelion.research.spiritcore.util.SQLConverter.SQLVendor;
+
+public class MigrationScript2_5 extends MigrationScript {
+
+	private String SCRIPT = ""
+			+ "create table spirit.keyword_index (kind varchar2(1) not null, entity_id number(10) not null, token varchar2(" + Keyword.MAX_LENGTH + ") not null, primary key (kind, entity_id, token));\n"
+			+ "create index keyword_token_index on spirit.keyword_index (token, kind);\n"
+			+ "create index keyword_entity_index on spirit.keyword_index (entity_id);\n"
+			+ "create table spirit.biosample_metadata (biosample_id number(10) not null, metadata_id number(10) not null, value varchar2(" + BiosampleMetadataValue.MAX_LENGTH + ") not null, numvalue double precision, primary key (biosample_id, metadata_id));\n"
+			+ "create index biosample_metadata_value_index on spirit.biosample_metadata (metadata_id, value);\n"
+			+ "create index biosample_metadata_num_index on spirit.biosample_metadata (metadata_id, numvalue);\n"
+			+ "alter table spirit.assay_result_value add num_value double precision;\n"
+			+ "alter table spirit.assay_result_value_aud add num_value double precision;\n"
+			+ "create index value_num_idx on spirit.assay_result_value (assay_attribute_id, num_value);\n"
+			+ "create table spirit.study_summary (kind varchar2(1) not null, study_id number(10) not null, type_id number(10) not null, biotype_id number(10) not null, upd_user varchar2(" + StudySummary.MAX_USER_LENGTH + ") not null, n number(10) not null, max_upd_date date, primary key (kind, study_id, type_id, biotype_id, upd_user));\n"
+			+ "create index study_summary_study_index on spirit.study_summary (study_id);\n"
+			+ "create table spirit.biolocation_closure (ancestor_id number(10) not null, descendant_id number(10) not null, depth number(10) not null, primary key (ancestor_id, descendant_id));\n"
+			+ "create index biolocation_closure_desc_index on spirit.biolocation_closure (descendant_id);\n"
+			+ "create table spirit.biosample_lineage (ancestor_id number(10) not null, descendant_id number(10) not null, depth number(10) not null, primary key (ancestor_id, descendant_id));\n"
+			+ "create index biosample_lineage_desc_index on spirit.biosample_lineage (descendant_id);\n"
+			+ "create table spirit.revinfo_index (rev number(10) not null, entity_type varchar2(32) not null, entity_id varchar2(64), study_id number(10) not null, user_id varchar2(20), rev_date date, change_type number(3) not null);\n"
+			+ "create index revinfo_index_rev_index on spirit.revinfo_index (rev);\n"
+			+ "create index revinfo_index_study_index on spirit.revinfo_index (study_id, rev);\n"
+			+ "create index revinfo_index_user_index on spirit.revinfo_index (user_id, rev);\n"
+			+ "create index revinfo_index_date_index on spirit.revinfo_index (rev_date);\n"
+			//Keep only one barcode sequence per type and category (with the highest barcode), before adding the unique constraint
+			+ "update spirit.barcode b set lastbarcode = (select m from (select type t, category c, max(lastbarcode) m from spirit.barcode group by type, category) x where x.t = b.type and x.c = b.category);\n"
+			+ "delete from spirit.barcode where id not in (select id from (select min(id) id from spirit.barcode group by type, category) x);\n"
+			+ "alter table spirit.barcode add constraint barcode_type_index unique (type, category);\n"
+			;
+
+	public MigrationScript2_5() {
+		super("2.5");
+	}
+
+	@Override
+	public String getMigrationSql(SQLVendor vendor) throws Exception {
+		return SQLConverter.convertScript(SCRIPT, vendor);
+	}
+
+}
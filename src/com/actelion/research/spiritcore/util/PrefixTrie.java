@@ -0,0 +1,235 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.actelion.research.util.CompareUtils;
+
+/**
+ * Prefix trie of words, ranked by frequency, used for the autocompletion.
+ * <ul>
+ * <li>The trie is case insensitive: a prefix matches all the words starting with it, independently of the case (as in JTextComboBox).
+ * <li>Each node keeps the maximum frequency of its subtree, so that the top-k words of a prefix are found by a best-first search,
+ * without visiting the whole subtree.
+ * <li>The frequencies are updated incrementally (a word with a frequency &lt;=0 is removed).
+ * </ul>
+ * The trie is thread-safe.
+ *
+ * @author Joel Freyss
+ */
+public class PrefixTrie {
+
+	private static class Node {
+		private final Node parent;
+		private final char c;
+		private final TreeMap<Character, Node> children = new TreeMap<>();
+		/** Words ending at this node (different cases of the same word), with their frequency */
+		private Map<String, Integer> words;
+		/** Max frequency of the words in this subtree */
+		private int max;
+
+		public Node(Node parent, char c) {
+			this.parent = parent;
+			this.c = c;
+		}
+
+		private int getOwnMax() {
+			int res = 0;
+			if(words!=null) {
+				for (int n : words.values()) res = Math.max(res, n);
+			}
+			return res;
+		}
+	}
+
+	private final Node root = new Node(null, (char) 0);
+	private int size = 0;
+	private int version = 0;
+
+	/**
+	 * Increments (or decrements if delta is negative) the frequency of the given word.
+	 * Null or empty words are ignored.
+	 * @param word
+	 * @param delta
+	 */
+	public synchronized void add(String word, int delta) {
+		if(word==null || word.length()==0 || delta==0) return;
+
+		//Find or create the node
+		Node node = root;
+		String key = word.toLowerCase();
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			Node child = node.children.get(c);
+			if(child==null) {
+				if(delta<0) return;
+				child = new Node(node, c);
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+
+		//Update the frequency
+		if(node.words==null) {
+			if(delta<0) return;
+			node.words = new TreeMap<>();
+		}
+		Integer n = node.words.get(word);
+		if(n==null && delta<0) return;
+		int newN = (n==null? 0: n) + delta;
+		if(newN>0) {
+			node.words.put(word, newN);
+			if(n==null) size++;
+		} else {
+			node.words.remove(word);
+			if(node.words.isEmpty()) node.words = null;
+			size--;
+		}
+		version++;
+
+		//Update the max frequency of the parents, and prune the empty nodes
+		for(; node!=null; node = node.parent) {
+			if(node!=root && node.words==null && node.children.isEmpty()) {
+				node.parent.children.remove(node.c);
+				continue;
+			}
+			int max = node.getOwnMax();
+			for (Node child : node.children.values()) {
+				max = Math.max(max, child.max);
+			}
+			if(max==node.max) break;
+			node.max = max;
+		}
+	}
+
+	/**
+	 * Returns the frequency of the given word (case sensitive)
+	 */
+	public synchronized int getCount(String word) {
+		Node node = getNode(word==null? null: word.toLowerCase());
+		if(node==null || node.words==null) return 0;
+		Integer n = node.words.get(word);
+		return n==null? 0: n;
+	}
+
+	/**
+	 * Returns the number of distinct words
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a number, which is incremented at each modification
+	 */
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the k most frequent words starting with the given prefix (case insensitive), sorted by decreasing frequency.
+	 * @param prefix - the prefix or null for all words
+	 * @param k
+	 * @return
+	 */
+	public synchronized List<String> topK(String prefix, int k) {
+		List<String> res = new ArrayList<>();
+		Node start = getNode(prefix==null? "": prefix.toLowerCase());
+		if(start==null || k<=0) return res;
+
+		//Best-first search: nodes are expanded by decreasing max frequency, words are emitted when no node can beat them
+		PriorityQueue<Object[]> queue = new PriorityQueue<>((o1, o2) -> -Integer.compare((Integer) o1[1], (Integer) o2[1]));
+		queue.add(new Object[] {start, start.max});
+		while(!queue.isEmpty() && res.size()<k) {
+			Object[] o = queue.poll();
+			if(o[0] instanceof String) {
+				res.add((String) o[0]);
+				continue;
+			}
+			Node node = (Node) o[0];
+			if(node.words!=null) {
+				for (Map.Entry<String, Integer> e : node.words.entrySet()) {
+					queue.add(new Object[] {e.getKey(), e.getValue()});
+				}
+			}
+			for (Node child : node.children.values()) {
+				queue.add(new Object[] {child, child.max});
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Returns all the words starting with the given prefix (case insensitive), in the order of the trie
+	 * @param prefix - the prefix or null for all words
+	 */
+	public synchronized List<String> getWords(String prefix) {
+		List<String> res = new ArrayList<>();
+		Node start = getNode(prefix==null? "": prefix.toLowerCase());
+		if(start!=null) collect(start, res);
+		return res;
+	}
+
+	/**
+	 * Returns all the words, sorted with CompareUtils.STRING_COMPARATOR
+	 */
+	public TreeSet<String> getSortedWords() {
+		TreeSet<String> res = new TreeSet<>(CompareUtils.STRING_COMPARATOR);
+		res.addAll(getWords(null));
+		return res;
+	}
+
+	public synchronized void clear() {
+		root.children.clear();
+		root.words = null;
+		root.max = 0;
+		size = 0;
+		version++;
+	}
+
+	private Node getNode(String key) {
+		if(key==null) return null;
+		Node node = root;
+		for (int i = 0; node!=null && i < key.length(); i++) {
+			node = node.children.get(key.charAt(i));
+		}
+		return node;
+	}
+
+	private static void collect(Node node, List<String> res) {
+		if(node.words!=null) res.addAll(node.words.keySet());
+		for (Node child : node.children.values()) {
+			collect(child, res);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[PrefixTrie: " + size + " words, " + topK(null, 5) + (size>5? "...": "") + "]";
+	}
+}
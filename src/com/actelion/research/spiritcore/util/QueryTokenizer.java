@@ -24,7 +24,7 @@ package com.actelion.research.spiritcore.util;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 public class QueryTokenizer {
@@ -130,13 +130,40 @@ public class QueryTokenizer {
 	 * @throws Exception
 	 */
 	public static String expandQuery(String sqlClause, String queryString, boolean useAndClause, boolean addWildcards) throws Exception {
+		assert !useAndClause || !sqlClause.replaceAll(" ", "").contains("=?");
+		return expandQuery((tok, exact) -> sqlClause.replace("?", "'" + tok + "'"), queryString, useAndClause, addWildcards);
+	}
+
+	/**
+	 * Builds the sql expression of one token of the query
+	 */
+	public static interface TokenExpander {
+		/**
+		 * @param tok - the token, escaped for SQL and including its wildcards (without the quotes)
+		 * @param exact - true if the user quoted the token
+		 * @return the sql expression
+		 */
+		public String expand(String tok, boolean exact) throws Exception;
+	}
+
+	/**
+	 * Expands a query "A and B" like expandQuery, except that the sql of each token is given by the expander.
+	 * This allows to build a different expression for each token (ex. to use an index when possible)
+	 *
+	 * @param expander
+	 * @param queryString
+	 * @param useAndClause
+	 * @param addWildcards
+	 * @return
+	 * @throws Exception
+	 */
+	public static String expandQuery(TokenExpander expander, String queryString, boolean useAndClause, boolean addWildcards) throws Exception {
 
 		if(queryString.length()==0) {
 			//always false
 			return "1=0";
 		}
 
-		assert !useAndClause || !sqlClause.replaceAll(" ", "").contains("=?");
 		String[] split = tokenize(queryString, "\t\n,; ");
 		int pushBraces = 0;
 		StringBuilder res = new StringBuilder();
@@ -163,9 +190,11 @@ public class QueryTokenizer {
 
 				if(expectKeyword) res.append(defaultKeyword);
 				tok = escapeForSQL(tok.replace('*', '%'));
+				boolean exact = false;
 				if(tok.length()>1 && tok.startsWith("\"") && tok.endsWith(tok.substring(0,1))) {
 					//Exact Search, never add wildcards
 					tok = tok.substring(1, tok.length()-1);
+					exact = true;
 				} else if(addWildcards) {
 					//Add wildcards if not already present
 					if(!tok.startsWith("%")) tok = "%" + tok;
@@ -173,12 +202,12 @@ public class QueryTokenizer {
 				}
 
 				//Add the expression
-				res.append("(" + sqlClause.replace("?", "'" + tok + "'") + ")");
+				res.append("(" + expander.expand(tok, exact) + ")");
 				expectKeyword = true;
 			}
 		}
-		if(pushBraces!=0) throw new Exception("Missing ')' sign in "+sqlClause+"/"+queryString);
-		if(!expectKeyword)  throw new Exception("Missing expression in "+sqlClause+"/"+queryString);
+		if(pushBraces!=0) throw new Exception("Missing ')' sign in "+queryString);
+		if(!expectKeyword)  throw new Exception("Missing expression in "+queryString);
 
 		return "("+res.toString()+")";
 	}
@@ -188,6 +217,7 @@ public class QueryTokenizer {
 	 * Check if the queryString "(lung left)" matches the given value (ex. "left/lung".
 	 * This function is equivalent to expandQuery (with AND keywords) except that it does not expand the SQL but check directly if the given value matches the query.
 	 * To support OR keywords, one need to build a tree, which is beyond the scope.
+	 * Tokens like "&gt;5" or "&lt;=2.5" are numeric comparisons.
 	 * @return
 	 */
 	public static boolean matchQuery(String value, String queryString) {
@@ -205,14 +235,47 @@ public class QueryTokenizer {
 					if ( value.toLowerCase().replaceAll("\\*", "").contains(tok.toLowerCase().replaceAll("\\*", "")) ) {
 						continue;
 					}
-				} else {
-					return false;
+				} else if ( parseComparison(tok)!=null ) {
+					Pair<String, Double> comparison = parseComparison(tok);
+					Double d = MiscUtils.parseDouble(value);
+					if ( d!=null && compare(d, comparison.getFirst(), comparison.getSecond()) ) {
+						continue;
+					}
 				}
+				return false;
 			}
 		}
 		return true;
 	}
 
+	/**
+	 * Parses a numeric comparison token, such as "&gt;5" or "&lt;=2.5"
+	 * @param tok
+	 * @return the operator and the operand, or null if the token is not a numeric comparison
+	 */
+	public static Pair<String, Double> parseComparison(String tok) {
+		String op;
+		if(tok.startsWith(">=") || tok.startsWith("<=")) {
+			op = tok.substring(0, 2);
+		} else if(tok.startsWith(">") || tok.startsWith("<")) {
+			op = tok.substring(0, 1);
+		} else {
+			return null;
+		}
+		Double d = MiscUtils.parseDouble(tok.substring(op.length()));
+		return d==null? null: new Pair<>(op, d);
+	}
+
+	private static boolean compare(double value, String op, double operand) {
+		switch(op) {
+		case ">": return value>operand;
+		case ">=": return value>=operand;
+		case "<": return value<operand;
+		case "<=": return value<=operand;
+		default: return false;
+		}
+	}
+
 
 	/**
 	 * Convert a string for inclusion into SQL like queries.
@@ -247,13 +310,14 @@ public class QueryTokenizer {
 
 	/**
 	 * Creates a query: "[label in (1000items) or]* label in (<1000 items)"
+	 * The values are inlined, so each call generates a new statement: prefer JPAUtil.queryIn for batch lookups
 	 * @param label
 	 * @param items
 	 * @return
 	 */
 	public static<T> String expandForIn(String label, Collection<T> items) {
 		if(items==null) return "0=1"; //always false
-		List<T> list = new ArrayList<T>(new HashSet<T>(items));
+		List<T> list = new ArrayList<T>(new LinkedHashSet<T>(items));
 		if(list.size()==0) return "0=1"; //always false
 
 		StringBuilder sb = new StringBuilder();
@@ -279,6 +343,39 @@ public class QueryTokenizer {
 	}
 
 
+	/**
+	 * Sizes to which the bound lists of an IN clause are padded, so that the number of distinct statements stays small
+	 */
+	public static final int[] IN_BUCKETS = {16, 64, 256, 1000};
+
+	/**
+	 * Splits the items (without duplicates) into lists of at most 1000 elements, to be bound to a clause "label in (:param)".
+	 * Each list is padded to the next bucket size by repeating its last element. The padding does not change the result of the IN clause,
+	 * but it limits the number of distinct statements, so that the query plans can be reused by Hibernate and by the DB.
+	 * @param items
+	 * @return
+	 */
+	public static<T> List<List<T>> splitForIn(Collection<T> items) {
+		List<List<T>> res = new ArrayList<>();
+		if(items==null) return res;
+		List<T> list = new ArrayList<T>(new LinkedHashSet<T>(items));
+		int max = IN_BUCKETS[IN_BUCKETS.length-1];
+		for (int i = 0; i < list.size(); i+=max) {
+			List<T> chunk = new ArrayList<>(list.subList(i, Math.min(list.size(), i+max)));
+			int size = max;
+			for (int bucket : IN_BUCKETS) {
+				if(bucket>=chunk.size()) {
+					size = bucket;
+					break;
+				}
+			}
+			T last = chunk.get(chunk.size()-1);
+			while(chunk.size()<size) chunk.add(last);
+			res.add(chunk);
+		}
+		return res;
+	}
+
 	public static String getHelp(boolean andField) {
 		if(andField) {
 			return "<ul style='margin:0px;margin-left:10px;padding:0px;font-size:8px'>"
@@ -0,0 +1,336 @@
+/*
+ * Spirit, a study/biosample management tool for research.
+ * Copyright (C) 2018 Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91,
+ * CH-4123 Allschwil, Switzerland.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ * @author Joel Freyss
+ */
+
+package com.actelion.research.spiritcore.util;
+
+import java.util.Arrays;
+
+/**
+ * Accumulator of statistics on a stream of doubles (count, sum, mean, variance, min, max, geometric mean and quantiles).
+ * <ul>
+ * <li>The mean and the variance are calculated with Welford's algorithm, without keeping the values.
+ * <li>The quantiles are exact as long as the number of values is below maxExact. Above, the values are compressed into weighted centroids (t-digest like),
+ * so that the memory stays constant and the quantiles are approximated (with a better accuracy in the tails).
+ * </ul>
+ * Accumulators can be merged, so that the statistics can be calculated on partitions.
+ *
+ * @author Joel Freyss
+ */
+public class StatAccumulator {
+
+	/** Default number of values kept exactly, before the quantiles are approximated */
+	public static final int DEFAULT_MAX_EXACT = 1000;
+
+	private final int maxExact;
+
+	private int count = 0;
+	private double sum = 0;
+	private double mean = 0;
+	private double m2 = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private double sumLog = 0;
+	private boolean hasNegative = false;
+	private boolean hasZero = false;
+
+	//Quantile sketch: centroids (all weights are 1, while compressed is false)
+	private double[] centroidMeans;
+	private double[] centroidWeights;
+	private int nCentroids = 0;
+	private boolean sorted = true;
+	private boolean compressed = false;
+
+	public StatAccumulator() {
+		this(DEFAULT_MAX_EXACT);
+	}
+
+	/**
+	 * @param maxExact - number of values kept exactly, before the quantiles are approximated (min 10)
+	 */
+	public StatAccumulator(int maxExact) {
+		this.maxExact = Math.max(10, maxExact);
+		this.centroidMeans = new double[16];
+		this.centroidWeights = new double[16];
+	}
+
+	/**
+	 * Adds a value. NaN values are ignored
+	 * @param v
+	 */
+	public void add(double v) {
+		if(Double.isNaN(v)) return;
+		count++;
+		sum += v;
+		double delta = v - mean;
+		mean += delta / count;
+		m2 += delta * (v - mean);
+		if(v<min) min = v;
+		if(v>max) max = v;
+		if(v<0) hasNegative = true;
+		else if(v==0) hasZero = true;
+		else sumLog += Math.log(v);
+
+		addCentroid(v, 1);
+	}
+
+	/**
+	 * Adds a value. Null and NaN values are ignored
+	 * @param v
+	 */
+	public void add(Double v) {
+		if(v!=null) add(v.doubleValue());
+	}
+
+	public void addAll(Iterable<Double> values) {
+		for (Double v : values) {
+			add(v);
+		}
+	}
+
+	/**
+	 * Merges the statistics of an other accumulator into this one
+	 * @param o
+	 */
+	public void merge(StatAccumulator o) {
+		if(o==null || o.count==0) return;
+		if(count==0) {
+			mean = o.mean;
+			m2 = o.m2;
+		} else {
+			double delta = o.mean - mean;
+			int n = count + o.count;
+			mean += delta * o.count / n;
+			m2 += o.m2 + delta * delta * count * o.count / n;
+		}
+		count += o.count;
+		sum += o.sum;
+		min = Math.min(min, o.min);
+		max = Math.max(max, o.max);
+		sumLog += o.sumLog;
+		hasNegative |= o.hasNegative;
+		hasZero |= o.hasZero;
+
+		compressed |= o.compressed;
+		for (int i = 0; i < o.nCentroids; i++) {
+			addCentroid(o.centroidMeans[i], o.centroidWeights[i]);
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the sum or NaN if there are no values
+	 */
+	public double getSum() {
+		return count==0? Double.NaN: sum;
+	}
+
+	/**
+	 * @return the mean or NaN if there are no values
+	 */
+	public double getMean() {
+		return count==0? Double.NaN: mean;
+	}
+
+	public double getMin() {
+		return count==0? Double.NaN: min;
+	}
+
+	public double getMax() {
+		return count==0? Double.NaN: max;
+	}
+
+	/**
+	 * @return the sample variance (n-1) or NaN if there are less than 2 values
+	 */
+	public double getVariance() {
+		return count<=1? Double.NaN: m2 / (count-1);
+	}
+
+	/**
+	 * @return the sample standard deviation (n-1) or NaN if there are less than 2 values
+	 */
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * @return the population standard deviation (n) or NaN if there are no values
+	 */
+	public double getPopulationStandardDeviation() {
+		return count==0? Double.NaN: Math.sqrt(m2 / count);
+	}
+
+	/**
+	 * @return the geometric mean, NaN if there are negative values or no values
+	 */
+	public double getGeometricMean() {
+		if(count==0 || hasNegative) return Double.NaN;
+		if(hasZero) return 0;
+		return Math.exp(sumLog / count);
+	}
+
+	/**
+	 * @return the median or NaN if there are no values
+	 */
+	public double getMedian() {
+		if(count==0) return Double.NaN;
+		if(!compressed) {
+			sort();
+			int n = nCentroids;
+			return n%2==0? (centroidMeans[n/2-1] + centroidMeans[n/2]) / 2: centroidMeans[n/2];
+		}
+		return getQuantile(.5);
+	}
+
+	/**
+	 * Returns the quantile q (0&lt;=q&lt;=1), interpolated between the closest values
+	 * @param q
+	 * @return the quantile or NaN if there are no values
+	 */
+	public double getQuantile(double q) {
+		if(count==0) return Double.NaN;
+		if(q<=0) return min;
+		if(q>=1) return max;
+		sort();
+		if(nCentroids==1) return centroidMeans[0];
+
+		//Find the centroids surrounding the target, assuming each centroid is centered on its cumulated weight
+		double target = q * count;
+		double cumulated = 0;
+		double prevCenter = 0;
+		double prevMean = min;
+		for (int i = 0; i < nCentroids; i++) {
+			double center = cumulated + centroidWeights[i] / 2;
+			if(target<center) {
+				if(i==0) prevCenter = 0;
+				double r = center==prevCenter? 0: (target-prevCenter) / (center-prevCenter);
+				return prevMean + r * (centroidMeans[i]-prevMean);
+			}
+			prevCenter = center;
+			prevMean = centroidMeans[i];
+			cumulated += centroidWeights[i];
+		}
+		double r = count==prevCenter? 0: (target-prevCenter) / (count-prevCenter);
+		return prevMean + r * (max-prevMean);
+	}
+
+	/**
+	 * Returns the fences used to find the outliers: {Q1-3*IQR, Q1-2*IQR, Q1-IQR, Q3+IQR, Q3+2*IQR, Q3+3*IQR}
+	 * @return the fences or null if there are less than 5 values
+	 */
+	public double[] getFences() {
+		if(count<=4) return null;
+		double q1, q3;
+		if(!compressed) {
+			sort();
+			q1 = getExactQuantile(count*.25);
+			q3 = getExactQuantile(count*.75);
+		} else {
+			q1 = getQuantile(.25);
+			q3 = getQuantile(.75);
+		}
+		double interquartile = q3-q1;
+		return new double[] {q1 - 3 * interquartile, q1 - 2 * interquartile, q1 - interquartile, q3 + interquartile, q3 + 2 * interquartile, q3 + 3 * interquartile};
+	}
+
+	private double getExactQuantile(double index) {
+		int i = (int) index;
+		return centroidMeans[i] + (index-i) * (centroidMeans[Math.min(i+1, nCentroids-1)]-centroidMeans[i]);
+	}
+
+	private void addCentroid(double m, double w) {
+		if(nCentroids==centroidMeans.length) {
+			int size = Math.min(centroidMeans.length*2, maxExact+1);
+			if(size<=nCentroids) size = nCentroids*2;
+			centroidMeans = Arrays.copyOf(centroidMeans, size);
+			centroidWeights = Arrays.copyOf(centroidWeights, size);
+		}
+		if(nCentroids>0 && m<centroidMeans[nCentroids-1]) sorted = false;
+		centroidMeans[nCentroids] = m;
+		centroidWeights[nCentroids] = w;
+		nCentroids++;
+		if(nCentroids>maxExact) compress();
+	}
+
+	private void sort() {
+		if(sorted) return;
+		if(!compressed) {
+			//All weights are 1
+			Arrays.sort(centroidMeans, 0, nCentroids);
+		} else {
+			Integer[] order = new Integer[nCentroids];
+			for (int i = 0; i < nCentroids; i++) order[i] = i;
+			Arrays.sort(order, (i1, i2) -> Double.compare(centroidMeans[i1], centroidMeans[i2]));
+			double[] means = new double[centroidMeans.length];
+			double[] weights = new double[centroidWeights.length];
+			for (int i = 0; i < nCentroids; i++) {
+				means[i] = centroidMeans[order[i]];
+				weights[i] = centroidWeights[order[i]];
+			}
+			centroidMeans = means;
+			centroidWeights = weights;
+		}
+		sorted = true;
+	}
+
+	/**
+	 * Merges the adjacent centroids, while their weight stays below 4*N*q*(1-q)/compression, so that the tails are kept more precisely
+	 */
+	private void compress() {
+		if(!compressed) {
+			Arrays.fill(centroidWeights, 0, nCentroids, 1);
+			compressed = true;
+		}
+		sort();
+		double total = 0;
+		for (int i = 0; i < nCentroids; i++) total += centroidWeights[i];
+		double compression = maxExact / 2.0;
+
+		int n = 0;
+		double cumulated = 0;
+		for (int i = 0; i < nCentroids; i++) {
+			double w = centroidWeights[i];
+			if(n>0) {
+				double q = (cumulated + (centroidWeights[n-1] + w) / 2) / total;
+				double limit = Math.max(1, 4 * total * q * (1-q) / compression);
+				if(centroidWeights[n-1] + w <= limit) {
+					double w2 = centroidWeights[n-1] + w;
+					centroidMeans[n-1] += (centroidMeans[i] - centroidMeans[n-1]) * w / w2;
+					centroidWeights[n-1] = w2;
+					continue;
+				}
+				cumulated += centroidWeights[n-1];
+			}
+			centroidMeans[n] = centroidMeans[i];
+			centroidWeights[n] = w;
+			n++;
+		}
+		nCentroids = n;
+	}
+
+	@Override
+	public String toString() {
+		return "[N=" + count + ", mean=" + getMean() + ", std=" + getStandardDeviation() + ", min=" + getMin() + ", max=" + getMax() + "]";
+	}
+}
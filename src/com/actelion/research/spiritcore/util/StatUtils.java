@@ -23,7 +23,6 @@ package com.actelion.research.spiritcore.util;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
@@ -46,17 +45,18 @@ public class StatUtils {
 		//Assign ranks
 		assert values.size()>1;
 		
-		List<Double> allDoubles = new ArrayList<>();
+		int N = 0;
 		for (double[] a : values) {
 			assert a.length>0;
-			for (double d : a) {
-				allDoubles.add(d);
-			}
+			N += a.length;
+		}
+		double[] allDoublesArray = new double[N];
+		int index = 0;
+		for (double[] a : values) {
+			System.arraycopy(a, 0, allDoublesArray, index, a.length);
+			index += a.length;
 		}
-		int N = allDoubles.size();
-		Collections.sort(allDoubles);
-		double[] allDoublesArray = new double[allDoubles.size()];
-		for (int i = 0; i < allDoubles.size(); i++) allDoublesArray[i] = allDoubles.get(i);
+		Arrays.sort(allDoublesArray);
 		List<double[]> ranks = new ArrayList<double[]>();
 		for (double[] a : values) {
 			double[] rankArray = new double[a.length];
@@ -93,57 +93,56 @@ public class StatUtils {
 		return K;
 	}	
 	
+	/**
+	 * Creates a StatAccumulator from the given values (null values are skipped)
+	 * @param doubles
+	 * @return
+	 */
+	public static StatAccumulator accumulate(Iterable<Double> doubles) {
+		StatAccumulator acc = new StatAccumulator();
+		acc.addAll(doubles);
+		return acc;
+	}
+
+	/**
+	 * Returns the exact median of the given values (null values are skipped), without sorting the given list
+	 * @param doubles
+	 * @return
+	 */
 	public static Double getMedian(List<Double> doubles) {
-		Collections.sort(doubles);
-		if(doubles.size()==0) {
-			return null;
-		} else if(doubles.size()%2==0) {
-			return (doubles.get(doubles.size()/2-1) + doubles.get(doubles.size()/2))/2;
-		} else {
-			return doubles.get(doubles.size()/2);
-		}		
+		double[] a = new double[doubles.size()];
+		int n = 0;
+		for (Double d : doubles) {
+			if(d!=null) a[n++] = d;
+		}
+		a = Arrays.copyOf(a, n);
+		Arrays.sort(a);
+		return getMedianOfSorted(a);
+	}
+
+	/**
+	 * Returns the exact median of the given sorted values, or null if there are no values
+	 * @param sorted
+	 * @return
+	 */
+	public static Double getMedianOfSorted(double[] sorted) {
+		int n = sorted.length;
+		if(n==0) return null;
+		return n%2==0? (sorted[n/2-1] + sorted[n/2]) / 2: sorted[n/2];
 	}
 	
 	public static Double getMean(List<Double> doubles) {
-		if(doubles.size()==0) {
-			return null;
-		} else {
-			int i = 0;
-			double sum = 0;
-			for (Double d : doubles) {
-				if(d==null) continue;
-				sum += d;
-				i++;
-			}
-			return i==0? null: sum/i;
-		}		
+		StatAccumulator acc = accumulate(doubles);
+		return acc.getCount()==0? null: acc.getMean();
 	}
+
 	public static double[] getFences(List<Double> doubles) {
-		if(doubles.size()==0) return null;
-		if(doubles.size()<=4) return null;
-		
-		//double mean = getMean(doubles);
-		Collections.sort(doubles);
-		double indexQ1 = (doubles.size())*.25;
-		double indexQ3 = (doubles.size())*.75;
-		
-		
-		double q1 =  doubles.get((int)indexQ1) + (indexQ1-(int)indexQ1) * (doubles.get((int)indexQ1+1)-doubles.get((int)indexQ1));
-		double q3 =  doubles.get((int)indexQ3) + (indexQ3-(int)indexQ3) * (doubles.get((int)indexQ3+1)-doubles.get((int)indexQ3));
-		double interquartile = q3-q1;
-		double l3 = q1 - 3 * interquartile; 
-		double l2 = q1 - 2 * interquartile;
-		double l1 = q1 - 1 * interquartile;
-		double h1 = q3 + 1 * interquartile;
-		double h2 = q3 + 2 * interquartile;
-		double h3 = q3 + 3 * interquartile; 
-		
-		return new double[] {l3, l2, l1, h1, h2, h3};
+		return accumulate(doubles).getFences();
 	}
 	
 	
 	public static double getStandardDeviationOfMean(List<Double> doubles) {
-		return getStandardDeviation(doubles, getMean(doubles));
+		return accumulate(doubles).getPopulationStandardDeviation();
 	}
 	public static Double getStandardDeviation(List<Double> doubles, Double mean) {
 		double sum = 0;
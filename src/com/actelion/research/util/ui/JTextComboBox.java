@@ -264,7 +264,8 @@ public class JTextComboBox extends JCustomTextField {
 			private void selectWithPrefix(int offs, String prefix) throws BadLocationException {
 				if (prefix.length() > 0) {
 					String selectedChoice = null;
-					for (String s : getCachedChoices()) {
+					Collection<String> completions = getChoices(prefix);
+					for (String s : completions!=null? completions: getCachedChoices()) {
 						if (s.startsWith(prefix)) {
 							selectedChoice = s;
 							break;
@@ -543,6 +544,17 @@ public class JTextComboBox extends JCustomTextField {
 		return choices;
 	}
 
+	/**
+	 * Can be overriden by classes to get only the choices starting with the given prefix (case insensitive), when the choices are too many to be filtered in the popup.
+	 * Returns null by default: the choices are then filtered from getChoices()
+	 *
+	 * @param prefix
+	 * @return
+	 */
+	public Collection<String> getChoices(String prefix) {
+		return null;
+	}
+
 	/**
 	 * Gets the choices from Cache, the cache is reset everytime the component
 	 * loses its focus. Test the possible separators
@@ -608,6 +620,18 @@ public class JTextComboBox extends JCustomTextField {
 	}
 
 	private void populateList() {
+		if (progressiveFiltering && !multiChoices) {
+			Collection<String> completions = getChoices(getText().substring(0, getCaretPosition()));
+			if(completions!=null) {
+				model.clear();
+				model.addElement("");
+				for (String s : completions) {
+					if(s!=null && (s.length()>0 || !allowTyping)) model.addElement(s);
+				}
+				return;
+			}
+		}
+
 		Collection<String> choices = getCachedChoices();
 
 		List<String> toAdd = new ArrayList<>();
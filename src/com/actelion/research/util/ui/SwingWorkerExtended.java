@@ -39,6 +39,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
@@ -88,6 +89,35 @@ public class SwingWorkerExtended  {
 	private final static Map<Component, Thread> currentThreads = new ConcurrentHashMap<>();
 	private Runnable after;
 
+	/**
+	 * Factory of the scope, opened around each doInBackground and closed when the task completes (ex: JPAUtil::openScope)
+	 */
+	private static Supplier<? extends AutoCloseable> scopeFactory;
+
+	/**
+	 * Sets the factory of the scope, opened around each doInBackground and closed when the task completes
+	 * @param factory
+	 */
+	public static void setScopeFactory(Supplier<? extends AutoCloseable> factory) {
+		scopeFactory = factory;
+	}
+
+	/**
+	 * Calls doInBackground within the scope given by the scopeFactory
+	 */
+	private void doInBackgroundScoped() throws Exception {
+		if(scopeFactory==null) {
+			doInBackground();
+		} else {
+			AutoCloseable scope = scopeFactory.get();
+			try {
+				doInBackground();
+			} finally {
+				scope.close();
+			}
+		}
+	}
+
 	public SwingWorkerExtended() {
 		this(null, null, FLAG_ASYNCHRONOUS20MS);
 	}
@@ -142,7 +172,7 @@ public class SwingWorkerExtended  {
 			//SYNCHRONOUS MODE: call doBackground in the same thread
 			try {
 				if(DEBUG) System.out.println("SwingWorkerExtended " + name + " -BG- " + (System.currentTimeMillis()-started) + "ms - " + callingThread);
-				doInBackground();
+				doInBackgroundScoped();
 
 				SwingUtilities.invokeLater(doneRunnable);
 
@@ -196,7 +226,7 @@ public class SwingWorkerExtended  {
 
 								//In Background
 								if(DEBUG) System.out.println("SwingWorkerExtended " + name + " -BG- " + (System.currentTimeMillis()-started) + "ms - " + callingThread);
-								SwingWorkerExtended.this.doInBackground();
+								SwingWorkerExtended.this.doInBackgroundScoped();
 
 								if(isCancelled() || isInterrupted()  || sw.isInterrupted()) {
 									endBgProcess();
@@ -2,11 +2,15 @@ package com.actelion.research.spirit.test;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.actelion.research.spiritcore.business.biosample.BarcodeSequence.Category;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
 import com.actelion.research.spiritcore.business.biosample.BiotypeCategory;
@@ -87,7 +91,7 @@ public class BarcodeTest extends AbstractSpiritTest {
 
 
 	/**
-	 * Tests that the system continue the sequence if there is a gap between the last recorded sampleId in the sample table and in the barcode table
+	 * Tests that the system continue the sequence after the ids given manually, and that the sequence never goes backwards after deletions
 	 * @throws Exception
 	 */
 	@Test
@@ -133,10 +137,10 @@ public class BarcodeTest extends AbstractSpiritTest {
 		//Delete the 2 larger sampleIds
 		DAOBiosample.deleteBiosamples(MiscUtils.listOf(b1, b2), user);
 
-		//,The next generated Id should fix the sequence hole
+		//The next generated Id should continue the sequence (the deleted ids could have been reserved by other clients)
 		b2 = new Biosample(biotype);
 		DAOBiosample.persistBiosamples(MiscUtils.listOf(b2), user);
-		Assert.assertEquals("TBa000211", b2.getSampleId());
+		Assert.assertEquals("TBa010002", b2.getSampleId());
 
 
 		//Create a overflow. The next Id should continue
@@ -223,4 +227,39 @@ public class BarcodeTest extends AbstractSpiritTest {
 
 	}
 
+	/**
+	 * Tests that concurrent allocations never give the same id, even if the reserved blocks are lost in between (like for concurrent clients),
+	 * and even if a client allocates more ids than the maximum block size
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentAllocation() throws Exception {
+		Set<String> ids = Collections.synchronizedSet(new HashSet<>());
+		List<String> duplicates = Collections.synchronizedList(new ArrayList<>());
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 5; t++) {
+			final int n = t<4? t+1: 1500;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 20; i++) {
+						for (String id : DAOBarcode.getNextIds(Category.BIOSAMPLE, "TBc", null, n)) {
+							if(!ids.add(id)) duplicates.add(id);
+						}
+						//Simulate an other client, which has not reserved the same ids
+						if(i%5==0) DAOBarcode.reset();
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) thread.start();
+		for (Thread thread : threads) thread.join();
+
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertTrue(duplicates.toString(), duplicates.isEmpty());
+		Assert.assertEquals(20*(1+2+3+4+1500), ids.size());
+	}
+
 }
@@ -4,6 +4,8 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -26,9 +28,11 @@ import com.actelion.research.spiritcore.business.biosample.ContainerType;
 import com.actelion.research.spiritcore.business.biosample.Status;
 import com.actelion.research.spiritcore.business.location.Location;
 import com.actelion.research.spiritcore.services.dao.DAOBiosample;
+import com.actelion.research.spiritcore.services.dao.DAOBiosampleLineage;
 import com.actelion.research.spiritcore.services.dao.DAOBiotype;
 import com.actelion.research.spiritcore.services.dao.DAODocument;
 import com.actelion.research.spiritcore.services.dao.DAOEmployee;
+import com.actelion.research.spiritcore.services.dao.DAOKeyword;
 import com.actelion.research.spiritcore.services.dao.DAOLocation;
 import com.actelion.research.spiritcore.services.dao.DAOStudy;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
@@ -462,6 +466,101 @@ public class BiosampleTest extends AbstractSpiritTest {
 
 	}
 
+	@Test
+	public void testMetadataQueries() throws Exception {
+		BiotypeMetadata type = DAOBiotype.getBiotype("Blood").getMetadata("Type");
+		int nHeparin = queryMetadata(type, "Heparin");
+		int nEdta = queryMetadata(type, "EDTA");
+		Assert.assertTrue(nHeparin>0 && nEdta>0);
+		Assert.assertEquals(nHeparin + nEdta, queryMetadata(type, "Heparin or EDTA"));
+		Assert.assertEquals(0, queryMetadata(type, "Heparin and EDTA"));
+		Assert.assertEquals(nHeparin, queryMetadata(type, "*par*"));
+
+		//The wildcards of SQL are not wildcards of the query
+		Assert.assertEquals(0, queryMetadata(type, "*%*"));
+		Assert.assertEquals(0, queryMetadata(type, "*H_parin*"));
+	}
+
+	@Test
+	public void testKeywordIndex() throws Exception {
+		Biotype biotype = new Biotype();
+		biotype.setCategory(BiotypeCategory.PURIFIED);
+		biotype.setName("KeywordTest");
+		biotype.setPrefix("kw-");
+		biotype.getMetadata().add(new BiotypeMetadata("large", DataType.LARGE));
+		DAOBiotype.persistBiotype(biotype, user);
+
+		//The words after a long text are indexed too
+		Biosample b = new Biosample(biotype);
+		b.setMetadataValue("large", MiscUtils.repeat("some long comments ", 50) + "ZETA42");
+		DAOBiosample.persistBiosamples(Collections.singletonList(b), user);
+		Assert.assertTrue(DAOKeyword.isIndexed());
+
+		BiosampleQuery q = new BiosampleQuery();
+		q.setKeywords("ZETA42");
+		Assert.assertEquals(1, DAOBiosample.queryBiosamples(q, user).size());
+		q.setKeywords("ETA4");
+		Assert.assertEquals(1, DAOBiosample.queryBiosamples(q, user).size());
+
+		//The keywords are split like the indexed values: a keyword with a separator (kept by the quote) or longer than the indexed suffixes is still found
+		Biosample b2 = new Biosample(biotype);
+		b2.setMetadataValue("large", "Alpha\"Beta Gamma\" " + MiscUtils.repeat("xyz", 10));
+		DAOBiosample.persistBiosamples(Collections.singletonList(b2), user);
+		q.setKeywords("Alpha\"Beta Gamma\"");
+		Assert.assertEquals(1, DAOBiosample.queryBiosamples(q, user).size());
+		q.setKeywords("Beta\"Gamma");
+		Assert.assertEquals(0, DAOBiosample.queryBiosamples(q, user).size());
+		q.setKeywords("zxyzxyzxyzxyzxyzxyzxyz");
+		Assert.assertEquals(1, DAOBiosample.queryBiosamples(q, user).size());
+		q.setKeywords("zxyzxyzxyzxyzxyzxyzxyzz");
+		Assert.assertEquals(0, DAOBiosample.queryBiosamples(q, user).size());
+
+		//Rebuild the index
+		int n = DAOBiosample.queryBiosamples(new BiosampleQuery(), user).size();
+		q.setKeywords("ANL*");
+		int nAnimals = DAOBiosample.queryBiosamples(q, user).size();
+		DAOKeyword.rebuildIndex(user);
+		Assert.assertTrue(DAOKeyword.isIndexed());
+		q.setKeywords("ZETA42");
+		Assert.assertEquals(1, DAOBiosample.queryBiosamples(q, user).size());
+		q.setKeywords("ANL*");
+		Assert.assertEquals(nAnimals, DAOBiosample.queryBiosamples(q, user).size());
+		Assert.assertEquals(n, DAOBiosample.queryBiosamples(new BiosampleQuery(), user).size());
+	}
+
+	@Test
+	public void testLineage() throws Exception {
+		DAOBiosampleLineage.rebuild(user);
+		Assert.assertTrue(DAOBiosampleLineage.isEnabled());
+
+		Biosample top = new Biosample(DAOBiotype.getBiotype("Animal"));
+		top.setSampleId("TestLineage");
+		Biosample child = new Biosample(DAOBiotype.getBiotype("Blood"));
+		child.setParent(top);
+		Biosample grandChild = new Biosample(DAOBiotype.getBiotype("Blood"));
+		grandChild.setParent(child);
+		DAOBiosample.persistBiosamples(MiscUtils.listOf(top, child, grandChild), user);
+
+		JPAUtil.clearAll();
+		top = DAOBiosample.getBiosample("TestLineage");
+		Map<Biosample, Integer> descendants = DAOBiosampleLineage.loadDescendants(Collections.singleton(top));
+		Assert.assertEquals(3, descendants.size());
+		Assert.assertEquals(0, (int) descendants.get(top));
+		Assert.assertEquals(1, (int) descendants.get(child));
+		Assert.assertEquals(2, (int) descendants.get(grandChild));
+
+		//Delete the hierarchy: no rows are left
+		List<Integer> ids = JPAUtil.getIds(descendants.keySet());
+		DAOBiosample.deleteBiosamples(descendants.keySet(), user);
+		Assert.assertEquals(0, ((Number) JPAUtil.getManager().createQuery("select count(c) from BiosampleLineage c where c.ancestorId in (:ids) or c.descendantId in (:ids)").setParameter("ids", ids).getSingleResult()).intValue());
+	}
+
+	private static int queryMetadata(BiotypeMetadata metadata, String query) throws Exception {
+		BiosampleQuery q = new BiosampleQuery();
+		q.getLinker2values().put(new BiosampleLinker(metadata), query);
+		return DAOBiosample.queryBiosamples(q, user).size();
+	}
+
 	@Test
 	public void testActions() throws Exception {
 
@@ -1,6 +1,10 @@
 package com.actelion.research.spirit.test;
 
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -12,11 +16,14 @@ import com.actelion.research.spiritcore.business.biosample.BiotypeCategory;
 import com.actelion.research.spiritcore.business.employee.Employee;
 import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
 import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.business.study.StudySummary;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.services.dao.DAOBiosample;
 import com.actelion.research.spiritcore.services.dao.DAOBiotype;
 import com.actelion.research.spiritcore.services.dao.DAOEmployee;
 import com.actelion.research.spiritcore.services.dao.DAOStudy;
+import com.actelion.research.spiritcore.services.dao.DAOStudySummary;
+import com.actelion.research.spiritcore.services.dao.JPAUtil;
 import com.actelion.research.spiritcore.util.MiscUtils;
 
 import junit.framework.AssertionFailedError;
@@ -115,4 +122,52 @@ public class ConcurrencyTest extends AbstractSpiritTest {
 			System.err.println("OK: " + e);
 		}
 	}
+
+	/**
+	 * Test that 2 transactions adding the same summary key do not lose a count
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentStudySummary() throws Exception {
+		DAOStudySummary.rebuild(user);
+		Biotype biotype = new Biotype("SummaryConcurrency");
+		biotype.setCategory(BiotypeCategory.PURIFIED);
+		DAOBiotype.persistBiotype(biotype, user);
+
+		//Add a biosample in a first transaction, without committing
+		EntityManager session = JPAUtil.getManager();
+		EntityTransaction txn = session.getTransaction();
+		txn.begin();
+		DAOBiosample.persistBiosamples(session, MiscUtils.listOf(new Biosample(biotype)), user);
+		session.flush();
+
+		//Add a biosample in a concurrent transaction
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			EntityManager session2 = JPAUtil.getManager();
+			EntityTransaction txn2 = session2.getTransaction();
+			try {
+				txn2.begin();
+				DAOBiosample.persistBiosamples(session2, MiscUtils.listOf(new Biosample(DAOBiotype.getBiotype("SummaryConcurrency"))), user);
+				txn2.commit();
+			} catch(Throwable e) {
+				error.set(e);
+				if(txn2.isActive()) txn2.rollback();
+			}
+		});
+		thread.start();
+		Thread.sleep(500);
+		txn.commit();
+		thread.join();
+		Assert.assertNull(error.get());
+
+		//Both biosamples are counted
+		JPAUtil.clearAll();
+		int count = 0;
+		for (StudySummary row : DAOStudySummary.getSummaries(StudySummary.KIND_BIOSAMPLE, null)) {
+			if(row.getTypeId()==biotype.getId()) count += row.getCount();
+		}
+		Assert.assertEquals(2, count);
+	}
+
 }
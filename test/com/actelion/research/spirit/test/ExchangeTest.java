@@ -21,10 +21,12 @@
 
 package com.actelion.research.spirit.test;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -35,10 +37,12 @@ import org.junit.Test;
 
 import com.actelion.research.spiritcore.adapter.DBAdapter;
 import com.actelion.research.spiritcore.adapter.SchemaCreator;
+import com.actelion.research.spiritcore.business.DataType;
 import com.actelion.research.spiritcore.business.Exchange;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
 import com.actelion.research.spiritcore.business.biosample.BiosampleQuery;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
+import com.actelion.research.spiritcore.business.biosample.BiotypeCategory;
 import com.actelion.research.spiritcore.business.biosample.BiotypeMetadata;
 import com.actelion.research.spiritcore.business.location.Location;
 import com.actelion.research.spiritcore.business.result.Result;
@@ -54,6 +58,8 @@ import com.actelion.research.spiritcore.services.dao.DAOLocation;
 import com.actelion.research.spiritcore.services.dao.DAOResult;
 import com.actelion.research.spiritcore.services.dao.DAOStudy;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
+import com.actelion.research.spiritcore.services.exchange.BulkCheckpoint;
+import com.actelion.research.spiritcore.services.exchange.BulkCheckpoint.Step;
 import com.actelion.research.spiritcore.services.exchange.ExchangeMapping;
 import com.actelion.research.spiritcore.services.exchange.ExchangeMapping.EntityAction;
 import com.actelion.research.spiritcore.services.exchange.Exporter;
@@ -305,4 +311,111 @@ public class ExchangeTest extends AbstractSpiritTest {
 	}
 
 
+	@Test
+	public void testExportInvalid() throws Exception {
+		//The test of the result is not exported
+		com.actelion.research.spiritcore.business.result.Test t = new com.actelion.research.spiritcore.business.result.Test("ExportTest");
+		Result r = new Result(t);
+		r.setElb("ELB-ExportTest");
+		Exchange exchange = new Exchange("invalid");
+		exchange.getResults().add(r);
+		try {
+			Exporter.write(exchange, new StringWriter());
+			throw new AssertionError("The export should fail");
+		} catch(Exception e) {
+			Assert.assertEquals("The exported exchange format is invalid", e.getMessage());
+		}
+
+		//Add the test
+		exchange.getTests().add(t);
+		StringWriter writer = new StringWriter();
+		Exporter.write(exchange, writer);
+		Assert.assertEquals(1, Importer.read(new StringReader(writer.toString())).getResults().size());
+	}
+
+
+	@Test
+	public void testBulkResume() throws Exception {
+		//Export some data
+		SchemaCreator.createExamples(user);
+		ResultQuery q = new ResultQuery();
+		q.setKeywords("LCMS Organ");
+		List<Result> results = DAOResult.queryResults(q, user);
+		int n = results.size();
+		Assert.assertTrue(n>0);
+
+		Exchange exchange = new Exchange("test");
+		exchange.addResults(results);
+		StringWriter writer = new StringWriter();
+		Exporter.write(exchange, writer);
+		SchemaCreator.clearExamples(user);
+		int nStudies = DAOStudy.getStudies().size();
+
+		//Import in bulk, and interrupt after the first chunk of biosamples
+		File file = File.createTempFile("bulk", ".spirit");
+		File checkpointFile = BulkCheckpoint.getFile(file);
+		exchange = Importer.read(new StringReader(writer.toString()));
+		int nBiosamples = exchange.getBiosamples().size();
+		Assert.assertTrue(nBiosamples>5);
+		try {
+			DAOExchange.persistBulk(new ExchangeMapping(exchange), user, 5, (step, done, total, rowsPerSecond) -> {
+				throw new IllegalStateException("Interrupted");
+			}, checkpointFile);
+			throw new AssertionError("The import should be interrupted");
+		} catch(IllegalStateException e) {
+			//OK
+		}
+		BulkCheckpoint saved = BulkCheckpoint.load(checkpointFile);
+		Assert.assertEquals(Step.TYPES, saved.getStep());
+		Assert.assertEquals(5, saved.getBiosamplesDone());
+		Assert.assertEquals(exchange.getStudies().size(), saved.getStudyIds().size());
+
+		//Resume after a restart, with a new mapping of the same file
+		JPAUtil.clearAll();
+		exchange = Importer.read(new StringReader(writer.toString()));
+		ExchangeMapping mapping = new ExchangeMapping(exchange);
+		mapping.resumeBulk(saved);
+		DAOExchange.persistBulk(mapping, user, 5, null, checkpointFile);
+		Assert.assertTrue(mapping.getBulkCheckpoint().isComplete());
+		Assert.assertFalse(checkpointFile.exists());
+		file.delete();
+
+		//No duplicates
+		Assert.assertEquals(nStudies + exchange.getStudies().size(), DAOStudy.getStudies().size());
+		Assert.assertEquals(nBiosamples, DAOBiosample.getBiosamplesBySampleIds(Biosample.getSampleIds(exchange.getBiosamples())).size());
+		Assert.assertEquals(n, DAOResult.queryResults(q, user).size());
+	}
+
+	@Test
+	public void testImportForwardLink() throws Exception {
+		//Create more biosamples than the import chunk, with a link to a biosample of the next chunk
+		Biotype t = new Biotype();
+		t.setCategory(BiotypeCategory.PURIFIED);
+		t.setName("ExchangeLink");
+		t.getMetadata().add(new BiotypeMetadata("Linked", DataType.BIOSAMPLE));
+		List<Biosample> biosamples = new ArrayList<>();
+		for (int i = 0; i < 600; i++) {
+			Biosample b = new Biosample(t);
+			b.setSampleId("EXL-" + String.format("%04d", i));
+			biosamples.add(b);
+		}
+		Exchange exchange = new Exchange("links");
+		exchange.addBiosamples(biosamples);
+
+		ExchangeMapping mapping = new ExchangeMapping(exchange);
+		List<Biosample> mapped = mapping.getMappedBiosamples();
+		Assert.assertEquals(600, mapped.size());
+		Biosample first = mapped.get(0);
+		Biosample last = mapped.get(mapped.size()-1);
+		first.setMetadataBiosample("Linked", last);
+		DAOExchange.persist(mapping, user);
+
+		//Reload
+		JPAUtil.clearAll();
+		Assert.assertEquals(600, DAOBiosample.getBiosamplesBySampleIds(Biosample.getSampleIds(biosamples)).size());
+		Biosample b = DAOBiosample.getBiosample(first.getSampleId());
+		Assert.assertNotNull(b.getMetadataBiosample("Linked"));
+		Assert.assertEquals(last.getSampleId(), b.getMetadataBiosample("Linked").getSampleId());
+	}
+
 }
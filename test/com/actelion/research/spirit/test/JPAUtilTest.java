@@ -1,14 +1,22 @@
 package com.actelion.research.spirit.test;
 
+import java.sql.Connection;
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.persistence.EntityManager;
 
+import org.hibernate.Hibernate;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.actelion.research.spiritcore.adapter.DBAdapter;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.services.dao.ConnectionPool;
 import com.actelion.research.spiritcore.services.dao.DAOBarcode;
 import com.actelion.research.spiritcore.services.dao.DAOBiosample;
 import com.actelion.research.spiritcore.services.dao.DAOBiotype;
@@ -94,4 +102,106 @@ public class JPAUtilTest extends AbstractSpiritTest {
 
 	}
 
+	@Test
+	public void testLazyLoadingAfterWorker() throws Exception {
+		//Load a sample in a worker thread
+		AtomicReference<Biosample> ref = new AtomicReference<>();
+		Thread worker = new Thread(() -> ref.set(DAOBiosample.getBiosample("ANL000036")), "Worker");
+		worker.start();
+		worker.join();
+		Assert.assertNotNull(ref.get());
+		Assert.assertFalse(Hibernate.isInitialized(ref.get().getChildren()));
+
+		//Release the EntityManagers of the terminated threads
+		JPAUtil.openScope().close();
+
+		//The lazy associations can still be navigated from an other thread (ex: SwingWorker.done)
+		Assert.assertTrue(ref.get().getChildren().size()>0);
+	}
+
+	@Test
+	public void testScopeInPoolThread() throws Exception {
+		//Two tasks on the same thread of a pool
+		ExecutorService pool = Executors.newFixedThreadPool(1);
+		try {
+			Callable<Object[]> task = () -> {
+				try(JPAUtil.Scope scope = JPAUtil.openScope()) {
+					EntityManager em = JPAUtil.getManager();
+					try(JPAUtil.Scope inner = JPAUtil.openScope()) {
+						Assert.assertSame(em, JPAUtil.getManager());
+					}
+					//The inner scope does not release the EntityManager of the task
+					Assert.assertSame(em, JPAUtil.getManager());
+					return new Object[] {em, DAOBiosample.getBiosample("ANL000036")};
+				}
+			};
+			Object[] res1 = pool.submit(task).get();
+			Object[] res2 = pool.submit(task).get();
+
+			//Each task starts with a new EntityManager, but the entities of the previous task are still usable
+			Assert.assertNotSame(res1[0], res2[0]);
+			Assert.assertTrue(((EntityManager) res1[0]).isOpen());
+			Assert.assertTrue(((Biosample) res1[1]).getChildren().size()>0);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testTransactionThroughPool() throws Exception {
+		ConnectionPool pool = JPAUtil.getConnectionPool();
+		Assert.assertNotNull(pool);
+		int active = pool.getActiveCount();
+
+		//Execute several statements in one transaction, and rollback
+		EntityManager em = JPAUtil.createManager();
+		try {
+			em.getTransaction().begin();
+			Biosample b1 = new Biosample(DAOBiotype.getBiotype("Animal"));
+			b1.setSampleId("TestPool1");
+			DAOBiosample.persistBiosamples(em, Collections.singletonList(b1), user);
+			em.flush();
+			Assert.assertEquals(1, ((Number) em.createQuery("select count(b) from Biosample b where b.sampleId = 'TestPool1'").getSingleResult()).intValue());
+
+			Biosample b2 = new Biosample(DAOBiotype.getBiotype("Animal"));
+			b2.setSampleId("TestPool2");
+			DAOBiosample.persistBiosamples(em, Collections.singletonList(b2), user);
+			em.flush();
+			Assert.assertEquals(2, ((Number) em.createQuery("select count(b) from Biosample b where b.sampleId like 'TestPool%'").getSingleResult()).intValue());
+			em.getTransaction().rollback();
+		} finally {
+			em.close();
+		}
+		Assert.assertEquals(active, pool.getActiveCount());
+		Assert.assertNull(DAOBiosample.getBiosample("TestPool1"));
+
+		//Commit several statements in one transaction
+		em = JPAUtil.createManager();
+		try {
+			em.getTransaction().begin();
+			for (String sampleId : new String[] {"ANL000001", "ANL000002"}) {
+				Biosample b = (Biosample) em.createQuery("from Biosample b where b.sampleId = ?1").setParameter(1, sampleId).getSingleResult();
+				b.setComments("TestPool");
+				DAOBiosample.persistBiosamples(em, Collections.singletonList(b), user);
+				em.flush();
+			}
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		Assert.assertEquals(active, pool.getActiveCount());
+		JPAUtil.clearAll();
+		Assert.assertEquals("TestPool", DAOBiosample.getBiosample("ANL000001").getComments());
+		Assert.assertEquals("TestPool", DAOBiosample.getBiosample("ANL000002").getComments());
+	}
+
+	@Test
+	public void testPoolIsolation() throws Exception {
+		//The isolation of the connections is given by the adapter
+		ConnectionPool pool = JPAUtil.getConnectionPool();
+		try(Connection conn = pool.getConnection()) {
+			Assert.assertEquals(DBAdapter.getInstance().getTransactionIsolation(), conn.getTransactionIsolation());
+		}
+	}
+
 }
@@ -23,6 +23,8 @@ package com.actelion.research.spirit.test;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -35,6 +37,7 @@ import com.actelion.research.spiritcore.business.location.LocationType;
 import com.actelion.research.spiritcore.services.dao.DAOBiosample;
 import com.actelion.research.spiritcore.services.dao.DAOBiotype;
 import com.actelion.research.spiritcore.services.dao.DAOLocation;
+import com.actelion.research.spiritcore.services.dao.DAOLocationClosure;
 import com.actelion.research.spiritcore.services.dao.DAORevision;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
 import com.actelion.research.spiritcore.util.MiscUtils;
@@ -161,4 +164,68 @@ public class LocationTest extends AbstractSpiritTest {
 
 
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Tests that the location closure, updated after each move or deletion, is the same as the rebuilt one
+	 * @throws Exception
+	 */
+	@Test
+	public void testLocationClosure() throws Exception {
+		DAOLocationClosure.rebuild(user);
+		assertClosureUpToDate();
+
+		//Create a tree (the parents and children in the same batch): R1 > A > B > C, and R2
+		Location r1 = new Location("TESTClosureR1");
+		r1.setLocationType(LocationType.BUILDING);
+		Location r2 = new Location("TESTClosureR2");
+		r2.setLocationType(LocationType.BUILDING);
+		Location a = new Location("TESTClosureA");
+		a.setParent(r1);
+		a.setLocationType(LocationType.FREEZER);
+		Location b = new Location("TESTClosureB");
+		b.setParent(a);
+		b.setLocationType(LocationType.RACK);
+		Location c = new Location("TESTClosureC");
+		c.setParent(b);
+		c.setLocationType(LocationType.RACK);
+		DAOLocation.persistLocations(MiscUtils.listOf(r1, r2, a, b, c), user);
+		assertClosureUpToDate();
+
+		//Move the subtree A under R2: R2 > A > B > C
+		a = DAOLocation.getLocation(a.getId());
+		a.setParent(DAOLocation.getLocation(r2.getId()));
+		DAOLocation.persistLocations(MiscUtils.listOf(a), user);
+		assertClosureUpToDate();
+
+		//Move a parent and its child in the same batch: R1 > B, R2 > A > C
+		b = DAOLocation.getLocation(b.getId());
+		c = DAOLocation.getLocation(c.getId());
+		b.setParent(DAOLocation.getLocation(r1.getId()));
+		c.setParent(DAOLocation.getLocation(a.getId()));
+		DAOLocation.persistLocations(MiscUtils.listOf(c, b), user);
+		assertClosureUpToDate();
+
+		//Delete the leaf C
+		DAOLocation.deleteLocations(MiscUtils.listOf(DAOLocation.getLocation(c.getId())), user);
+		assertClosureUpToDate();
+	}
+
+	/**
+	 * Checks that the closure, updated after each change, is the same as the rebuilt one
+	 */
+	private static void assertClosureUpToDate() throws Exception {
+		Set<String> incremental = getClosure();
+		DAOLocationClosure.rebuild(user);
+		Assert.assertEquals(getClosure(), incremental);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> getClosure() {
+		JPAUtil.clearAll();
+		Set<String> res = new TreeSet<>();
+		for (Object[] row : (List<Object[]>) JPAUtil.getManager().createQuery("select c.ancestorId, c.descendantId, c.depth from LocationClosure c").getResultList()) {
+			res.add(row[0] + ">" + row[1] + ":" + row[2]);
+		}
+		return res;
+	}
+}
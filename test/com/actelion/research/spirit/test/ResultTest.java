@@ -1,9 +1,13 @@
 package com.actelion.research.spirit.test;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -14,23 +18,47 @@ import com.actelion.research.spiritcore.business.DataType;
 import com.actelion.research.spiritcore.business.Document;
 import com.actelion.research.spiritcore.business.Quality;
 import com.actelion.research.spiritcore.business.biosample.Biosample;
+import com.actelion.research.spiritcore.business.biosample.BiosampleQuery;
+import com.actelion.research.spiritcore.business.employee.Employee;
+import com.actelion.research.spiritcore.business.employee.EmployeeGroup;
+import com.actelion.research.spiritcore.business.location.Location;
+import com.actelion.research.spiritcore.business.location.LocationType;
+import com.actelion.research.spiritcore.business.location.Privacy;
 import com.actelion.research.spiritcore.business.pivot.ColumnPivotTemplate;
 import com.actelion.research.spiritcore.business.pivot.CompactPivotTemplate;
 import com.actelion.research.spiritcore.business.pivot.InventoryPivotTemplate;
+import com.actelion.research.spiritcore.business.pivot.PivotColumn;
 import com.actelion.research.spiritcore.business.pivot.PivotDataTable;
+import com.actelion.research.spiritcore.business.pivot.PivotItemFactory;
+import com.actelion.research.spiritcore.business.pivot.PivotRow;
 import com.actelion.research.spiritcore.business.pivot.PivotTemplate;
+import com.actelion.research.spiritcore.business.pivot.PivotTemplate.Where;
+import com.actelion.research.spiritcore.business.property.PropertyKey;
 import com.actelion.research.spiritcore.business.pivot.analyzer.Analyzer;
 import com.actelion.research.spiritcore.business.pivot.datawarrior.DataWarriorExporter;
 import com.actelion.research.spiritcore.business.result.Result;
 import com.actelion.research.spiritcore.business.result.ResultQuery;
+import com.actelion.research.spiritcore.business.result.ResultValue;
 import com.actelion.research.spiritcore.business.result.TestAttribute;
 import com.actelion.research.spiritcore.business.result.TestAttribute.OutputType;
+import com.actelion.research.spiritcore.business.study.Phase;
 import com.actelion.research.spiritcore.business.study.Study;
+import com.actelion.research.spiritcore.business.study.StudyQuery;
+import com.actelion.research.spiritcore.services.SpiritRights;
+import com.actelion.research.spiritcore.services.SpiritUser;
+import com.actelion.research.spiritcore.services.dao.DAOBiosample;
+import com.actelion.research.spiritcore.services.dao.DAOBiotype;
+import com.actelion.research.spiritcore.services.dao.DAOEmployee;
+import com.actelion.research.spiritcore.services.dao.DAOLocation;
 import com.actelion.research.spiritcore.services.dao.DAOResult;
+import com.actelion.research.spiritcore.services.dao.DAOResultSnapshot;
 import com.actelion.research.spiritcore.services.dao.DAOSpiritUser;
 import com.actelion.research.spiritcore.services.dao.DAOStudy;
 import com.actelion.research.spiritcore.services.dao.DAOTest;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
+import com.actelion.research.spiritcore.services.dao.RightsPredicate;
+import com.actelion.research.spiritcore.services.dao.SpiritProperties;
+import com.actelion.research.spiritcore.util.MiscUtils;
 import com.actelion.research.util.IOUtils;
 
 public class ResultTest extends AbstractSpiritTest {
@@ -267,6 +295,178 @@ public class ResultTest extends AbstractSpiritTest {
 		Assert.assertEquals(4, table.getPivotRows().size());
 	}
 
+	@Test
+	public void testPivotOrder() throws Exception {
+		ResultQuery q = new ResultQuery();
+		q.setKeywords("IVV2016-1");
+		List<Result> results = DAOResult.queryResults(q, user);
+		Assert.assertTrue(results.size() > 0);
+
+		//The table must not depend on the order of the results
+		PivotTemplate tpl = new CompactPivotTemplate();
+		tpl.init(results);
+		String expected = serialize(new PivotDataTable(new ArrayList<>(results), tpl));
+		List<Result> reversed = new ArrayList<>(results);
+		Collections.reverse(reversed);
+		Assert.assertEquals(expected, serialize(new PivotDataTable(reversed, tpl)));
+		Collections.shuffle(reversed, new Random(0));
+		Assert.assertEquals(expected, serialize(new PivotDataTable(reversed, tpl)));
+	}
+
+	@Test
+	public void testSnapshotRights() throws Exception {
+		Study study = DAOStudy.queryStudies(StudyQuery.createForLocalId("IVV2016-1"), user).get(0);
+		SpiritUser other = new SpiritUser("TestSnapshot");
+
+		//The snapshots are written per user
+		Assert.assertNotEquals(DAOResultSnapshot.getSnapshotFile(study, user), DAOResultSnapshot.getSnapshotFile(study, other));
+		DAOResultSnapshot.getSnapshotFile(study, user).delete();
+		DAOResultSnapshot.getSnapshotFile(study, other).delete();
+
+		ResultQuery q = new ResultQuery();
+		q.setSid(study.getId());
+		for (SpiritUser u : new SpiritUser[] {user, other}) {
+			List<Integer> expected = JPAUtil.getIds(DAOResult.queryResults(q, u));
+			Collections.sort(expected);
+
+			//Query from the DB, then from the snapshot: only the readable results are returned (and stored)
+			List<Integer> ids = JPAUtil.getIds(DAOResultSnapshot.queryResults(study, u));
+			Collections.sort(ids);
+			Assert.assertEquals(expected, ids);
+			Assert.assertTrue(DAOResultSnapshot.getSnapshotFile(study, u).exists());
+
+			ids = JPAUtil.getIds(DAOResultSnapshot.queryResults(study, u));
+			Collections.sort(ids);
+			Assert.assertEquals(expected, ids);
+		}
+
+		//Saving the study (and maybe its rights) makes the snapshot stale
+		File file = DAOResultSnapshot.getSnapshotFile(study, user);
+		Assert.assertTrue(file.setLastModified(0));
+		DAOResultSnapshot.queryResults(study, user);
+		Assert.assertEquals(0, file.lastModified());
+		DAOStudy.persistStudies(Collections.singleton(study), user);
+		DAOResultSnapshot.queryResults(study, user);
+		Assert.assertTrue(file.lastModified()>0);
+	}
+
+	@Test
+	public void testPivotParallel() throws Exception {
+		ResultQuery q = new ResultQuery();
+		q.setKeywords("IVV2016-1");
+		List<Result> results = DAOResult.queryResults(q, user);
+		Assert.assertTrue(results.size() > 0);
+
+		//The parallel build must give the same table as the sequential one
+		for (PivotTemplate tpl : new PivotTemplate[] {new CompactPivotTemplate(), new ColumnPivotTemplate(), new InventoryPivotTemplate()}) {
+			tpl.init(results);
+			tpl.setParallel(false);
+			String expected = serialize(new PivotDataTable(new ArrayList<>(results), tpl));
+			tpl.setParallel(true);
+			for (int i = 0; i < 5; i++) {
+				Assert.assertEquals(expected, serialize(new PivotDataTable(new ArrayList<>(results), tpl)));
+			}
+		}
+	}
+
+	@Test
+	public void testPivotUpdate() throws Exception {
+		ResultQuery q = new ResultQuery();
+		q.setKeywords("IVV2016-1");
+		List<Result> results = DAOResult.queryResults(q, user);
+		Assert.assertTrue(results.size() > 10);
+
+		//After each update, the table must be the same as a new table built on the updated results
+		PivotTemplate phaseAsRow = new CompactPivotTemplate() {
+			@Override
+			public void init(List<Result> results) {
+				super.init(results);
+				setWhere(PivotItemFactory.STUDY_PHASE_DATE, Where.ASROW);
+			}
+		};
+		try {
+			for (PivotTemplate tpl : new PivotTemplate[] {new CompactPivotTemplate(), new ColumnPivotTemplate(), new InventoryPivotTemplate(), phaseAsRow}) {
+				tpl.init(results);
+				List<Result> initial = new ArrayList<>(results);
+				List<Result> added = new ArrayList<>();
+				for (int i = initial.size()-1; i >= 0; i -= 4) {
+					added.add(initial.remove(i));
+				}
+				PivotDataTable table = new PivotDataTable(initial, tpl);
+
+				//Add results
+				table.update(added, null, null);
+				Assert.assertEquals(results.size(), table.getResults().size());
+				assertSameAsRebuilt(table, tpl);
+
+				//Remove results
+				List<Result> removed = new ArrayList<>();
+				for (int i = 0; i < table.getResults().size(); i += 3) {
+					removed.add(table.getResults().get(i));
+				}
+				table.update(null, removed, null);
+				Assert.assertEquals(results.size() - removed.size(), table.getResults().size());
+				assertSameAsRebuilt(table, tpl);
+
+				//Change results: set a new value, and empty a value
+				List<Result> changed = new ArrayList<>();
+				changed.add(table.getResults().get(0));
+				changed.add(table.getResults().get(table.getResults().size()/2));
+				changed.get(0).setFirstOutputValue("999");
+				changed.get(1).setFirstOutputValue("");
+				table.update(null, null, changed);
+				assertSameAsRebuilt(table, tpl);
+
+				//Change the phase of a result: its row may be moved
+				Result moved = table.getResults().get(table.getResults().size()-1);
+				for (Phase phase : moved.getStudy().getPhases()) {
+					if(!phase.equals(moved.getInheritedPhase())) {
+						moved.setPhase(phase);
+						break;
+					}
+				}
+				table.update(null, null, Collections.singletonList(moved));
+				assertSameAsRebuilt(table, tpl);
+
+				//Add, remove and change at once
+				table.update(removed.subList(0, removed.size()/2), Collections.singletonList(table.getResults().get(1)), Collections.singletonList(changed.get(1)));
+				assertSameAsRebuilt(table, tpl);
+			}
+		} finally {
+			//Discard the modified results
+			JPAUtil.clear();
+		}
+	}
+
+	/**
+	 * Checks that the updated table has the same content and the same row order as a new table built on its results
+	 */
+	private static void assertSameAsRebuilt(PivotDataTable table, PivotTemplate tpl) {
+		PivotDataTable rebuilt = new PivotDataTable(new ArrayList<>(table.getResults()), tpl);
+		Assert.assertEquals(serialize(rebuilt), serialize(table));
+		List<PivotRow> rows = table.getPivotRows();
+		for (int i = 0; i < rows.size(); i++) {
+			Assert.assertEquals(rebuilt.getPivotRows().get(i).getKey(), rows.get(i).getKey());
+			Assert.assertTrue("The row " + rows.get(i) + " is not sorted", i==0 || rows.get(i-1).compareTo(rows.get(i))<=0);
+		}
+	}
+
+	private static String serialize(PivotDataTable table) {
+		StringBuilder sb = new StringBuilder();
+		for (PivotColumn col : table.getPivotColumns()) {
+			sb.append(col.getTitle()).append("\t");
+		}
+		sb.append("\n");
+		for (PivotRow row : table.getPivotRows()) {
+			sb.append(row.getKey());
+			for (PivotColumn col : table.getPivotColumns()) {
+				sb.append("\t").append(row.getPivotCell(col).getValues());
+			}
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
 	@Test
 	public void testAnalyzer() throws Exception {
 		ResultQuery q = new ResultQuery();
@@ -284,6 +484,132 @@ public class ResultTest extends AbstractSpiritTest {
 		DataWarriorExporter.getDwar(table);
 	}
 
+	@Test
+	public void testGetTestByName() throws Exception {
+		com.actelion.research.spiritcore.business.result.Test t = new com.actelion.research.spiritcore.business.result.Test("NameTest");
+		t.setCategory("TEST");
+		DAOTest.persistTests(Collections.singleton(t), user);
+		Assert.assertEquals(t.getId(), DAOTest.getTest("NameTest").getId());
 
+		//Rename: the map by name is invalidated with the cache
+		t = DAOTest.getTest("NameTest");
+		t.setName("NameTest2");
+		DAOTest.persistTests(Collections.singleton(t), user);
+		Assert.assertNull(DAOTest.getTest("NameTest"));
+		Assert.assertEquals(t.getId(), DAOTest.getTest("NameTest2").getId());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRebuildNumValues() throws Exception {
+		DAOResult.rebuildNumValues(user);
+		Assert.assertTrue(DAOResult.isNumValueIndexed());
+
+		JPAUtil.clearAll();
+		List<Object[]> rows = JPAUtil.getManager().createQuery("select v.value, v.numValue from ResultValue v where v.attribute.dataType = ?1")
+				.setParameter(1, DataType.NUMBER)
+				.getResultList();
+		Assert.assertTrue(rows.size() > 0);
+		for (Object[] row : rows) {
+			Assert.assertEquals(ResultValue.parseDouble((String) row[0]), row[1]);
+		}
+	}
+
+
+
+	/**
+	 * Tests that the rights predicates (see RightsPredicate) don't change the biosamples and results returned to a restricted user:
+	 * the query must give the same rows as the unfiltered query, post-filtered with SpiritRights.canRead
+	 * @throws Exception
+	 */
+	@Test
+	public void testRightsPredicate() throws Exception {
+		//Create 2 departments
+		EmployeeGroup groupA = new EmployeeGroup("RightsA");
+		EmployeeGroup groupB = new EmployeeGroup("RightsB");
+		DAOEmployee.persistEmployeeGroups(MiscUtils.listOf(groupA, groupB), user);
+		Employee empA = new Employee("RightsUA");
+		empA.setEmployeeGroups(Collections.singleton(groupA));
+		Employee empB = new Employee("RightsUB");
+		empB.setEmployeeGroups(Collections.singleton(groupB));
+		DAOEmployee.persistEmployees(MiscUtils.listOf(empA, empB), user);
+
+		//Create locations: private to A, private to B (and a child inheriting the privacy), protected and public
+		Location privateA = new Location("RightsPrivateA");
+		privateA.setLocationType(LocationType.BUILDING);
+		privateA.setPrivacy(Privacy.PRIVATE);
+		privateA.setEmployeeGroup(groupA);
+		Location privateB = new Location("RightsPrivateB");
+		privateB.setLocationType(LocationType.BUILDING);
+		privateB.setPrivacy(Privacy.PRIVATE);
+		privateB.setEmployeeGroup(groupB);
+		Location childB = new Location(privateB, "RightsChildB");
+		childB.setLocationType(LocationType.FREEZER);
+		childB.setPrivacy(Privacy.INHERITED);
+		Location protectedLoc = new Location("RightsProtected");
+		protectedLoc.setLocationType(LocationType.BUILDING);
+		protectedLoc.setPrivacy(Privacy.PROTECTED);
+		Location publicLoc = new Location("RightsPublic");
+		publicLoc.setLocationType(LocationType.BUILDING);
+		publicLoc.setPrivacy(Privacy.PUBLIC);
+		DAOLocation.persistLocations(MiscUtils.listOf(privateA, privateB, childB, protectedLoc, publicLoc), user);
+
+		//Create a biosample in each location (and without location), and a result on each one
+		com.actelion.research.spiritcore.business.result.Test test = DAOTest.getTest("Weighing");
+		List<Biosample> biosamples = new ArrayList<>();
+		List<Result> results = new ArrayList<>();
+		for (Location location : new Location[] {null, privateA, privateB, childB, protectedLoc, publicLoc}) {
+			Biosample b = new Biosample(DAOBiotype.getBiotype("Bacteria"));
+			b.setLocation(location);
+			biosamples.add(b);
+
+			Result r = new Result(test);
+			r.setBiosample(b);
+			r.setElb("TestRightsPredicate");
+			r.setValue(test.getOutputAttributes().get(0), "10");
+			results.add(r);
+		}
+		DAOBiosample.persistBiosamples(biosamples, user);
+		DAOResult.persistResults(results, user);
+
+		String mode = SpiritProperties.getInstance().getValue(PropertyKey.USER_OPENBYDEFAULT);
+		try {
+			for (String rightsMode : new String[] {"open", "restricted"}) {
+				SpiritProperties.getInstance().setValue(PropertyKey.USER_OPENBYDEFAULT, rightsMode);
+				SpiritRights.invalidateCache();
+				SpiritUser restricted = new SpiritUser(empA);
+				Assert.assertTrue(RightsPredicate.getBiosampleClause("b", restricted).length()>0);
+
+				//Biosamples
+				Set<Integer> expected = new HashSet<>();
+				for (Biosample b : DAOBiosample.queryBiosamples(new BiosampleQuery(), null)) {
+					if(SpiritRights.canRead(b, restricted)) expected.add(b.getId());
+				}
+				Set<Integer> actual = new HashSet<>(JPAUtil.getIds(DAOBiosample.queryBiosamples(new BiosampleQuery(), restricted)));
+				Assert.assertEquals(rightsMode, expected, actual);
+				Assert.assertTrue(rightsMode, actual.contains(biosamples.get(5).getId()));
+				Assert.assertFalse(rightsMode, actual.contains(biosamples.get(2).getId()));
+				Assert.assertFalse(rightsMode, actual.contains(biosamples.get(3).getId()));
+
+				//Results (the limit must apply to the readable results)
+				for (ResultQuery q : new ResultQuery[] {ResultQuery.createQueryForElb("TestRightsPredicate"), ResultQuery.createQueryForStudyIds(DAOStudy.queryStudies(StudyQuery.createForLocalId("IVV2016-1"), user).get(0).getStudyId())}) {
+					expected = new HashSet<>();
+					for (Result r : DAOResult.queryResults(q, null)) {
+						if(SpiritRights.canRead(r, restricted)) expected.add(r.getId());
+					}
+					actual = new HashSet<>(JPAUtil.getIds(DAOResult.queryResults(q, restricted)));
+					Assert.assertEquals(rightsMode, expected, actual);
+
+					q.setMaxResults(2);
+					actual = new HashSet<>(JPAUtil.getIds(DAOResult.queryResults(q, restricted)));
+					Assert.assertEquals(rightsMode, Math.min(2, expected.size()), actual.size());
+					Assert.assertTrue(rightsMode, expected.containsAll(actual));
+				}
+			}
+		} finally {
+			SpiritProperties.getInstance().setValue(PropertyKey.USER_OPENBYDEFAULT, mode);
+			SpiritRights.invalidateCache();
+		}
+	}
 
 }
@@ -37,6 +37,7 @@ import com.actelion.research.spiritcore.services.dao.DAOStudy;
 import com.actelion.research.spiritcore.services.dao.DAOTest;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
 import com.actelion.research.spiritcore.services.dao.SpiritProperties;
+import com.actelion.research.spiritcore.services.dao.SpiritRevisionEntity;
 import com.actelion.research.spiritcore.util.MiscUtils;
 import com.actelion.research.spiritcore.util.Pair;
 import com.actelion.research.util.IOUtils;
@@ -526,4 +527,59 @@ public class RevisionTest extends AbstractSpiritTest {
 
 	}
 
+	/**
+	 * Tests that the audit index, rebuilt from the Envers tables, gives the same revisions as the query without index, when paged through beforeRevId
+	 * @throws Exception
+	 */
+	@Test
+	public void testRebuildIndex() throws Exception {
+		Study study = DAOStudy.queryStudies(StudyQuery.createForLocalId("IVV2016-1"), user).get(0);
+		RevisionQuery query = new RevisionQuery();
+		query.setStudyIdFilter(study.getStudyId());
+		query.setStudies(true);
+		query.setSamples(true);
+		query.setResults(true);
+
+		//Query the revisions without the index
+		List<Integer> expected = new ArrayList<>();
+		SpiritProperties.getInstance().setValue(PropertyKey.DB_AUDITINDEX, "false");
+		SpiritProperties.getInstance().saveValues();
+		try {
+			for (Revision rev : DAORevision.queryRevisions(query)) {
+				expected.add(rev.getRevId());
+			}
+			Assert.assertTrue(expected.size()>1);
+
+			//Remove the index, as if the revisions were created before the index
+			EntityManager session = JPAUtil.createManager();
+			try {
+				session.getTransaction().begin();
+				for (SpiritRevisionEntity rev : session.createQuery("select r from revinfo r", SpiritRevisionEntity.class).getResultList()) {
+					rev.getIndexEntries().clear();
+				}
+				session.getTransaction().commit();
+			} finally {
+				session.close();
+			}
+		} finally {
+			DAORevision.rebuildIndex(user);
+		}
+		Assert.assertTrue(DAORevision.isIndexEnabled());
+
+		//Page through the index
+		List<Integer> actual = new ArrayList<>();
+		query.setMaxRevisions(2);
+		while(true) {
+			List<Revision> revs = DAORevision.queryRevisions(query);
+			if(revs.isEmpty()) break;
+			Assert.assertTrue(revs.size()<=2);
+			for (Revision rev : revs) {
+				actual.add(rev.getRevId());
+			}
+			query.setBeforeRevId(revs.get(revs.size()-1).getRevId());
+		}
+		Collections.sort(expected, Collections.reverseOrder());
+		Assert.assertEquals(expected, actual);
+	}
+
 }
@@ -6,6 +6,8 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -18,6 +20,7 @@ import com.actelion.research.spiritcore.business.biosample.BiosampleQuery;
 import com.actelion.research.spiritcore.business.biosample.Biotype;
 import com.actelion.research.spiritcore.business.biosample.ContainerType;
 import com.actelion.research.spiritcore.business.property.PropertyKey;
+import com.actelion.research.spiritcore.business.result.Result;
 import com.actelion.research.spiritcore.business.result.ResultQuery;
 import com.actelion.research.spiritcore.business.study.AttachedBiosample;
 import com.actelion.research.spiritcore.business.study.Group;
@@ -27,6 +30,7 @@ import com.actelion.research.spiritcore.business.study.Randomization;
 import com.actelion.research.spiritcore.business.study.Sampling;
 import com.actelion.research.spiritcore.business.study.Study;
 import com.actelion.research.spiritcore.business.study.StudyQuery;
+import com.actelion.research.spiritcore.business.study.StudySummary;
 import com.actelion.research.spiritcore.services.SpiritUser;
 import com.actelion.research.spiritcore.services.dao.DAOBiosample;
 import com.actelion.research.spiritcore.services.dao.DAOBiotype;
@@ -34,6 +38,8 @@ import com.actelion.research.spiritcore.services.dao.DAONamedSampling;
 import com.actelion.research.spiritcore.services.dao.DAOResult;
 import com.actelion.research.spiritcore.services.dao.DAORevision;
 import com.actelion.research.spiritcore.services.dao.DAOStudy;
+import com.actelion.research.spiritcore.services.dao.DAOStudySummary;
+import com.actelion.research.spiritcore.services.dao.DAOTest;
 import com.actelion.research.spiritcore.services.dao.JPAUtil;
 import com.actelion.research.spiritcore.services.dao.SpiritProperties;
 import com.actelion.research.spiritcore.services.helper.BiosampleCreationHelper;
@@ -755,4 +761,101 @@ public class StudyTest extends AbstractSpiritTest {
 		SpiritProperties.getInstance().setValue(PropertyKey.STUDY_STUDYID_PATTERN, "S-#####");
 	}
 
+	@Test
+	public void testStudySummary() throws Exception {
+		DAOStudySummary.rebuild(user);
+		int studyId = DAOStudy.getStudyByLocalIdOrStudyIds("IVV2016-1").get(0).getId();
+		assertSummaryUpToDate(studyId);
+
+		//Add a biosample
+		Biosample b = new Biosample(DAOBiotype.getBiotype("Animal"));
+		b.setSampleId("SummaryTest");
+		b.setInheritedStudy(DAOStudy.getStudy(studyId));
+		DAOBiosample.persistBiosamples(Collections.singleton(b), user);
+		assertSummaryUpToDate(studyId);
+
+		//Add a result
+		Result r = new Result(DAOTest.getTest("Weighing"));
+		r.setBiosample(DAOBiosample.getBiosample("SummaryTest"));
+		r.setFirstOutputValue("12.0");
+		DAOResult.persistResults(Collections.singleton(r), user);
+		assertSummaryUpToDate(studyId);
+
+		//Move the biosample out of the study: the result is moved too
+		b = DAOBiosample.getBiosample("SummaryTest");
+		b.setInheritedStudy(null);
+		DAOBiosample.persistBiosamples(Collections.singleton(b), user);
+		assertSummaryUpToDate(studyId);
+
+		//Delete the result, then the biosample
+		DAOResult.deleteResults(DAOResult.queryResults(ResultQuery.createQueryForBiosampleId(b.getId()), user), user);
+		assertSummaryUpToDate(studyId);
+		DAOBiosample.deleteBiosamples(Collections.singleton(DAOBiosample.getBiosample("SummaryTest")), user);
+		assertSummaryUpToDate(studyId);
+	}
+
+	@Test
+	public void testStudySummaryPropagation() throws Exception {
+		DAOStudySummary.rebuild(user);
+		Study s1 = DAOStudy.getStudyByLocalIdOrStudyIds("IVV2016-1").get(0);
+		Study s2 = DAOStudy.getStudyByLocalIdOrStudyIds("IVV2016-2").get(0);
+
+		//Add a parent with a child and a grandchild, and a result on the grandchild
+		Biosample parent = new Biosample(DAOBiotype.getBiotype("Animal"));
+		parent.setSampleId("SummaryParent");
+		parent.setInheritedStudy(s1);
+		Biosample child = new Biosample(DAOBiotype.getBiotype("Blood"));
+		child.setSampleId("SummaryChild");
+		child.setParent(parent);
+		child.setInheritedStudy(s1);
+		Biosample grandChild = new Biosample(DAOBiotype.getBiotype("Plasma"));
+		grandChild.setSampleId("SummaryGrandChild");
+		grandChild.setParent(child);
+		grandChild.setInheritedStudy(s1);
+		DAOBiosample.persistBiosamples(Arrays.asList(parent, child, grandChild), user);
+		Result r = new Result(DAOTest.getTest("Weighing"));
+		r.setBiosample(DAOBiosample.getBiosample("SummaryGrandChild"));
+		r.setFirstOutputValue("5.0");
+		DAOResult.persistResults(Collections.singleton(r), user);
+		assertSummaryUpToDate(s1.getId(), s2.getId());
+
+		//Move only the parent to the other study: the children and their results are moved too
+		parent = DAOBiosample.getBiosample("SummaryParent");
+		parent.setInheritedStudy(s2);
+		DAOBiosample.persistBiosamples(Collections.singleton(parent), user);
+		Assert.assertEquals(s2, DAOBiosample.getBiosample("SummaryGrandChild").getInheritedStudy());
+		assertSummaryUpToDate(s1.getId(), s2.getId());
+
+		//Cleanup
+		DAOResult.deleteResults(DAOResult.queryResults(ResultQuery.createQueryForBiosampleId(DAOBiosample.getBiosample("SummaryGrandChild").getId()), user), user);
+		DAOBiosample.deleteBiosamples(DAOBiosample.getBiosamplesBySampleIds(Arrays.asList("SummaryParent", "SummaryChild", "SummaryGrandChild")).values(), user);
+		assertSummaryUpToDate(s1.getId(), s2.getId());
+	}
+
+	/**
+	 * Checks that the summary, updated after each change, is the same as the rebuilt one
+	 */
+	private static void assertSummaryUpToDate(int... studyIds) throws Exception {
+		Map<String, Integer> incremental = getSummary(studyIds);
+		DAOStudySummary.rebuild(user);
+		Assert.assertEquals(getSummary(studyIds), incremental);
+	}
+
+	private static Map<String, Integer> getSummary(int... studyIds) {
+		JPAUtil.clearAll();
+		List<Study> studies = new ArrayList<>();
+		for (int studyId : studyIds) {
+			studies.add(DAOStudy.getStudy(studyId));
+		}
+		Map<String, Integer> res = new TreeMap<>();
+		for (String kind : new String[] {StudySummary.KIND_BIOSAMPLE, StudySummary.KIND_RESULT}) {
+			List<StudySummary> rows = new ArrayList<>(DAOStudySummary.getSummaries(kind, studies));
+			rows.addAll(DAOStudySummary.getSummaries(kind, null));
+			for (StudySummary row : rows) {
+				res.put(row.getKind() + "_" + row.getStudyId() + "_" + row.getTypeId() + "_" + row.getBiotypeId() + "_" + row.getUpdUser(), row.getCount());
+			}
+		}
+		return res;
+	}
+
 }
@@ -25,6 +25,8 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -33,7 +35,12 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.actelion.research.spiritcore.services.StringEncrypter;
+import com.actelion.research.spiritcore.services.dao.SpiritMetrics;
 import com.actelion.research.spiritcore.util.MiscUtils;
+import com.actelion.research.spiritcore.util.PrefixTrie;
+import com.actelion.research.spiritcore.util.QueryTokenizer;
+import com.actelion.research.spiritcore.util.StatAccumulator;
+import com.actelion.research.spiritcore.util.StatUtils;
 import com.actelion.research.util.ArgumentParser;
 import com.actelion.research.util.CompareUtils;
 import com.actelion.research.util.FormatterUtils;
@@ -43,6 +50,27 @@ import junit.framework.AssertionFailedError;
 
 public class UtilsTest {
 
+	@Test
+	public void testMetricsStatements() {
+		SpiritMetrics metrics = SpiritMetrics.getInstance();
+		long untimed = metrics.counter("JDBC.statements.untimed").getCount();
+		SpiritMetrics.countStatement();
+		Assert.assertEquals(untimed+1, metrics.counter("JDBC.statements.untimed").getCount());
+
+		//The statements are attributed to the innermost call, and to the enclosing calls
+		try(SpiritMetrics.Context outer = SpiritMetrics.time("UtilsTest.outer")) {
+			SpiritMetrics.countStatement();
+			try(SpiritMetrics.Context inner = SpiritMetrics.time("UtilsTest.inner")) {
+				SpiritMetrics.countStatement();
+				SpiritMetrics.countStatement();
+				Assert.assertEquals(2, inner.getStatements());
+			}
+			Assert.assertEquals(3, outer.getStatements());
+		}
+		Assert.assertEquals(2, metrics.histogram("UtilsTest.inner.statements").getMax());
+		Assert.assertEquals(3, metrics.histogram("UtilsTest.outer.statements").getMax());
+		Assert.assertEquals(untimed+1, metrics.counter("JDBC.statements.untimed").getCount());
+	}
 
 	@Test
 	public void testLongestSubstring() {
@@ -302,4 +330,173 @@ public class UtilsTest {
 
 	}
 
+	@Test
+	public void testStatAccumulator() {
+		//Empty
+		StatAccumulator empty = new StatAccumulator();
+		Assert.assertEquals(0, empty.getCount());
+		Assert.assertTrue(Double.isNaN(empty.getMean()));
+		Assert.assertTrue(Double.isNaN(empty.getSum()));
+		Assert.assertTrue(Double.isNaN(empty.getMin()));
+		Assert.assertTrue(Double.isNaN(empty.getMedian()));
+		Assert.assertTrue(Double.isNaN(empty.getQuantile(.5)));
+		Assert.assertTrue(Double.isNaN(empty.getStandardDeviation()));
+		Assert.assertNull(empty.getFences());
+
+		//NaN and null are ignored
+		StatAccumulator acc = new StatAccumulator();
+		acc.add(Double.NaN);
+		acc.add((Double) null);
+		Assert.assertEquals(0, acc.getCount());
+
+		//One element
+		acc.add(4.0);
+		Assert.assertEquals(1, acc.getCount());
+		Assert.assertEquals(4, acc.getMean(), 1e-9);
+		Assert.assertEquals(4, acc.getMedian(), 1e-9);
+		Assert.assertEquals(4, acc.getQuantile(.25), 1e-9);
+		Assert.assertEquals(4, acc.getGeometricMean(), 1e-9);
+		Assert.assertTrue(Double.isNaN(acc.getVariance()));
+		Assert.assertEquals(0, acc.getPopulationStandardDeviation(), 1e-9);
+
+		//Several elements, merged with an empty accumulator
+		acc.addAll(Arrays.asList(1.0, 2.0, Double.NaN, 3.0));
+		acc.merge(empty);
+		Assert.assertEquals(4, acc.getCount());
+		Assert.assertEquals(2.5, acc.getMean(), 1e-9);
+		Assert.assertEquals(2.5, acc.getMedian(), 1e-9);
+		Assert.assertEquals(5.0/3, acc.getVariance(), 1e-9);
+		Assert.assertEquals(1, acc.getMin(), 1e-9);
+		Assert.assertEquals(4, acc.getMax(), 1e-9);
+
+		//Merging partitions gives the same statistics
+		StatAccumulator all = new StatAccumulator(100);
+		StatAccumulator part1 = new StatAccumulator(100);
+		StatAccumulator part2 = new StatAccumulator(100);
+		Random r = new Random(0);
+		for (int i = 0; i < 1000; i++) {
+			double v = r.nextGaussian();
+			all.add(v);
+			(i%2==0? part1: part2).add(v);
+		}
+		part1.merge(part2);
+		Assert.assertEquals(all.getCount(), part1.getCount());
+		Assert.assertEquals(all.getMean(), part1.getMean(), 1e-9);
+		Assert.assertEquals(all.getVariance(), part1.getVariance(), 1e-9);
+		Assert.assertEquals(all.getMedian(), part1.getMedian(), .1);
+
+		//The median of a full list is exact, even when the accumulator would compress the values
+		List<Double> list = new ArrayList<>();
+		for (int i = 0; i < 5001; i++) {
+			list.add((double) ((i*7919) % 5001));
+		}
+		list.add(null);
+		Assert.assertEquals(2500, StatUtils.getMedian(list), 0);
+		Assert.assertEquals(2500, StatUtils.getMedianOfSorted(new double[] {0, 2000, 3000, 5000}), 0);
+		Assert.assertNull(StatUtils.getMedian(new ArrayList<>()));
+	}
+
+	@Test
+	public void testPrefixTrie() {
+		PrefixTrie trie = new PrefixTrie();
+		trie.add("ab", 3);
+		trie.add("abc", 5);
+		trie.add("abd", 1);
+		trie.add("ABC", 2);
+		trie.add("b", 4);
+		trie.add(null, 1);
+		trie.add("", 1);
+		Assert.assertEquals(5, trie.size());
+
+		//Counts are case sensitive
+		Assert.assertEquals(5, trie.getCount("abc"));
+		Assert.assertEquals(2, trie.getCount("ABC"));
+		Assert.assertEquals(0, trie.getCount("Abc"));
+		Assert.assertEquals(0, trie.getCount("a"));
+
+		//Prefixes are case insensitive and include the words equal to the prefix
+		Assert.assertEquals(Arrays.asList("ab", "ABC", "abc", "abd"), trie.getWords("ab"));
+		Assert.assertEquals(Arrays.asList("ABC", "abc"), trie.getWords("aBc"));
+		Assert.assertEquals(Arrays.asList(), trie.getWords("abcd"));
+		Assert.assertEquals(Arrays.asList("abc", "ab", "ABC", "abd"), trie.topK("AB", 10));
+		Assert.assertEquals(Arrays.asList("abc", "ab"), trie.topK("ab", 2));
+		Assert.assertEquals(Arrays.asList("abc"), trie.topK("a", 1));
+		Assert.assertEquals(Arrays.asList("abc", "b", "ab"), trie.topK(null, 3));
+		Assert.assertEquals(Arrays.asList(), trie.topK("x", 3));
+		Assert.assertEquals(Arrays.asList(), trie.topK("ab", 0));
+
+		//Decrementing an unknown word does nothing
+		int version = trie.getVersion();
+		trie.add("abcd", -1);
+		trie.add("Ab", -1);
+		Assert.assertEquals(version, trie.getVersion());
+		Assert.assertEquals(5, trie.size());
+
+		//Removing the most frequent word updates the max frequency of the prefixes
+		trie.add("abc", -5);
+		Assert.assertEquals(4, trie.size());
+		Assert.assertEquals(0, trie.getCount("abc"));
+		Assert.assertEquals(Arrays.asList("ab"), trie.topK("ab", 1));
+		Assert.assertEquals(Arrays.asList("b"), trie.topK(null, 1));
+
+		//Removing the longer words prunes their nodes but keeps the shorter prefix
+		trie.add("ABC", -10);
+		trie.add("abd", -1);
+		Assert.assertEquals(2, trie.size());
+		Assert.assertEquals(Arrays.asList(), trie.topK("abc", 1));
+		Assert.assertEquals(Arrays.asList("ab"), trie.getWords("a"));
+		Assert.assertEquals(3, trie.getCount("ab"));
+
+		trie.add("ab", 2);
+		Assert.assertEquals(Arrays.asList("ab", "b"), trie.topK("", 5));
+
+		trie.clear();
+		Assert.assertEquals(0, trie.size());
+		Assert.assertEquals(Arrays.asList(), trie.topK(null, 5));
+	}
+
+	@Test
+	public void testSplitForIn() {
+		Assert.assertEquals(0, QueryTokenizer.splitForIn(null).size());
+		Assert.assertEquals(0, QueryTokenizer.splitForIn(new ArrayList<Integer>()).size());
+
+		//Each chunk is padded to the next bucket
+		int[][] sizes = {{1, 16}, {16, 16}, {17, 64}, {64, 64}, {65, 256}, {256, 256}, {257, 1000}, {1000, 1000}};
+		for (int[] size : sizes) {
+			List<List<Integer>> res = QueryTokenizer.splitForIn(range(0, size[0]));
+			Assert.assertEquals(1, res.size());
+			Assert.assertEquals(size[1], res.get(0).size());
+			Assert.assertEquals(range(0, size[0]), new ArrayList<>(new LinkedHashSet<>(res.get(0))));
+			Assert.assertEquals(size[0]-1, (int) res.get(0).get(size[1]-1));
+		}
+
+		//Above 1000, the items are split and the last chunk is padded
+		List<List<Integer>> res = QueryTokenizer.splitForIn(range(0, 1001));
+		Assert.assertEquals(2, res.size());
+		Assert.assertEquals(range(0, 1000), res.get(0));
+		Assert.assertEquals(16, res.get(1).size());
+		Assert.assertEquals(Collections.singleton(1000), new HashSet<>(res.get(1)));
+
+		res = QueryTokenizer.splitForIn(range(0, 2017));
+		Assert.assertEquals(3, res.size());
+		Assert.assertEquals(range(1000, 2000), res.get(1));
+		Assert.assertEquals(64, res.get(2).size());
+
+		//Duplicates are removed before the split, keeping the order
+		List<String> items = Arrays.asList("b", "a", "b", "c", "a");
+		List<List<String>> res2 = QueryTokenizer.splitForIn(items);
+		Assert.assertEquals(1, res2.size());
+		Assert.assertEquals(16, res2.get(0).size());
+		Assert.assertEquals(Arrays.asList("b", "a", "c", "c"), res2.get(0).subList(0, 4));
+		List<Integer> duplicates = new ArrayList<>(range(0, 1000));
+		duplicates.addAll(range(0, 1000));
+		Assert.assertEquals(1, QueryTokenizer.splitForIn(duplicates).size());
+	}
+
+	private static List<Integer> range(int from, int to) {
+		List<Integer> res = new ArrayList<>();
+		for (int i = from; i < to; i++) res.add(i);
+		return res;
+	}
+
 }